@@ -0,0 +1,199 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.guanxi.common.Bag;
+
+/**
+ * Attribute based access rules for protected paths. Rules are numbered in the Guard config,
+ * starting at 1, and are tried in order. The first rule whose path regex matches the request
+ * path decides whether the Pod's attributes allow access. Paths that don't match any rule
+ * only need a Pod, as before. The path is within the application, decoded and normalised by
+ * RequestPath, so a rule can't be dodged by writing the path another way.
+ *
+ * access.rule.1.path=^/protected/admin/
+ * access.rule.1.require=eduPersonAffiliation=staff|faculty,eduPersonEntitlement~^urn:mace:uni:admin
+ *
+ * require is a comma separated list of conditions, all of which must hold:
+ *
+ * name          the attribute is present
+ * name=a|b      one of the attribute's values is a or b
+ * name~regex    one of the attribute's values matches the regex
+ *
+ * Multiple values of an attribute are separated by VALUE_DELIMITER in the Bag.
+ *
+ * The rules are compiled when the Guard starts. Decisions are cached in the PodSnapshot
+ * being checked, which is replaced whenever the Pod's Bag changes, so a Pod only has each
+ * of the first MAX_CACHED_RULES rules evaluated against it once.
+ */
+public class AccessPolicy {
+  /** Separates the values of a multi valued attribute */
+  public static final String VALUE_DELIMITER = ";";
+  /** Number of rules whose decisions are cached per Pod */
+  public static final int MAX_CACHED_RULES = 32;
+
+  /** The compiled rules, in order */
+  private final Rule[] rules;
+
+  /**
+   * Compiles the access rules in the Guard's config
+   *
+   * @param config the Guard's config
+   * @return the compiled policy or null if the config doesn't have any rules
+   */
+  public static AccessPolicy compile(GuardConfig config) {
+    List<Rule> rules = new ArrayList<Rule>();
+    for (int i = 1; config.get("access.rule." + i + ".path") != null; i++) {
+      rules.add(new Rule(config.get("access.rule." + i + ".path"),
+                         config.get("access.rule." + i + ".require")));
+    }
+
+    return rules.isEmpty() ? null : new AccessPolicy(rules.toArray(new Rule[rules.size()]));
+  }
+
+  private AccessPolicy(Rule[] rules) {
+    this.rules = rules;
+  }
+
+  /**
+   * Determines whether a Pod allows access to a path
+   *
+   * @param snapshot the current snapshot of the Pod
+   * @param path the path being accessed, normalised by RequestPath
+   * @return true if access is allowed
+   */
+  public boolean isAllowed(PodSnapshot snapshot, String path) {
+    for (int i = 0; i < rules.length; i++) {
+      if (rules[i].path.matcher(path).find()) {
+        return decide(snapshot, i);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decides whether a Pod satisfies a rule, using the snapshot's cached decision if it has one
+   *
+   * @param snapshot the current snapshot of the Pod
+   * @param rule the index of the rule
+   * @return true if the Pod satisfies the rule
+   */
+  private boolean decide(PodSnapshot snapshot, int rule) {
+    if (rule >= MAX_CACHED_RULES) {
+      return rules[rule].isSatisfiedBy(snapshot.getPod().getBag());
+    }
+
+    // The low 32 bits say which rules have been decided, the high 32 bits what was decided
+    long known = 1L << rule;
+    long allowed = 1L << (rule + 32);
+    long decisions = snapshot.getDecisions().get();
+    if ((decisions & known) != 0) {
+      return (decisions & allowed) != 0;
+    }
+
+    boolean decision = rules[rule].isSatisfiedBy(snapshot.getPod().getBag());
+    long update = known | (decision ? allowed : 0);
+    while (true) {
+      decisions = snapshot.getDecisions().get();
+      if (snapshot.getDecisions().compareAndSet(decisions, decisions | update)) {
+        return decision;
+      }
+    }
+  }
+
+  /**
+   * A compiled rule
+   */
+  private static class Rule {
+    final Pattern path;
+    final Condition[] conditions;
+
+    Rule(String path, String require) {
+      this.path = Pattern.compile(path);
+
+      List<Condition> conditions = new ArrayList<Condition>();
+      if (require != null) {
+        for (String condition : require.split(",")) {
+          if (condition.trim().length() > 0) {
+            conditions.add(new Condition(condition.trim()));
+          }
+        }
+      }
+      this.conditions = conditions.toArray(new Condition[conditions.size()]);
+    }
+
+    boolean isSatisfiedBy(Bag bag) {
+      if (bag == null) return false;
+      for (Condition condition : conditions) {
+        if (!condition.isSatisfiedBy(bag)) return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A compiled condition on one attribute
+   */
+  private static class Condition {
+    final String name;
+    /** The values one of which the attribute must have, or null */
+    final Set<String> values;
+    /** The regex one of the attribute's values must match, or null */
+    final Pattern pattern;
+
+    Condition(String condition) {
+      int equals = condition.indexOf('=');
+      int tilde = condition.indexOf('~');
+      if ((equals != -1) && ((tilde == -1) || (equals < tilde))) {
+        name = condition.substring(0, equals).trim();
+        values = new HashSet<String>();
+        for (String value : condition.substring(equals + 1).split("\\|")) {
+          values.add(value.trim());
+        }
+        pattern = null;
+      }
+      else if (tilde != -1) {
+        name = condition.substring(0, tilde).trim();
+        values = null;
+        pattern = Pattern.compile(condition.substring(tilde + 1).trim());
+      }
+      else {
+        name = condition;
+        values = null;
+        pattern = null;
+      }
+    }
+
+    boolean isSatisfiedBy(Bag bag) {
+      String attribute = bag.getAttributeValue(name);
+      if (attribute == null) return false;
+      if ((values == null) && (pattern == null)) return true;
+
+      for (String value : attribute.split(VALUE_DELIMITER)) {
+        if ((values != null) && (values.contains(value))) return true;
+        if ((pattern != null) && (pattern.matcher(value).find())) return true;
+      }
+      return false;
+    }
+  }
+}
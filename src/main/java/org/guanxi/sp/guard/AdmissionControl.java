@@ -0,0 +1,226 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rate limits the creation of new Pods per client. Anyone can make the Guard create a Pod
+ * by asking for a protected resource without a cookie, so without a limit a single client
+ * can fill the Guard's memory with Pods that will never be used.
+ *
+ * Each client gets a token bucket that holds up to burst tokens and refills at a steady
+ * rate. Creating a Pod takes a token. Clients are identified by their address, optionally
+ * masked to a network prefix, which is hashed into a fixed size table of buckets. The table never
+ * grows however many clients there are. Clients that share a bucket share its tokens, which
+ * can only make the limit stricter. A bucket that's left alone refills, so clients that go
+ * quiet are forgotten without any cleanup.
+ *
+ * Each bucket is a single long, holding the time it was last refilled and the tokens in it,
+ * and is updated with compare-and-set. Checking a client takes no locks and allocates nothing.
+ */
+public class AdmissionControl {
+  /** HTTP status for clients that are over their limit */
+  public static final int SC_TOO_MANY_REQUESTS = 429;
+
+  /** Number of buckets. Must be a power of two */
+  private static final int TABLE_SIZE = 8192;
+  /** Number of counters for rejected requests, to spread the writes. Must be a power of two */
+  private static final int COUNTER_STRIPES = 16;
+  /** Units per token, so buckets can refill by fractions of a token */
+  private static final long UNITS_PER_TOKEN = 1000000L;
+
+  /** The buckets, each as last refill time in the high 32 bits and units in the low 32 bits */
+  private final AtomicLongArray buckets = new AtomicLongArray(TABLE_SIZE);
+  /** Counts of rejected requests */
+  private final AtomicLongArray rejected = new AtomicLongArray(COUNTER_STRIPES);
+  /** Time the refill times are relative to. A millisecond back, as a bucket of 0 is an unused one */
+  private final long epoch = System.currentTimeMillis() - 1;
+  /** The most units a bucket can hold */
+  private final long capacity;
+  /** Units added to a bucket each millisecond */
+  private final long refillPerMilli;
+  /** Number of leading bits that identify an IPv4 client */
+  private final int ipv4Prefix;
+  /** Number of leading bits that identify an IPv6 client */
+  private final int ipv6Prefix;
+
+  /**
+   * Sets up admission control
+   *
+   * @param podsPerMinute the steady rate at which a client can create Pods
+   * @param burst the most Pods a client can create in one go
+   * @param ipv4Prefix the number of bits of an IPv4 address that identify a client
+   * @param ipv6Prefix the number of bits of an IPv6 address that identify a client
+   */
+  public AdmissionControl(int podsPerMinute, int burst, int ipv4Prefix, int ipv6Prefix) {
+    // A bucket holds at most 4294 tokens in its 32 bits of units
+    capacity = Math.min(burst, 4000) * UNITS_PER_TOKEN;
+    refillPerMilli = Math.max(1, (podsPerMinute * UNITS_PER_TOKEN) / 60000);
+    this.ipv4Prefix = Math.max(1, Math.min(32, ipv4Prefix));
+    this.ipv6Prefix = Math.max(1, Math.min(128, ipv6Prefix));
+  }
+
+  /**
+   * Determines whether a client can create a new Pod, taking a token from its bucket if it can.
+   *
+   * @param address the client's address
+   * @return true if the client can create a Pod, false if it's over its limit
+   */
+  public boolean admit(String address) {
+    int hash = hash(address);
+    int slot = hash & (TABLE_SIZE - 1);
+    int now = (int)(System.currentTimeMillis() - epoch);
+
+    while (true) {
+      long bucket = buckets.get(slot);
+      long units = capacity;
+      if (bucket != 0) {
+        // The subtraction copes with the 32 bit clock wrapping. Buckets idle that long are full
+        int elapsed = now - (int)(bucket >>> 32);
+        if (elapsed >= 0) {
+          units = Math.min(capacity, (bucket & 0xFFFFFFFFL) + (elapsed * refillPerMilli));
+        }
+      }
+
+      if (units < UNITS_PER_TOKEN) {
+        rejected.incrementAndGet(hash & (COUNTER_STRIPES - 1));
+        return false;
+      }
+
+      long updated = (((long)now) << 32) | (units - UNITS_PER_TOKEN);
+      if (buckets.compareAndSet(slot, bucket, updated)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @return the number of requests turned away since the Guard started
+   */
+  public long getRejectedCount() {
+    long count = 0;
+    for (int i = 0; i < COUNTER_STRIPES; i++) {
+      count += rejected.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Works out how many buckets are currently empty, i.e. roughly how many clients or
+   * subnets are being turned away right now.
+   *
+   * @return the number of empty buckets
+   */
+  public int getLimitedCount() {
+    int now = (int)(System.currentTimeMillis() - epoch);
+    int limited = 0;
+    for (int i = 0; i < TABLE_SIZE; i++) {
+      long bucket = buckets.get(i);
+      if (bucket == 0) continue;
+      int elapsed = now - (int)(bucket >>> 32);
+      if ((elapsed >= 0) && ((bucket & 0xFFFFFFFFL) + (elapsed * refillPerMilli) < UNITS_PER_TOKEN)) {
+        limited++;
+      }
+    }
+    return limited;
+  }
+
+  /**
+   * Hashes the network prefix of an address that identifies the client. IPv4 addresses are
+   * parsed in place. Anything with a ':' is parsed as IPv6 by InetAddress, which never looks
+   * up a literal address, so the compressed forms of an address all hash the same, and an
+   * IPv4 mapped address hashes the same as the IPv4 address.
+   *
+   * @param address the client's address
+   * @return the hash of the client
+   */
+  int hash(String address) {
+    if (address == null) return 0;
+
+    int hash;
+    if (address.indexOf(':') == -1) {
+      long ipv4 = parseIPv4(address);
+      hash = (ipv4 != -1) ? hashIPv4((int)ipv4) : address.hashCode();
+    }
+    else {
+      try {
+        byte[] bytes = InetAddress.getByName(address).getAddress();
+        if (bytes.length == 4) {
+          hash = hashIPv4(((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF));
+        }
+        else {
+          hash = 0;
+          for (int i = 0; i < bytes.length; i++) {
+            int bits = Math.max(0, Math.min(8, ipv6Prefix - (i * 8)));
+            hash = (31 * hash) + (bytes[i] & (0xFF00 >>> bits) & 0xFF);
+          }
+        }
+      }
+      catch (UnknownHostException uhe) {
+        // Not an address, but it still needs a bucket
+        hash = address.hashCode();
+      }
+    }
+
+    // Spread the bits so similar addresses don't land in neighbouring buckets
+    hash ^= (hash >>> 16);
+    hash *= 0x85EBCA6B;
+    hash ^= (hash >>> 13);
+    return hash;
+  }
+
+  /**
+   * Masks an IPv4 address to the client's prefix
+   *
+   * @param ipv4 the address
+   * @return the hash of the prefix
+   */
+  private int hashIPv4(int ipv4) {
+    return (ipv4Prefix == 32) ? ipv4 : ipv4 & ~(-1 >>> ipv4Prefix);
+  }
+
+  /**
+   * Parses a dotted quad IPv4 address without creating any objects
+   *
+   * @param address the address
+   * @return the address in the low 32 bits, or -1 if it isn't a dotted quad
+   */
+  private static long parseIPv4(String address) {
+    long ipv4 = 0;
+    int octet = -1;
+    int octets = 0;
+    for (int i = 0; i <= address.length(); i++) {
+      char c = (i < address.length()) ? address.charAt(i) : '.';
+      if (c == '.') {
+        if ((octet < 0) || (++octets > 4)) return -1;
+        ipv4 = (ipv4 << 8) | octet;
+        octet = -1;
+      }
+      else if ((c >= '0') && (c <= '9')) {
+        octet = ((octet < 0) ? 0 : octet * 10) + (c - '0');
+        if (octet > 255) return -1;
+      }
+      else {
+        return -1;
+      }
+    }
+    return (octets == 4) ? ipv4 : -1;
+  }
+}
@@ -0,0 +1,140 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+import org.guanxi.common.GuanxiException;
+
+/**
+ * A Guard for Pod stores that aren't in memory, where a lookup may go to disk or over the
+ * network. Lookups run on a small pool of their own and the request waits for at most
+ * async.lookup.timeout.ms. A lookup that takes longer, or that can't start because the pool
+ * and its queue are full, gets a 503 with a Retry-After of pod.retry.after rather than
+ * waiting. It isn't treated as a new login, as the user probably has a Pod already and a
+ * struggling store would only be given more Pods. The user's cookie is left alone, so once
+ * the store recovers their existing Pod is found again.
+ *
+ * The numbers of lookups that timed out or were rejected are in the PodMonitor report.
+ *
+ * The filter API this Guard is written against has no asynchronous requests, so the
+ * container thread still waits for the lookup. What the pool bounds is how long it waits
+ * and how many threads a failing store can tie up.
+ *
+ * Use it in place of Guard in web.xml:
+ *
+ * <filter-class>org.guanxi.sp.guard.AsyncLookupGuard</filter-class>
+ */
+public class AsyncLookupGuard extends Guard {
+  /** Runs the lookups */
+  private ThreadPoolExecutor lookups = null;
+  /** How long a request waits for a lookup, in milliseconds */
+  private long timeout;
+  /** Number of lookups that took too long */
+  private final AtomicLong timedOut = new AtomicLong();
+  /** Number of lookups that couldn't start because the pool was full */
+  private final AtomicLong rejected = new AtomicLong();
+
+  public void init(FilterConfig config) throws ServletException {
+    super.init(config);
+
+    timeout = Long.parseLong(getConfig("async.lookup.timeout.ms", "250"));
+    int threads = Integer.parseInt(getConfig("async.lookup.threads", "16"));
+    int queue = Integer.parseInt(getConfig("async.lookup.queue", "64"));
+
+    lookups = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                     new ArrayBlockingQueue<Runnable>(queue),
+                                     new ThreadFactory() {
+                                       private final AtomicInteger count = new AtomicInteger();
+                                       public Thread newThread(Runnable runnable) {
+                                         Thread thread = new Thread(runnable, "Guard Pod lookup " + count.incrementAndGet());
+                                         thread.setDaemon(true);
+                                         return thread;
+                                       }
+                                     });
+    lookups.allowCoreThreadTimeOut(true);
+    config.getServletContext().setAttribute(Definitions.CONTEXT_ATTR_GUARD_ASYNC_LOOKUP, this);
+
+    logger.info("Pod lookups limited to " + timeout + "ms on " + threads + " threads");
+  }
+
+  public void destroy() {
+    if (filterConfig != null) {
+      filterConfig.getServletContext().removeAttribute(Definitions.CONTEXT_ATTR_GUARD_ASYNC_LOOKUP);
+    }
+    if (lookups != null) {
+      lookups.shutdownNow();
+    }
+    super.destroy();
+  }
+
+  protected PodSnapshot lookupPod(final String sessionID) throws GuanxiException {
+    Future<PodSnapshot> lookup = null;
+    try {
+      lookup = lookups.submit(new Callable<PodSnapshot>() {
+        public PodSnapshot call() throws Exception {
+          return AsyncLookupGuard.super.lookupPod(sessionID);
+        }
+      });
+      return lookup.get(timeout, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException ree) {
+      rejected.incrementAndGet();
+      throw new GuanxiException("Pod lookups are backed up");
+    }
+    catch (TimeoutException te) {
+      timedOut.incrementAndGet();
+      lookup.cancel(true);
+      throw new GuanxiException("Pod lookup took longer than " + timeout + "ms");
+    }
+    catch (InterruptedException ie) {
+      lookup.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new GuanxiException(ie);
+    }
+    catch (ExecutionException ee) {
+      throw new GuanxiException(ee);
+    }
+  }
+
+  /**
+   * @return the number of lookups that took longer than the timeout
+   */
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  /**
+   * @return the number of lookups that couldn't start because the pool was full
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+}
@@ -17,9 +17,6 @@
 package org.guanxi.sp.guard;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.rmi.server.UID;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -31,6 +28,7 @@ import org.apache.log4j.Logger;
 import org.guanxi.common.Bag;
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.core.GuardCore;
 
 /**
  * The AttributeConsumer service will load up the Pod previously created by the Podder service and add
@@ -46,8 +44,16 @@ import org.guanxi.common.Pod;
 @SuppressWarnings("serial")
 public class AttributeConsumer extends HttpServlet {
   private static final Logger logger = Logger.getLogger(AttributeConsumer.class.getName());
+  /** One of these per login, thinned out by logging.sample.bag.processed */
+  private static final GuardLog.Sample BAG_PROCESSED = new GuardLog.Sample("bag.processed");
+
+  /** Makes the Guard's decisions. Shared with the Guard filter */
+  private GuardCore core = null;
 
   public void init() throws ServletException {
+    core = (GuardCore)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CORE);
+    if (core == null)
+      throw new ServletException("AttributeConsumer can't get Guard core");
   }
 
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -62,29 +68,37 @@ public class AttributeConsumer extends HttpServlet {
     Bag bag = null;
 
     try {
+      long started = (core.getEvents() != null) ? System.nanoTime() : 0;
       bag = getBag(request);
+      core.bagIngested(bag, request.getContentLength(), started);
     }
     catch(GuanxiException ge) {
-      logger.error("Error receiving attributes from Engine: " + ge.getMessage());
+      GuardLog.error(logger, "Error receiving attributes from Engine: {}", ge.getMessage());
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
     }
     
     if(bag.isUnsolicitedMode())
     {
-    	logger.info("Got unsolicited bag: " + bag.getSessionID());
+    	GuardLog.info(logger, "Got unsolicited bag: {}", bag.getSessionID());
     	
     	try {
 			processUnsolicited(bag);
 		} catch (Exception e) {
-			logger.error("Error creating unsolicited bag: " + e.getMessage());
+			GuardLog.error(logger, "Error creating unsolicited bag: {}", e.getMessage());
 		}
     }
     
-    logger.info("Processing bag: " + bag.getSessionID());
+    GuardLog.info(logger, BAG_PROCESSED, "Processing bag: {}", bag.getSessionID());
     
-    // Load up the specified session's Pod...
-    Pod pod = (Pod)getServletContext().getAttribute(bag.getSessionID());
-    // ...and add the bag of attributes
-    pod.setBag(bag);
+    // Add the bag of attributes to a new version of the specified session's Pod
+    Pod pod = core.addAttributes(bag);
+
+    if (pod == null) {
+      GuardLog.error(logger, "No pod for bag: {}", bag.getSessionID());
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
 
     ServletOutputStream os = response.getOutputStream();
     os.write(pod.getSessionID().getBytes());
@@ -104,44 +118,37 @@ public class AttributeConsumer extends HttpServlet {
   /**
    * Creates and configures a Pod, ready for population with attributes.
    *
-   * @param request Servlet request
+   * @param bag the unsolicited Bag, naming the target resource in its session ID
    * @return An empty Pod configured for use with the Guard
- * @throws URISyntaxException 
- * @throws Exception 
+   * @throws Exception if the Pod can't be created
    */
   protected Pod createPod(Bag bag) throws Exception {
-
-    // Create a new Pod to encapsulate information for this session
-    Pod pod = new Pod();
-
-    // Store the servlet context for later deactivation of the pod
-    pod.setContext(getServletContext());
-
-    // get the target resource from sessionid
-    URI uri = new URI(bag.getSessionID());
-    
-    
-    pod.setRequestScheme(uri.getScheme());
-    //append the port if set
-    pod.setHostName(uri.getHost().replaceAll("/", "") + ((uri.getPort() == -1) ? "" : ":" +  uri.getPort()));
-    pod.setRequestURL(uri.getPath() + "?" + uri.getQuery());
-
-    // Store the Pod in a session
-    UID uid = new UID();
-    String sessionID = "GUARD_" + uid.toString().replaceAll(":", "--");
-    pod.setSessionID(sessionID);
-    getServletContext().setAttribute(sessionID, pod);
-
-    return pod;
+    return core.publishUnsolicitedPod(bag);
   }
 
+  /**
+   * Extracts the Bag of attributes from the Engine's request. Engines that support it POST
+   * the Bag in the binary format of BagCodec, otherwise it arrives as a JSON parameter.
+   *
+   * @param request Servlet request
+   * @return the Bag of attributes
+   * @throws GuanxiException if there are no attributes or they can't be decoded
+   */
   private Bag getBag(HttpServletRequest request) throws GuanxiException {
+    if ((request.getContentType() != null) &&
+        (request.getContentType().startsWith(Definitions.CONTENT_TYPE_BINARY_BAG))) {
+      try {
+        return BagCodec.decode(request.getInputStream(), request.getContentLength());
+      }
+      catch (IOException ioe) {
+        throw new GuanxiException(ioe);
+      }
+    }
+
+    // Older Engines send JSON
     String json = request.getParameter(Definitions.REQUEST_PARAMETER_SAML_ATTRIBUTES);
     
-    if(logger.isDebugEnabled())
-    {
-    	logger.debug("json:" + json);
-    }
+    GuardLog.debug(logger, "json:{}", json);
     
     if (json != null) {
       return new Bag(json);
@@ -0,0 +1,169 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.guanxi.common.Bag;
+
+/**
+ * The attributes in a Pod's Bag laid out as arrays, ready to be turned into request headers.
+ * A layout is built once per PodSnapshot, so the header names are only worked out once per
+ * Pod rather than on every request.
+ *
+ * HeaderProjections select attributes from a layout by index. The indices for each projection
+ * are cached in the layout as they're only valid for its attribute order.
+ */
+public class AttributeLayout {
+  /** The attribute names */
+  private final String[] names;
+  /** The header names, i.e. the attribute names with the Guard's attribute prefix */
+  private final String[] headerNames;
+  /** The attribute values */
+  private final String[] values;
+  /** The prefix the header names were built with */
+  private final String prefix;
+  /** The indices selected by each HeaderProjection, once they've been worked out */
+  private final AtomicReferenceArray<int[]> projections = new AtomicReferenceArray<int[]>(HeaderProjection.MAX_CACHED_PROJECTIONS);
+
+  /**
+   * Lays out the attributes in a Bag
+   *
+   * @param bag the Bag, which may be null
+   * @param prefix the prefix to add to attribute names to make header names
+   */
+  public AttributeLayout(Bag bag, String prefix) {
+    this.prefix = prefix;
+
+    List<String> attributeNames = new ArrayList<String>();
+    if ((bag != null) && (bag.hasAttributes())) {
+      Enumeration<String> bagNames = bag.getAttributeNames();
+      while (bagNames.hasMoreElements()) {
+        attributeNames.add(bagNames.nextElement());
+      }
+    }
+
+    names = attributeNames.toArray(new String[attributeNames.size()]);
+    headerNames = new String[names.length];
+    values = new String[names.length];
+    for (int i = 0; i < names.length; i++) {
+      headerNames[i] = prefix + names[i];
+      values[i] = bag.getAttributeValue(names[i]);
+    }
+  }
+
+  /**
+   * Lays out the attributes in a refreshed version of a Bag, reusing what it can of this
+   * layout. Header names are only built for attributes that are new, and if the refresh
+   * only changed values the cached HeaderProjection indices are carried over.
+   *
+   * @param bag the refreshed Bag
+   * @return the layout of the refreshed Bag
+   */
+  AttributeLayout refresh(Bag bag) {
+    AttributeLayout layout = new AttributeLayout(bag, prefix, this);
+    if (Arrays.equals(names, layout.names)) {
+      for (int i = 0; i < HeaderProjection.MAX_CACHED_PROJECTIONS; i++) {
+        layout.projections.set(i, projections.get(i));
+      }
+    }
+    return layout;
+  }
+
+  private AttributeLayout(Bag bag, String prefix, AttributeLayout previous) {
+    this.prefix = prefix;
+
+    List<String> attributeNames = new ArrayList<String>();
+    if ((bag != null) && (bag.hasAttributes())) {
+      Enumeration<String> bagNames = bag.getAttributeNames();
+      while (bagNames.hasMoreElements()) {
+        attributeNames.add(bagNames.nextElement());
+      }
+    }
+
+    names = attributeNames.toArray(new String[attributeNames.size()]);
+    headerNames = new String[names.length];
+    values = new String[names.length];
+    for (int i = 0; i < names.length; i++) {
+      int index = previous.indexOf(names[i]);
+      headerNames[i] = (index != -1) ? previous.headerNames[index] : prefix + names[i];
+      values[i] = bag.getAttributeValue(names[i]);
+    }
+  }
+
+  /**
+   * @return the number of attributes
+   */
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * Finds an attribute
+   *
+   * @param name the name of the attribute
+   * @return the index of the attribute or -1 if there isn't one with that name
+   */
+  public int indexOf(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) return i;
+    }
+    return -1;
+  }
+
+  public String getName(int index) {
+    return names[index];
+  }
+
+  public String getHeaderName(int index) {
+    return headerNames[index];
+  }
+
+  public String getValue(int index) {
+    return values[index];
+  }
+
+  public String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * Retrieves the cached indices for a HeaderProjection
+   *
+   * @param projection the number of the projection
+   * @return the indices or null if they haven't been worked out yet
+   */
+  int[] getProjection(int projection) {
+    return (projection < HeaderProjection.MAX_CACHED_PROJECTIONS) ? projections.get(projection) : null;
+  }
+
+  /**
+   * Caches the indices for a HeaderProjection
+   *
+   * @param projection the number of the projection
+   * @param indices the indices of the attributes it selects
+   */
+  void setProjection(int projection, int[] indices) {
+    if (projection < HeaderProjection.MAX_CACHED_PROJECTIONS) {
+      projections.set(projection, indices);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.core.GuardCore;
+
+/**
+ * Lets the Engine change the attributes of users who are already logged in, so an
+ * entitlement that's revoked at the IdP stops working without waiting for the user to log
+ * in again. The Engine POSTs a Bag in the binary format of BagCodec, whose session ID
+ * names the session to refresh:
+ *
+ * http://localhost/protectedapp/guard.guanxiGuardRefresh
+ *
+ * Only the attributes in the Bag change. One with an empty value is removed. The SAML
+ * response the user logged in with no longer matches the attributes, so it's replaced with
+ * the one in the Bag, if there is one, or cleared. The Pod's Bag is replaced with a new
+ * version, so requests already using the old one finish with it and the next request sees
+ * the new attributes and has its access decisions made again.
+ *
+ * As the Bag would otherwise let anyone who knows a session ID change its attributes, the
+ * Engine must sign it. Definitions.HEADER_REFRESH_TIMESTAMP carries the time it was sent
+ * and Definitions.HEADER_REFRESH_SIGNATURE the HMAC-SHA256 of the timestamp, a newline and
+ * the payload, keyed with refresh.secret from the Guard config. Refreshes older than
+ * refresh.max.age.seconds are refused, as is any refresh for a session that isn't newer than
+ * the last one it was sent, so a captured refresh can't be replayed to restore an
+ * entitlement that's since been revoked, however soon after. The Engine must therefore give
+ * each refresh of a session a later timestamp than the one before. Without refresh.secret
+ * the service refuses everything.
+ *
+ * Each Guard node holds its own Pods, so in a cluster the Engine refreshes each node.
+ */
+@SuppressWarnings("serial")
+public class AttributeRefresh extends HttpServlet {
+  private static final Logger logger = Logger.getLogger(AttributeRefresh.class.getName());
+
+  /** How old a refresh can be if the config doesn't say otherwise */
+  private static final int DEFAULT_MAX_AGE_SECONDS = 60;
+
+  /** The Guard's request handling */
+  private GuardCore core = null;
+  /** Keys the signatures, or null if there's no refresh.secret */
+  private SecretKeySpec key = null;
+  /** How old a refresh can be, in milliseconds */
+  private long maxAge;
+  /** The timestamp of the last refresh of each session, until a refresh that old would be refused anyway */
+  private final ConcurrentHashMap<String, Long> latest = new ConcurrentHashMap<String, Long>();
+
+  public void init() throws ServletException {
+    GuardConfig config = (GuardConfig)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CONFIG);
+    core = (GuardCore)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CORE);
+
+    if ((config == null) || (core == null))
+      throw new ServletException("AttributeRefresh can't get the Guard");
+
+    configure(config);
+  }
+
+  /**
+   * Sets up the signature and age checks from the Guard's config
+   *
+   * @param config the Guard's config
+   * @throws ServletException if the secret can't be used
+   */
+  void configure(GuardConfig config) throws ServletException {
+    if (config.get("refresh.secret") != null) {
+      try {
+        key = new SecretKeySpec(config.get("refresh.secret").getBytes("UTF-8"), "HmacSHA256");
+      }
+      catch (UnsupportedEncodingException uee) {
+        throw new ServletException(uee);
+      }
+    }
+    maxAge = ((config.get("refresh.max.age.seconds") != null) ?
+              Integer.parseInt(config.get("refresh.max.age.seconds")) : DEFAULT_MAX_AGE_SECONDS) * 1000L;
+  }
+
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    process(request, response);
+  }
+
+  /**
+   * Refreshes the attributes of the session named in the request
+   *
+   * @param request Standard HttpServletRequest
+   * @param response Standard HttpServletResponse
+   * @throws ServletException if an error occurs
+   * @throws IOException if an error occurs
+   */
+  public void process(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    if (key == null) {
+      logger.warn("Refused attribute refresh from " + request.getRemoteAddr() + ", refresh.secret isn't set");
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    Bag changes;
+    try {
+      changes = accept(request.getHeader(Definitions.HEADER_REFRESH_TIMESTAMP),
+                       request.getHeader(Definitions.HEADER_REFRESH_SIGNATURE),
+                       read(request.getInputStream(), request.getContentLength()));
+    }
+    catch (GuanxiException ge) {
+      GuardLog.warn(logger, "Refused attribute refresh : {}", ge.getMessage());
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    Pod pod = core.refreshAttributes(changes);
+    if (pod == null) {
+      GuardLog.debug(logger, "No logged in pod to refresh for session : {}", changes.getSessionID());
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    response.setContentType("text/plain");
+    PrintWriter out = response.getWriter();
+    out.println("refreshed=" + pod.getSessionID());
+    out.close();
+  }
+
+  /**
+   * Checks a refresh and decodes its changes
+   *
+   * @param timestamp the timestamp header
+   * @param signature the signature header
+   * @param payload the payload
+   * @return the changes
+   * @throws GuanxiException if the refresh isn't genuine, is too old or has been overtaken
+   */
+  Bag accept(String timestamp, String signature, byte[] payload) throws GuanxiException {
+    long sent = verify(timestamp, signature, payload);
+    Bag changes = BagCodec.decode(payload);
+    if (changes.getSessionID() == null) {
+      throw new GuanxiException("Attribute refresh doesn't name a session");
+    }
+    checkNewer(changes.getSessionID(), sent);
+    return changes;
+  }
+
+  /**
+   * Checks that a refresh was signed by the Engine recently
+   *
+   * @param timestamp the timestamp header
+   * @param signature the signature header
+   * @param payload the payload
+   * @return when the refresh was sent
+   * @throws GuanxiException if the refresh isn't genuine or is too old
+   */
+  private long verify(String timestamp, String signature, byte[] payload) throws GuanxiException {
+    if ((timestamp == null) || (signature == null)) {
+      throw new GuanxiException("Attribute refresh not signed");
+    }
+
+    long sent;
+    try {
+      sent = Long.parseLong(timestamp);
+    }
+    catch (NumberFormatException nfe) {
+      throw new GuanxiException("Bad attribute refresh timestamp: " + timestamp);
+    }
+    long age = System.currentTimeMillis() - sent;
+    if (Math.abs(age) > maxAge) {
+      throw new GuanxiException("Attribute refresh too old: " + age + "ms");
+    }
+
+    byte[] expected;
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(key);
+      mac.update(timestamp.getBytes("UTF-8"));
+      mac.update((byte)'\n');
+      expected = mac.doFinal(payload);
+    }
+    catch (GeneralSecurityException gse) {
+      throw new GuanxiException(gse);
+    }
+    catch (UnsupportedEncodingException uee) {
+      throw new GuanxiException(uee);
+    }
+
+    byte[] actual = unhex(signature);
+    if ((actual == null) || (!MessageDigest.isEqual(actual, expected))) {
+      throw new GuanxiException("Attribute refresh signature doesn't match");
+    }
+    return sent;
+  }
+
+  /**
+   * Makes sure a refresh is newer than the last one for its session, and forgets the
+   * sessions whose last refresh is too old for an older one to be accepted anyway
+   *
+   * @param sessionID the session the refresh is for
+   * @param sent when the refresh was sent
+   * @throws GuanxiException if the session has had a refresh sent at the same time or later
+   */
+  private void checkNewer(String sessionID, long sent) throws GuanxiException {
+    long oldest = System.currentTimeMillis() - maxAge;
+    for (Iterator<Long> timestamps = latest.values().iterator(); timestamps.hasNext();) {
+      if (timestamps.next().longValue() < oldest) {
+        timestamps.remove();
+      }
+    }
+
+    Long timestamp = Long.valueOf(sent);
+    while (true) {
+      Long previous = latest.putIfAbsent(sessionID, timestamp);
+      if (previous == null) return;
+      if (previous.longValue() >= sent) {
+        throw new GuanxiException("Attribute refresh replayed or overtaken by a newer one");
+      }
+      if (latest.replace(sessionID, previous, timestamp)) return;
+    }
+  }
+
+  /**
+   * Reads a payload, up to BagCodec.MAX_PAYLOAD_SIZE
+   *
+   * @param in the request body
+   * @param contentLength the length of the payload if known, otherwise -1
+   * @return the payload
+   * @throws GuanxiException if the payload can't be read or is too big
+   */
+  private byte[] read(InputStream in, int contentLength) throws GuanxiException {
+    if (contentLength > BagCodec.MAX_PAYLOAD_SIZE) {
+      throw new GuanxiException("Attribute refresh too large: " + contentLength);
+    }
+
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream((contentLength > 0) ? contentLength : 4096);
+      byte[] chunk = new byte[4096];
+      int read;
+      while ((read = in.read(chunk)) != -1) {
+        buffer.write(chunk, 0, read);
+        if (buffer.size() > BagCodec.MAX_PAYLOAD_SIZE) {
+          throw new GuanxiException("Attribute refresh too large");
+        }
+      }
+      return buffer.toByteArray();
+    }
+    catch (IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  private static byte[] unhex(String hex) {
+    if ((hex.length() % 2) != 0) return null;
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(i * 2), 16);
+      int low = Character.digit(hex.charAt((i * 2) + 1), 16);
+      if ((high == -1) || (low == -1)) return null;
+      bytes[i] = (byte)((high << 4) | low);
+    }
+    return bytes;
+  }
+}
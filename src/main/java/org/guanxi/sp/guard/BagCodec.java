@@ -0,0 +1,331 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+
+/**
+ * Binary encoding of a Bag of attributes, for Engines that POST attributes to the Guard's
+ * AttributeConsumer as Definitions.CONTENT_TYPE_BINARY_BAG rather than as a JSON request
+ * parameter. There's no URL encoding or JSON parsing involved, every field is length
+ * prefixed so decoding is a single pass over the bytes.
+ *
+ * Version 2 layout. Integers are unsigned LEB128 varints. Strings are a varint byte count
+ * followed by that many bytes of UTF-8, with a null string written as a count of
+ * NULL_LENGTH and no bytes:
+ *
+ * <pre>
+ * magic          'G' 'X' 'B'
+ * version        1 byte
+ * flags          1 byte, FLAG_UNSOLICITED for an unsolicited login
+ * sessionID      string
+ * samlResponse   string, may be null
+ * value count    varint
+ * values         name, string value, value count times
+ *                name is a varint, 0 followed by the name as a string, otherwise
+ *                an index into WELL_KNOWN_NAMES plus one
+ * </pre>
+ *
+ * The names of the common eduPerson and directory attributes take a single byte. The list
+ * is part of the format, so names are only ever added to the end of it.
+ *
+ * Version 1, which the decoder still accepts, had no flags and a per payload dictionary of
+ * names in place of WELL_KNOWN_NAMES. A Bag never repeats a name, so the dictionary didn't
+ * save anything.
+ */
+public class BagCodec {
+  /** The version of the layout written by encode() */
+  public static final int VERSION = 2;
+  /** The largest payload that will be decoded */
+  public static final int MAX_PAYLOAD_SIZE = 4 * 1024 * 1024;
+  /** Set in the flags of a Bag for an unsolicited login */
+  public static final int FLAG_UNSOLICITED = 0x01;
+
+  /** Attribute names that are written as an index. Only ever add to the end */
+  static final String[] WELL_KNOWN_NAMES = {
+    "eduPersonPrincipalName", "eduPersonScopedAffiliation", "eduPersonAffiliation",
+    "eduPersonPrimaryAffiliation", "eduPersonEntitlement", "eduPersonTargetedID",
+    "eduPersonNickname", "eduPersonOrgDN", "eduPersonOrgUnitDN", "eduPersonPrimaryOrgUnitDN",
+    "eduPersonAssurance", "eduPersonUniqueId", "cn", "sn", "givenName", "displayName", "mail",
+    "uid", "o", "ou", "title", "telephoneNumber", "employeeNumber", "preferredLanguage",
+    "schacHomeOrganization", "schacHomeOrganizationType",
+    "urn:oid:1.3.6.1.4.1.5923.1.1.1.6", "urn:oid:1.3.6.1.4.1.5923.1.1.1.9",
+    "urn:oid:1.3.6.1.4.1.5923.1.1.1.1", "urn:oid:1.3.6.1.4.1.5923.1.1.1.5",
+    "urn:oid:1.3.6.1.4.1.5923.1.1.1.7", "urn:oid:1.3.6.1.4.1.5923.1.1.1.10",
+    "urn:oid:2.5.4.3", "urn:oid:2.5.4.4", "urn:oid:2.5.4.42", "urn:oid:2.16.840.1.113730.3.1.241",
+    "urn:oid:0.9.2342.19200300.100.1.3", "urn:oid:0.9.2342.19200300.100.1.1"
+  };
+
+  /** Marks the start of a payload */
+  private static final byte[] MAGIC = {'G', 'X', 'B'};
+  /** Length prefix of a null string. Never a valid length as the payload is capped */
+  private static final int NULL_LENGTH = 0x0FFFFFFF;
+  /** The index plus one of each of the WELL_KNOWN_NAMES */
+  private static final Map<String, Integer> WELL_KNOWN_INDEXES = new HashMap<String, Integer>();
+
+  static {
+    for (int i = 0; i < WELL_KNOWN_NAMES.length; i++) {
+      WELL_KNOWN_INDEXES.put(WELL_KNOWN_NAMES[i], Integer.valueOf(i + 1));
+    }
+  }
+
+  /**
+   * Reads and decodes a payload
+   *
+   * @param in where to read the payload from. It isn't closed
+   * @param contentLength the length of the payload if known, otherwise -1
+   * @return the decoded Bag
+   * @throws GuanxiException if the payload can't be read or decoded
+   */
+  public static Bag decode(InputStream in, int contentLength) throws GuanxiException {
+    if (contentLength > MAX_PAYLOAD_SIZE) {
+      throw new GuanxiException("Attribute payload too large: " + contentLength);
+    }
+
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream((contentLength > 0) ? contentLength : 4096);
+      byte[] chunk = new byte[4096];
+      int read;
+      while ((read = in.read(chunk)) != -1) {
+        buffer.write(chunk, 0, read);
+        if (buffer.size() > MAX_PAYLOAD_SIZE) {
+          throw new GuanxiException("Attribute payload too large");
+        }
+      }
+      return decode(buffer.toByteArray());
+    }
+    catch (IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Decodes a payload
+   *
+   * @param payload the encoded Bag
+   * @return the decoded Bag
+   * @throws GuanxiException if the payload isn't a Bag this codec understands
+   */
+  public static Bag decode(byte[] payload) throws GuanxiException {
+    Reader reader = new Reader(payload);
+
+    for (byte magic : MAGIC) {
+      if (reader.readByte() != magic) {
+        throw new GuanxiException("Not an attribute payload");
+      }
+    }
+    int version = reader.readByte();
+    if (version == 1) {
+      return decodeVersion1(reader);
+    }
+    if (version != VERSION) {
+      throw new GuanxiException("Unsupported attribute payload version: " + version);
+    }
+
+    int flags = reader.readByte();
+    Bag bag = new Bag();
+    bag.setUnsolicitedMode((flags & FLAG_UNSOLICITED) != 0);
+    bag.setSessionID(reader.readString());
+    bag.setSamlResponse(reader.readString());
+
+    int values = reader.readCount();
+    for (int i = 0; i < values; i++) {
+      int name = reader.readVarint();
+      if ((name < 0) || (name > WELL_KNOWN_NAMES.length)) {
+        throw new GuanxiException("Bad attribute name index: " + name);
+      }
+      bag.addAttribute((name == 0) ? reader.readString() : WELL_KNOWN_NAMES[name - 1], reader.readString());
+    }
+
+    return bag;
+  }
+
+  /**
+   * Decodes the rest of a version 1 payload, after its version
+   *
+   * @param reader the payload
+   * @return the decoded Bag
+   * @throws GuanxiException if the payload can't be decoded
+   */
+  private static Bag decodeVersion1(Reader reader) throws GuanxiException {
+    Bag bag = new Bag();
+    bag.setSessionID(reader.readString());
+    bag.setSamlResponse(reader.readString());
+
+    String[] names = new String[reader.readCount()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = reader.readString();
+    }
+
+    int values = reader.readCount();
+    for (int i = 0; i < values; i++) {
+      int name = reader.readVarint();
+      if ((name < 0) || (name >= names.length)) {
+        throw new GuanxiException("Bad attribute name index: " + name);
+      }
+      bag.addAttribute(names[name], reader.readString());
+    }
+
+    return bag;
+  }
+
+  /**
+   * Encodes a Bag
+   *
+   * @param bag the Bag to encode
+   * @return the payload
+   */
+  public static byte[] encode(Bag bag) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(MAGIC, 0, MAGIC.length);
+    out.write(VERSION);
+    out.write(bag.isUnsolicitedMode() ? FLAG_UNSOLICITED : 0);
+    writeString(out, bag.getSessionID());
+    writeString(out, bag.getSamlResponse());
+
+    List<String> names = new ArrayList<String>();
+    if (bag.hasAttributes()) {
+      Enumeration<String> attributeNames = bag.getAttributeNames();
+      while (attributeNames.hasMoreElements()) {
+        names.add(attributeNames.nextElement());
+      }
+    }
+
+    writeVarint(out, names.size());
+    for (String name : names) {
+      Integer index = WELL_KNOWN_INDEXES.get(name);
+      if (index != null) {
+        writeVarint(out, index.intValue());
+      }
+      else {
+        writeVarint(out, 0);
+        writeString(out, name);
+      }
+      writeString(out, bag.getAttributeValue(name));
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes a string as its UTF-8 byte count followed by the bytes. A null string is
+   * written as a count of NULL_LENGTH with no bytes.
+   *
+   * @param out where to write the string
+   * @param value the string
+   */
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    if (value == null) {
+      writeVarint(out, NULL_LENGTH);
+      return;
+    }
+
+    try {
+      byte[] bytes = value.getBytes("UTF-8");
+      writeVarint(out, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+    catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * Writes an unsigned LEB128 varint
+   *
+   * @param out where to write the varint
+   * @param value the value, which must not be negative
+   */
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * Reads the fields of a payload in order
+   */
+  private static class Reader {
+    private final byte[] payload;
+    private int position = 0;
+
+    Reader(byte[] payload) {
+      this.payload = payload;
+    }
+
+    int readByte() throws GuanxiException {
+      if (position >= payload.length) {
+        throw new GuanxiException("Truncated attribute payload");
+      }
+      return payload[position++];
+    }
+
+    int readVarint() throws GuanxiException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = readByte();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new GuanxiException("Bad varint in attribute payload");
+    }
+
+    int readCount() throws GuanxiException {
+      int count = readVarint();
+      // Every item takes at least a byte so a count can't exceed what's left
+      if ((count < 0) || (count > payload.length - position)) {
+        throw new GuanxiException("Bad count in attribute payload: " + count);
+      }
+      return count;
+    }
+
+    String readString() throws GuanxiException {
+      int length = readVarint();
+      if (length == NULL_LENGTH) {
+        return null;
+      }
+      if ((length < 0) || (length > payload.length - position)) {
+        throw new GuanxiException("Bad string length in attribute payload: " + length);
+      }
+
+      try {
+        String value = new String(payload, position, length, "UTF-8");
+        position += length;
+        return value;
+      }
+      catch (UnsupportedEncodingException uee) {
+        throw new GuanxiException(uee);
+      }
+    }
+  }
+}
@@ -0,0 +1,249 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.guanxi.common.Bag;
+
+/**
+ * Content addressed store of the attributes held by Pods. Users who lose their cookie and
+ * log in again get a new Pod with the same attributes, and the old Pod hangs around until
+ * it's evicted or expires. Rather than hold the attributes once per Pod, each Bag's
+ * attributes are hashed as they arrive and Pods with the same attributes share one copy.
+ *
+ * The attributes are identified by the SHA-256 of their names and values, in name order.
+ * The session ID, SAML response and unsolicited flag are different for every login, so
+ * each Pod still gets its own Bag with those in, which reads its attributes from the
+ * shared copy. The shared attributes can't be changed, make a new Bag to change them.
+ *
+ * The store only holds the attributes weakly. They stay shared for as long as any Pod has
+ * them, and once the last Pod goes the garbage collector takes them and their entry here
+ * is cleared the next time a Bag is added. Removing a Pod doesn't need to tell the store.
+ */
+public class BagStore {
+  /** The shared attributes, in Bags of their own, by the hash of the attributes */
+  private final ConcurrentHashMap<String, Entry> bags = new ConcurrentHashMap<String, Entry>();
+  /** Entries whose Bags have been collected */
+  private final ReferenceQueue<Bag> collected = new ReferenceQueue<Bag>();
+  /** Bags whose attributes were already shared when they arrived */
+  private final AtomicLong hits = new AtomicLong();
+  /** Bags that weren't */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Makes a Bag for a login that shares its attributes with any other Bags that have the
+   * same ones, adding them to the store if there aren't any
+   *
+   * @param bag the Bag as received from the Engine
+   * @return a Bag with the login's session ID, SAML response and unsolicited flag and the
+   * shared attributes
+   */
+  public Bag intern(Bag bag) {
+    expunge();
+
+    String key = hash(bag);
+    while (true) {
+      Entry entry = bags.get(key);
+      Bag shared = (entry != null) ? entry.get() : null;
+      if (shared != null) {
+        hits.incrementAndGet();
+        return new LoginBag(bag, shared);
+      }
+
+      shared = copyAttributes(bag);
+      Entry added = new Entry(key, shared, collected);
+      if ((entry == null) ? (bags.putIfAbsent(key, added) == null) : bags.replace(key, entry, added)) {
+        misses.incrementAndGet();
+        return new LoginBag(bag, shared);
+      }
+      // Another thread added the same attributes first, so use theirs
+    }
+  }
+
+  /**
+   * @return the number of distinct sets of attributes currently shared
+   */
+  public int getSize() {
+    expunge();
+    return bags.size();
+  }
+
+  /**
+   * @return the number of Bags whose attributes were already shared when they arrived
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of Bags whose attributes weren't already shared when they arrived
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Clears the entries whose Bags have been collected
+   */
+  private void expunge() {
+    Entry entry;
+    while ((entry = (Entry)collected.poll()) != null) {
+      bags.remove(entry.key, entry);
+    }
+  }
+
+  /**
+   * Copies the attributes of a Bag
+   *
+   * @param bag the Bag
+   * @return a Bag with just the attributes
+   */
+  private static Bag copyAttributes(Bag bag) {
+    Bag copy = new Bag();
+    if (bag.hasAttributes()) {
+      Enumeration<String> names = bag.getAttributeNames();
+      while (names.hasMoreElements()) {
+        String name = names.nextElement();
+        copy.addAttribute(name, bag.getAttributeValue(name));
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Hashes the attributes of a Bag
+   *
+   * @param bag the Bag
+   * @return the hash, in hex
+   */
+  private String hash(Bag bag) {
+    List<String> names = new ArrayList<String>();
+    if (bag.hasAttributes()) {
+      Enumeration<String> attributeNames = bag.getAttributeNames();
+      while (attributeNames.hasMoreElements()) {
+        names.add(attributeNames.nextElement());
+      }
+      Collections.sort(names);
+    }
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String name : names) {
+        update(digest, name);
+        update(digest, bag.getAttributeValue(name));
+      }
+
+      byte[] hash = digest.digest();
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+        hex.append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException nsae) {
+      // SHA-256 is always available
+      throw new IllegalStateException(nsae);
+    }
+  }
+
+  /**
+   * Adds a string to a hash, length first so adjacent strings can't run into each other
+   *
+   * @param digest the hash
+   * @param value the string, which may be null
+   */
+  private void update(MessageDigest digest, String value) {
+    if (value == null) {
+      digest.update((byte)0xFF);
+      return;
+    }
+
+    try {
+      byte[] bytes = value.getBytes("UTF-8");
+      digest.update(new byte[] {(byte)(bytes.length >>> 24), (byte)(bytes.length >>> 16),
+                                (byte)(bytes.length >>> 8), (byte)bytes.length});
+      digest.update(bytes);
+    }
+    catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * A login's Bag, whose attributes are shared
+   */
+  private static class LoginBag extends Bag {
+    /** The shared attributes */
+    private final Bag attributes;
+
+    LoginBag(Bag bag, Bag attributes) {
+      this.attributes = attributes;
+      setSessionID(bag.getSessionID());
+      setSamlResponse(bag.getSamlResponse());
+      setUnsolicitedMode(bag.isUnsolicitedMode());
+    }
+
+    public boolean hasAttributes() {
+      return attributes.hasAttributes();
+    }
+
+    public Enumeration<String> getAttributeNames() {
+      return attributes.getAttributeNames();
+    }
+
+    public String getAttributeValue(String name) {
+      return attributes.getAttributeValue(name);
+    }
+
+    public void addAttribute(String name, String value) {
+      throw new UnsupportedOperationException("Shared attributes can't be changed");
+    }
+
+    public String toJSON() {
+      Bag copy = copyAttributes(this);
+      copy.setSessionID(getSessionID());
+      copy.setSamlResponse(getSamlResponse());
+      copy.setUnsolicitedMode(isUnsolicitedMode());
+      return copy.toJSON();
+    }
+  }
+
+  /**
+   * Weakly held shared attributes, remembering its key so it can be cleared once it's collected
+   */
+  private static class Entry extends WeakReference<Bag> {
+    final String key;
+
+    Entry(String key, Bag bag, ReferenceQueue<Bag> queue) {
+      super(bag, queue);
+      this.key = key;
+    }
+  }
+}
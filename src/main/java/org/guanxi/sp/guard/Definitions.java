@@ -5,6 +5,16 @@ public class Definitions {
   public static final String CONTEXT_ATTR_GUARD_CONFIG = "CONTEXT_ATTR_GUARD_CONFIG";
   /** The servlet context attribute that holds the ID of that webapp's Guard */
   public static final String CONTEXT_ATTR_GUARD_ID = "CONTEXT_ATTR_GUARD_ID";
+  /** The servlet context attribute that holds the PodStore shared by the Guard and its servlets */
+  public static final String CONTEXT_ATTR_GUARD_POD_STORE = "CONTEXT_ATTR_GUARD_POD_STORE";
+  /** The servlet context attribute that holds the Guard's AdmissionControl, if it has one */
+  public static final String CONTEXT_ATTR_GUARD_ADMISSION_CONTROL = "CONTEXT_ATTR_GUARD_ADMISSION_CONTROL";
+  /** The servlet context attribute that holds the AsyncLookupGuard, if the webapp uses one */
+  public static final String CONTEXT_ATTR_GUARD_ASYNC_LOOKUP = "CONTEXT_ATTR_GUARD_ASYNC_LOOKUP";
+  /** The servlet context attribute that holds the SessionIDGenerator shared by the Guard and its servlets */
+  public static final String CONTEXT_ATTR_GUARD_SESSION_ID_GENERATOR = "CONTEXT_ATTR_GUARD_SESSION_ID_GENERATOR";
+  /** The servlet context attribute that holds the GuardCore shared by the Guard and its servlets */
+  public static final String CONTEXT_ATTR_GUARD_CORE = "CONTEXT_ATTR_GUARD_CORE";
   /** The servlet context attribute that holds the Guard's cookie prefix */
   public static final String CONTEXT_ATTR_GUARD_COOKIE_PREFIX = "CONTEXT_ATTR_GUARD_COOKIE_PREFIX";
   /** The servlet context attribute that holds the full cookie name that webapp's Guard */
@@ -23,4 +33,12 @@ public class Definitions {
    *  SAML attributes when the Engine POSTs them to the Guard.
    */
   public static final String REQUEST_PARAMETER_SAML_ATTRIBUTES = "REQUEST_PARAMETER_SAML_ATTRIBUTES";
+  /** The content type an Engine uses to POST attributes to the Guard in the binary format
+   *  of BagCodec, instead of as JSON in REQUEST_PARAMETER_SAML_ATTRIBUTES.
+   */
+  public static final String CONTENT_TYPE_BINARY_BAG = "application/vnd.guanxi.bag";
+  /** The header carrying when an Engine sent an attribute refresh, in milliseconds */
+  public static final String HEADER_REFRESH_TIMESTAMP = "X-Guanxi-Timestamp";
+  /** The header carrying the HMAC-SHA256, in hex, of an attribute refresh's timestamp and payload */
+  public static final String HEADER_REFRESH_SIGNATURE = "X-Guanxi-Signature";
 }
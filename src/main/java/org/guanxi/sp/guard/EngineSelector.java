@@ -0,0 +1,281 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chooses which of several Engine GPS endpoints to send each new login to. Every endpoint
+ * is scored from the logins already sent to it. Its latency is the time from the Guard
+ * redirecting the user to the Engine calling back to verify the session, which the Engine
+ * does as soon as the user arrives and before sending them on to the IdP, so it measures
+ * the Engine and not how long the user takes to log in. An endpoint fails a login if it
+ * verifies it later than the timeout, or if the Pod expires without being verified. A Pod
+ * that leaves the store any other way, e.g. the user logging out or the Pods being drained
+ * to another node, settles the login without counting for or against the endpoint. Latency
+ * and failure rate are both exponentially weighted moving averages, so an endpoint's score
+ * follows how it's doing now rather than how it did when the Guard started.
+ *
+ * Endpoints are picked at random, weighted by (1 - failure rate)^2 / latency. Slow or failing
+ * Engines get fewer logins but never less than MIN_SHARE of the best one's weight, so they
+ * keep being measured and win their logins back once they recover. If every endpoint has
+ * been failing everything, they're picked evenly.
+ *
+ * The figures for each endpoint are a handful of longs updated with compare-and-set, so
+ * choosing and recording take no locks.
+ */
+public class EngineSelector {
+  /** The least weight an endpoint has, as a fraction of the best endpoint's weight */
+  public static final double MIN_SHARE = 0.05;
+
+  /** How much a new latency counts towards the average */
+  private static final double LATENCY_ALPHA = 0.1;
+  /** How much a new outcome counts towards the failure rate */
+  private static final double FAILURE_ALPHA = 0.05;
+  /** Latencies are counted as at least this many milliseconds so no endpoint's weight runs away */
+  private static final long MIN_LATENCY = 50;
+
+  /** Where the fields of each endpoint are in the figures */
+  private static final int LATENCY = 0;
+  private static final int FAILURE_RATE = 1;
+  private static final int SENT = 2;
+  private static final int COMPLETED = 3;
+  private static final int FAILED = 4;
+  private static final int FIELDS = 5;
+
+  /** The endpoints' URLs */
+  private final String[] urls;
+  /** Logins taking longer than this many milliseconds count as failures */
+  private final long timeout;
+  /** FIELDS longs per endpoint. The averages are held as the bits of a double */
+  private final AtomicLongArray figures;
+
+  /**
+   * Sets up selection between endpoints that haven't been measured yet. Each starts with
+   * half the timeout as its latency and no failures, so they all get an equal share at first.
+   *
+   * @param urls the endpoints' URLs
+   * @param timeout the time an endpoint has to verify a login, in milliseconds
+   */
+  public EngineSelector(String[] urls, long timeout) {
+    this.urls = urls.clone();
+    this.timeout = Math.max(MIN_LATENCY, timeout);
+    figures = new AtomicLongArray(urls.length * FIELDS);
+    for (int engine = 0; engine < urls.length; engine++) {
+      figures.set((engine * FIELDS) + LATENCY, Double.doubleToLongBits(this.timeout / 2.0));
+      figures.set((engine * FIELDS) + FAILURE_RATE, Double.doubleToLongBits(0.0));
+    }
+  }
+
+  /**
+   * Chooses the endpoint for a new login
+   *
+   * @return the index of the endpoint
+   */
+  public int select() {
+    if (urls.length == 1) return 0;
+
+    double best = 0;
+    for (int engine = 0; engine < urls.length; engine++) {
+      best = Math.max(best, getWeight(engine));
+    }
+    double floor = best * MIN_SHARE;
+
+    double total = 0;
+    for (int engine = 0; engine < urls.length; engine++) {
+      total += Math.max(floor, getWeight(engine));
+    }
+
+    if (total <= 0) {
+      // Every endpoint is failing everything, so none is better than another
+      return ThreadLocalRandom.current().nextInt(urls.length);
+    }
+
+    double point = ThreadLocalRandom.current().nextDouble() * total;
+    for (int engine = 0; engine < urls.length; engine++) {
+      point -= Math.max(floor, getWeight(engine));
+      if (point < 0) return engine;
+    }
+    // Rounding, or the weights moving under us
+    return urls.length - 1;
+  }
+
+  /**
+   * Records that a login was sent to an endpoint
+   *
+   * @param engine the index of the endpoint
+   */
+  void sent(int engine) {
+    figures.incrementAndGet((engine * FIELDS) + SENT);
+  }
+
+  /**
+   * Records an endpoint verifying a login
+   *
+   * @param engine the index of the endpoint
+   * @param latency how long it took, in milliseconds
+   */
+  void verified(int engine, long latency) {
+    if (latency > timeout) {
+      // Still a latency, capped so one stalled request doesn't swamp it
+      average(engine, LATENCY, timeout, LATENCY_ALPHA);
+      failed(engine);
+      return;
+    }
+
+    average(engine, LATENCY, Math.max(MIN_LATENCY, latency), LATENCY_ALPHA);
+    average(engine, FAILURE_RATE, 0, FAILURE_ALPHA);
+    figures.incrementAndGet((engine * FIELDS) + COMPLETED);
+  }
+
+  /**
+   * Records an endpoint failing a login
+   *
+   * @param engine the index of the endpoint
+   */
+  void failed(int engine) {
+    average(engine, FAILURE_RATE, 1, FAILURE_ALPHA);
+    figures.incrementAndGet((engine * FIELDS) + FAILED);
+  }
+
+  /**
+   * Records the Engine verifying a Pod's session, which settles the endpoint the Pod was
+   * sent to, if it was sent to one and hasn't already been settled
+   *
+   * @param trace the Pod's login trace
+   * @param time when the Engine verified the session, in milliseconds
+   */
+  void verified(LoginTrace trace, long time) {
+    int engine = trace.takeEngine();
+    if (engine != -1) {
+      long redirected = trace.get(LoginTrace.REDIRECTED);
+      long start = (redirected != 0) ? redirected : trace.get(LoginTrace.CREATED);
+      verified(engine, time - start);
+    }
+  }
+
+  /**
+   * Records a Pod expiring. If the endpoint it was sent to never verified it, that counts
+   * against the endpoint.
+   *
+   * @param trace the Pod's login trace
+   */
+  void expired(LoginTrace trace) {
+    int engine = trace.takeEngine();
+    if (engine != -1) {
+      failed(engine);
+    }
+  }
+
+  /**
+   * Records a Pod leaving the store for any other reason, which settles its login without
+   * counting against the endpoint it was sent to. The user may simply have gone away.
+   *
+   * @param trace the Pod's login trace
+   */
+  void removed(LoginTrace trace) {
+    trace.takeEngine();
+  }
+
+  /**
+   * @return the number of endpoints
+   */
+  public int getCount() {
+    return urls.length;
+  }
+
+  /**
+   * @param engine the index of the endpoint
+   * @return the endpoint's URL
+   */
+  public String getURL(int engine) {
+    return urls[engine];
+  }
+
+  /**
+   * @param engine the index of the endpoint
+   * @return the endpoint's average latency in milliseconds
+   */
+  public long getLatency(int engine) {
+    return (long)Double.longBitsToDouble(figures.get((engine * FIELDS) + LATENCY));
+  }
+
+  /**
+   * @param engine the index of the endpoint
+   * @return the endpoint's failure rate, from 0 to 1
+   */
+  public double getFailureRate(int engine) {
+    return Double.longBitsToDouble(figures.get((engine * FIELDS) + FAILURE_RATE));
+  }
+
+  /**
+   * @param engine the index of the endpoint
+   * @return the number of logins sent to the endpoint
+   */
+  public long getSentCount(int engine) {
+    return figures.get((engine * FIELDS) + SENT);
+  }
+
+  /**
+   * @param engine the index of the endpoint
+   * @return the number of logins the endpoint verified in time
+   */
+  public long getCompletedCount(int engine) {
+    return figures.get((engine * FIELDS) + COMPLETED);
+  }
+
+  /**
+   * @param engine the index of the endpoint
+   * @return the number of logins the endpoint was too slow to verify or never verified
+   */
+  public long getFailedCount(int engine) {
+    return figures.get((engine * FIELDS) + FAILED);
+  }
+
+  /**
+   * Works out an endpoint's weight before the MIN_SHARE floor is applied
+   *
+   * @param engine the index of the endpoint
+   * @return the weight
+   */
+  private double getWeight(int engine) {
+    double health = 1.0 - getFailureRate(engine);
+    double latency = Math.max(MIN_LATENCY, Double.longBitsToDouble(figures.get((engine * FIELDS) + LATENCY)));
+    return (health * health) / latency;
+  }
+
+  /**
+   * Moves one of an endpoint's averages towards a new value
+   *
+   * @param engine the index of the endpoint
+   * @param field the average
+   * @param value the new value
+   * @param alpha how much the new value counts
+   */
+  private void average(int engine, int field, double value, double alpha) {
+    int index = (engine * FIELDS) + field;
+    while (true) {
+      long bits = figures.get(index);
+      double current = Double.longBitsToDouble(bits);
+      double updated = current + (alpha * (value - current));
+      if (figures.compareAndSet(index, bits, Double.doubleToLongBits(updated))) {
+        return;
+      }
+    }
+  }
+}
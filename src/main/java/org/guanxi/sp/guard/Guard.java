@@ -16,8 +16,8 @@
 
 package org.guanxi.sp.guard;
 
-import org.guanxi.common.Pod;
 import org.guanxi.common.filters.FileName;
+import org.guanxi.sp.guard.core.GuardCore;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletResponse;
@@ -34,7 +34,10 @@ public class Guard extends GuardBase {
     initBase(config);
   }
 
-  public void destroy() {}
+  public void destroy() {
+    podStore.shutdown();
+    GuardLog.shutdown();
+  }
 
   public void doFilter(ServletRequest request, ServletResponse response,
                        FilterChain filterChain) throws IOException, ServletException {
@@ -50,27 +53,29 @@ public class Guard extends GuardBase {
       return;
     }
 
-    logger.debug("Looking for Guard cookie with name : " + cookieName);
+    GuardLog.debug(logger, "Looking for Guard cookie with name : {}", cookieName);
 
     // From now it's authenticated profile based access
-    Pod podFromCookie = doCookies(httpRequest, httpResponse);
-    if (podFromCookie != null) {
-      GuardRequest guardRequest = new GuardRequest(httpRequest, podFromCookie,
-                                                   guardConfig.get("attribute.prefix"));
+    GuardCore.Decision decision = core.filter(new ServletGuardExchange(httpRequest, httpResponse), cookieName);
+    if (decision.getOutcome() == GuardCore.ALLOWED) {
+      GuardRequest guardRequest = new GuardRequest(httpRequest, decision.getSnapshot().getPod(),
+                                                   decision.getParameters(),
+                                                   decision.getLayout(), decision.getProjection());
       guardRequest.setGuardCookieName(cookieName);
 
       preSuccessFilterChain(guardRequest);
       filterChain.doFilter(guardRequest, response);
-      
-      return;
     }
+  }
 
-    logger.debug("No pod of attributes found - starting profile search");
-
-    Pod pod = createPod(request);
-    pod.setRequestURL(((HttpServletRequest) request).getRequestURI());
-    gotoEngineGPS(pod.getSessionID(), request, response);
-    
-    return;
+  /**
+   * The Guard preserves the original request parameters in the Pod so only the
+   * path is needed to get back to the resource.
+   *
+   * @param httpRequest the request that caused the Pod to be created
+   * @return the path of the requested resource
+   */
+  protected String getPodRequestURL(HttpServletRequest httpRequest) {
+    return httpRequest.getRequestURI();
   }
 }
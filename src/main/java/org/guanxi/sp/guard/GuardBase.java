@@ -17,7 +17,11 @@
 package org.guanxi.sp.guard;
 
 import java.io.IOException;
-import java.rmi.server.UID;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,13 +31,20 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
-import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
 import org.guanxi.common.Pod;
 import org.guanxi.common.filters.FileName;
+import org.guanxi.sp.guard.cluster.InProcessInvalidationTransport;
+import org.guanxi.sp.guard.cluster.InvalidationBus;
+import org.guanxi.sp.guard.cluster.InvalidationListener;
+import org.guanxi.sp.guard.cluster.InvalidationTransport;
+import org.guanxi.sp.guard.cluster.UdpInvalidationTransport;
+import org.guanxi.sp.guard.core.GuardCore;
+import org.guanxi.sp.guard.core.GuardExchange;
 
 /**
  * Base class for Guards
@@ -49,6 +60,12 @@ public abstract class GuardBase implements Filter {
   protected GuardConfig guardConfig = null;
   /** The name of the cookie the Guard uses to store a Pod of attributes */
   protected String cookieName = null;
+  /** The store holding the Pods for this webapp */
+  protected PodStore podStore = null;
+  /** Generates the session IDs for new Pods */
+  protected SessionIDGenerator sessionIDGenerator = null;
+  /** Makes the Guard's decisions. Shared with the Guard's servlets */
+  protected GuardCore core = null;
 
   /**
    * Deactivates a Pod. This will cause a pod to disappear
@@ -59,7 +76,7 @@ public abstract class GuardBase implements Filter {
    */
   public static void deactivatePod(Pod pod) {
     if (pod != null) {
-      pod.getContext().setAttribute(pod.getSessionID(), null);
+      PodStore.getInstance(pod.getContext()).deactivate(pod.getSessionID());
     }
   }
 
@@ -81,12 +98,14 @@ public abstract class GuardBase implements Filter {
    *
    * @param config The Guard's config
    */
-  protected void initBase(FilterConfig config) {
+  protected void initBase(FilterConfig config) throws ServletException {
     logger = Logger.getLogger(this.getClass().getName());
 
     // Store the config for later
     filterConfig = config;
 
+    podStore = PodStore.getInstance(filterConfig.getServletContext());
+
     // Make the config available to the rest of the Guard as an XMLBeans Guard object
     String configFilePath = null;
     if ((filterConfig.getInitParameter("configFile") != null) &&
@@ -123,10 +142,131 @@ public abstract class GuardBase implements Filter {
     logger.info("Found entityid:" + guardConfig.get("entityid"));
     logger.info("Found host.name:" + guardConfig.get("host.name"));
 
+    sessionIDGenerator = createSessionIDGenerator();
+    filterConfig.getServletContext().setAttribute(Definitions.CONTEXT_ATTR_GUARD_SESSION_ID_GENERATOR,
+                                                  sessionIDGenerator);
+
+    core = createCore();
+    filterConfig.getServletContext().setAttribute(Definitions.CONTEXT_ATTR_GUARD_CORE, core);
+    if (core.getAdmissionControl() != null) {
+      filterConfig.getServletContext().setAttribute(Definitions.CONTEXT_ATTR_GUARD_ADMISSION_CONTROL,
+                                                    core.getAdmissionControl());
+    }
+
+    // Tell the other nodes when a Pod is deactivated here, and listen for theirs
+    if ((guardConfig.get("invalidation.transport") != null) && (podStore.getInvalidationBus() == null)) {
+      podStore.setInvalidationBus(createInvalidationBus());
+      logger.info("Invalidation bus: " + guardConfig.get("invalidation.transport"));
+    }
+
     // The cookie name can be changed at runtime
     cookieName = guardConfig.get("cookie.prefix") + FileName.encode(guardConfig.get("entityid"));
   }
 
+  /**
+   * Creates the core that makes the Guard's decisions. The default core calls back into
+   * the Guard's hooks, so extending filters can still change how Pods are found and
+   * created and how users are sent to the Engine.
+   *
+   * @return the core
+   */
+  protected GuardCore createCore() {
+    return new ServletCore();
+  }
+
+  /**
+   * Creates the generator for the session IDs of new Pods. This is the class named by
+   * session.id.generator in the config, otherwise a SecureSessionIDGenerator.
+   *
+   * @return the initialised generator
+   * @throws ServletException if the generator can't be created
+   */
+  protected SessionIDGenerator createSessionIDGenerator() throws ServletException {
+    SessionIDGenerator generator = null;
+    if (guardConfig.get("session.id.generator") != null) {
+      try {
+        generator = (SessionIDGenerator)Class.forName(guardConfig.get("session.id.generator")).newInstance();
+      }
+      catch (Exception e) {
+        throw new ServletException("Can't create session ID generator " + guardConfig.get("session.id.generator"), e);
+      }
+    }
+    else {
+      generator = new SecureSessionIDGenerator();
+    }
+
+    generator.init(guardConfig);
+    return generator;
+  }
+
+  /**
+   * Creates and starts the bus that tells the other nodes about deactivated Pods. The
+   * transport is chosen by invalidation.transport in the config:
+   *
+   * udp        multicast to invalidation.group, or send to each host:port in invalidation.peers,
+   *            on invalidation.port. Datagrams are signed if invalidation.secret is set
+   * inprocess  nodes in the same JVM on invalidation.channel
+   *
+   * Deactivations from other nodes are removed from this node's store.
+   *
+   * @return the started bus
+   * @throws ServletException if the bus can't be started
+   */
+  protected InvalidationBus createInvalidationBus() throws ServletException {
+    InvalidationTransport transport = null;
+    try {
+      if (guardConfig.get("invalidation.transport").equals("udp")) {
+        int port = Integer.parseInt(getConfig("invalidation.port", "45564"));
+        if (guardConfig.get("invalidation.group") != null) {
+          transport = new UdpInvalidationTransport(InetAddress.getByName(guardConfig.get("invalidation.group")),
+                                                   port, guardConfig.get("invalidation.secret"));
+        }
+        else {
+          List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+          for (String peer : getConfig("invalidation.peers", "").split(",")) {
+            if (peer.trim().length() == 0) continue;
+            String[] hostAndPort = peer.trim().split(":");
+            peers.add(new InetSocketAddress(hostAndPort[0],
+                                            (hostAndPort.length > 1) ? Integer.parseInt(hostAndPort[1]) : port));
+          }
+          transport = new UdpInvalidationTransport(peers, port, guardConfig.get("invalidation.secret"));
+        }
+      }
+      else if (guardConfig.get("invalidation.transport").equals("inprocess")) {
+        transport = new InProcessInvalidationTransport(getConfig("invalidation.channel", "guard"));
+      }
+      else {
+        throw new ServletException("Unknown invalidation transport " + guardConfig.get("invalidation.transport"));
+      }
+
+      InvalidationBus bus = new InvalidationBus(transport,
+                                                Long.parseLong(getConfig("invalidation.linger.ms", "5")),
+                                                Integer.parseInt(getConfig("invalidation.batch.size", "100")));
+      bus.start(new InvalidationListener() {
+        public void invalidated(Collection<String> sessionIDs) {
+          for (String sessionID : sessionIDs) {
+            podStore.remove(sessionID);
+          }
+        }
+      });
+      return bus;
+    }
+    catch (IOException ioe) {
+      throw new ServletException("Can't start invalidation bus", ioe);
+    }
+  }
+
+  /**
+   * Retrieves an option from the Guard's config, falling back to a default
+   *
+   * @param option the name of the option
+   * @param defaultValue the value to use if the option isn't in the config
+   * @return the value of the option
+   */
+  protected String getConfig(String option, String defaultValue) {
+    return (guardConfig.get(option) != null) ? guardConfig.get(option) : defaultValue;
+  }
+
   /**
    * Processes the cookies in the request, cleaning up any Guard ones that are devoid
    * of Pods.
@@ -136,32 +276,32 @@ public abstract class GuardBase implements Filter {
    * @return Pod object if one is referenced by a cookie and it's a valid Pod
    */
   protected Pod doCookies(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
-    Cookie[] cookies = httpRequest.getCookies();
-    if (cookies != null) {
-      for (int i = 0; i < cookies.length; i++) {
-        logger.debug("Found cookie : " + cookies[i].getName());
-        if (cookies[i].getName().equals(cookieName)) {
-          // See if there's a pod for the request
-          Pod pod = (Pod)filterConfig.getServletContext().getAttribute(cookies[i].getValue());
-
-          // If there isn't then we must get rid of the cookie
-          if (pod == null) {
-            logger.debug("Found a Guard cookie but no Pod of attributes : " + cookies[i].getName());
-            cookies[i].setMaxAge(0);
-            httpResponse.addCookie(cookies[i]);
-          }
-          else {
-            logger.debug("Found a Guard cookie with a Pod of attributes : " + cookies[i].getName());
+    PodSnapshot snapshot = getPodSnapshot(httpRequest, httpResponse);
+    return (snapshot != null) ? snapshot.getPod() : null;
+  }
 
-            // Add any new parameters to the original request
-            pod.setRequestParameters(httpRequest.getParameterMap());
-            return pod;
-          }
-        }
-      }
-    }
+  /**
+   * Processes the cookies in the request, cleaning up any Guard ones that are devoid
+   * of Pods.
+   *
+   * @param httpRequest Servlet request
+   * @param httpResponse Servlet response
+   * @return the current snapshot of the Pod referenced by a cookie, if it's a valid Pod
+   */
+  protected PodSnapshot getPodSnapshot(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+    return core.findPod(new ServletGuardExchange(httpRequest, httpResponse), cookieName);
+  }
 
-    return null;
+  /**
+   * Opportunity for extending filters to change how the Pod for a Guard cookie is found,
+   * e.g. to limit how long a slow store can hold up the request.
+   *
+   * @param sessionID the session ID from the Guard cookie
+   * @return the current snapshot of the Pod or null if there isn't one for the session
+   * @throws GuanxiException if the store can't say whether there's a Pod
+   */
+  protected PodSnapshot lookupPod(String sessionID) throws GuanxiException {
+    return podStore.access(sessionID);
   }
 
   /**
@@ -171,39 +311,18 @@ public abstract class GuardBase implements Filter {
    * @return An empty Pod configured for use with the Guard
    */
   protected Pod createPod(ServletRequest request) {
-    HttpServletRequest httpRequest = (HttpServletRequest)request;
-
-    // Create a new Pod to encapsulate information for this session
-    Pod pod = new Pod();
-
-    // Store the servlet context for later deactivation of the pod
-    pod.setContext(filterConfig.getServletContext());
-
-    // Store the original scheme and hostname
-    pod.setRequestScheme(request.getScheme());
-    pod.setHostName(httpRequest.getHeader("Host").replaceAll("/", ""));
-
-    /* Store the parameters in the Pod as these are not guaranteed to be around in the
-     * original request after the SAML workflow has finished. The servlet container will
-     * only guarantee them for this request. After that, it can reuse the request object.
-     */
-    pod.setRequestParameters(request.getParameterMap());
-
-    // Store the original URL including any query parameters
-    if (((HttpServletRequest)request).getQueryString() != null)
-      pod.setRequestURL(httpRequest.getRequestURI() + "?" + httpRequest.getQueryString());
-    else
-      pod.setRequestURL(httpRequest.getRequestURI());
-
-    // Store the Pod in a session
-    UID uid = new UID();
-    String sessionID = "GUARD_" + uid.toString().replaceAll(":", "--");
-    pod.setSessionID(sessionID);
-    filterConfig.getServletContext().setAttribute(sessionID, pod);
-    
-    logger.info("Created pod: " + pod.getSessionID() + " hostname: " + pod.getHostName() + " requestURL: " + pod.getRequestURL());
+    return core.publishPod(new ServletGuardExchange((HttpServletRequest)request, null));
+  }
 
-    return pod;
+  /**
+   * Works out the host to store in a new Pod, which is also the tenant partition it goes in
+   *
+   * @param httpRequest Servlet request
+   * @return the host from the Host header
+   */
+  protected String getPodHostName(HttpServletRequest httpRequest) {
+    String host = httpRequest.getHeader("Host");
+    return (host != null) ? host.replaceAll("/", "") : null;
   }
 
   /**
@@ -219,8 +338,15 @@ public abstract class GuardBase implements Filter {
     		(httpRequest.getRequestURI().endsWith("guard.guanxiGuardACS")) ||
     		(httpRequest.getRequestURI().endsWith(getLogoutPage(httpRequest))) ||
     		(httpRequest.getRequestURI().endsWith("guard.guanxiGuardPodder")) ||
+    		(httpRequest.getRequestURI().endsWith("guard.guanxiGuardMonitor")) ||
+    		(httpRequest.getRequestURI().endsWith("guard.guanxiGuardDrain")) ||
+    		(httpRequest.getRequestURI().endsWith("guard.guanxiGuardImport")) ||
+    		(httpRequest.getRequestURI().endsWith("guard.guanxiGuardRefresh")) ||
         customPassThru(httpRequest) ||
     		checkSkipFilter(httpRequest)) {
+      if (core.getEvents() != null) {
+        core.getEvents().passedThrough(httpRequest.getRequestURI());
+      }
       return true;
     }
 
@@ -255,23 +381,9 @@ public abstract class GuardBase implements Filter {
 
   protected void gotoEngineGPS(String sessionID, ServletRequest request, ServletResponse response) {
     try {
-      GuardConfig config = (GuardConfig)filterConfig.getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CONFIG);
-
-      String engineGPSService = config.get("engine.gps.service.url");
-      engineGPSService += "?" + Definitions.WAYF_PARAM_GUARD_ID + "=" + config.get("entityid");
-      engineGPSService += "&" + Definitions.WAYF_PARAM_SESSION_ID + "=" + sessionID;
-      if (request.getParameter("entityID") != null) {
-        engineGPSService += "&" + "entityID" + "=" + request.getParameter("entityID");
-      }
-      else {
-        // If no entityID is specified in the URL, try to use the default one
-        if ((config.get("default.entity.id") != null) &&
-            (!config.get("default.entity.id").equals(""))) {
-          engineGPSService += "&" + "entityID" + "=" + config.get("default.entity.id");
-        }
-      }
-
-      ((HttpServletResponse)response).sendRedirect(engineGPSService);
+      ((HttpServletResponse)response).sendRedirect(core.getEngineGPSRedirect(sessionID,
+                                                   new ServletGuardExchange((HttpServletRequest)request, null)));
+      podStore.reached(sessionID, LoginTrace.REDIRECTED);
     }
     catch (IOException ioe) {
       logger.error("Engine GPS Service not responding", ioe);
@@ -294,6 +406,20 @@ public abstract class GuardBase implements Filter {
 	  return "guard.guanxiGuardlogout";
   }
 
+  /**
+   * Opportunity for extending filters to control where the user is sent back to once a new
+   * Pod has been populated with attributes.
+   *
+   * @param httpRequest the request that caused the Pod to be created
+   * @return the URL to store in the Pod, by default including any query parameters
+   */
+  protected String getPodRequestURL(HttpServletRequest httpRequest) {
+    if (httpRequest.getQueryString() != null)
+      return httpRequest.getRequestURI() + "?" + httpRequest.getQueryString();
+    else
+      return httpRequest.getRequestURI();
+  }
+
   /**
    * Opportunity for extending filters to bypass Guard filtering
    *
@@ -323,4 +449,43 @@ public abstract class GuardBase implements Filter {
   protected String postProcessGetGuardId(String id, HttpServletRequest httpRequest) {
 	  return id;
   }
+
+  /**
+   * The core of a servlet Guard, which finds and creates Pods and sends users to the
+   * Engine through the Guard's hooks
+   */
+  protected class ServletCore extends GuardCore {
+    public ServletCore() {
+      super(guardConfig, GuardBase.this.podStore, GuardBase.this.sessionIDGenerator);
+    }
+
+    protected PodSnapshot lookupPod(String sessionID) throws GuanxiException {
+      return GuardBase.this.lookupPod(sessionID);
+    }
+
+    protected Pod newPod() {
+      Pod pod = new Pod();
+
+      // Store the servlet context for later deactivation of the pod
+      pod.setContext(filterConfig.getServletContext());
+      return pod;
+    }
+
+    protected Pod createPod(GuardExchange exchange) {
+      return GuardBase.this.createPod(((ServletGuardExchange)exchange).getRequest());
+    }
+
+    protected String getPodRequestURL(GuardExchange exchange) {
+      return GuardBase.this.getPodRequestURL(((ServletGuardExchange)exchange).getRequest());
+    }
+
+    public String getPodHostName(GuardExchange exchange) {
+      return GuardBase.this.getPodHostName(((ServletGuardExchange)exchange).getRequest());
+    }
+
+    protected void gotoEngineGPS(String sessionID, GuardExchange exchange) {
+      GuardBase.this.gotoEngineGPS(sessionID, ((ServletGuardExchange)exchange).getRequest(),
+                                   ((ServletGuardExchange)exchange).getResponse());
+    }
+  }
 }
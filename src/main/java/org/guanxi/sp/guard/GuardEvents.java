@@ -0,0 +1,93 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+/**
+ * Receives events from the Guard's hot paths, for profiling in production. There are no
+ * events unless the events.class config option names an implementation, which must have a
+ * public no argument constructor, so the only cost when they're off is a null check. Timings
+ * are only taken when there's an implementation.
+ *
+ * org.guanxi.sp.guard.jfr.JfrGuardEvents records them as Java Flight Recorder events.
+ *
+ * Methods are called concurrently from many threads and must not block.
+ */
+public interface GuardEvents {
+  /**
+   * Sets up the events. Called once before any events are sent.
+   *
+   * @param config the Guard's config
+   */
+  public void init(GuardConfig config);
+
+  /**
+   * A request for a protected resource has been decided
+   *
+   * @param host the tenant host of the request
+   * @param outcome one of the GuardCore outcomes
+   * @param attributeCount the number of attributes passed to the resource
+   * @param nanos how long the decision took
+   */
+  public void filtered(String host, int outcome, int attributeCount, long nanos);
+
+  /**
+   * A request got past the Guard without being checked
+   *
+   * @param path the request URI
+   */
+  public void passedThrough(String path);
+
+  /**
+   * A new Pod has been published
+   *
+   * @param host the tenant host of the Pod
+   * @param size the estimated size of the Pod in bytes
+   */
+  public void podCreated(String host, int size);
+
+  /**
+   * A Pod has been evicted to stay within the memory budget
+   *
+   * @param host the tenant host of the Pod
+   * @param size the estimated size of the Pod in bytes
+   */
+  public void podEvicted(String host, int size);
+
+  /**
+   * The Engine's attributes have been received by the AttributeConsumer
+   *
+   * @param bytes the size of the attribute payload, or -1 if it isn't known
+   * @param attributeCount the number of attributes
+   * @param nanos how long it took to read and parse the attributes
+   */
+  public void bagIngested(int bytes, int attributeCount, long nanos);
+
+  /**
+   * The Podder has finished a login
+   *
+   * @param host the tenant host of the Pod, or null if there wasn't a Pod for the session
+   * @param completed whether the Guard cookie was issued
+   */
+  public void loginCompleted(String host, boolean completed);
+
+  /**
+   * A Pod has been deactivated, i.e. the user logged out
+   *
+   * @param host the tenant host of the Pod
+   */
+  public void loggedOut(String host);
+}
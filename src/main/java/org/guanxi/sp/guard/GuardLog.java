@@ -0,0 +1,384 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Logging for the Guard's request path. Messages are log4j messages with {} placeholders
+ * for up to three arguments, which are only formatted if the message is going to be
+ * logged, so a disabled message costs a level check and nothing else:
+ *
+ * GuardLog.debug(logger, "Found a Guard cookie with a Pod of attributes : {}", cookieName);
+ *
+ * If the config sets logging.async=true, enabled messages are put in a fixed size ring
+ * and formatted and written by a background thread, so the request thread doesn't wait
+ * for the appenders. The log4j event is created on the request thread, so its thread name,
+ * NDC and MDC are the request's. Working out the location of the call is expensive, so
+ * it's only done if logging.async.location=true, otherwise %C, %M and %L are unknown.
+ * If the ring is full the message is dropped and counted rather than holding the request
+ * up, except for errors, which are written there and then. Because the arguments are
+ * formatted later they must not change once logged, e.g. pass a Pod's session ID rather
+ * than the Pod.
+ *
+ * Messages that are logged on every login can be given a Sample, which logs one in every
+ * logging.sample.NAME of them, so they can be left on in production:
+ *
+ * logging.sample.pod.created=100
+ */
+public class GuardLog {
+  private static final Logger logger = Logger.getLogger(GuardLog.class.getName());
+  /** The class log4j looks for in the stack to find where a message was logged from */
+  private static final String FQCN = GuardLog.class.getName();
+
+  /** Messages held in the ring if the config doesn't say otherwise */
+  private static final int DEFAULT_RING_SIZE = 8192;
+
+  /** The Samples that have been created, by name */
+  private static final Map<String, Sample> samples = new ConcurrentHashMap<String, Sample>();
+  /** The config the Samples take their rates from, or null before the Guard is set up */
+  private static volatile GuardConfig config = null;
+  /** Writes the messages or null if they're written by the caller */
+  private static volatile Ring ring = null;
+
+  private GuardLog() {
+  }
+
+  /**
+   * Sets up logging from the Guard's config. Stops any ring set up before.
+   *
+   * @param config the Guard's config
+   */
+  public static synchronized void configure(GuardConfig config) {
+    GuardLog.config = config;
+    for (Sample sample : samples.values()) {
+      sample.configure(config);
+    }
+
+    shutdown();
+    if ("true".equals(config.get("logging.async"))) {
+      int size = (config.get("logging.ring.size") != null) ?
+                 Integer.parseInt(config.get("logging.ring.size")) : DEFAULT_RING_SIZE;
+      ring = new Ring(size, "true".equals(config.get("logging.async.location")));
+      logger.info("Asynchronous logging: " + ring.getCapacity() + " messages");
+    }
+  }
+
+  /**
+   * Stops the background thread, once it has written the messages it already has
+   */
+  public static synchronized void shutdown() {
+    if (ring != null) {
+      ring.shutdown();
+      ring = null;
+    }
+  }
+
+  /**
+   * @return the number of messages dropped because the ring was full
+   */
+  public static long getDroppedCount() {
+    Ring current = ring;
+    return (current != null) ? current.getDroppedCount() : 0;
+  }
+
+  /**
+   * @return the number of messages left out by sampling
+   */
+  public static long getSampledOutCount() {
+    long count = 0;
+    for (Sample sample : samples.values()) {
+      count += sample.getSampledOutCount();
+    }
+    return count;
+  }
+
+  public static void debug(Logger log, String message) {
+    log(log, Level.DEBUG, null, message, null, null, null, null);
+  }
+
+  public static void debug(Logger log, String message, Object arg) {
+    log(log, Level.DEBUG, null, message, arg, null, null, null);
+  }
+
+  public static void debug(Logger log, String message, Object arg1, Object arg2) {
+    log(log, Level.DEBUG, null, message, arg1, arg2, null, null);
+  }
+
+  public static void info(Logger log, String message, Object arg) {
+    log(log, Level.INFO, null, message, arg, null, null, null);
+  }
+
+  public static void info(Logger log, Sample sample, String message, Object arg) {
+    log(log, Level.INFO, sample, message, arg, null, null, null);
+  }
+
+  public static void info(Logger log, Sample sample, String message, Object arg1, Object arg2, Object arg3) {
+    log(log, Level.INFO, sample, message, arg1, arg2, arg3, null);
+  }
+
+  public static void warn(Logger log, String message, Object arg) {
+    log(log, Level.WARN, null, message, arg, null, null, null);
+  }
+
+  public static void error(Logger log, String message, Object arg) {
+    log(log, Level.ERROR, null, message, arg, null, null, null);
+  }
+
+  public static void error(Logger log, String message, Object arg, Throwable t) {
+    log(log, Level.ERROR, null, message, arg, null, null, t);
+  }
+
+  /**
+   * Logs a message if it's enabled and sampled
+   *
+   * @param log the logger
+   * @param level the level of the message
+   * @param sample the Sample the message belongs to or null to log every one
+   * @param message the message with {} placeholders
+   * @param arg1 the first argument or null
+   * @param arg2 the second argument or null
+   * @param arg3 the third argument or null
+   * @param t the Throwable to log or null
+   */
+  private static void log(Logger log, Level level, Sample sample, String message,
+                          Object arg1, Object arg2, Object arg3, Throwable t) {
+    if (!log.isEnabledFor(level)) return;
+    if ((sample != null) && (!sample.take())) return;
+
+    Ring current = ring;
+    if (current != null) {
+      current.publish(new LoggingEvent(FQCN, log, level, new Message(message, arg1, arg2, arg3), t));
+    }
+    else {
+      log.log(FQCN, level, format(new StringBuilder(), message, arg1, arg2, arg3), t);
+    }
+  }
+
+  /**
+   * Replaces the {} placeholders in a message with the arguments, in order
+   *
+   * @param buffer where to build the message
+   * @param message the message
+   * @param arg1 the first argument
+   * @param arg2 the second argument
+   * @param arg3 the third argument
+   * @return the formatted message
+   */
+  static String format(StringBuilder buffer, String message, Object arg1, Object arg2, Object arg3) {
+    int from = 0;
+    for (int arg = 0; arg < 3; arg++) {
+      int placeholder = message.indexOf("{}", from);
+      if (placeholder == -1) break;
+      buffer.append(message, from, placeholder);
+      buffer.append((arg == 0) ? arg1 : (arg == 1) ? arg2 : arg3);
+      from = placeholder + 2;
+    }
+    if (from == 0) {
+      return message;
+    }
+    buffer.append(message, from, message.length());
+    return buffer.toString();
+  }
+
+  /**
+   * A message and its arguments, which are only formatted when an appender renders them
+   */
+  private static class Message {
+    private final String message;
+    private final Object arg1;
+    private final Object arg2;
+    private final Object arg3;
+
+    Message(String message, Object arg1, Object arg2, Object arg3) {
+      this.message = message;
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+      this.arg3 = arg3;
+    }
+
+    public String toString() {
+      return format(new StringBuilder(), message, arg1, arg2, arg3);
+    }
+  }
+
+  /**
+   * Messages of one kind, of which only one in every logging.sample.NAME is logged.
+   * Create them once, as constants.
+   */
+  public static class Sample {
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    /** Log one in this many */
+    private volatile long rate = 1;
+
+    /**
+     * Creates a Sample that logs every message until the config says otherwise
+     *
+     * @param name the name of the messages in the config
+     */
+    public Sample(String name) {
+      this.name = name;
+      samples.put(name, this);
+      if (config != null) {
+        configure(config);
+      }
+    }
+
+    void configure(GuardConfig config) {
+      rate = (config.get("logging.sample." + name) != null) ?
+             Math.max(1, Long.parseLong(config.get("logging.sample." + name))) : 1;
+    }
+
+    boolean take() {
+      if (rate == 1) return true;
+      if ((count.getAndIncrement() % rate) == 0) return true;
+      sampledOut.incrementAndGet();
+      return false;
+    }
+
+    long getSampledOutCount() {
+      return sampledOut.get();
+    }
+  }
+
+  /**
+   * A fixed size ring of log4j events written by a background thread. Request threads claim
+   * a slot by advancing the tail with compare-and-set, then publish the event in it, which
+   * is what the writer waits for. The writer parks when the ring is empty and the thread
+   * that publishes next wakes it.
+   */
+  private static class Ring implements Runnable {
+    private final int mask;
+    /** Whether to work out where each message was logged from */
+    private final boolean locationInfo;
+    /** The event in each slot once it's ready to write */
+    private final AtomicReferenceArray<LoggingEvent> events;
+    /** The next sequence number to claim */
+    private final AtomicLong tail = new AtomicLong();
+    /** The next sequence number to write */
+    private volatile long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    /** Set while the writer is parked, or about to be */
+    private volatile boolean sleeping = false;
+    private volatile boolean running = true;
+
+    Ring(int size, boolean locationInfo) {
+      int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+      mask = capacity - 1;
+      this.locationInfo = locationInfo;
+      events = new AtomicReferenceArray<LoggingEvent>(capacity);
+
+      writer = new Thread(this, "guanxi-guard-log");
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    int getCapacity() {
+      return mask + 1;
+    }
+
+    long getDroppedCount() {
+      return dropped.get();
+    }
+
+    void publish(LoggingEvent event) {
+      // Capture what belongs to the calling thread before it moves on
+      event.getThreadName();
+      event.getNDC();
+      event.getMDCCopy();
+      if (locationInfo) {
+        event.getLocationInformation();
+      }
+
+      long sequence;
+      do {
+        sequence = tail.get();
+        if (sequence - head > mask) {
+          if (event.getLevel().isGreaterOrEqual(Level.ERROR)) {
+            write(event);
+          }
+          else {
+            dropped.incrementAndGet();
+          }
+          return;
+        }
+      } while (!tail.compareAndSet(sequence, sequence + 1));
+
+      events.set((int)sequence & mask, event);
+      if (sleeping) {
+        LockSupport.unpark(writer);
+      }
+    }
+
+    public void run() {
+      while (true) {
+        LoggingEvent event = events.get((int)head & mask);
+        if (event != null) {
+          // Let go of the event before the slot can be claimed again
+          events.set((int)head & mask, null);
+          head = head + 1;
+          write(event);
+          continue;
+        }
+        if (!running) break;
+
+        // Check again once the publishers can see the writer is going to sleep
+        sleeping = true;
+        if (events.get((int)head & mask) == null) {
+          LockSupport.park(this);
+        }
+        sleeping = false;
+      }
+    }
+
+    /**
+     * Writes an event to the appenders of its logger
+     *
+     * @param event the event
+     */
+    private void write(LoggingEvent event) {
+      try {
+        event.getLogger().callAppenders(event);
+      }
+      catch (RuntimeException re) {
+        // An appender failing mustn't stop the others being written
+      }
+    }
+
+    void shutdown() {
+      running = false;
+      LockSupport.unpark(writer);
+      try {
+        writer.join(5000);
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -31,14 +31,53 @@ import java.util.*;
  */
 public class GuardRequest extends HttpServletRequestWrapper {
   Pod requestPod = null;
+  Map<?, ?> requestParameters = null;
   Hashtable<String, String> headers = null;
   Cookie[] cookies = null;
 
-  @SuppressWarnings("unchecked")
+  /**
+   * Wraps a request in the Pod of attributes it was given access with, presenting the
+   * parameters preserved in the Pod. Once the GuardCore has replayed them to the first
+   * request after the login, or if they were spilled to disk, the request's own are
+   * presented instead. Use GuardCore.getRequestParameters() to get them replayed.
+   *
+   * @param request the original request
+   * @param pod the Pod for the request. This is shared with other requests so is only read
+   * @param attributePrefix the prefix to add to attribute names when making them headers
+   */
   public GuardRequest(HttpServletRequest request, Pod pod, String attributePrefix) {
+    this(request, pod, (pod.getRequestParameters() instanceof SpilledParameters) ? null : pod.getRequestParameters(),
+         attributePrefix);
+  }
+
+  /**
+   * Wraps a request in the Pod of attributes it was given access with.
+   *
+   * @param request the original request
+   * @param pod the Pod for the request. This is shared with other requests so is only read
+   * @param parameters the parameters to present to the application, or null for the request's own
+   * @param attributePrefix the prefix to add to attribute names when making them headers
+   */
+  public GuardRequest(HttpServletRequest request, Pod pod, Map<?, ?> parameters, String attributePrefix) {
+    this(request, pod, parameters, new AttributeLayout(pod.getBag(), attributePrefix), null);
+  }
+
+  /**
+   * Wraps a request in the Pod of attributes it was given access with, only adding the
+   * selected attributes as headers.
+   *
+   * @param request the original request
+   * @param pod the Pod for the request. This is shared with other requests so is only read
+   * @param parameters the parameters to present to the application, or null for the request's own
+   * @param layout the Pod's attributes laid out as headers
+   * @param projection the indices in the layout of the attributes to add as headers, or null for all of them
+   */
+  @SuppressWarnings("unchecked")
+  public GuardRequest(HttpServletRequest request, Pod pod, Map<?, ?> parameters, AttributeLayout layout, int[] projection) {
     super(request);
 
     requestPod = pod;
+    requestParameters = (parameters != null) ? parameters : request.getParameterMap();
 
     headers = new Hashtable<String, String>();
 
@@ -53,12 +92,15 @@ public class GuardRequest extends HttpServletRequestWrapper {
       headers.put(buffer.toLowerCase(), super.getHeader(buffer));
     }
 
-    // Make sure there are attributes to process
-    if (pod.getBag().hasAttributes()) {
-      Enumeration<String> samlAttributeNames = pod.getBag().getAttributeNames();
-      while (samlAttributeNames.hasMoreElements()) {
-        buffer = (String)samlAttributeNames.nextElement();
-        headers.put(attributePrefix + buffer, pod.getBag().getAttributeValue(buffer));
+    // Add the attributes the application needs
+    if (projection == null) {
+      for (int i = 0; i < layout.size(); i++) {
+        headers.put(layout.getHeaderName(i), layout.getValue(i));
+      }
+    }
+    else {
+      for (int i = 0; i < projection.length; i++) {
+        headers.put(layout.getHeaderName(projection[i]), layout.getValue(projection[i]));
       }
     }
   }
@@ -68,19 +110,19 @@ public class GuardRequest extends HttpServletRequestWrapper {
      * many of them there are. i.e. a param with one value will still
      * return a String[] for that value.
      */
-    String[] values = (String[])requestPod.getRequestParameters().get(name);
+    String[] values = (String[])requestParameters.get(name);
 
     // Return the first value of the param
     return (values != null) ? values[0] : null;
   }
 
   public Map<?, ?> getParameterMap() {
-    return requestPod.getRequestParameters();
+    return requestParameters;
   }
 
   public Enumeration<?> getParameterNames() {
     return new Enumeration<Object>() {
-      Iterator<?> names = requestPod.getRequestParameters().keySet().iterator();
+      Iterator<?> names = requestParameters.keySet().iterator();
 
       public boolean hasMoreElements() {
         return names.hasNext();
@@ -106,7 +148,7 @@ public class GuardRequest extends HttpServletRequestWrapper {
 
   public String[] getParameterValues(String name) {
     // See note on getParameter
-    return (String[])requestPod.getRequestParameters().get(name);
+    return (String[])requestParameters.get(name);
   }
 
   public String getHeader(String name) {
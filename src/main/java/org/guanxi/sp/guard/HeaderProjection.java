@@ -0,0 +1,118 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Limits which attributes are passed to the application as headers, per path. Projections
+ * are numbered in the Guard config, starting at 1, and the first whose path regex matches
+ * the request path, as normalised by RequestPath, is used:
+ *
+ * header.projection.1.path=^/protected/mail/
+ * header.projection.1.attributes=mail,displayName
+ *
+ * Paths that don't match a projection get all the attributes as headers, as before.
+ *
+ * A projection is resolved to indices into a Pod's AttributeLayout the first time it's used
+ * with that layout, after which GuardRequest only has to copy the selected headers.
+ */
+public class HeaderProjection {
+  /** Number of projections whose indices are cached per AttributeLayout */
+  public static final int MAX_CACHED_PROJECTIONS = 32;
+
+  /** The projections' path regexes, in order */
+  private final Pattern[] paths;
+  /** The attributes each projection selects */
+  private final String[][] attributes;
+
+  /**
+   * Compiles the header projections in the Guard's config
+   *
+   * @param config the Guard's config
+   * @return the compiled projections or null if the config doesn't have any
+   */
+  public static HeaderProjection compile(GuardConfig config) {
+    List<Pattern> paths = new ArrayList<Pattern>();
+    List<String[]> attributes = new ArrayList<String[]>();
+    for (int i = 1; config.get("header.projection." + i + ".path") != null; i++) {
+      paths.add(Pattern.compile(config.get("header.projection." + i + ".path")));
+
+      List<String> names = new ArrayList<String>();
+      String list = config.get("header.projection." + i + ".attributes");
+      if (list != null) {
+        for (String name : list.split(",")) {
+          if (name.trim().length() > 0) names.add(name.trim());
+        }
+      }
+      attributes.add(names.toArray(new String[names.size()]));
+    }
+
+    if (paths.isEmpty()) return null;
+    return new HeaderProjection(paths.toArray(new Pattern[paths.size()]),
+                                attributes.toArray(new String[attributes.size()][]));
+  }
+
+  private HeaderProjection(Pattern[] paths, String[][] attributes) {
+    this.paths = paths;
+    this.attributes = attributes;
+  }
+
+  /**
+   * Works out which attributes to pass to the application as headers
+   *
+   * @param layout the layout of the Pod's attributes
+   * @param path the path being accessed, normalised by RequestPath
+   * @return the indices into the layout of the attributes to pass, or null to pass them all
+   */
+  public int[] project(AttributeLayout layout, String path) {
+    for (int i = 0; i < paths.length; i++) {
+      if (paths[i].matcher(path).find()) {
+        int[] indices = layout.getProjection(i);
+        if (indices == null) {
+          indices = resolve(layout, attributes[i]);
+          layout.setProjection(i, indices);
+        }
+        return indices;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the indices of attributes in a layout
+   *
+   * @param layout the layout of the Pod's attributes
+   * @param names the names of the attributes
+   * @return the indices of the attributes the layout has
+   */
+  private int[] resolve(AttributeLayout layout, String[] names) {
+    int[] indices = new int[names.length];
+    int found = 0;
+    for (String name : names) {
+      int index = layout.indexOf(name);
+      if (index != -1) indices[found++] = index;
+    }
+
+    if (found == indices.length) return indices;
+    int[] trimmed = new int[found];
+    System.arraycopy(indices, 0, trimmed, 0, found);
+    return trimmed;
+  }
+}
@@ -0,0 +1,274 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+
+/**
+ * Remembers which IdP a user last logged in at, so the Guard can send returning users
+ * straight to it rather than through discovery. The Podder sets a long lived cookie naming
+ * the IdP once a login completes, and the Guard adds it to the Engine GPS redirect when
+ * the request doesn't name an IdP itself.
+ *
+ * The cookie's value is the hex of the IdP's entityID and the hex of an HMAC-SHA256 of it,
+ * keyed with idp.remember.secret, separated by a '.'. A cookie that's been tampered with
+ * is ignored, so nobody can steer another user's logins to an IdP of their choosing.
+ *
+ * The IdP is taken from the idp.remember.attribute attribute in the Pod's Bag if the config
+ * names one, otherwise from the Issuer of the SAML Response.
+ */
+public class IdPCookie {
+  /** Appended to cookie.prefix to name the cookie */
+  public static final String COOKIE_SUFFIX = "IDP";
+  /** How long the cookie lasts if the config doesn't say otherwise */
+  private static final int DEFAULT_DAYS = 90;
+  /** The longest entityID that will be remembered */
+  private static final int MAX_ENTITY_ID_LENGTH = 1024;
+  /** Finds the Issuer of a SAML Response */
+  private static final Pattern ISSUER = Pattern.compile("<(?:\\w+:)?Issuer[^>]*>\\s*([^<\\s]+)\\s*</");
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** The name of the cookie */
+  private final String cookieName;
+  /** How long the cookie lasts, in seconds */
+  private final int maxAge;
+  /** The attribute naming the IdP, or null to use the SAML Response */
+  private final String attribute;
+  /** The key for the HMAC */
+  private final SecretKeySpec key;
+
+  /**
+   * Sets up remembering IdPs if the config asks for it
+   *
+   * @param config the Guard's config
+   * @return the IdPCookie or null if idp.remember.secret isn't set
+   */
+  public static IdPCookie create(GuardConfig config) {
+    String secret = config.get("idp.remember.secret");
+    if ((secret == null) || (secret.length() == 0)) return null;
+
+    int days = (config.get("idp.remember.days") != null) ?
+               Integer.parseInt(config.get("idp.remember.days")) : DEFAULT_DAYS;
+    return new IdPCookie(config.get("cookie.prefix") + COOKIE_SUFFIX, days * 86400,
+                         config.get("idp.remember.attribute"), secret);
+  }
+
+  private IdPCookie(String cookieName, int maxAge, String attribute, String secret) {
+    this.cookieName = cookieName;
+    this.maxAge = maxAge;
+    this.attribute = attribute;
+    try {
+      this.key = new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256");
+    }
+    catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * Retrieves the IdP remembered in a request's cookie
+   *
+   * @param request the request
+   * @return the IdP's entityID or null if there isn't a genuine cookie
+   */
+  public String getEntityID(HttpServletRequest request) {
+    Cookie[] cookies = request.getCookies();
+    if (cookies == null) return null;
+
+    for (Cookie cookie : cookies) {
+      if (cookie.getName().equals(cookieName)) {
+        return getEntityID(cookie.getValue());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Retrieves the IdP remembered in a cookie value
+   *
+   * @param value the value of the cookie, may be null
+   * @return the IdP's entityID or null if the value isn't genuine
+   */
+  public String getEntityID(String value) {
+    return verify(value);
+  }
+
+  /**
+   * Creates the cookie remembering the IdP a Pod's attributes came from
+   *
+   * @param pod the Pod that has just been populated
+   * @param domain the domain of the cookie
+   * @param path the path of the cookie
+   * @return the cookie or null if the IdP can't be worked out
+   */
+  public Cookie createCookie(Pod pod, String domain, String path) {
+    String value = createValue(pod);
+    if (value == null) return null;
+
+    Cookie cookie = new Cookie(cookieName, value);
+    cookie.setSecure(true);
+    cookie.setDomain(domain);
+    cookie.setPath(path);
+    cookie.setMaxAge(maxAge);
+    return cookie;
+  }
+
+  /**
+   * Creates the value of the cookie remembering the IdP a Pod's attributes came from
+   *
+   * @param pod the Pod that has just been populated
+   * @return the value or null if the IdP can't be worked out
+   */
+  public String createValue(Pod pod) {
+    String entityID = getEntityID(pod.getBag());
+    if ((entityID == null) || (entityID.length() > MAX_ENTITY_ID_LENGTH)) return null;
+
+    byte[] bytes = toBytes(entityID);
+    return hex(bytes) + "." + hex(mac(bytes));
+  }
+
+  /**
+   * @return the name of the cookie
+   */
+  public String getCookieName() {
+    return cookieName;
+  }
+
+  /**
+   * @return how long the cookie lasts, in seconds
+   */
+  public int getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Works out which IdP a Bag of attributes came from
+   *
+   * @param bag the Bag
+   * @return the IdP's entityID or null if it can't be worked out
+   */
+  protected String getEntityID(Bag bag) {
+    if (bag == null) return null;
+
+    if (attribute != null) {
+      return bag.getAttributeValue(attribute);
+    }
+
+    return getIssuer(bag.getSamlResponse());
+  }
+
+  /**
+   * Extracts the Issuer from a SAML Response, either as XML or base64 encoded XML
+   *
+   * @param samlResponse the SAML Response, may be null
+   * @return the Issuer or null if it can't be found
+   */
+  public static String getIssuer(String samlResponse) {
+    if (samlResponse == null) return null;
+    if (samlResponse.indexOf('<') == -1) {
+      try {
+        samlResponse = new String(Base64.getMimeDecoder().decode(samlResponse), "UTF-8");
+      }
+      catch (Exception e) {
+        return null;
+      }
+    }
+
+    Matcher matcher = ISSUER.matcher(samlResponse);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * Checks a cookie value and extracts the entityID from it
+   *
+   * @param value the cookie value
+   * @return the entityID or null if the value isn't genuine
+   */
+  private String verify(String value) {
+    if (value == null) return null;
+    int dot = value.indexOf('.');
+    if ((dot == -1) || (dot > MAX_ENTITY_ID_LENGTH * 2)) return null;
+
+    byte[] bytes = unhex(value.substring(0, dot));
+    byte[] mac = unhex(value.substring(dot + 1));
+    if ((bytes == null) || (mac == null) || (!MessageDigest.isEqual(mac, mac(bytes)))) {
+      return null;
+    }
+
+    try {
+      return new String(bytes, "UTF-8");
+    }
+    catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  private byte[] mac(byte[] bytes) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(key);
+      return mac.doFinal(bytes);
+    }
+    catch (GeneralSecurityException gse) {
+      throw new IllegalStateException(gse);
+    }
+  }
+
+  private static byte[] toBytes(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >>> 4) & 0x0F];
+      chars[(i * 2) + 1] = HEX[bytes[i] & 0x0F];
+    }
+    return new String(chars);
+  }
+
+  private static byte[] unhex(String hex) {
+    if ((hex.length() % 2) != 0) return null;
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(i * 2), 16);
+      int low = Character.digit(hex.charAt((i * 2) + 1), 16);
+      if ((high == -1) || (low == -1)) return null;
+      bytes[i] = (byte)((high << 4) | low);
+    }
+    return bytes;
+  }
+}
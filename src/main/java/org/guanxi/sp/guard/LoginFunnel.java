@@ -0,0 +1,239 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.guanxi.common.Bag;
+
+/**
+ * Where the time goes in logins, and where they're abandoned. Each Pod carries a LoginTrace
+ * and when the login completes, the time between its stages is added to a latency
+ * histogram for each hop, overall and for the IdP the user logged in at:
+ *
+ * guard    created to redirected, the Guard's own work
+ * engine   redirected to attributes, the Engine, discovery and the IdP
+ * return   attributes to cookie, the user's trip back through the Engine to the Podder
+ * total    created to cookie
+ *
+ * Pods that leave the store before their login completes are counted as abandoned at the
+ * last stage they reached.
+ *
+ * Recording takes no locks. The histograms are atomic counters, and the table of
+ * IdPs is only written the first time an IdP is seen. It's capped at MAX_IDPS, with the
+ * rest counted together.
+ */
+public class LoginFunnel {
+  /** The upper bounds of the latency buckets, in milliseconds */
+  public static final long[] LATENCY_BUCKETS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+  /** The names of the hops */
+  public static final String[] HOP_NAMES = {"guard", "engine", "return", "total"};
+  /** The most IdPs reported individually */
+  public static final int MAX_IDPS = 100;
+  /** Where IdPs beyond MAX_IDPS, or that can't be worked out, are counted */
+  public static final String OTHER_IDP = "(other)";
+
+  /** The stages at the start and end of each hop */
+  private static final int[][] HOPS = {{LoginTrace.CREATED, LoginTrace.REDIRECTED},
+                                       {LoginTrace.REDIRECTED, LoginTrace.ATTRIBUTES},
+                                       {LoginTrace.ATTRIBUTES, LoginTrace.COOKIE},
+                                       {LoginTrace.CREATED, LoginTrace.COOKIE}};
+
+  /** Logins started and completed */
+  private final AtomicLongArray counts = new AtomicLongArray(2);
+  /** Logins abandoned, by the last stage reached */
+  private final AtomicLongArray abandoned = new AtomicLongArray(LoginTrace.STAGE_NAMES.length);
+  /** The latency of each hop for all IdPs */
+  private final Hops hops = new Hops();
+  /** The latency of each hop for each IdP */
+  private final ConcurrentHashMap<String, Hops> idps = new ConcurrentHashMap<String, Hops>();
+  /** The attribute naming the IdP, or null to use the Issuer of the SAML Response */
+  private volatile String idpAttribute = null;
+
+  /**
+   * Sets which attribute names the IdP a Pod's attributes came from
+   *
+   * @param idpAttribute the attribute, or null to use the Issuer of the SAML Response
+   */
+  public void setIdPAttribute(String idpAttribute) {
+    this.idpAttribute = idpAttribute;
+  }
+
+  /**
+   * Records the start of a login
+   *
+   * @param snapshot the new Pod
+   */
+  void started(PodSnapshot snapshot) {
+    counts.incrementAndGet(0);
+  }
+
+  /**
+   * Records that a login has reached a stage, and the latencies if that completes it
+   *
+   * @param snapshot the current version of the Pod
+   * @param stage the stage
+   */
+  void reached(PodSnapshot snapshot, int stage) {
+    LoginTrace trace = snapshot.getLoginTrace();
+    if ((!trace.reach(stage, System.currentTimeMillis())) || (stage != LoginTrace.COOKIE)) {
+      return;
+    }
+
+    counts.incrementAndGet(1);
+    Hops idp = getIdPHops(snapshot.getPod().getBag());
+    for (int hop = 0; hop < HOPS.length; hop++) {
+      long start = trace.get(HOPS[hop][0]);
+      long end = trace.get(HOPS[hop][1]);
+      // Pods created by the AttributeConsumer skip the Guard's stages
+      if ((start != 0) && (end != 0)) {
+        hops.record(hop, end - start);
+        idp.record(hop, end - start);
+      }
+    }
+  }
+
+  /**
+   * Records a Pod leaving the store, which abandons its login if it hadn't completed
+   *
+   * @param snapshot the last version of the Pod
+   */
+  void removed(PodSnapshot snapshot) {
+    LoginTrace trace = snapshot.getLoginTrace();
+    if (!trace.isComplete()) {
+      abandoned.incrementAndGet(trace.getLastStage());
+    }
+  }
+
+  /**
+   * @return the number of logins started
+   */
+  public long getStartedCount() {
+    return counts.get(0);
+  }
+
+  /**
+   * @return the number of logins completed
+   */
+  public long getCompletedCount() {
+    return counts.get(1);
+  }
+
+  /**
+   * @return the number of logins abandoned at each stage
+   */
+  public long[] getAbandonedCounts() {
+    long[] counts = new long[abandoned.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = abandoned.get(i);
+    }
+    return counts;
+  }
+
+  /**
+   * @return the latency of each hop for all IdPs
+   */
+  public Hops getHops() {
+    return hops;
+  }
+
+  /**
+   * @return the latency of each hop for each IdP, sorted by IdP
+   */
+  public Map<String, Hops> getIdPHops() {
+    return new TreeMap<String, Hops>(idps);
+  }
+
+  /**
+   * Finds the histograms for the IdP a Bag came from, adding them if the IdP is new
+   *
+   * @param bag the Bag
+   * @return the IdP's histograms
+   */
+  private Hops getIdPHops(Bag bag) {
+    String idp = null;
+    if (bag != null) {
+      idp = (idpAttribute != null) ? bag.getAttributeValue(idpAttribute) : IdPCookie.getIssuer(bag.getSamlResponse());
+    }
+    if ((idp == null) || ((idps.size() >= MAX_IDPS) && (!idps.containsKey(idp)))) {
+      idp = OTHER_IDP;
+    }
+
+    Hops idpHops = idps.get(idp);
+    if (idpHops == null) {
+      Hops newHops = new Hops();
+      idpHops = idps.putIfAbsent(idp, newHops);
+      if (idpHops == null) {
+        idpHops = newHops;
+      }
+    }
+    return idpHops;
+  }
+
+  /**
+   * A latency histogram for each hop
+   */
+  public static class Hops {
+    /** For each hop, the count in each bucket then the count and total of all latencies */
+    private final AtomicLongArray latencies = new AtomicLongArray(HOPS.length * (LATENCY_BUCKETS.length + 3));
+
+    void record(int hop, long latency) {
+      int base = hop * (LATENCY_BUCKETS.length + 3);
+      int bucket = 0;
+      while ((bucket < LATENCY_BUCKETS.length) && (latency >= LATENCY_BUCKETS[bucket])) {
+        bucket++;
+      }
+      latencies.incrementAndGet(base + bucket);
+      latencies.incrementAndGet(base + LATENCY_BUCKETS.length + 1);
+      latencies.addAndGet(base + LATENCY_BUCKETS.length + 2, latency);
+    }
+
+    /**
+     * @param hop the hop
+     * @return the number of logins in each of the LATENCY_BUCKETS, plus one for slower logins
+     */
+    public long[] getHistogram(int hop) {
+      int base = hop * (LATENCY_BUCKETS.length + 3);
+      long[] histogram = new long[LATENCY_BUCKETS.length + 1];
+      for (int i = 0; i < histogram.length; i++) {
+        histogram[i] = latencies.get(base + i);
+      }
+      return histogram;
+    }
+
+    /**
+     * @param hop the hop
+     * @return the number of logins recorded for the hop
+     */
+    public long getCount(int hop) {
+      return latencies.get((hop * (LATENCY_BUCKETS.length + 3)) + LATENCY_BUCKETS.length + 1);
+    }
+
+    /**
+     * @param hop the hop
+     * @return the mean latency of the hop in milliseconds
+     */
+    public long getMean(int hop) {
+      long count = getCount(hop);
+      long total = latencies.get((hop * (LATENCY_BUCKETS.length + 3)) + LATENCY_BUCKETS.length + 2);
+      return (count > 0) ? total / count : 0;
+    }
+  }
+}
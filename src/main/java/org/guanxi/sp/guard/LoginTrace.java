@@ -0,0 +1,108 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When a Pod reached each stage of its login. A trace is created with the Pod and carried
+ * across its versions, so the stages can be stamped from the Guard filter and its servlets
+ * without any of them knowing about the others. Each stage is stamped once, by whichever
+ * thread gets there first, so a refreshed page doesn't move it.
+ */
+public final class LoginTrace {
+  /** The Guard filter created the Pod */
+  public static final int CREATED = 0;
+  /** The Guard filter sent the user to the Engine GPS */
+  public static final int REDIRECTED = 1;
+  /** The Engine delivered the attributes to the AttributeConsumer */
+  public static final int ATTRIBUTES = 2;
+  /** The Podder issued the Guard cookie, completing the login */
+  public static final int COOKIE = 3;
+  /** The names of the stages, for reporting */
+  public static final String[] STAGE_NAMES = {"created", "redirected", "attributes", "cookie"};
+
+  /** Takes the Engine endpoint without an AtomicInteger per trace */
+  private static final AtomicIntegerFieldUpdater<LoginTrace> ENGINE =
+    AtomicIntegerFieldUpdater.newUpdater(LoginTrace.class, "engine");
+
+  /** When each stage was reached, in milliseconds, or 0 if it hasn't been */
+  private final AtomicLongArray stamps = new AtomicLongArray(STAGE_NAMES.length);
+  /** The EngineSelector endpoint the login was sent to, or -1 if none or it's been settled */
+  private volatile int engine = -1;
+
+  LoginTrace(long created) {
+    stamps.set(CREATED, created);
+  }
+
+  /**
+   * Records that a stage has been reached, unless it already has been
+   *
+   * @param stage the stage
+   * @param time when it was reached, in milliseconds
+   * @return true if this is the first time the stage has been reached
+   */
+  boolean reach(int stage, long time) {
+    return stamps.compareAndSet(stage, 0, time);
+  }
+
+  /**
+   * Records the Engine endpoint the login was sent to
+   *
+   * @param engine the index of the endpoint
+   */
+  void setEngine(int engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Takes the Engine endpoint the login was sent to, so its outcome is only recorded once
+   *
+   * @return the index of the endpoint, or -1 if there isn't one or it's already been taken
+   */
+  int takeEngine() {
+    return ENGINE.getAndSet(this, -1);
+  }
+
+  /**
+   * Retrieves when a stage was reached
+   *
+   * @param stage the stage
+   * @return the time in milliseconds or 0 if the stage hasn't been reached
+   */
+  public long get(int stage) {
+    return stamps.get(stage);
+  }
+
+  /**
+   * @return the furthest stage reached
+   */
+  public int getLastStage() {
+    for (int stage = STAGE_NAMES.length - 1; stage > CREATED; stage--) {
+      if (stamps.get(stage) != 0) return stage;
+    }
+    return CREATED;
+  }
+
+  /**
+   * @return true if the login has completed
+   */
+  public boolean isComplete() {
+    return stamps.get(COOKIE) != 0;
+  }
+}
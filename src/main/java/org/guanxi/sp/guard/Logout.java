@@ -41,7 +41,11 @@ public class Logout extends HttpServlet {
 
 	private Logger logger = Logger.getLogger(Logout.class.getName());
 
+  /** The store holding the Pods for this webapp */
+  protected PodStore podStore = null;
+
   public void init() throws ServletException {
+    podStore = PodStore.getInstance(getServletContext());
   }
 
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -69,16 +73,16 @@ public class Logout extends HttpServlet {
     boolean loggedOut = false;
     Cookie[] cookies = request.getCookies();
 
-    logger.debug("processLogout: attempting to find cookie: " + cookieName);
+    GuardLog.debug(logger, "processLogout: attempting to find cookie: {}", cookieName);
 
     if (cookies != null) {
       for (int c = 0; c < cookies.length; c++) {
         if (cookies[c].getName().equals(cookieName)) {
 
-        	logger.debug("processLogout: found cookie: " + cookieName);
-          Pod pod = (Pod)getServletContext().getAttribute(cookies[c].getValue());
+        	GuardLog.debug(logger, "processLogout: found cookie: {}", cookieName);
+          Pod pod = podStore.get(cookies[c].getValue());
           if (pod != null) {
-        	  logger.debug("processLogout: deactivating pod for session: " + pod.getSessionID());
+        	  GuardLog.debug(logger, "processLogout: deactivating pod for session: {}", pod.getSessionID());
             Guard.deactivatePod(pod);
             loggedOut = true;
             request.setAttribute(getLogoutMessageAttributeName(), getLogoutSuccessMessage());
@@ -0,0 +1,592 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+
+/**
+ * Holds logged in Pods that haven't been used for a while outside the heap, so a Guard
+ * with hundreds of thousands of sessions only has the recently used ones as objects for
+ * the garbage collector to deal with. The PodStore moves Pods here instead of evicting
+ * them when it's over its memory budget, and moves them back when they're used again.
+ *
+ * The index is an open addressing hash table in direct memory, split into SEGMENTS
+ * segments each with its own lock. Session IDs from the SecureSessionIDGenerator are keyed
+ * on all 128 of their random bits, any others on a 128 bit hash, so two sessions are no
+ * more likely to share a key than an ID. Each slot holds the key,
+ * the address of the Pod in the PodSlabs, the Pod's length and the access generation it was
+ * last used in. The Pods are encoded with PodCodec, after the time they were created, the
+ * generation they were last used in and the partition they were in. As keys are only
+ * checked by their bits, a Pod read back is only returned if its session ID is the one
+ * asked for.
+ *
+ * The index tells the PodStore which partition each Pod it removes or expires was in, so
+ * the partitions' figures can count the Pods they have out of the heap.
+ */
+public class OffHeapPodIndex implements Iterable<Pod> {
+  /** Number of segments. Must be a power of two */
+  private static final int SEGMENTS = 16;
+  /** Slots each segment starts with. Must be a power of two */
+  private static final int INITIAL_SLOTS = 1024;
+  /** Bytes in a slot: two longs of key, the address, then length and access generation */
+  private static final int SLOT_SIZE = 32;
+  /** Percentage of a segment's slots that can be used before it grows */
+  private static final int MAX_LOAD = 70;
+  /** Bytes in a record before the partition name: created, access generation and the name's length */
+  private static final int HEADER_SIZE = 14;
+  /** The base64url alphabet of SecureSessionIDGenerator, by character */
+  private static final int[] BASE64URL = new int[128];
+  static {
+    Arrays.fill(BASE64URL, -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64URL[alphabet.charAt(i)] = i;
+    }
+  }
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final PodSlabs slabs;
+  /** The servlet context the Pods are read back into */
+  private final ServletContext context;
+  /** Pods moved out of the heap */
+  private final AtomicLong stored = new AtomicLong();
+  /** Pods moved back into the heap */
+  private final AtomicLong loaded = new AtomicLong();
+
+  /**
+   * Sets up the index. The slabs are only taken as they're needed.
+   *
+   * @param capacity the most memory the Pods can use, in bytes
+   * @param mappedFile the file to map the memory from or null to use direct memory
+   * @param context the servlet context of the webapp the Pods belong to
+   * @throws IOException if the file can't be opened
+   */
+  public OffHeapPodIndex(long capacity, File mappedFile, ServletContext context) throws IOException {
+    slabs = new PodSlabs(capacity, mappedFile);
+    this.context = context;
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Moves a Pod out of the heap
+   *
+   * @param pod the Pod
+   * @param created when the Pod was first published, in milliseconds
+   * @param accessGeneration the access generation the Pod was last used in
+   * @param partition the name of the partition the Pod was in, or null
+   * @return true if the Pod was stored, false if there isn't room for it or a Pod is
+   * already held for its session
+   */
+  public boolean put(Pod pod, long created, int accessGeneration, String partition) {
+    byte[] record;
+    try {
+      byte[] name = (partition != null) ? partition.getBytes("UTF-8") : new byte[0];
+      if (name.length > 0xFFFF) {
+        return false;
+      }
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(PodSizeEstimator.estimate(pod) / 2);
+      DataOutputStream out = new DataOutputStream(buffer);
+      out.writeLong(created);
+      out.writeInt(accessGeneration);
+      out.writeShort(name.length);
+      out.write(name);
+      PodCodec.write(pod, out);
+      record = buffer.toByteArray();
+    }
+    catch (IOException ioe) {
+      // Only spilled parameters that can't be read back get here
+      return false;
+    }
+
+    long address = slabs.allocate(record.length);
+    if (address == -1) {
+      return false;
+    }
+    slabs.write(address, record);
+
+    long[] key = key(pod.getSessionID());
+    if (!segmentFor(key).put(key[0], key[1], address, record.length, accessGeneration)) {
+      slabs.free(address, record.length);
+      return false;
+    }
+    stored.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Reads a Pod back without removing it
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the Pod or null if there isn't one for the session
+   */
+  public Entry get(String sessionID) {
+    long[] key = key(sessionID);
+    byte[] record = segmentFor(key).read(key[0], key[1]);
+    if (record == null) {
+      return null;
+    }
+
+    Entry entry = decode(record);
+    return ((entry != null) && (sessionID.equals(entry.pod.getSessionID()))) ? entry : null;
+  }
+
+  /**
+   * Removes a Pod
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the Entry that was removed, without its Pod, or null if there wasn't one for the session
+   */
+  public Entry remove(String sessionID) {
+    long[] key = key(sessionID);
+    return segmentFor(key).remove(key[0], key[1]);
+  }
+
+  /**
+   * Records that a Pod read back with get() is in the heap again and removes it
+   *
+   * @param sessionID the session ID of the Pod
+   * @return true if the Pod was still here, false if it was removed in the meantime
+   */
+  public boolean loaded(String sessionID) {
+    if (remove(sessionID) != null) {
+      loaded.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes the Pods that haven't been used for too long
+   *
+   * @param generation the current access generation
+   * @param idleGenerations the number of whole generations a Pod can go unused
+   * @return the Entries that were removed, without their Pods
+   */
+  public List<Entry> expire(int generation, int idleGenerations) {
+    List<Entry> expired = new ArrayList<Entry>();
+    for (Segment segment : segments) {
+      segment.expire(generation, idleGenerations, expired);
+    }
+    return expired;
+  }
+
+  /**
+   * Reads all the Pods back, a segment at a time, e.g. to drain them to another node. Pods
+   * added or removed in the meantime may or may not be included.
+   *
+   * @return the Pods
+   */
+  public Iterator<Pod> iterator() {
+    return new Iterator<Pod>() {
+      private int segment = 0;
+      private Iterator<byte[]> records = Collections.<byte[]>emptyList().iterator();
+      private Pod next = advance();
+
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      public Pod next() {
+        if (next == null) throw new NoSuchElementException();
+        Pod pod = next;
+        next = advance();
+        return pod;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      private Pod advance() {
+        while (true) {
+          while (records.hasNext()) {
+            Entry entry = decode(records.next());
+            if (entry != null) return entry.pod;
+          }
+          if (segment == SEGMENTS) return null;
+          records = segments[segment++].readAll().iterator();
+        }
+      }
+    };
+  }
+
+  /**
+   * @return the number of Pods held
+   */
+  public int getSize() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.getCount();
+    }
+    return size;
+  }
+
+  /**
+   * @return the bytes of memory in use by the Pods, including what's lost to rounding up to chunks
+   */
+  public long getUsed() {
+    return slabs.getUsed();
+  }
+
+  /**
+   * @return the most memory the Pods can use
+   */
+  public long getCapacity() {
+    return slabs.getCapacity();
+  }
+
+  /**
+   * @return the number of Pods moved out of the heap
+   */
+  public long getStoredCount() {
+    return stored.get();
+  }
+
+  /**
+   * @return the number of Pods moved back into the heap
+   */
+  public long getLoadedCount() {
+    return loaded.get();
+  }
+
+  /**
+   * Lets go of the memory. The index can't be used afterwards.
+   */
+  public void close() {
+    slabs.close();
+  }
+
+  private Segment segmentFor(long[] key) {
+    return segments[(int)(key[1] >>> 60) & (SEGMENTS - 1)];
+  }
+
+  private Entry decode(byte[] record) {
+    try {
+      ByteBuffer header = ByteBuffer.wrap(record);
+      long created = header.getLong();
+      int accessGeneration = header.getInt();
+      int nameLength = header.getShort() & 0xFFFF;
+      String partition = (nameLength > 0) ? new String(record, HEADER_SIZE, nameLength, "UTF-8") : null;
+      Pod pod = PodCodec.decode(Arrays.copyOfRange(record, HEADER_SIZE + nameLength, record.length), context);
+      return new Entry(pod, created, accessGeneration, partition);
+    }
+    catch (GuanxiException ge) {
+      return null;
+    }
+    catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * Reads the start of a record, up to the Pod
+   *
+   * @param address the address of the record
+   * @param length the length of the record
+   * @return the Entry, without its Pod
+   */
+  private Entry readHeader(long address, int length) {
+    ByteBuffer header = ByteBuffer.wrap(slabs.read(address, HEADER_SIZE));
+    long created = header.getLong();
+    int accessGeneration = header.getInt();
+    int nameLength = Math.min(header.getShort() & 0xFFFF, length - HEADER_SIZE);
+    try {
+      String partition = (nameLength > 0) ? new String(slabs.read(address + HEADER_SIZE, nameLength), "UTF-8") : null;
+      return new Entry(null, created, accessGeneration, partition);
+    }
+    catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * Works out the key for a session ID. A SecureSessionIDGenerator ID ends in 16 random
+   * bytes as 22 base64url characters, which are decoded to the 128 bits. Anything else,
+   * including IDs whose last character carries more than the 2 bits the bytes leave it,
+   * is hashed.
+   *
+   * @param sessionID the session ID
+   * @return the two longs of the key, never both 0 as that marks an empty slot
+   */
+  static long[] key(String sessionID) {
+    long[] key = new long[2];
+    if (!decode(sessionID, sessionID.length() - 22, key)) {
+      // 64 bit FNV-1a twice, with different offsets, then mixed
+      long first = 0xcbf29ce484222325L;
+      long second = 0x84222325cbf29ce4L;
+      for (int i = 0; i < sessionID.length(); i++) {
+        first = (first ^ sessionID.charAt(i)) * 0x100000001b3L;
+        second = (second ^ sessionID.charAt(i)) * 0x100000001b3L;
+      }
+      key[0] = mix(first);
+      key[1] = mix(second ^ first);
+    }
+    if ((key[0] == 0) && (key[1] == 0)) {
+      key[1] = 1;
+    }
+    return key;
+  }
+
+  private static boolean decode(String sessionID, int start, long[] key) {
+    if (start < 0) return false;
+
+    // The first 21 characters make 126 bits, the high 2 bits of the last make 128
+    long high = 0;
+    long low = 0;
+    for (int i = start; i < start + 22; i++) {
+      char c = sessionID.charAt(i);
+      int value = (c < 128) ? BASE64URL[c] : -1;
+      if (value == -1) return false;
+      int bits = 6;
+      if (i == start + 21) {
+        if ((value & 0x0F) != 0) return false;
+        value >>>= 4;
+        bits = 2;
+      }
+      high = (high << bits) | (low >>> (64 - bits));
+      low = (low << bits) | value;
+    }
+    key[0] = high;
+    key[1] = low;
+    return true;
+  }
+
+  private static long mix(long hash) {
+    hash ^= (hash >>> 33);
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= (hash >>> 33);
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= (hash >>> 33);
+    return hash;
+  }
+
+  /**
+   * A Pod read back from the index, or what's known about one that was removed
+   */
+  public static class Entry {
+    private final Pod pod;
+    private final long created;
+    private final int accessGeneration;
+    private final String partition;
+
+    Entry(Pod pod, long created, int accessGeneration, String partition) {
+      this.pod = pod;
+      this.created = created;
+      this.accessGeneration = accessGeneration;
+      this.partition = partition;
+    }
+
+    /**
+     * @return the Pod, or null if the Entry was removed
+     */
+    public Pod getPod() {
+      return pod;
+    }
+
+    /**
+     * @return the name of the partition the Pod was in when it left the heap, or null
+     */
+    public String getPartition() {
+      return partition;
+    }
+
+    /**
+     * @return when the Pod was first published, in milliseconds
+     */
+    public long getCreated() {
+      return created;
+    }
+
+    /**
+     * @return the access generation the Pod was last used in
+     */
+    public int getAccessGeneration() {
+      return accessGeneration;
+    }
+  }
+
+  /**
+   * One lock's worth of the hash table, with linear probing and backward shift deletion
+   * so there are no tombstones.
+   */
+  private class Segment {
+    private ByteBuffer table = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+    private int mask = INITIAL_SLOTS - 1;
+    private int count = 0;
+
+    synchronized boolean put(long key1, long key2, long address, int length, int accessGeneration) {
+      if (find(key1, key2) != -1) {
+        // The Pod is on its way back into the heap, so it's in use
+        return false;
+      }
+      if ((count + 1) * 100 > (mask + 1) * MAX_LOAD) {
+        grow();
+      }
+      int slot = home(key1);
+      while (!isEmpty(slot)) {
+        slot = (slot + 1) & mask;
+      }
+      count++;
+      set(table, slot, key1, key2, address, (((long)length) << 32) | (accessGeneration & 0xFFFFFFFFL));
+      return true;
+    }
+
+    synchronized byte[] read(long key1, long key2) {
+      int slot = find(key1, key2);
+      return (slot != -1) ? slabs.read(address(slot), length(slot)) : null;
+    }
+
+    synchronized Entry remove(long key1, long key2) {
+      int slot = find(key1, key2);
+      if (slot == -1) {
+        return null;
+      }
+      Entry entry = readHeader(address(slot), length(slot));
+      slabs.free(address(slot), length(slot));
+      delete(slot);
+      return entry;
+    }
+
+    synchronized void expire(int generation, int idleGenerations, List<Entry> expired) {
+      int slot = 0;
+      while (slot <= mask) {
+        if ((!isEmpty(slot)) && (generation - (int)table.getLong((slot * SLOT_SIZE) + 24) > idleGenerations)) {
+          expired.add(readHeader(address(slot), length(slot)));
+          slabs.free(address(slot), length(slot));
+          // A Pod may be shifted into this slot, so look at it again
+          delete(slot);
+        }
+        else {
+          slot++;
+        }
+      }
+    }
+
+    synchronized List<byte[]> readAll() {
+      List<byte[]> records = new ArrayList<byte[]>(count);
+      for (int slot = 0; slot <= mask; slot++) {
+        if (!isEmpty(slot)) {
+          records.add(slabs.read(address(slot), length(slot)));
+        }
+      }
+      return records;
+    }
+
+    synchronized int getCount() {
+      return count;
+    }
+
+    private int find(long key1, long key2) {
+      int slot = home(key1);
+      while (!isEmpty(slot)) {
+        int offset = slot * SLOT_SIZE;
+        if ((table.getLong(offset) == key1) && (table.getLong(offset + 8) == key2)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    private void delete(int slot) {
+      int hole = slot;
+      int next = slot;
+      while (true) {
+        next = (next + 1) & mask;
+        if (isEmpty(next)) break;
+        int home = home(table.getLong(next * SLOT_SIZE));
+        // Leave the slot alone if its home is cyclically after the hole and at or before it
+        boolean between = (hole <= next) ? ((hole < home) && (home <= next)) : ((hole < home) || (home <= next));
+        if (between) continue;
+        copy(next, hole);
+        hole = next;
+      }
+      set(table, hole, 0, 0, 0, 0);
+      count--;
+    }
+
+    private void grow() {
+      ByteBuffer old = table;
+      int oldSlots = mask + 1;
+      table = ByteBuffer.allocateDirect(oldSlots * 2 * SLOT_SIZE);
+      mask = (oldSlots * 2) - 1;
+      for (int slot = 0; slot < oldSlots; slot++) {
+        int offset = slot * SLOT_SIZE;
+        long key1 = old.getLong(offset);
+        long key2 = old.getLong(offset + 8);
+        if ((key1 == 0) && (key2 == 0)) continue;
+        int target = home(key1);
+        while (!isEmpty(target)) {
+          target = (target + 1) & mask;
+        }
+        set(table, target, key1, key2, old.getLong(offset + 16), old.getLong(offset + 24));
+      }
+    }
+
+    private int home(long key1) {
+      return (int)(key1 ^ (key1 >>> 32)) & mask;
+    }
+
+    private boolean isEmpty(int slot) {
+      int offset = slot * SLOT_SIZE;
+      return (table.getLong(offset) == 0) && (table.getLong(offset + 8) == 0);
+    }
+
+    private long address(int slot) {
+      return table.getLong((slot * SLOT_SIZE) + 16);
+    }
+
+    private int length(int slot) {
+      return (int)(table.getLong((slot * SLOT_SIZE) + 24) >>> 32);
+    }
+
+    private void copy(int from, int to) {
+      int source = from * SLOT_SIZE;
+      set(table, to, table.getLong(source), table.getLong(source + 8),
+          table.getLong(source + 16), table.getLong(source + 24));
+    }
+
+    private void set(ByteBuffer table, int slot, long key1, long key2, long address, long meta) {
+      int offset = slot * SLOT_SIZE;
+      table.putLong(offset, key1);
+      table.putLong(offset + 8, key2);
+      table.putLong(offset + 16, address);
+      table.putLong(offset + 24, meta);
+    }
+  }
+}
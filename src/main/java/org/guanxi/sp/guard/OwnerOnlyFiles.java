@@ -0,0 +1,109 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.guard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.EnumSet;
+
+/**
+ * Creates files that only the Guard's own user can read and write, for the Pods and form
+ * submissions the Guard keeps outside the heap. The permissions are set as the file is
+ * created where the file system has POSIX permissions, otherwise the file's ACL is cut
+ * down to its owner straight afterwards, before anything is written to it.
+ */
+class OwnerOnlyFiles {
+  private OwnerOnlyFiles() {
+  }
+
+  /**
+   * Creates an empty temporary file
+   *
+   * @param directory where to create the file, or null for the default temporary directory
+   * @param prefix the start of the file's name
+   * @param suffix the end of the file's name
+   * @return the file
+   * @throws IOException if the file can't be created
+   */
+  static File createTempFile(File directory, String prefix, String suffix) throws IOException {
+    Path dir = (directory != null) ? directory.toPath() : new File(System.getProperty("java.io.tmpdir")).toPath();
+    if (isPosix(dir)) {
+      return Files.createTempFile(dir, prefix, suffix, ownerOnly()).toFile();
+    }
+    return restrict(Files.createTempFile(dir, prefix, suffix)).toFile();
+  }
+
+  /**
+   * Creates an empty file, replacing any file already there so its permissions aren't kept
+   *
+   * @param file the file
+   * @throws IOException if the file can't be created
+   */
+  static void create(File file) throws IOException {
+    Path path = file.toPath();
+    Files.deleteIfExists(path);
+    Path dir = path.toAbsolutePath().getParent();
+    if (isPosix(dir)) {
+      Files.createFile(path, ownerOnly());
+    }
+    else {
+      restrict(Files.createFile(path));
+    }
+  }
+
+  private static boolean isPosix(Path dir) throws IOException {
+    return Files.getFileStore(dir).supportsFileAttributeView("posix");
+  }
+
+  private static FileAttribute<?> ownerOnly() {
+    return PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+  }
+
+  /**
+   * Leaves the owner as the only entry in a new file's ACL, as on Windows. The file is
+   * deleted if that can't be done.
+   *
+   * @param file the file
+   * @return the file
+   * @throws IOException if the ACL can't be set
+   */
+  private static Path restrict(Path file) throws IOException {
+    AclFileAttributeView view = Files.getFileAttributeView(file, AclFileAttributeView.class);
+    if (view != null) {
+      try {
+        AclEntry entry = AclEntry.newBuilder().setType(AclEntryType.ALLOW).setPrincipal(view.getOwner())
+                                 .setPermissions(EnumSet.allOf(AclEntryPermission.class)).build();
+        view.setAcl(Collections.singletonList(entry));
+      }
+      catch (IOException ioe) {
+        Files.delete(file);
+        throw ioe;
+      }
+    }
+    return file;
+  }
+}
@@ -0,0 +1,310 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+
+/**
+ * Binary encoding of a Pod, for anything that needs to get a Pod out of the heap and back,
+ * such as persisting, replicating or spilling Pods. A Pod isn't Serializable in any useful
+ * sense, as it holds the webapp's servlet context, so the context isn't written and is
+ * supplied again when the Pod is read.
+ *
+ * Version 1 layout. Strings are an int byte count followed by that many bytes of UTF-8,
+ * with a null string written as a count of -1 and no bytes:
+ *
+ * <pre>
+ * magic          'G' 'X' 'P'
+ * version        1 byte
+ * sessionID      string
+ * requestScheme  string
+ * hostName       string
+ * requestURL     string
+ * param count    int, -1 if there are no parameters
+ * params         string name, value type, values, param count times
+ *                value type PARAM_ARRAY is an int value count then the strings
+ *                value type PARAM_STRING is a single string
+ * bag length     int, -1 if there is no Bag
+ * bag            the Bag as encoded by BagCodec
+ * </pre>
+ *
+ * Parameters that have been spilled to disk are read back and written in full.
+ *
+ * The Bag reuses BagCodec's layout, which carries its own version, so the two can evolve
+ * separately. That covers the whole Bag: its session ID, SAML Response, unsolicited mode
+ * and attributes.
+ */
+public class PodCodec {
+  /** The version of the layout written by write() */
+  public static final int VERSION = 1;
+
+  /** Marks the start of a Pod */
+  private static final byte[] MAGIC = {'G', 'X', 'P'};
+  /** A parameter whose value is a String[], as the servlet container provides them */
+  private static final int PARAM_ARRAY = 0;
+  /** A parameter whose value is a single String */
+  private static final int PARAM_STRING = 1;
+
+  /**
+   * Encodes a Pod
+   *
+   * @param pod the Pod to encode
+   * @return the encoded Pod
+   */
+  public static byte[] encode(Pod pod) {
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(PodSizeEstimator.estimate(pod) / 2);
+      write(pod, new DataOutputStream(buffer));
+      return buffer.toByteArray();
+    }
+    catch (IOException ioe) {
+      // Writing to memory can't fail
+      throw new IllegalStateException(ioe);
+    }
+  }
+
+  /**
+   * Decodes a Pod
+   *
+   * @param encoded the encoded Pod
+   * @param context the servlet context of the webapp the Pod belongs to
+   * @return the decoded Pod
+   * @throws GuanxiException if the bytes aren't a Pod this codec understands
+   */
+  public static Pod decode(byte[] encoded, ServletContext context) throws GuanxiException {
+    try {
+      return read(new DataInputStream(new ByteArrayInputStream(encoded)), context);
+    }
+    catch (IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Writes a Pod, without its servlet context
+   *
+   * @param pod the Pod to write
+   * @param out where to write the Pod
+   * @throws IOException if the Pod can't be written
+   */
+  public static void write(Pod pod, DataOutput out) throws IOException {
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    writeString(out, pod.getSessionID());
+    writeString(out, pod.getRequestScheme());
+    writeString(out, pod.getHostName());
+    writeString(out, pod.getRequestURL());
+
+    Map<?, ?> parameters = pod.getRequestParameters();
+    if (parameters instanceof SpilledParameters) {
+      parameters = ((SpilledParameters)parameters).load();
+    }
+    writeParameters(parameters, out);
+
+    if (pod.getBag() == null) {
+      out.writeInt(-1);
+    }
+    else {
+      byte[] bag = BagCodec.encode(pod.getBag());
+      out.writeInt(bag.length);
+      out.write(bag);
+    }
+  }
+
+  /**
+   * Reads a Pod
+   *
+   * @param in where to read the Pod from
+   * @param context the servlet context of the webapp the Pod belongs to
+   * @return the Pod
+   * @throws IOException if the Pod can't be read or isn't a Pod this codec understands
+   */
+  public static Pod read(DataInput in, ServletContext context) throws IOException {
+    for (byte magic : MAGIC) {
+      if (in.readByte() != magic) {
+        throw new IOException("Not an encoded Pod");
+      }
+    }
+    int version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported Pod version: " + version);
+    }
+
+    Pod pod = new Pod();
+    pod.setContext(context);
+    pod.setSessionID(readString(in));
+    pod.setRequestScheme(readString(in));
+    pod.setHostName(readString(in));
+    pod.setRequestURL(readString(in));
+
+    pod.setRequestParameters(readParameters(in));
+
+    int bagLength = in.readInt();
+    if (bagLength >= 0) {
+      if (bagLength > BagCodec.MAX_PAYLOAD_SIZE) {
+        throw new IOException("Bad Bag length in encoded Pod: " + bagLength);
+      }
+      byte[] bag = new byte[bagLength];
+      in.readFully(bag);
+      try {
+        pod.setBag(BagCodec.decode(bag));
+      }
+      catch (GuanxiException ge) {
+        throw new IOException(ge.getMessage());
+      }
+    }
+
+    return pod;
+  }
+
+  /**
+   * Writes a set of request parameters
+   *
+   * @param parameters the parameters, as name to String[] of values, may be null
+   * @param out where to write the parameters
+   * @throws IOException if the parameters can't be written
+   */
+  static void writeParameters(Map<?, ?> parameters, DataOutput out) throws IOException {
+    if (parameters == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    out.writeInt(parameters.size());
+    Iterator<?> entries = parameters.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>)entries.next();
+      writeString(out, (String)entry.getKey());
+      if (entry.getValue() instanceof String[]) {
+        String[] values = (String[])entry.getValue();
+        out.writeByte(PARAM_ARRAY);
+        out.writeInt(values.length);
+        for (String value : values) {
+          writeString(out, value);
+        }
+      }
+      else {
+        out.writeByte(PARAM_STRING);
+        writeString(out, (entry.getValue() != null) ? entry.getValue().toString() : null);
+      }
+    }
+  }
+
+  /**
+   * Reads a set of request parameters written by writeParameters()
+   *
+   * @param in where to read the parameters from
+   * @return the parameters, may be null
+   * @throws IOException if the parameters can't be read
+   */
+  static Map<Object, Object> readParameters(DataInput in) throws IOException {
+    int parameterCount = in.readInt();
+    if (parameterCount < 0) {
+      return null;
+    }
+
+    Map<Object, Object> parameters = new HashMap<Object, Object>();
+    for (int i = 0; i < parameterCount; i++) {
+      String name = readString(in);
+      int type = in.readByte();
+      if (type == PARAM_ARRAY) {
+        String[] values = new String[readLength(in)];
+        for (int j = 0; j < values.length; j++) {
+          values[j] = readString(in);
+        }
+        parameters.put(name, values);
+      }
+      else if (type == PARAM_STRING) {
+        parameters.put(name, readString(in));
+      }
+      else {
+        throw new IOException("Bad parameter type in encoded Pod: " + type);
+      }
+    }
+    return parameters;
+  }
+
+  /**
+   * Writes a string as its UTF-8 byte count followed by the bytes. Unlike
+   * DataOutput.writeUTF() there's no 64K limit, as SAML responses can be bigger.
+   *
+   * @param out where to write the string
+   * @param value the string, may be null
+   * @throws IOException if the string can't be written
+   */
+  private static void writeString(DataOutput out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by writeString()
+   *
+   * @param in where to read the string from
+   * @return the string, may be null
+   * @throws IOException if the string can't be read
+   */
+  private static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    if ((length < 0) || (length > BagCodec.MAX_PAYLOAD_SIZE)) {
+      throw new IOException("Bad string length in encoded Pod: " + length);
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * Reads a count of items, which can't be negative
+   *
+   * @param in where to read the count from
+   * @return the count
+   * @throws IOException if the count can't be read or is out of range
+   */
+  private static int readLength(DataInput in) throws IOException {
+    int length = in.readInt();
+    if ((length < 0) || (length > BagCodec.MAX_PAYLOAD_SIZE)) {
+      throw new IOException("Bad count in encoded Pod: " + length);
+    }
+    return length;
+  }
+}
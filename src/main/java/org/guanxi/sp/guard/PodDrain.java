@@ -0,0 +1,165 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.sp.guard.cluster.PodExporter;
+
+/**
+ * Admin service that drains the Guard's Pods to another node before this one is taken
+ * down for maintenance. POST the URL of the other node's PodImport service as target,
+ * with the migration secret:
+ *
+ * curl -d target=https://node2/protectedapp/guard.guanxiGuardImport -d secret=... http://localhost/protectedapp/guard.guanxiGuardDrain
+ *
+ * Both nodes need the same migration.secret in their Guard config. The Pods are as good as
+ * the users' logins, so they only go over https to one of the PodImport URLs listed in
+ * migration.peers, and only clients whose address matches monitor.allowed.addresses, as for
+ * the PodMonitor, and who know the secret can start a drain. Once the other node has taken
+ * the Pods they're removed here. The report is plain text, one name=value per line,
+ * followed by the other node's report.
+ */
+@SuppressWarnings("serial")
+public class PodDrain extends HttpServlet {
+  private static final Logger logger = Logger.getLogger(PodDrain.class.getName());
+
+  /** Addresses allowed to drain the Pods if the config doesn't say otherwise */
+  private static final String DEFAULT_ALLOWED_ADDRESSES = "127\\.0\\.0\\.1|0:0:0:0:0:0:0:1|::1";
+  /** Kilobytes of Pods in each chunk if the config doesn't say otherwise */
+  private static final int DEFAULT_CHUNK_KB = 256;
+  /** Connect and read timeout if the config doesn't say otherwise */
+  private static final int DEFAULT_TIMEOUT_MS = 30000;
+
+  /** Sends the Pods or null if there's no migration.secret */
+  private PodExporter exporter = null;
+  /** Clients allowed to drain the Pods */
+  private Pattern allowedAddresses = null;
+  /** The secret a drain request must carry */
+  private byte[] secret = null;
+  /** The PodImport services the Pods can be sent to */
+  private final Set<String> peers = new HashSet<String>();
+
+  public void init() throws ServletException {
+    GuardConfig config = (GuardConfig)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CONFIG);
+
+    if (config == null)
+      throw new ServletException("PodDrain can't get config");
+
+    allowedAddresses = Pattern.compile((config.get("monitor.allowed.addresses") != null) ?
+                                       config.get("monitor.allowed.addresses") : DEFAULT_ALLOWED_ADDRESSES);
+
+    if (config.get("migration.peers") != null) {
+      for (String peer : config.get("migration.peers").split(",")) {
+        if (peer.trim().startsWith("https://")) {
+          peers.add(peer.trim());
+        }
+        else if (peer.trim().length() > 0) {
+          logger.error("Ignoring migration peer " + peer.trim() + ", Pods are only sent over https");
+        }
+      }
+    }
+
+    if (config.get("migration.secret") != null) {
+      secret = getBytes(config.get("migration.secret"));
+      int chunkKB = (config.get("migration.chunk.kb") != null) ?
+                    Integer.parseInt(config.get("migration.chunk.kb")) : DEFAULT_CHUNK_KB;
+      int timeout = (config.get("migration.timeout.ms") != null) ?
+                    Integer.parseInt(config.get("migration.timeout.ms")) : DEFAULT_TIMEOUT_MS;
+      exporter = new PodExporter(PodStore.getInstance(getServletContext()), config.get("migration.secret"),
+                                 chunkKB * 1024, timeout);
+    }
+  }
+
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    process(request, response);
+  }
+
+  /**
+   * Sends the Pods to the target node and reports on how it went
+   *
+   * @param request Standard HttpServletRequest
+   * @param response Standard HttpServletResponse
+   * @throws ServletException if an error occurs
+   * @throws IOException if an error occurs
+   */
+  public void process(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    if (!allowedAddresses.matcher(request.getRemoteAddr()).matches()) {
+      logger.warn("Refused Pod drain to " + request.getRemoteAddr());
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    if (exporter == null) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "migration.secret isn't set");
+      return;
+    }
+
+    String requestSecret = request.getParameter("secret");
+    if ((requestSecret == null) || (!MessageDigest.isEqual(getBytes(requestSecret), secret))) {
+      logger.warn("Refused Pod drain from " + request.getRemoteAddr() + " without the migration secret");
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    String target = request.getParameter("target");
+    if ((target == null) || (!peers.contains(target))) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "target must be one of the https URLs in migration.peers");
+      return;
+    }
+
+    PodExporter.Result result;
+    try {
+      result = exporter.export(target);
+    }
+    catch (GuanxiException ge) {
+      logger.error("Pod drain to " + target + " failed", ge);
+      response.sendError(HttpServletResponse.SC_BAD_GATEWAY, ge.getMessage());
+      return;
+    }
+
+    response.setContentType("text/plain");
+    PrintWriter out = response.getWriter();
+    out.println("exported=" + result.getExportedCount());
+    out.println("removed=" + result.getRemovedCount());
+    out.print(result.getResponse());
+    out.close();
+  }
+
+  private static byte[] getBytes(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(uee);
+    }
+  }
+}
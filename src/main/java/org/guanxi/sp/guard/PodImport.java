@@ -0,0 +1,105 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.sp.guard.cluster.PodImporter;
+
+/**
+ * Receives the Pods drained from another node by its PodDrain service. The stream is
+ * authenticated with migration.secret, which must be the same on both nodes, and the
+ * service refuses everything if it isn't set. Streams older than
+ * migration.max.age.seconds are refused so a captured stream can't be replayed later.
+ * The report is plain text, one name=value per line.
+ */
+@SuppressWarnings("serial")
+public class PodImport extends HttpServlet {
+  private static final Logger logger = Logger.getLogger(PodImport.class.getName());
+
+  /** How old a stream can be if the config doesn't say otherwise */
+  private static final int DEFAULT_MAX_AGE_SECONDS = 300;
+
+  /** Publishes the Pods or null if there's no migration.secret */
+  private PodImporter importer = null;
+
+  public void init() throws ServletException {
+    GuardConfig config = (GuardConfig)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CONFIG);
+
+    if (config == null)
+      throw new ServletException("PodImport can't get config");
+
+    if (config.get("migration.secret") != null) {
+      int maxAge = (config.get("migration.max.age.seconds") != null) ?
+                   Integer.parseInt(config.get("migration.max.age.seconds")) : DEFAULT_MAX_AGE_SECONDS;
+      int threads = (config.get("migration.import.threads") != null) ?
+                    Integer.parseInt(config.get("migration.import.threads")) : Runtime.getRuntime().availableProcessors();
+      importer = new PodImporter(PodStore.getInstance(getServletContext()), getServletContext(),
+                                 config.get("migration.secret"), maxAge * 1000L, threads);
+    }
+  }
+
+  public void destroy() {
+    if (importer != null) {
+      importer.shutdown();
+    }
+  }
+
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    process(request, response);
+  }
+
+  /**
+   * Publishes the Pods in the request and reports on how it went
+   *
+   * @param request Standard HttpServletRequest
+   * @param response Standard HttpServletResponse
+   * @throws ServletException if an error occurs
+   * @throws IOException if an error occurs
+   */
+  public void process(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    if (importer == null) {
+      logger.warn("Refused Pod import from " + request.getRemoteAddr() + ", migration.secret isn't set");
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    PodImporter.Result result;
+    try {
+      result = importer.importPods(request.getInputStream());
+    }
+    catch (GuanxiException ge) {
+      logger.error("Pod import from " + request.getRemoteAddr() + " failed", ge);
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, ge.getMessage());
+      return;
+    }
+
+    response.setContentType("text/plain");
+    PrintWriter out = response.getWriter();
+    out.println("imported=" + result.getImportedCount());
+    out.println("duplicates=" + result.getDuplicateCount());
+    out.close();
+  }
+}
@@ -0,0 +1,261 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.guanxi.sp.guard.cluster.InvalidationBus;
+
+/**
+ * Admin service reporting on the Pods the Guard is holding. The figures come from the
+ * PodStore's statistics, which are kept up to date as Pods change, so a report costs the
+ * request path nothing. The report is plain text, one name=value per line:
+ *
+ * http://localhost/protectedapp/guard.guanxiGuardMonitor
+ *
+ * Adding a pod parameter reports on that one Pod instead, including its estimated size:
+ *
+ * http://localhost/protectedapp/guard.guanxiGuardMonitor?pod=SESSION_ID
+ *
+ * Only clients whose address matches the monitor.allowed.addresses regex in the Guard
+ * config can get a report. By default that's the local host.
+ */
+@SuppressWarnings("serial")
+public class PodMonitor extends HttpServlet {
+  private static final Logger logger = Logger.getLogger(PodMonitor.class.getName());
+
+  /** Addresses allowed to see the report if the config doesn't say otherwise */
+  private static final String DEFAULT_ALLOWED_ADDRESSES = "127\\.0\\.0\\.1|0:0:0:0:0:0:0:1|::1";
+  /** Number of hosts to report on if the config doesn't say otherwise */
+  private static final int DEFAULT_TOP_HOSTS = 10;
+
+  /** The store holding the Pods for this webapp */
+  private PodStore podStore = null;
+  /** Clients allowed to see the report */
+  private Pattern allowedAddresses = null;
+  /** Number of hosts to report on */
+  private int topHosts;
+
+  public void init() throws ServletException {
+    GuardConfig config = (GuardConfig)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CONFIG);
+
+    if (config == null)
+      throw new ServletException("PodMonitor can't get config");
+
+    podStore = PodStore.getInstance(getServletContext());
+
+    allowedAddresses = Pattern.compile((config.get("monitor.allowed.addresses") != null) ?
+                                       config.get("monitor.allowed.addresses") : DEFAULT_ALLOWED_ADDRESSES);
+    topHosts = (config.get("monitor.top.hosts") != null) ?
+               Integer.parseInt(config.get("monitor.top.hosts")) : DEFAULT_TOP_HOSTS;
+  }
+
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    process(request, response);
+  }
+
+  /**
+   * Writes the report on the Pods
+   *
+   * @param request Standard HttpServletRequest
+   * @param response Standard HttpServletResponse
+   * @throws ServletException if an error occurs
+   * @throws IOException if an error occurs
+   */
+  public void process(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    if (!allowedAddresses.matcher(request.getRemoteAddr()).matches()) {
+      logger.warn("Refused Pod report to " + request.getRemoteAddr());
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    if (request.getParameter("pod") != null) {
+      writePod(response, request.getParameter("pod"));
+      return;
+    }
+
+    PodStatistics statistics = podStore.getStatistics();
+    long pending = statistics.getPendingCount();
+    long authenticated = statistics.getAuthenticatedCount();
+    long offHeapPods = statistics.getOffHeapCount();
+    long pendingSize = statistics.getPendingSize();
+    long authenticatedSize = statistics.getAuthenticatedSize();
+
+    response.setContentType("text/plain");
+    PrintWriter out = response.getWriter();
+
+    out.println("pods.pending=" + pending);
+    out.println("pods.authenticated=" + authenticated);
+    out.println("pods.total=" + (pending + authenticated));
+    out.println("pods.offheap=" + offHeapPods);
+    out.println("pods.evicted=" + statistics.getEvictedCount());
+    out.println("pods.expired=" + statistics.getExpiredCount());
+    out.println("pods.shed=" + statistics.getShedCount());
+
+    out.println("size.pending=" + pendingSize);
+    out.println("size.authenticated=" + authenticatedSize);
+    out.println("size.total=" + (pendingSize + authenticatedSize));
+    long inHeap = pending + authenticated - offHeapPods;
+    out.println("size.mean=" + ((inHeap > 0) ? (pendingSize + authenticatedSize) / inHeap : 0));
+    writeHistogram(out, "size.histogram.", PodStatistics.SIZE_BUCKETS, statistics.getSizeHistogram());
+
+    writeHistogram(out, "age.histogram.", PodStatistics.AGE_BUCKETS,
+                   statistics.getAgeHistogram(System.currentTimeMillis()));
+
+    AdmissionControl admissionControl = (AdmissionControl)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_ADMISSION_CONTROL);
+    if (admissionControl != null) {
+      out.println("admission.rejected=" + admissionControl.getRejectedCount());
+      out.println("admission.limited.clients=" + admissionControl.getLimitedCount());
+    }
+
+    AsyncLookupGuard asyncLookup = (AsyncLookupGuard)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_ASYNC_LOOKUP);
+    if (asyncLookup != null) {
+      out.println("lookup.timed.out=" + asyncLookup.getTimedOutCount());
+      out.println("lookup.rejected=" + asyncLookup.getRejectedCount());
+    }
+
+    for (PodPartition partition : podStore.getPartitions()) {
+      PodStatistics partitionStatistics = partition.getStatistics();
+      String prefix = "partition." + partition.getName() + ".";
+      out.println(prefix + "pods.pending=" + partitionStatistics.getPendingCount());
+      out.println(prefix + "pods.authenticated=" + partitionStatistics.getAuthenticatedCount());
+      out.println(prefix + "pods.offheap=" + partitionStatistics.getOffHeapCount());
+      out.println(prefix + "pods.evicted=" + partitionStatistics.getEvictedCount());
+      out.println(prefix + "pods.expired=" + partitionStatistics.getExpiredCount());
+      out.println(prefix + "pods.shed=" + partitionStatistics.getShedCount());
+      out.println(prefix + "size.total=" + partitionStatistics.getSize());
+      out.println(prefix + "size.budget=" + partition.getMemoryBudget());
+    }
+
+    LoginFunnel funnel = podStore.getLoginFunnel();
+    out.println("funnel.started=" + funnel.getStartedCount());
+    out.println("funnel.completed=" + funnel.getCompletedCount());
+    long[] abandoned = funnel.getAbandonedCounts();
+    for (int stage = 0; stage < abandoned.length; stage++) {
+      out.println("funnel.abandoned." + LoginTrace.STAGE_NAMES[stage] + "=" + abandoned[stage]);
+    }
+    LoginFunnel.Hops hops = funnel.getHops();
+    for (int hop = 0; hop < LoginFunnel.HOP_NAMES.length; hop++) {
+      String prefix = "funnel.hop." + LoginFunnel.HOP_NAMES[hop] + ".";
+      out.println(prefix + "count=" + hops.getCount(hop));
+      out.println(prefix + "mean=" + hops.getMean(hop));
+      writeHistogram(out, prefix + "histogram.", LoginFunnel.LATENCY_BUCKETS, hops.getHistogram(hop));
+    }
+    for (Map.Entry<String, LoginFunnel.Hops> idp : funnel.getIdPHops().entrySet()) {
+      for (int hop = 0; hop < LoginFunnel.HOP_NAMES.length; hop++) {
+        String prefix = "funnel.idp." + idp.getKey() + "." + LoginFunnel.HOP_NAMES[hop] + ".";
+        out.println(prefix + "count=" + idp.getValue().getCount(hop));
+        out.println(prefix + "mean=" + idp.getValue().getMean(hop));
+      }
+    }
+
+    InvalidationBus invalidationBus = podStore.getInvalidationBus();
+    if (invalidationBus != null) {
+      out.println("invalidation.sent=" + invalidationBus.getSentCount());
+      out.println("invalidation.received=" + invalidationBus.getReceivedCount());
+    }
+
+    OffHeapPodIndex offHeap = podStore.getOffHeap();
+    if (offHeap != null) {
+      out.println("offheap.pods=" + offHeap.getSize());
+      out.println("offheap.size.used=" + offHeap.getUsed());
+      out.println("offheap.size.capacity=" + offHeap.getCapacity());
+      out.println("offheap.stored=" + offHeap.getStoredCount());
+      out.println("offheap.loaded=" + offHeap.getLoadedCount());
+    }
+
+    EngineSelector engineSelector = podStore.getEngineSelector();
+    if (engineSelector != null) {
+      for (int engine = 0; engine < engineSelector.getCount(); engine++) {
+        String prefix = "engine." + (engine + 1) + ".";
+        out.println(prefix + "url=" + engineSelector.getURL(engine));
+        out.println(prefix + "sent=" + engineSelector.getSentCount(engine));
+        out.println(prefix + "completed=" + engineSelector.getCompletedCount(engine));
+        out.println(prefix + "failed=" + engineSelector.getFailedCount(engine));
+        out.println(prefix + "latency=" + engineSelector.getLatency(engine));
+        out.println(prefix + "failure.rate=" + engineSelector.getFailureRate(engine));
+      }
+    }
+
+    BagStore bagStore = podStore.getBagStore();
+    if (bagStore != null) {
+      out.println("bags.shared=" + bagStore.getSize());
+      out.println("bags.hits=" + bagStore.getHitCount());
+      out.println("bags.misses=" + bagStore.getMissCount());
+    }
+
+    out.println("logging.dropped=" + GuardLog.getDroppedCount());
+    out.println("logging.sampled.out=" + GuardLog.getSampledOutCount());
+
+    List<Map.Entry<String, Long>> hosts = statistics.getTopHosts(topHosts);
+    for (int i = 0; i < hosts.size(); i++) {
+      out.println("hosts." + (i + 1) + "=" + hosts.get(i).getKey() + " " + hosts.get(i).getValue());
+    }
+
+    out.close();
+  }
+
+  /**
+   * Writes the report on a single Pod
+   *
+   * @param response Standard HttpServletResponse
+   * @param sessionID the session ID of the Pod
+   * @throws IOException if an error occurs
+   */
+  private void writePod(HttpServletResponse response, String sessionID) throws IOException {
+    PodSnapshot snapshot = podStore.getSnapshot(sessionID);
+    if (snapshot == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    response.setContentType("text/plain");
+    PrintWriter out = response.getWriter();
+    out.println("pod.state=" + ((snapshot.getPod().getBag() != null) ? "authenticated" : "pending"));
+    out.println("pod.host=" + snapshot.getPod().getHostName());
+    out.println("pod.size=" + snapshot.getSize());
+    out.println("pod.age=" + (System.currentTimeMillis() - snapshot.getCreated()));
+    out.println("pod.stage=" + LoginTrace.STAGE_NAMES[snapshot.getLoginTrace().getLastStage()]);
+    out.close();
+  }
+
+  /**
+   * Writes out a histogram, one line per bucket. Each bucket is named after its upper bound,
+   * with the last one named after the lower bound of the open ended bucket.
+   *
+   * @param out where to write the histogram
+   * @param prefix the prefix for each line
+   * @param bounds the upper bounds of the buckets
+   * @param histogram the count for each bucket
+   */
+  private void writeHistogram(PrintWriter out, String prefix, long[] bounds, long[] histogram) {
+    for (int i = 0; i < bounds.length; i++) {
+      out.println(prefix + "lt." + bounds[i] + "=" + histogram[i]);
+    }
+    out.println(prefix + "ge." + bounds[bounds.length - 1] + "=" + histogram[bounds.length]);
+  }
+}
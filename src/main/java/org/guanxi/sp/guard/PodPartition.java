@@ -0,0 +1,127 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The Pods in a PodStore that belong to one tenant, i.e. one host name, when the store is
+ * partitioned for a multitenant Guard. Each partition has its own memory budget, which is
+ * enforced by evicting its own least recently used Pods and refusing new ones, and its own
+ * statistics. A tenant under attack therefore uses up its own quota rather than everyone's.
+ *
+ * Host names come from the client's Host header, so the number of partitions is capped and
+ * a host only gets a partition of its own once it's configured or a login for it completes.
+ * Until then, and beyond the cap, hosts share a single overflow partition. Partitions that
+ * have had no Pods for a while are dropped to make room for others.
+ */
+public class PodPartition {
+  /** The name of the partition shared by hosts beyond the cap */
+  public static final String OTHER_HOSTS = "(other)";
+
+  /** The host the partition is for, or OTHER_HOSTS */
+  private final String name;
+  /** Live figures for the partition's Pods */
+  private final PodStatistics statistics = new PodStatistics();
+  /** The most memory, in bytes, the partition's Pods can use. 0 for no limit */
+  private volatile long memoryBudget;
+  /** Whether a thread is currently evicting the partition's Pods */
+  private final AtomicBoolean evicting = new AtomicBoolean(false);
+  /** When the partition was last looked up, in milliseconds */
+  private volatile long lastUsed;
+
+  PodPartition(String name, long memoryBudget) {
+    this.name = name;
+    this.memoryBudget = memoryBudget;
+    lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * @return the host the partition is for, or OTHER_HOSTS for the overflow partition
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the host the partition is for, or null for the overflow partition
+   */
+  public String getHost() {
+    return name.equals(OTHER_HOSTS) ? null : name;
+  }
+
+  /**
+   * @return the live figures for the partition's Pods
+   */
+  public PodStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @return the partition's memory budget in bytes, or 0 for no limit
+   */
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets the most memory the partition's Pods can use
+   *
+   * @param memoryBudget the budget in bytes, or 0 for no limit
+   */
+  public void setMemoryBudget(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Determines whether there's room for new Pods within the partition's budget
+   *
+   * @param pendingShare the percentage of the budget for Pods waiting for attributes
+   * @return true if new Pods can be created
+   */
+  public boolean hasCapacity(int pendingShare) {
+    return PodStore.hasPendingCapacity(statistics, memoryBudget, pendingShare);
+  }
+
+  /**
+   * Records that the partition has been looked up, so it isn't dropped as idle
+   *
+   * @param now the current time in milliseconds
+   */
+  void used(long now) {
+    lastUsed = now;
+  }
+
+  /**
+   * Determines whether the partition has had no Pods for a while
+   *
+   * @param now the current time in milliseconds
+   * @param idleTimeout how long the partition must have gone unused, in milliseconds
+   * @return true if the partition can be dropped
+   */
+  boolean isIdle(long now, long idleTimeout) {
+    return (statistics.getPendingCount() + statistics.getAuthenticatedCount() == 0) &&
+           (now - lastUsed > idleTimeout);
+  }
+
+  /**
+   * @return whether eviction from the partition is underway
+   */
+  AtomicBoolean getEvicting() {
+    return evicting;
+  }
+}
@@ -0,0 +1,124 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+
+/**
+ * Estimates how much heap a Pod retains. The figures are approximate, based on the usual
+ * layout of Strings, arrays and hash entries on a 64 bit JVM with compressed references,
+ * but are good enough for capacity planning and for comparing Pods with each other.
+ *
+ * The servlet context referenced by a Pod is shared and isn't counted.
+ */
+public class PodSizeEstimator {
+  /** Object header plus the fields of a Pod */
+  private static final int POD_OVERHEAD = 48;
+  /** Object header plus the fields and attribute table of a Bag */
+  private static final int BAG_OVERHEAD = 96;
+  /** Header and fields of a String plus its array header */
+  private static final int STRING_OVERHEAD = 40;
+  /** A hash table entry plus its share of the table */
+  private static final int ENTRY_OVERHEAD = 40;
+  /** Header of an array */
+  private static final int ARRAY_OVERHEAD = 16;
+  /** Size of a reference */
+  private static final int REFERENCE_SIZE = 4;
+
+  /**
+   * Estimates the retained size of a Pod.
+   *
+   * @param pod the Pod to estimate
+   * @return the estimated size in bytes
+   */
+  public static int estimate(Pod pod) {
+    int size = POD_OVERHEAD;
+    size += estimate(pod.getSessionID());
+    size += estimate(pod.getRequestScheme());
+    size += estimate(pod.getHostName());
+    size += estimate(pod.getRequestURL());
+    size += estimate(pod.getRequestParameters());
+    size += estimate(pod.getBag());
+    return size;
+  }
+
+  /**
+   * Estimates the retained size of a Bag, including the raw SAML.
+   *
+   * @param bag the Bag to estimate
+   * @return the estimated size in bytes or 0 if there is no Bag
+   */
+  public static int estimate(Bag bag) {
+    if (bag == null) return 0;
+
+    int size = BAG_OVERHEAD;
+    size += estimate(bag.getSessionID());
+    size += estimate(bag.getSamlResponse());
+    if (bag.hasAttributes()) {
+      Enumeration<String> names = bag.getAttributeNames();
+      while (names.hasMoreElements()) {
+        String name = names.nextElement();
+        size += ENTRY_OVERHEAD + estimate(name) + estimate(bag.getAttributeValue(name));
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Estimates the retained size of a set of request parameters.
+   *
+   * @param parameters the parameters, as name to String[] of values
+   * @return the estimated size in bytes or 0 if there are no parameters
+   */
+  public static int estimate(Map<?, ?> parameters) {
+    if (parameters == null) return 0;
+
+    int size = ARRAY_OVERHEAD;
+    Iterator<?> entries = parameters.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>)entries.next();
+      size += ENTRY_OVERHEAD + REFERENCE_SIZE + estimate((String)entry.getKey());
+      if (entry.getValue() instanceof String[]) {
+        String[] values = (String[])entry.getValue();
+        size += ARRAY_OVERHEAD + (values.length * REFERENCE_SIZE);
+        for (String value : values) {
+          size += estimate(value);
+        }
+      }
+      else if (entry.getValue() instanceof String) {
+        size += estimate((String)entry.getValue());
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Estimates the retained size of a String.
+   *
+   * @param value the String to estimate
+   * @return the estimated size in bytes or 0 if there is no String
+   */
+  public static int estimate(String value) {
+    if (value == null) return 0;
+    return STRING_OVERHEAD + (value.length() * 2);
+  }
+}
@@ -0,0 +1,298 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Slab allocator for the encoded Pods held by the OffHeapPodIndex. Memory is taken in
+ * SLAB_SIZE slabs, either direct buffers or regions of a memory mapped file, up to a fixed
+ * capacity. Each slab is cut into chunks of one size class, a power of two from MIN_CHUNK
+ * to SLAB_SIZE, and a record goes in the smallest chunk it fits. Freed chunks are kept on
+ * a free list per size class and reused before any new chunks are cut. Once every chunk
+ * cut from a slab has been freed, the slab is given back, unless its size class still has
+ * new chunks to cut from it, so a size class that's no longer used doesn't hold on to
+ * memory another could use. A direct buffer is released when the garbage collector gets
+ * to it, a region of the mapped file is mapped again when the slab is next needed.
+ *
+ * The mapped file holds whole Pods, attributes and all, so it's created afresh and only
+ * the Guard's own user can read it. It's deleted when the slabs are closed.
+ *
+ * An address is the slab number in the high 32 bits and the offset in the low 32 bits.
+ * Allocating and freeing are synchronized, reading and writing aren't, as each address
+ * is only used by one record at a time.
+ */
+class PodSlabs {
+  /** Size of a slab */
+  static final int SLAB_SIZE = 1024 * 1024;
+  /** Size of the smallest chunk */
+  private static final int MIN_CHUNK = 64;
+  /** Number of size classes, from MIN_CHUNK to SLAB_SIZE */
+  private static final int CLASSES = Integer.numberOfTrailingZeros(SLAB_SIZE / MIN_CHUNK) + 1;
+
+  /** The slabs in use, or null where there's none */
+  private final ByteBuffer[] slabs;
+  /** Number of slabs ever taken, i.e. the first slab number never used */
+  private int slabCount = 0;
+  /** The size class each slab is cut into */
+  private final int[] slabClass;
+  /** Number of chunks in use in each slab */
+  private final int[] slabChunks;
+  /** Slab numbers below slabCount whose slabs have been given back */
+  private final int[] freeSlabs;
+  /** Number of slab numbers in freeSlabs */
+  private int freeSlabCount = 0;
+  /** The slab each size class is cutting new chunks from, or -1 */
+  private final int[] current = new int[CLASSES];
+  /** Where the next new chunk of each size class starts in its current slab */
+  private final int[] next = new int[CLASSES];
+  /** Freed chunks of each size class */
+  private final long[][] free = new long[CLASSES][];
+  /** Number of freed chunks of each size class */
+  private final int[] freeCount = new int[CLASSES];
+  /** Bytes in chunks that are in use */
+  private long used = 0;
+  /** The file the slabs are mapped from or null for direct buffers */
+  private final RandomAccessFile file;
+  /** The name of the mapped file, or null */
+  private final File mappedFile;
+
+  /**
+   * Sets up the allocator. No memory is taken until it's needed.
+   *
+   * @param capacity the most memory the slabs can use, in bytes
+   * @param mappedFile the file to map the slabs from or null to use direct buffers
+   * @throws IOException if the file can't be opened
+   */
+  PodSlabs(long capacity, File mappedFile) throws IOException {
+    int slabTotal = (int)Math.max(1, capacity / SLAB_SIZE);
+    slabs = new ByteBuffer[slabTotal];
+    slabClass = new int[slabTotal];
+    slabChunks = new int[slabTotal];
+    freeSlabs = new int[slabTotal];
+    for (int i = 0; i < CLASSES; i++) {
+      current[i] = -1;
+      free[i] = new long[16];
+    }
+
+    this.mappedFile = mappedFile;
+    if (mappedFile != null) {
+      OwnerOnlyFiles.create(mappedFile);
+      file = new RandomAccessFile(mappedFile, "rw");
+    }
+    else {
+      file = null;
+    }
+  }
+
+  /**
+   * Finds a chunk for a record
+   *
+   * @param length the length of the record
+   * @return the address of the chunk or -1 if the record is too big or the slabs are full
+   */
+  synchronized long allocate(int length) {
+    if (length > SLAB_SIZE) return -1;
+    int sizeClass = sizeClass(length);
+    int chunk = MIN_CHUNK << sizeClass;
+
+    if (freeCount[sizeClass] > 0) {
+      long address = free[sizeClass][--freeCount[sizeClass]];
+      slabChunks[(int)(address >>> 32)]++;
+      used += chunk;
+      return address;
+    }
+
+    if ((current[sizeClass] == -1) || (next[sizeClass] + chunk > SLAB_SIZE)) {
+      int slab = takeSlab();
+      if (slab == -1) {
+        return -1;
+      }
+      slabClass[slab] = sizeClass;
+      current[sizeClass] = slab;
+      next[sizeClass] = 0;
+    }
+
+    long address = (((long)current[sizeClass]) << 32) | next[sizeClass];
+    next[sizeClass] += chunk;
+    slabChunks[current[sizeClass]]++;
+    used += chunk;
+    return address;
+  }
+
+  /**
+   * Takes a slab, reusing the number of one that was given back if there is one
+   *
+   * @return the slab number or -1 if the slabs are full
+   */
+  private int takeSlab() {
+    int slab;
+    if (freeSlabCount > 0) {
+      slab = freeSlabs[--freeSlabCount];
+    }
+    else if (slabCount < slabs.length) {
+      slab = slabCount;
+    }
+    else {
+      return -1;
+    }
+
+    try {
+      slabs[slab] = (file != null) ?
+                    file.getChannel().map(FileChannel.MapMode.READ_WRITE, (long)slab * SLAB_SIZE, SLAB_SIZE) :
+                    ByteBuffer.allocateDirect(SLAB_SIZE);
+    }
+    catch (IOException ioe) {
+      if (slab < slabCount) {
+        freeSlabs[freeSlabCount++] = slab;
+      }
+      return -1;
+    }
+    if (slab == slabCount) {
+      slabCount++;
+    }
+    return slab;
+  }
+
+  /**
+   * Gives back a slab none of whose chunks are in use, taking its chunks off the free list
+   *
+   * @param slab the slab number
+   */
+  private void giveBack(int slab) {
+    int sizeClass = slabClass[slab];
+    long[] chunks = free[sizeClass];
+    int kept = 0;
+    for (int i = 0; i < freeCount[sizeClass]; i++) {
+      if ((int)(chunks[i] >>> 32) != slab) {
+        chunks[kept++] = chunks[i];
+      }
+    }
+    freeCount[sizeClass] = kept;
+
+    slabs[slab] = null;
+    freeSlabs[freeSlabCount++] = slab;
+  }
+
+  /**
+   * Gives a chunk back
+   *
+   * @param address the address of the chunk
+   * @param length the length of the record it held
+   */
+  synchronized void free(long address, int length) {
+    int sizeClass = sizeClass(length);
+    if (freeCount[sizeClass] == free[sizeClass].length) {
+      long[] grown = new long[free[sizeClass].length * 2];
+      System.arraycopy(free[sizeClass], 0, grown, 0, freeCount[sizeClass]);
+      free[sizeClass] = grown;
+    }
+    free[sizeClass][freeCount[sizeClass]++] = address;
+    used -= MIN_CHUNK << sizeClass;
+
+    int slab = (int)(address >>> 32);
+    if (--slabChunks[slab] == 0) {
+      if (current[sizeClass] != slab) {
+        giveBack(slab);
+      }
+      else if (next[sizeClass] + (MIN_CHUNK << sizeClass) > SLAB_SIZE) {
+        // The size class has cut all it can from the slab
+        current[sizeClass] = -1;
+        giveBack(slab);
+      }
+    }
+  }
+
+  /**
+   * @return the number of slabs currently taken
+   */
+  synchronized int getSlabCount() {
+    return slabCount - freeSlabCount;
+  }
+
+  /**
+   * Copies a record into its chunk
+   *
+   * @param address the address of the chunk
+   * @param record the record
+   */
+  void write(long address, byte[] record) {
+    ByteBuffer slab = slab(address).duplicate();
+    slab.position((int)address);
+    slab.put(record);
+  }
+
+  /**
+   * Copies a record out of its chunk
+   *
+   * @param address the address of the chunk
+   * @param length the length of the record
+   * @return the record
+   */
+  byte[] read(long address, int length) {
+    byte[] record = new byte[length];
+    ByteBuffer slab = slab(address).duplicate();
+    slab.position((int)address);
+    slab.get(record);
+    return record;
+  }
+
+  /**
+   * @return the bytes in chunks that are in use
+   */
+  synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * @return the most memory the slabs can use, in bytes
+   */
+  long getCapacity() {
+    return (long)slabs.length * SLAB_SIZE;
+  }
+
+  /**
+   * Lets go of the mapped file and deletes it. The slabs can't be used afterwards.
+   */
+  synchronized void close() {
+    if (file != null) {
+      try {
+        file.close();
+      }
+      catch (IOException ioe) {
+        // Nothing more can be done with it
+      }
+      if (!mappedFile.delete()) {
+        // Some platforms won't delete a file that's still mapped
+        mappedFile.deleteOnExit();
+      }
+    }
+  }
+
+  private synchronized ByteBuffer slab(long address) {
+    return slabs[(int)(address >>> 32)];
+  }
+
+  private static int sizeClass(int length) {
+    if (length <= MIN_CHUNK) return 0;
+    return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_CHUNK);
+  }
+}
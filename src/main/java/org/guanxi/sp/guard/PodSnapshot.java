@@ -0,0 +1,184 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.guanxi.common.Pod;
+
+/**
+ * A published version of a Pod as held by the PodStore. Once a Pod has been wrapped in a
+ * snapshot it must not be modified. Any change to the Pod's state is made on a copy which
+ * is then swapped into the store in place of the old snapshot.
+ *
+ * Snapshots deliberately use identity equality so the store can compare-and-set on them.
+ */
+public final class PodSnapshot {
+  /** The Pod this snapshot publishes */
+  private final Pod pod;
+  /** When the Pod was first published, in milliseconds */
+  private final long created;
+  /** The estimated retained size of the Pod in bytes */
+  private final int size;
+  /** The PodStore access generation in which the Pod was last used. This isn't Pod state */
+  private volatile int accessGeneration;
+  /** The AccessPolicy decisions made for this version of the Pod */
+  private final AtomicLong decisions = new AtomicLong();
+  /** The Pod's attributes laid out as headers, once they've been needed */
+  private volatile AttributeLayout attributeLayout;
+  /** When the Pod reached each stage of its login. This isn't Pod state */
+  private final LoginTrace loginTrace;
+  /** The tenant partition the Pod belongs to, or null if the store isn't partitioned */
+  private final PodPartition partition;
+  /** The host the Pod is counted under in the PodStatistics */
+  private final String hostKey;
+
+  PodSnapshot(Pod pod, long created, int accessGeneration, LoginTrace loginTrace, PodPartition partition, String hostKey) {
+    this.pod = pod;
+    this.created = created;
+    this.accessGeneration = accessGeneration;
+    this.loginTrace = loginTrace;
+    this.partition = partition;
+    this.hostKey = hostKey;
+    size = PodSizeEstimator.estimate(pod);
+  }
+
+  /**
+   * Retrieves the published Pod. Callers must treat it as read only.
+   *
+   * @return the Pod in this snapshot
+   */
+  public Pod getPod() {
+    return pod;
+  }
+
+  /**
+   * Retrieves when the Pod was first published. This is carried across versions of the Pod.
+   *
+   * @return the time in milliseconds
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * Retrieves the estimated size of this version of the Pod
+   *
+   * @return the size in bytes
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Retrieves when the Pod was last used, as one of the PodStore's access generations.
+   * A new Pod counts as used in the generation it was created.
+   *
+   * @return the access generation
+   */
+  public int getAccessGeneration() {
+    return accessGeneration;
+  }
+
+  /**
+   * Retrieves when the Pod reached each stage of its login. This is carried across versions
+   * of the Pod.
+   *
+   * @return the Pod's login trace
+   */
+  public LoginTrace getLoginTrace() {
+    return loginTrace;
+  }
+
+  /**
+   * Retrieves the tenant partition the Pod belongs to. This is fixed for the life of the Pod.
+   *
+   * @return the partition or null if the store isn't partitioned
+   */
+  public PodPartition getPartition() {
+    return partition;
+  }
+
+  /**
+   * Retrieves the host the Pod is counted under in the PodStatistics. This is fixed for the
+   * life of the Pod.
+   *
+   * @return the Pod's host, or one of the PodStatistics keys for Pods without a host of their own
+   */
+  String getHostKey() {
+    return hostKey;
+  }
+
+  /**
+   * Retrieves the AccessPolicy's cache of decisions for this version of the Pod
+   *
+   * @return the cached decisions
+   */
+  AtomicLong getDecisions() {
+    return decisions;
+  }
+
+  /**
+   * Retrieves the Pod's attributes laid out as headers, building the layout the first
+   * time it's needed. Threads that race to build it each get an identical layout.
+   *
+   * @param prefix the prefix to add to attribute names to make header names
+   * @return the layout of the Pod's attributes
+   */
+  public AttributeLayout getAttributeLayout(String prefix) {
+    AttributeLayout layout = attributeLayout;
+    if ((layout == null) || (!layout.getPrefix().equals(prefix))) {
+      layout = new AttributeLayout(pod.getBag(), prefix);
+      attributeLayout = layout;
+    }
+    return layout;
+  }
+
+  /**
+   * Gives a new version of a Pod the layout of its attributes up front, e.g. one refreshed
+   * from the previous version's layout
+   *
+   * @param layout the layout of the Pod's attributes
+   */
+  void setAttributeLayout(AttributeLayout layout) {
+    attributeLayout = layout;
+  }
+
+  /**
+   * Retrieves the layout of the Pod's attributes if it's been built
+   *
+   * @return the layout or null if it hasn't been needed yet
+   */
+  AttributeLayout getAttributeLayout() {
+    return attributeLayout;
+  }
+
+  /**
+   * Records that the Pod has been used. The access generation is only written the first
+   * time the Pod is used in a generation, so most requests only read it.
+   *
+   * @param generation the current access generation
+   * @return true if this is the Pod's first use in the generation
+   */
+  boolean touch(int generation) {
+    if (accessGeneration != generation) {
+      accessGeneration = generation;
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,345 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.guanxi.common.Pod;
+
+/**
+ * Live figures for the Pods in a PodStore. The store tells the statistics about every
+ * snapshot it adds, replaces or removes so the figures are always current and reading
+ * them never needs a scan of the Pods themselves.
+ *
+ * Pods moved out of the heap by an OffHeapPodIndex are still logged in, so they're counted
+ * as authenticated, but their sizes, hosts and ages aren't as they no longer use the heap.
+ *
+ * All updates are lock free. The figures are read without any global lock either, so a
+ * report taken while Pods are changing may be out by the Pods changing at the time.
+ */
+public class PodStatistics {
+  /** Upper bounds, in bytes, of the Pod size histogram buckets. The last bucket is open ended */
+  public static final long[] SIZE_BUCKETS = {1024, 4096, 16384, 65536, 262144};
+  /** Upper bounds, in milliseconds, of the Pod age histogram buckets. The last bucket is open ended */
+  public static final long[] AGE_BUCKETS = {60000, 300000, 900000, 3600000, 14400000, 86400000};
+  /** The most hosts that are counted individually. The Host header is client supplied */
+  public static final int MAX_HOSTS = 1000;
+  /** The key under which Pods are counted once MAX_HOSTS has been reached */
+  public static final String OTHER_HOSTS = "(other)";
+  /** The key under which Pods without a host are counted */
+  public static final String NO_HOST = "(none)";
+
+  /** The width of the creation time slots used for the age histogram */
+  private static final long AGE_SLOT = 60000;
+
+  /** Number of Pods waiting for attributes */
+  private final AtomicLong pending = new AtomicLong();
+  /** Number of Pods with attributes */
+  private final AtomicLong authenticated = new AtomicLong();
+  /** Number of Pods out of the heap */
+  private final AtomicLong offHeap = new AtomicLong();
+  /** Estimated size of the Pods waiting for attributes */
+  private final AtomicLong pendingSize = new AtomicLong();
+  /** Estimated size of the Pods with attributes */
+  private final AtomicLong authenticatedSize = new AtomicLong();
+  /** Number of authenticated Pods evicted to stay within the memory budget */
+  private final AtomicLong evicted = new AtomicLong();
+  /** Number of Pods expired after going unused for the idle timeout */
+  private final AtomicLong expired = new AtomicLong();
+  /** Number of new Pods refused because the memory budget was used up */
+  private final AtomicLong shed = new AtomicLong();
+  /** Number of Pods in each size bucket */
+  private final AtomicLongArray sizes = new AtomicLongArray(SIZE_BUCKETS.length + 1);
+  /** Number of Pods per host */
+  private final ConcurrentHashMap<String, AtomicLong> hosts = new ConcurrentHashMap<String, AtomicLong>();
+  /** Number of Pods created in each AGE_SLOT */
+  private final ConcurrentHashMap<Long, AtomicLong> created = new ConcurrentHashMap<Long, AtomicLong>();
+
+  /**
+   * Accounts for a snapshot that has been added to the store
+   *
+   * @param snapshot the new snapshot
+   */
+  void added(PodSnapshot snapshot) {
+    count(snapshot, 1);
+    increment(hosts, snapshot.getHostKey());
+    increment(created, Long.valueOf(snapshot.getCreated() / AGE_SLOT));
+  }
+
+  /**
+   * Accounts for a snapshot that has replaced an older version of a Pod
+   *
+   * @param oldSnapshot the snapshot that was replaced
+   * @param newSnapshot the snapshot that replaced it
+   */
+  void replaced(PodSnapshot oldSnapshot, PodSnapshot newSnapshot) {
+    // The host and creation time are fixed for the life of a Pod
+    count(newSnapshot, 1);
+    count(oldSnapshot, -1);
+  }
+
+  /**
+   * Accounts for a snapshot that has been removed from the store
+   *
+   * @param snapshot the removed snapshot
+   */
+  void removed(PodSnapshot snapshot) {
+    count(snapshot, -1);
+    decrement(hosts, snapshot.getHostKey());
+    decrement(created, Long.valueOf(snapshot.getCreated() / AGE_SLOT));
+  }
+
+  /**
+   * Accounts for Pods moving out of the heap, or back in or being removed from there. The
+   * store reports them as removed from the heap, or added back to it, as well.
+   *
+   * @param delta 1 for a Pod moved out, -1 for one moved back or removed
+   */
+  void movedOffHeap(int delta) {
+    offHeap.addAndGet(delta);
+  }
+
+  /**
+   * Accounts for a Pod that has been evicted. The store will also report it as removed.
+   */
+  void evicted() {
+    evicted.incrementAndGet();
+  }
+
+  /**
+   * Accounts for a Pod that has expired. The store will also report it as removed.
+   */
+  void expired() {
+    expired.incrementAndGet();
+  }
+
+  /**
+   * Accounts for a new Pod that was refused because the memory budget was used up
+   */
+  public void shed() {
+    shed.incrementAndGet();
+  }
+
+  /**
+   * @return the number of Pods waiting for attributes
+   */
+  public long getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * @return the number of Pods with attributes, including those out of the heap
+   */
+  public long getAuthenticatedCount() {
+    return authenticated.get() + offHeap.get();
+  }
+
+  /**
+   * @return the number of Pods out of the heap
+   */
+  public long getOffHeapCount() {
+    return offHeap.get();
+  }
+
+  /**
+   * @return the estimated size in bytes of all the Pods waiting for attributes
+   */
+  public long getPendingSize() {
+    return pendingSize.get();
+  }
+
+  /**
+   * @return the estimated size in bytes of all the Pods with attributes
+   */
+  public long getAuthenticatedSize() {
+    return authenticatedSize.get();
+  }
+
+  /**
+   * @return the estimated size in bytes of all the Pods
+   */
+  public long getSize() {
+    return pendingSize.get() + authenticatedSize.get();
+  }
+
+  /**
+   * @return the number of Pods evicted to stay within the memory budget
+   */
+  public long getEvictedCount() {
+    return evicted.get();
+  }
+
+  /**
+   * @return the number of Pods expired after going unused for the idle timeout
+   */
+  public long getExpiredCount() {
+    return expired.get();
+  }
+
+  /**
+   * @return the number of new Pods refused because the memory budget was used up
+   */
+  public long getShedCount() {
+    return shed.get();
+  }
+
+  /**
+   * @return the number of Pods in each of the SIZE_BUCKETS, plus one for bigger Pods
+   */
+  public long[] getSizeHistogram() {
+    long[] histogram = new long[sizes.length()];
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = sizes.get(i);
+    }
+    return histogram;
+  }
+
+  /**
+   * Works out the ages of the current Pods. Ages are accurate to a minute.
+   *
+   * @param now the time to work the ages out from
+   * @return the number of Pods in each of the AGE_BUCKETS, plus one for older Pods
+   */
+  public long[] getAgeHistogram(long now) {
+    long[] histogram = new long[AGE_BUCKETS.length + 1];
+    for (Map.Entry<Long, AtomicLong> slot : created.entrySet()) {
+      long count = slot.getValue().get();
+      if (count <= 0) continue;
+      histogram[bucket(AGE_BUCKETS, now - (slot.getKey().longValue() * AGE_SLOT))] += count;
+    }
+    return histogram;
+  }
+
+  /**
+   * Finds the hosts with the most Pods.
+   *
+   * @param max the most hosts to return
+   * @return host and number of Pods, busiest first
+   */
+  public List<Map.Entry<String, Long>> getTopHosts(int max) {
+    List<Map.Entry<String, Long>> top = new ArrayList<Map.Entry<String, Long>>();
+    for (Map.Entry<String, AtomicLong> host : hosts.entrySet()) {
+      long count = host.getValue().get();
+      if (count > 0) {
+        top.add(new AbstractMap.SimpleImmutableEntry<String, Long>(host.getKey(), Long.valueOf(count)));
+      }
+    }
+
+    Collections.sort(top, new Comparator<Map.Entry<String, Long>>() {
+      public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+        return second.getValue().compareTo(first.getValue());
+      }
+    });
+
+    return (top.size() > max) ? top.subList(0, max) : top;
+  }
+
+  /**
+   * Adds or takes away a snapshot from the state and size figures
+   *
+   * @param snapshot the snapshot
+   * @param delta 1 to add, -1 to take away
+   */
+  private void count(PodSnapshot snapshot, int delta) {
+    if (snapshot.getPod().getBag() == null) {
+      pending.addAndGet(delta);
+      pendingSize.addAndGet(delta * snapshot.getSize());
+    }
+    else {
+      authenticated.addAndGet(delta);
+      authenticatedSize.addAndGet(delta * snapshot.getSize());
+    }
+    sizes.addAndGet(bucket(SIZE_BUCKETS, snapshot.getSize()), delta);
+  }
+
+  /**
+   * Works out the host a new Pod is counted under. Once there are MAX_HOSTS hosts, new
+   * ones are lumped together so a client can't grow the table by faking Host headers.
+   * The key is kept in the Pod's snapshots so the Pod is taken away from the same count
+   * it was added to, whatever has happened to the table in the meantime.
+   *
+   * @param pod the Pod
+   * @return the key for the Pod's host
+   */
+  String getHostKey(Pod pod) {
+    String host = pod.getHostName();
+    if (host == null) return NO_HOST;
+    if ((hosts.size() >= MAX_HOSTS) && (!hosts.containsKey(host))) return OTHER_HOSTS;
+    return host;
+  }
+
+  /**
+   * Finds the bucket a value falls into
+   *
+   * @param bounds the upper bounds of the buckets
+   * @param value the value
+   * @return the index of the bucket. bounds.length if the value is above all the bounds
+   */
+  private static int bucket(long[] bounds, long value) {
+    for (int i = 0; i < bounds.length; i++) {
+      if (value < bounds[i]) return i;
+    }
+    return bounds.length;
+  }
+
+  /**
+   * Increments a counter in a table, adding it if needed. A counter that's been retired
+   * by decrement() is marked with a negative count so it's never resurrected.
+   *
+   * @param table the table of counters
+   * @param key the counter to increment
+   */
+  private static <K> void increment(ConcurrentHashMap<K, AtomicLong> table, K key) {
+    while (true) {
+      AtomicLong counter = table.get(key);
+      if (counter == null) {
+        counter = new AtomicLong(1);
+        if (table.putIfAbsent(key, counter) == null) return;
+        continue;
+      }
+
+      long count = counter.get();
+      if ((count >= 0) && (counter.compareAndSet(count, count + 1))) return;
+      if (count < 0) {
+        // Being retired, wait for it to go
+        table.remove(key, counter);
+      }
+    }
+  }
+
+  /**
+   * Decrements a counter in a table, removing it from the table when it reaches zero
+   *
+   * @param table the table of counters
+   * @param key the counter to decrement
+   */
+  private static <K> void decrement(ConcurrentHashMap<K, AtomicLong> table, K key) {
+    AtomicLong counter = table.get(key);
+    if (counter == null) return;
+    if ((counter.decrementAndGet() == 0) && (counter.compareAndSet(0, -1))) {
+      table.remove(key, counter);
+    }
+  }
+}
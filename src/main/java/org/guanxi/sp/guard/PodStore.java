@@ -0,0 +1,1349 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.cluster.InvalidationBus;
+
+/**
+ * Holds the Pods for a webapp's Guard, keyed on their session IDs.
+ *
+ * Pods are published as immutable snapshots. A Pod is never modified once it's in the store,
+ * instead any change of state is made to a copy which replaces the published snapshot using
+ * compare-and-set. Readers on the request path therefore need no locks and always see a
+ * fully constructed Pod, with the store providing the happens-before edge that the servlet
+ * context attributes didn't guarantee.
+ *
+ * The store can be given a memory budget for its Pods, based on their estimated sizes. Pods
+ * waiting for attributes get pendingShare percent of it and authenticated Pods the rest.
+ * Pods waiting for attributes are never evicted, instead the Guard stops creating new ones
+ * while hasCapacity() is false, and they expire after the pending timeout whether or not
+ * there's an idle timeout, so a flood of logins that are never finished can't keep real ones
+ * out for long. When the authenticated Pods exceed their share, the least recently used are
+ * evicted by a background thread until they're back down to EVICTION_TARGET percent of it.
+ * With an OffHeapPodIndex, Pods that would be evicted are moved out of the heap instead and
+ * moved back the next time they're looked up, and only evicted if that's full too.
+ *
+ * Pod use is tracked in access generations, periods of accessResolution milliseconds. A Pod
+ * records the generation it was last used in, and only writes it on its first use in a new
+ * generation, so tracking adds almost no writes however busy a Pod is. Subclasses that keep
+ * Pods elsewhere see each of those writes through accessed(). With an idle timeout, a Pod
+ * that hasn't been used for that many generations is expired, either when it's next looked
+ * up or by a background sweep that runs once per generation.
+ *
+ * A multitenant Guard can partition the store by host name. Each PodPartition has its own
+ * memory budget, eviction and statistics on top of the store's, so one tenant can't use up
+ * the memory of the others. Pods stay in the one map, so finding a Pod by session ID costs
+ * the same whether the store is partitioned or not.
+ *
+ * When the Guard runs on several nodes, the store can be given an InvalidationBus. Pods
+ * ended with deactivate() are then removed on the other nodes too, whereas remove() only
+ * affects this node and is used for deactivations arriving from elsewhere.
+ *
+ * There is one store per webapp, shared by the Guard filter and its servlets via the servlet
+ * context.
+ */
+public class PodStore {
+  /** The percentage of their share of the memory budget that eviction brings authenticated Pods back down to */
+  public static final int EVICTION_TARGET = 90;
+  /** The percentage of the memory budget for Pods waiting for attributes if not set otherwise */
+  public static final int DEFAULT_PENDING_SHARE = 25;
+  /** How long Pods can wait for attributes before they expire if not set otherwise, in milliseconds */
+  public static final long DEFAULT_PENDING_TIMEOUT = 15 * 60000;
+  /** How long a partition must have had no Pods before it can be dropped, in milliseconds */
+  public static final long PARTITION_IDLE_TIMEOUT = 10 * 60000;
+
+  private static final Logger logger = Logger.getLogger(PodStore.class.getName());
+
+  /** The published snapshots, keyed on session ID */
+  private final ConcurrentHashMap<String, PodSnapshot> pods = new ConcurrentHashMap<String, PodSnapshot>();
+  /** Live figures for the Pods in the store */
+  private final PodStatistics statistics = new PodStatistics();
+  /** Where the time goes in logins */
+  private final LoginFunnel loginFunnel = new LoginFunnel();
+  /** The most memory, in bytes, the Pods can use. 0 for no limit */
+  private volatile long memoryBudget = 0;
+  /** The percentage of the memory budget for Pods waiting for attributes */
+  private volatile int pendingShare = DEFAULT_PENDING_SHARE;
+  /** Milliseconds a Pod can wait for attributes before it expires. 0 for no limit */
+  private volatile long pendingTimeout = DEFAULT_PENDING_TIMEOUT;
+  /** Whether eviction from the whole store is underway */
+  private final AtomicBoolean evicting = new AtomicBoolean(false);
+  /** Runs eviction off the request threads */
+  private final ExecutorService evictor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "Guard Pod evictor");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  /** Time the access generations are counted from */
+  private final long epoch = System.currentTimeMillis();
+  /** The length of an access generation in milliseconds */
+  private volatile long accessResolution = 1000;
+  /** Number of whole generations a Pod can go unused before it expires. 0 for no idle timeout */
+  private volatile int idleGenerations = 0;
+  /** Runs the idle sweep */
+  private Timer sweeper = null;
+  /** The tenant partitions keyed on host name, or null if the store isn't partitioned */
+  private volatile ConcurrentHashMap<String, PodPartition> partitions = null;
+  /** The most partitions there can be, including the overflow partition */
+  private volatile int maxPartitions = 0;
+  /** The memory budget of a partition without one of its own */
+  private volatile long defaultPartitionBudget = 0;
+  /** The memory budgets of particular partitions, keyed on host name */
+  private volatile Map<String, Long> partitionBudgets = new HashMap<String, Long>();
+  /** Tells the other nodes about deactivated Pods, or null if there's only one node */
+  private volatile InvalidationBus invalidationBus = null;
+  /** Receives events for profiling, or null if they're off */
+  private volatile GuardEvents events = null;
+  /** Shares Bags between Pods with the same attributes, or null if each Pod has its own */
+  private volatile BagStore bagStore = null;
+  /** Chooses between several Engine GPS endpoints, or null if there's only one */
+  private volatile EngineSelector engineSelector = null;
+  /** Holds the Pods moved out of the heap, or null if they're evicted instead */
+  private volatile OffHeapPodIndex offHeap = null;
+  /** The servlet context of the webapp the Pods belong to, or null outside a servlet container */
+  private ServletContext context = null;
+
+  /**
+   * Retrieves the PodStore for a webapp, creating it if the webapp doesn't have one yet.
+   * Callers should hang on to the store rather than look it up for every request.
+   *
+   * @param context the webapp's servlet context
+   * @return the webapp's PodStore
+   */
+  public static PodStore getInstance(ServletContext context) {
+    PodStore store = (PodStore)context.getAttribute(Definitions.CONTEXT_ATTR_GUARD_POD_STORE);
+    if (store != null) {
+      return store;
+    }
+
+    synchronized (context) {
+      store = (PodStore)context.getAttribute(Definitions.CONTEXT_ATTR_GUARD_POD_STORE);
+      if (store == null) {
+        store = new PodStore();
+        store.context = context;
+        context.setAttribute(Definitions.CONTEXT_ATTR_GUARD_POD_STORE, store);
+      }
+      return store;
+    }
+  }
+
+  /**
+   * Retrieves the current version of a Pod. The Pod must be treated as read only.
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the Pod or null if there isn't one for the session
+   */
+  public Pod get(String sessionID) {
+    PodSnapshot snapshot = getSnapshot(sessionID);
+    return (snapshot != null) ? snapshot.getPod() : null;
+  }
+
+  /**
+   * Retrieves the current version of a Pod that is being used to access a resource,
+   * recording the access for idle timeout and eviction purposes. A Pod that has been
+   * idle for too long is expired instead. The Pod must be treated as read only.
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the Pod's current snapshot or null if there isn't one for the session
+   */
+  public PodSnapshot access(String sessionID) {
+    PodSnapshot snapshot = getSnapshot(sessionID);
+    if (snapshot == null) {
+      return null;
+    }
+
+    int generation = getAccessGeneration();
+    if (isIdle(snapshot, generation) || isOverdue(snapshot, System.currentTimeMillis())) {
+      expire(snapshot);
+      return null;
+    }
+
+    if (snapshot.touch(generation)) {
+      accessed(snapshot);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Retrieves the current snapshot of a Pod.
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the snapshot or null if there isn't one for the session
+   */
+  public PodSnapshot getSnapshot(String sessionID) {
+    if (sessionID == null) return null;
+    PodSnapshot snapshot = pods.get(sessionID);
+    if ((snapshot == null) && (offHeap != null)) {
+      snapshot = load(sessionID);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Publishes a new Pod. The Pod must be fully populated as it can't be modified
+   * afterwards except via update().
+   *
+   * @param pod the Pod to publish
+   * @return true if the Pod was published, false if its session ID is already in use
+   */
+  public boolean add(Pod pod) {
+    long now = System.currentTimeMillis();
+    PodSnapshot snapshot = publish(pod, new LoginTrace(now), now);
+    if (snapshot == null) {
+      return false;
+    }
+
+    loginFunnel.started(snapshot);
+    GuardEvents events = this.events;
+    if (events != null) {
+      events.podCreated(pod.getHostName(), snapshot.getSize());
+    }
+    checkBudget(snapshot.getPartition());
+    return true;
+  }
+
+  /**
+   * Publishes a Pod brought over from another node, e.g. while that node is drained. Its
+   * login started on the other node so it isn't counted in this node's login funnel.
+   *
+   * @param pod the Pod to publish
+   * @return true if the Pod was published, false if its session ID is already in use
+   */
+  public boolean restore(Pod pod) {
+    BagStore bagStore = this.bagStore;
+    if ((bagStore != null) && (pod.getBag() != null)) {
+      pod.setBag(bagStore.intern(pod.getBag()));
+    }
+
+    long now = System.currentTimeMillis();
+    PodSnapshot snapshot = publish(pod, completedTrace(now), now);
+    if (snapshot == null) {
+      return false;
+    }
+    checkBudget(snapshot.getPartition());
+    return true;
+  }
+
+  /**
+   * @return the current snapshots of all the Pods in the heap. Pods added or removed while
+   * the snapshots are being iterated over may or may not be included
+   */
+  public Collection<PodSnapshot> getSnapshots() {
+    return Collections.unmodifiableCollection(pods.values());
+  }
+
+  /**
+   * Puts a new Pod in the store and accounts for it
+   *
+   * @param pod the Pod
+   * @param trace the Pod's login trace
+   * @param created when the Pod was first published, in milliseconds
+   * @return the Pod's snapshot or null if its session ID is already in use
+   */
+  private PodSnapshot publish(Pod pod, LoginTrace trace, long created) {
+    // Only hosts that have completed a login get partitions of their own
+    PodPartition partition = (pod.getBag() != null) ? claimPartition(pod.getHostName()) : getPartitionForHost(pod.getHostName());
+    PodSnapshot snapshot = new PodSnapshot(pod, created, getAccessGeneration(), trace, partition,
+                                           statistics.getHostKey(pod));
+    if (pods.putIfAbsent(pod.getSessionID(), snapshot) != null) {
+      return null;
+    }
+
+    statistics.added(snapshot);
+    if (partition != null) {
+      partition.getStatistics().added(snapshot);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Changes the state of a published Pod. The update is applied to a copy of the current
+   * version which then replaces it atomically. If the Pod is replaced by another thread
+   * in the meantime, the update is retried against the newer version.
+   *
+   * @param sessionID the session ID of the Pod
+   * @param update the change to make
+   * @return the new version of the Pod or null if there isn't a Pod for the session
+   */
+  public Pod update(String sessionID, PodUpdate update) {
+    while (true) {
+      PodSnapshot current = getSnapshot(sessionID);
+      if (current == null) {
+        return null;
+      }
+
+      Pod pod = copy(current.getPod());
+      update.apply(pod);
+
+      // A Pod whose login has just completed moves to its host's own partition
+      PodPartition partition = current.getPartition();
+      if ((partition != null) && (current.getPod().getBag() == null) && (pod.getBag() != null)) {
+        partition = claimPartition(pod.getHostName());
+      }
+
+      PodSnapshot snapshot = new PodSnapshot(pod, current.getCreated(), current.getAccessGeneration(),
+                                             current.getLoginTrace(), partition, current.getHostKey());
+      if (pods.replace(sessionID, current, snapshot)) {
+        statistics.replaced(current, snapshot);
+        if (partition != current.getPartition()) {
+          current.getPartition().getStatistics().removed(current);
+          partition.getStatistics().added(snapshot);
+        }
+        else if (partition != null) {
+          partition.getStatistics().replaced(current, snapshot);
+        }
+        checkBudget(partition);
+        return pod;
+      }
+    }
+  }
+
+  /**
+   * Changes some of the attributes of a logged in Pod, e.g. when the Engine learns that an
+   * entitlement has been revoked. Attributes named in the changes replace the Pod's
+   * attributes of the same name and those with an empty or null value are removed. The rest
+   * are left as they were. The SAML response the attributes came in no longer matches them,
+   * so it's replaced with the one in the changes, if the Engine sent one, or cleared. The
+   * new version of the Pod gets its attribute layout from the old one's, so only the
+   * attributes that changed are laid out again.
+   *
+   * @param sessionID the session ID of the Pod
+   * @param changes the changed attributes
+   * @return the new version of the Pod or null if there isn't a logged in Pod for the session
+   */
+  public Pod refresh(String sessionID, Bag changes) {
+    while (true) {
+      PodSnapshot current = getSnapshot(sessionID);
+      if ((current == null) || (current.getPod().getBag() == null)) {
+        return null;
+      }
+
+      Bag bag = applyChanges(current.getPod().getBag(), changes);
+      BagStore bagStore = this.bagStore;
+      if (bagStore != null) {
+        bag = bagStore.intern(bag);
+      }
+
+      Pod pod = copy(current.getPod());
+      pod.setBag(bag);
+
+      PodSnapshot snapshot = new PodSnapshot(pod, current.getCreated(), current.getAccessGeneration(),
+                                             current.getLoginTrace(), current.getPartition(), current.getHostKey());
+      AttributeLayout layout = current.getAttributeLayout();
+      if (layout != null) {
+        snapshot.setAttributeLayout(layout.refresh(bag));
+      }
+      if (pods.replace(sessionID, current, snapshot)) {
+        statistics.replaced(current, snapshot);
+        if (current.getPartition() != null) {
+          current.getPartition().getStatistics().replaced(current, snapshot);
+        }
+        checkBudget(current.getPartition());
+        return pod;
+      }
+    }
+  }
+
+  /**
+   * Removes a Pod from the store, thus ending its session.
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the Pod that was removed or null if there wasn't one for the session
+   */
+  public Pod remove(String sessionID) {
+    if (sessionID == null) return null;
+    PodSnapshot snapshot = pods.remove(sessionID);
+    OffHeapPodIndex offHeap = this.offHeap;
+    if (offHeap != null) {
+      OffHeapPodIndex.Entry entry = offHeap.remove(sessionID);
+      if (entry != null) {
+        countOffHeap(entry.getPartition(), -1, false);
+      }
+    }
+    if (snapshot == null) {
+      return null;
+    }
+
+    countRemoved(snapshot);
+    removed(snapshot);
+    return snapshot.getPod();
+  }
+
+  /**
+   * Removes a version of a Pod from the store, unless the Pod has changed since. Use this
+   * rather than remove(sessionID) to act on a snapshot taken earlier, so a change made in
+   * the meantime, e.g. the login completing, isn't thrown away.
+   *
+   * @param snapshot the version of the Pod to remove
+   * @return true if the Pod was removed, false if it has changed or gone
+   */
+  public boolean remove(PodSnapshot snapshot) {
+    if (!pods.remove(snapshot.getPod().getSessionID(), snapshot)) {
+      return false;
+    }
+
+    countRemoved(snapshot);
+    removed(snapshot);
+    return true;
+  }
+
+  /**
+   * Removes a Pod that's out of the heap, unless it has been moved back into the heap since,
+   * where it may have changed.
+   *
+   * @param sessionID the session ID of the Pod
+   * @return true if the Pod was removed, false if it isn't out of the heap
+   */
+  public boolean removeOffHeap(String sessionID) {
+    OffHeapPodIndex offHeap = this.offHeap;
+    if ((sessionID == null) || (offHeap == null)) return false;
+
+    OffHeapPodIndex.Entry entry = offHeap.remove(sessionID);
+    if (entry == null) {
+      return false;
+    }
+    countOffHeap(entry.getPartition(), -1, false);
+    return true;
+  }
+
+  /**
+   * Ends a Pod's session on this node and, if there's an InvalidationBus, on the other nodes.
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the Pod that was removed from this node or null if this node didn't have it
+   */
+  public Pod deactivate(String sessionID) {
+    if (sessionID == null) return null;
+    Pod pod = remove(sessionID);
+
+    GuardEvents events = this.events;
+    if ((events != null) && (pod != null)) {
+      events.loggedOut(pod.getHostName());
+    }
+
+    InvalidationBus bus = invalidationBus;
+    if (bus != null) {
+      bus.publish(sessionID);
+    }
+    return pod;
+  }
+
+  /**
+   * Sets the bus that tells the other nodes about deactivated Pods. The bus must already be
+   * started, and is stopped when the store is shut down.
+   *
+   * @param invalidationBus the bus or null if there's only one node
+   */
+  public void setInvalidationBus(InvalidationBus invalidationBus) {
+    this.invalidationBus = invalidationBus;
+  }
+
+  /**
+   * Sets what receives the store's events for profiling
+   *
+   * @param events the events or null to turn them off
+   */
+  public void setEvents(GuardEvents events) {
+    this.events = events;
+  }
+
+  /**
+   * Sets the store that lets Pods with the same attributes share a Bag
+   *
+   * @param bagStore the store or null for each Pod to have its own Bag
+   */
+  public void setBagStore(BagStore bagStore) {
+    this.bagStore = bagStore;
+  }
+
+  /**
+   * Moves Pods out of the heap rather than evicting them when the store is over its memory
+   * budget, and back when they're used again. This must be called before any Pods are added.
+   *
+   * @param capacity the most memory the Pods out of the heap can use, in bytes
+   * @param mappedFile the file to map that memory from or null to use direct memory
+   * @throws IOException if the file can't be opened
+   */
+  public synchronized void setOffHeap(long capacity, File mappedFile) throws IOException {
+    offHeap = new OffHeapPodIndex(capacity, mappedFile, context);
+  }
+
+  /**
+   * Sets what chooses the Engine GPS endpoint for each login. The store tells it how the
+   * logins it chose endpoints for turned out.
+   *
+   * @param engineSelector the selector or null if there's only one endpoint
+   */
+  public void setEngineSelector(EngineSelector engineSelector) {
+    this.engineSelector = engineSelector;
+  }
+
+  /**
+   * @return what chooses the Engine GPS endpoint for each login, or null if there's only one
+   */
+  public EngineSelector getEngineSelector() {
+    return engineSelector;
+  }
+
+  /**
+   * Chooses the Engine GPS endpoint to send a Pod's login to, and remembers it in the Pod's
+   * LoginTrace so the endpoint can be scored on how the login turns out.
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the index of the endpoint, 0 if there's only one
+   */
+  public int selectEngine(String sessionID) {
+    EngineSelector selector = engineSelector;
+    if (selector == null) return 0;
+
+    int engine = selector.select();
+    PodSnapshot snapshot = getSnapshot(sessionID);
+    if (snapshot != null) {
+      snapshot.getLoginTrace().setEngine(engine);
+      selector.sent(engine);
+    }
+    return engine;
+  }
+
+  /**
+   * @return the Pods moved out of the heap, or null if Pods are evicted instead
+   */
+  public OffHeapPodIndex getOffHeap() {
+    return offHeap;
+  }
+
+  /**
+   * @return the store sharing Bags between Pods, or null if each Pod has its own
+   */
+  public BagStore getBagStore() {
+    return bagStore;
+  }
+
+  /**
+   * @return the bus that tells the other nodes about deactivated Pods or null if there isn't one
+   */
+  public InvalidationBus getInvalidationBus() {
+    return invalidationBus;
+  }
+
+  /**
+   * Retrieves the live figures for the Pods in the store
+   *
+   * @return the store's statistics
+   */
+  public PodStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Retrieves the figures for the logins of the Pods in the store
+   *
+   * @return the store's login funnel
+   */
+  public LoginFunnel getLoginFunnel() {
+    return loginFunnel;
+  }
+
+  /**
+   * Records that a Pod's login has reached a stage
+   *
+   * @param sessionID the session ID of the Pod
+   * @param stage the stage, one of the LoginTrace stages
+   */
+  public void reached(String sessionID, int stage) {
+    PodSnapshot snapshot = getSnapshot(sessionID);
+    if (snapshot != null) {
+      loginFunnel.reached(snapshot, stage);
+    }
+  }
+
+  /**
+   * Verifies a session for the Engine, recording how long the Engine took to call back
+   * against the endpoint the login was sent to
+   *
+   * @param sessionID the session ID of the Pod
+   * @return true if there's a Pod for the session
+   */
+  public boolean verify(String sessionID) {
+    PodSnapshot snapshot = getSnapshot(sessionID);
+    if (snapshot == null) {
+      return false;
+    }
+
+    EngineSelector selector = engineSelector;
+    if (selector != null) {
+      selector.verified(snapshot.getLoginTrace(), System.currentTimeMillis());
+    }
+    return true;
+  }
+
+  /**
+   * Sets the most memory the Pods can use.
+   *
+   * @param memoryBudget the budget in bytes, or 0 for no limit
+   */
+  public void setMemoryBudget(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+    checkBudget(null);
+  }
+
+  /**
+   * Sets the share of the memory budget, of the store and of each partition, for Pods
+   * waiting for attributes
+   *
+   * @param pendingShare the share as a percentage of the budget
+   */
+  public void setPendingShare(int pendingShare) {
+    this.pendingShare = Math.max(1, Math.min(100, pendingShare));
+  }
+
+  /**
+   * Sets how long a Pod can wait for attributes before it expires. This is separate from
+   * the idle timeout and applies whether or not there is one.
+   *
+   * @param pendingTimeout the timeout in milliseconds, or 0 for no timeout
+   */
+  public synchronized void setPendingTimeout(long pendingTimeout) {
+    this.pendingTimeout = Math.max(0, pendingTimeout);
+    scheduleSweep();
+  }
+
+  /**
+   * Determines whether there's room for new Pods within the memory budget. New Pods wait
+   * for attributes so only have to fit in the share for those, as authenticated Pods are
+   * evicted to make room for logins that complete.
+   *
+   * @return true if new Pods can be created
+   */
+  public boolean hasCapacity() {
+    return hasPendingCapacity(statistics, memoryBudget, pendingShare);
+  }
+
+  /**
+   * Determines whether there's room for a new Pod for a host, within both the store's memory
+   * budget and that of the host's partition
+   *
+   * @param host the host the Pod would be for
+   * @return true if the Pod can be created
+   */
+  public boolean hasCapacity(String host) {
+    if (!hasCapacity()) return false;
+    PodPartition partition = getPartitionForHost(host);
+    return (partition == null) || (partition.hasCapacity(pendingShare));
+  }
+
+  /**
+   * Determines whether Pods waiting for attributes are within their share of a budget
+   *
+   * @param figures the statistics of the store or partition
+   * @param budget the memory budget in bytes, or 0 for no limit
+   * @param pendingShare the share for Pods waiting for attributes as a percentage of the budget
+   * @return true if there's room for another Pod waiting for attributes
+   */
+  static boolean hasPendingCapacity(PodStatistics figures, long budget, int pendingShare) {
+    return (budget <= 0) || (figures.getPendingSize() < (budget / 100) * pendingShare);
+  }
+
+  /**
+   * Accounts for a new Pod for a host that was refused because there wasn't room for it
+   *
+   * @param host the host the Pod would have been for
+   */
+  public void shed(String host) {
+    statistics.shed();
+    PodPartition partition = getPartitionForHost(host);
+    if (partition != null) {
+      partition.getStatistics().shed();
+    }
+  }
+
+  /**
+   * Partitions the store by host name. This must be called before any Pods are added. The
+   * hosts with budgets of their own get their partitions straight away.
+   *
+   * @param maxPartitions the most partitions there can be. Hosts beyond that share one
+   * @param defaultBudget the memory budget in bytes of a partition that isn't in budgets, or 0 for no limit
+   * @param budgets the memory budgets in bytes of particular hosts
+   */
+  public synchronized void setPartitioned(int maxPartitions, long defaultBudget, Map<String, Long> budgets) {
+    this.maxPartitions = Math.max(1, maxPartitions);
+    this.defaultPartitionBudget = defaultBudget;
+    this.partitionBudgets = new HashMap<String, Long>();
+    ConcurrentHashMap<String, PodPartition> newPartitions = new ConcurrentHashMap<String, PodPartition>();
+    newPartitions.put(PodPartition.OTHER_HOSTS, new PodPartition(PodPartition.OTHER_HOSTS, defaultBudget));
+    for (Map.Entry<String, Long> budget : budgets.entrySet()) {
+      String name = getPartitionName(budget.getKey());
+      partitionBudgets.put(name, budget.getValue());
+      newPartitions.put(name, new PodPartition(name, budget.getValue()));
+    }
+    partitions = newPartitions;
+  }
+
+  /**
+   * Retrieves the partition a Pod belongs to
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the partition or null if there isn't a Pod for the session or the store isn't partitioned
+   */
+  public PodPartition getPartition(String sessionID) {
+    PodSnapshot snapshot = getSnapshot(sessionID);
+    return (snapshot != null) ? snapshot.getPartition() : null;
+  }
+
+  /**
+   * Retrieves the partition for a host. This never creates a partition, as the host may be
+   * made up, so a host without one of its own gets the overflow partition.
+   *
+   * @param host the host, as in the Host header
+   * @return the partition or null if the store isn't partitioned
+   */
+  public PodPartition getPartitionForHost(String host) {
+    ConcurrentHashMap<String, PodPartition> currentPartitions = partitions;
+    if (currentPartitions == null) return null;
+
+    PodPartition partition = currentPartitions.get(getPartitionName(host));
+    if (partition == null) {
+      partition = currentPartitions.get(PodPartition.OTHER_HOSTS);
+    }
+    partition.used(System.currentTimeMillis());
+    return partition;
+  }
+
+  /**
+   * Retrieves the partition for a host that has completed a login, creating it if the host
+   * is new and there's room. Creating partitions is rare, so it's done under a lock to keep
+   * the number of partitions within the cap.
+   *
+   * @param host the host, as in the Host header
+   * @return the partition or null if the store isn't partitioned
+   */
+  private PodPartition claimPartition(String host) {
+    ConcurrentHashMap<String, PodPartition> currentPartitions = partitions;
+    if (currentPartitions == null) return null;
+
+    String name = getPartitionName(host);
+    PodPartition partition = currentPartitions.get(name);
+    if (partition == null) {
+      synchronized (currentPartitions) {
+        partition = currentPartitions.get(name);
+        if (partition == null) {
+          if (currentPartitions.size() >= maxPartitions) {
+            dropIdlePartitions(currentPartitions);
+          }
+          if (currentPartitions.size() < maxPartitions) {
+            partition = new PodPartition(name, defaultPartitionBudget);
+            currentPartitions.put(name, partition);
+          }
+          else {
+            partition = currentPartitions.get(PodPartition.OTHER_HOSTS);
+          }
+        }
+      }
+    }
+    partition.used(System.currentTimeMillis());
+    return partition;
+  }
+
+  /**
+   * Drops the partitions of hosts that have had no Pods for PARTITION_IDLE_TIMEOUT. The
+   * overflow partition and those of hosts with budgets of their own are kept.
+   *
+   * @param currentPartitions the partitions, locked by the caller
+   */
+  private void dropIdlePartitions(ConcurrentHashMap<String, PodPartition> currentPartitions) {
+    long now = System.currentTimeMillis();
+    for (PodPartition partition : currentPartitions.values()) {
+      if ((partition.getHost() != null) && (!partitionBudgets.containsKey(partition.getName())) &&
+          (partition.isIdle(now, PARTITION_IDLE_TIMEOUT))) {
+        currentPartitions.remove(partition.getName(), partition);
+      }
+    }
+  }
+
+  /**
+   * Works out the partition name for a host. Host headers can carry a port, which doesn't
+   * make a different tenant, so it's dropped.
+   *
+   * @param host the host, as in the Host header
+   * @return the name of the host's partition
+   */
+  static String getPartitionName(String host) {
+    if ((host == null) || (host.length() == 0)) return PodPartition.OTHER_HOSTS;
+
+    host = host.toLowerCase();
+    if (host.startsWith("[")) {
+      // An IPv6 literal, whose port follows the closing bracket
+      int end = host.indexOf(']');
+      return (end != -1) ? host.substring(0, end + 1) : host;
+    }
+    int colon = host.indexOf(':');
+    return ((colon != -1) && (host.indexOf(':', colon + 1) == -1)) ? host.substring(0, colon) : host;
+  }
+
+  /**
+   * @return the store's partitions or an empty collection if the store isn't partitioned
+   */
+  public Collection<PodPartition> getPartitions() {
+    ConcurrentHashMap<String, PodPartition> currentPartitions = partitions;
+    if (currentPartitions == null) return Collections.emptyList();
+    return currentPartitions.values();
+  }
+
+  /**
+   * Starts eviction in the background if the authenticated Pods are over their share of the
+   * store's memory budget or that of their partition. This only compares a couple of figures,
+   * so it's cheap enough to run on every change.
+   *
+   * @param partition the partition that has grown, or null if the store isn't partitioned
+   */
+  private void checkBudget(PodPartition partition) {
+    long budget = getAuthenticatedBudget(memoryBudget);
+    if ((budget > 0) && (statistics.getAuthenticatedSize() > budget)) {
+      scheduleEviction(null, statistics, budget, evicting);
+    }
+
+    if (partition != null) {
+      budget = getAuthenticatedBudget(partition.getMemoryBudget());
+      if ((budget > 0) && (partition.getStatistics().getAuthenticatedSize() > budget)) {
+        scheduleEviction(partition, partition.getStatistics(), budget, partition.getEvicting());
+      }
+    }
+  }
+
+  /**
+   * Works out the share of a memory budget for authenticated Pods
+   *
+   * @param budget the memory budget in bytes, or 0 for no limit
+   * @return the share in bytes, or 0 for no limit
+   */
+  private long getAuthenticatedBudget(long budget) {
+    return (budget <= 0) ? 0 : Math.max(1, (budget / 100) * (100 - pendingShare));
+  }
+
+  /**
+   * Hands eviction to the evictor thread, unless it's already underway for the store or
+   * partition
+   *
+   * @param partition the partition to evict from, or null for the whole store
+   * @param figures the statistics of the store or partition
+   * @param budget the authenticated Pods' share of the memory budget in bytes
+   * @param inProgress whether eviction from the store or partition is underway
+   */
+  private void scheduleEviction(final PodPartition partition, final PodStatistics figures, final long budget,
+                                final AtomicBoolean inProgress) {
+    if (!inProgress.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      evictor.execute(new Runnable() {
+        public void run() {
+          try {
+            evict(partition, figures, budget);
+          }
+          catch (RuntimeException re) {
+            logger.error("Pod eviction failed", re);
+          }
+          finally {
+            inProgress.set(false);
+          }
+          // Pods added while this ran didn't start another round, so check for them
+          if (figures.getAuthenticatedSize() > budget) {
+            scheduleEviction(partition, figures, budget, inProgress);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException ree) {
+      // The store has been shut down
+      inProgress.set(false);
+    }
+  }
+
+  /**
+   * Accounts for a snapshot that has left the store
+   *
+   * @param snapshot the snapshot
+   */
+  private void countRemoved(PodSnapshot snapshot) {
+    statistics.removed(snapshot);
+    if (snapshot.getPartition() != null) {
+      snapshot.getPartition().getStatistics().removed(snapshot);
+    }
+  }
+
+  /**
+   * Updates the statistics for a Pod moving out of the heap, or back in or being removed
+   * from there
+   *
+   * @param partitionName the name of the partition the Pod was in when it left the heap, or null
+   * @param delta 1 for a Pod moved out, -1 for one moved back or removed
+   * @param expired whether the Pod was removed because it expired
+   */
+  private void countOffHeap(String partitionName, int delta, boolean expired) {
+    statistics.movedOffHeap(delta);
+    if (expired) {
+      statistics.expired();
+    }
+
+    ConcurrentHashMap<String, PodPartition> currentPartitions = partitions;
+    PodPartition partition = ((partitionName != null) && (currentPartitions != null)) ?
+                             currentPartitions.get(partitionName) : null;
+    if (partition != null) {
+      partition.getStatistics().movedOffHeap(delta);
+      if (expired) {
+        partition.getStatistics().expired();
+      }
+    }
+  }
+
+  /**
+   * Evicts the least recently used authenticated Pods until they're back down to
+   * EVICTION_TARGET percent of their share of the memory budget. Runs on the evictor thread.
+   *
+   * Rather than sorting the candidates, their sizes are totalled by access generation and
+   * the oldest generations that cover the excess are evicted. The generation they stop part
+   * way through is evicted in whatever order the map gives.
+   *
+   * @param partition the partition to evict from, or null for the whole store
+   * @param figures the statistics of the store or partition
+   * @param budget the authenticated Pods' share of the memory budget in bytes
+   */
+  private void evict(PodPartition partition, PodStatistics figures, long budget) {
+    long excess = figures.getAuthenticatedSize() - ((budget / 100) * EVICTION_TARGET);
+    if (excess <= 0) {
+      return;
+    }
+
+    // Fix the access generations so they can't change while the cut off is worked out
+    List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>();
+    Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+    for (PodSnapshot snapshot : pods.values()) {
+      if ((snapshot.getPod().getBag() != null) && ((partition == null) || (snapshot.getPartition() == partition))) {
+        EvictionCandidate candidate = new EvictionCandidate(snapshot);
+        candidates.add(candidate);
+        Integer generation = Integer.valueOf(candidate.accessGeneration);
+        Long size = sizes.get(generation);
+        sizes.put(generation, Long.valueOf(((size != null) ? size.longValue() : 0) + snapshot.getSize()));
+      }
+    }
+
+    List<Integer> generations = new ArrayList<Integer>(sizes.keySet());
+    Collections.sort(generations);
+    int cutOff = Integer.MIN_VALUE;
+    long covered = 0;
+    for (Integer generation : generations) {
+      cutOff = generation.intValue();
+      covered += sizes.get(generation).longValue();
+      if (covered >= excess) break;
+    }
+
+    GuardEvents events = this.events;
+    int evicted = 0;
+    int stored = 0;
+    // Older generations in full first, then the cut off generation until the excess is gone
+    for (int pass = 0; (pass < 2) && (excess > 0); pass++) {
+      for (EvictionCandidate candidate : candidates) {
+        if (excess <= 0) break;
+        if ((pass == 0) ? (candidate.accessGeneration >= cutOff) : (candidate.accessGeneration != cutOff)) continue;
+
+        PodSnapshot snapshot = candidate.snapshot;
+        if (store(snapshot, candidate.accessGeneration)) {
+          excess -= snapshot.getSize();
+          stored++;
+          continue;
+        }
+        if (pods.remove(snapshot.getPod().getSessionID(), snapshot)) {
+          countRemoved(snapshot);
+          statistics.evicted();
+          if (snapshot.getPartition() != null) {
+            snapshot.getPartition().getStatistics().evicted();
+          }
+          removed(snapshot);
+          if (events != null) {
+            events.podEvicted(snapshot.getPod().getHostName(), snapshot.getSize());
+          }
+          excess -= snapshot.getSize();
+          evicted++;
+        }
+      }
+    }
+
+    logger.info("Evicted " + evicted + " pods and moved " + stored + " out of the heap to stay within memory budget of " + budget + " bytes" +
+                ((partition != null) ? " for " + partition.getName() : ""));
+  }
+
+  /**
+   * Sets how long Pods can go unused before they expire. This must be called before any
+   * Pods are added, as it sets the length of the access generations to a tenth of the
+   * timeout, or a second if that's longer.
+   *
+   * @param idleTimeout the idle timeout in milliseconds, or 0 for no timeout
+   */
+  public synchronized void setIdleTimeout(long idleTimeout) {
+    if (idleTimeout <= 0) {
+      idleGenerations = 0;
+    }
+    else {
+      accessResolution = Math.max(1000, idleTimeout / 10);
+      idleGenerations = (int)Math.max(1, idleTimeout / accessResolution);
+    }
+    scheduleSweep();
+  }
+
+  /**
+   * (Re)starts the background sweep for the current timeouts. It runs once per access
+   * generation with an idle timeout, otherwise ten times per pending timeout.
+   */
+  private synchronized void scheduleSweep() {
+    if (sweeper != null) {
+      sweeper.cancel();
+      sweeper = null;
+    }
+    if ((idleGenerations <= 0) && (pendingTimeout <= 0)) {
+      return;
+    }
+
+    long period = (idleGenerations > 0) ? accessResolution : Math.max(1000, pendingTimeout / 10);
+    sweeper = new Timer("Guard idle Pod sweeper", true);
+    sweeper.schedule(new TimerTask() {
+      public void run() {
+        sweep();
+      }
+    }, period, period);
+  }
+
+  /**
+   * Stops the store's background work. Called when the Guard is taken out of service.
+   */
+  public synchronized void shutdown() {
+    evictor.shutdownNow();
+    if (sweeper != null) {
+      sweeper.cancel();
+      sweeper = null;
+    }
+    if (invalidationBus != null) {
+      invalidationBus.stop();
+      invalidationBus = null;
+    }
+    if (offHeap != null) {
+      offHeap.close();
+      offHeap = null;
+    }
+  }
+
+  /**
+   * Works out the current access generation
+   *
+   * @return the number of whole accessResolution periods since the store was created
+   */
+  public int getAccessGeneration() {
+    return (int)((System.currentTimeMillis() - epoch) / accessResolution);
+  }
+
+  /**
+   * Opportunity for extending stores to record a Pod's first use in a new access generation,
+   * e.g. in a persistent or remote copy of the Pod. This is called at most once per
+   * generation per Pod, rather than on every request.
+   *
+   * @param snapshot the snapshot that was used
+   */
+  protected void accessed(PodSnapshot snapshot) {
+  }
+
+  /**
+   * Opportunity for extending stores to clean up after a Pod that has left the store, for
+   * whatever reason. By default this records an unfinished login as abandoned, settles the
+   * Engine it was sent to if the Engine never verified it, and deletes any of the Pod's
+   * parameters that were spilled to disk and never replayed.
+   *
+   * @param snapshot the last snapshot of the Pod
+   */
+  protected void removed(PodSnapshot snapshot) {
+    loginFunnel.removed(snapshot);
+    EngineSelector selector = engineSelector;
+    if (selector != null) {
+      selector.removed(snapshot.getLoginTrace());
+    }
+
+    Object parameters = snapshot.getPod().getRequestParameters();
+    if (parameters instanceof SpilledParameters) {
+      ((SpilledParameters)parameters).discard();
+    }
+  }
+
+  /**
+   * Determines whether a Pod has been unused for longer than the idle timeout
+   *
+   * @param snapshot the snapshot of the Pod
+   * @param generation the current access generation
+   * @return true if the Pod should be expired
+   */
+  private boolean isIdle(PodSnapshot snapshot, int generation) {
+    int idle = idleGenerations;
+    return (idle > 0) && (generation - snapshot.getAccessGeneration() > idle);
+  }
+
+  /**
+   * Determines whether a Pod has been waiting for attributes for longer than the pending timeout
+   *
+   * @param snapshot the snapshot of the Pod
+   * @param now the current time in milliseconds
+   * @return true if the Pod should be expired
+   */
+  private boolean isOverdue(PodSnapshot snapshot, long now) {
+    long timeout = pendingTimeout;
+    return (timeout > 0) && (snapshot.getPod().getBag() == null) && (now - snapshot.getCreated() > timeout);
+  }
+
+  /**
+   * Removes an idle Pod, unless it has been replaced in the meantime
+   *
+   * @param snapshot the snapshot of the idle Pod
+   */
+  private void expire(PodSnapshot snapshot) {
+    if (pods.remove(snapshot.getPod().getSessionID(), snapshot)) {
+      countRemoved(snapshot);
+      statistics.expired();
+      if (snapshot.getPartition() != null) {
+        snapshot.getPartition().getStatistics().expired();
+      }
+      EngineSelector selector = engineSelector;
+      if (selector != null) {
+        selector.expired(snapshot.getLoginTrace());
+      }
+      removed(snapshot);
+    }
+  }
+
+  /**
+   * Expires all the idle Pods and those that have waited too long for attributes. This walks
+   * the store without locking it, so requests carry on as normal while it runs.
+   */
+  private void sweep() {
+    int generation = getAccessGeneration();
+    long now = System.currentTimeMillis();
+    for (PodSnapshot snapshot : pods.values()) {
+      if (isIdle(snapshot, generation) || isOverdue(snapshot, now)) {
+        expire(snapshot);
+      }
+    }
+
+    ConcurrentHashMap<String, PodPartition> currentPartitions = partitions;
+    if (currentPartitions != null) {
+      synchronized (currentPartitions) {
+        dropIdlePartitions(currentPartitions);
+      }
+    }
+
+    OffHeapPodIndex offHeap = this.offHeap;
+    if ((offHeap != null) && (idleGenerations > 0)) {
+      for (OffHeapPodIndex.Entry entry : offHeap.expire(generation, idleGenerations)) {
+        countOffHeap(entry.getPartition(), -1, true);
+      }
+    }
+  }
+
+  /**
+   * Moves a Pod out of the heap, unless it's been replaced or removed in the meantime. The
+   * Pod is written out before it leaves the map, so it can always be found in one or the
+   * other. It stays counted as authenticated, and in its partition, while it's out.
+   *
+   * @param snapshot the snapshot of the Pod
+   * @param accessGeneration the access generation the Pod was last used in
+   * @return true if the Pod was moved
+   */
+  private boolean store(PodSnapshot snapshot, int accessGeneration) {
+    OffHeapPodIndex offHeap = this.offHeap;
+    String partitionName = (snapshot.getPartition() != null) ? snapshot.getPartition().getName() : null;
+    if ((offHeap == null) || (!offHeap.put(snapshot.getPod(), snapshot.getCreated(), accessGeneration, partitionName))) {
+      return false;
+    }
+    countOffHeap(partitionName, 1, false);
+
+    String sessionID = snapshot.getPod().getSessionID();
+    if (!pods.remove(sessionID, snapshot)) {
+      OffHeapPodIndex.Entry entry = offHeap.remove(sessionID);
+      if (entry != null) {
+        countOffHeap(entry.getPartition(), -1, false);
+      }
+      return false;
+    }
+    countRemoved(snapshot);
+
+    // The parameters went out with the Pod so the copy on disk isn't needed
+    Object parameters = snapshot.getPod().getRequestParameters();
+    if (parameters instanceof SpilledParameters) {
+      ((SpilledParameters)parameters).discard();
+    }
+    return true;
+  }
+
+  /**
+   * Moves a Pod back into the heap. If another thread gets there first its copy is used,
+   * and if the Pod is removed in the meantime it stays removed.
+   *
+   * @param sessionID the session ID of the Pod
+   * @return the Pod's snapshot or null if it isn't out of the heap either
+   */
+  private PodSnapshot load(String sessionID) {
+    OffHeapPodIndex offHeap = this.offHeap;
+    OffHeapPodIndex.Entry entry = offHeap.get(sessionID);
+    if (entry == null) {
+      return null;
+    }
+
+    int idle = idleGenerations;
+    if ((idle > 0) && (getAccessGeneration() - entry.getAccessGeneration() > idle)) {
+      OffHeapPodIndex.Entry removed = offHeap.remove(sessionID);
+      if (removed != null) {
+        countOffHeap(removed.getPartition(), -1, true);
+      }
+      return null;
+    }
+
+    Pod pod = entry.getPod();
+    BagStore bagStore = this.bagStore;
+    if ((bagStore != null) && (pod.getBag() != null)) {
+      pod.setBag(bagStore.intern(pod.getBag()));
+    }
+
+    PodSnapshot snapshot = publish(pod, completedTrace(System.currentTimeMillis()), entry.getCreated());
+    if (snapshot == null) {
+      return pods.get(sessionID);
+    }
+    if (!offHeap.loaded(sessionID)) {
+      if (pods.remove(sessionID, snapshot)) {
+        countRemoved(snapshot);
+      }
+      return null;
+    }
+    countOffHeap(entry.getPartition(), -1, false);
+
+    checkBudget(snapshot.getPartition());
+    return snapshot;
+  }
+
+  /**
+   * Makes a login trace with every stage reached, for Pods whose logins weren't seen by
+   * this store and shouldn't be counted in its login funnel
+   *
+   * @param now the current time in milliseconds
+   * @return the trace
+   */
+  private LoginTrace completedTrace(long now) {
+    LoginTrace trace = new LoginTrace(now);
+    for (int stage = 0; stage < LoginTrace.STAGE_NAMES.length; stage++) {
+      trace.reach(stage, now);
+    }
+    return trace;
+  }
+
+  /**
+   * Makes a new Bag from a published one and some changes to its attributes
+   *
+   * @param bag the published Bag, which isn't changed
+   * @param changes the changed attributes. Those with an empty or null value are removed
+   * @return the new Bag, with the SAML response from the changes
+   */
+  private Bag applyChanges(Bag bag, Bag changes) {
+    Bag changed = new Bag();
+    changed.setSessionID(bag.getSessionID());
+    changed.setSamlResponse(changes.getSamlResponse());
+    changed.setUnsolicitedMode(bag.isUnsolicitedMode());
+
+    Set<String> changedNames = new LinkedHashSet<String>();
+    if (changes.hasAttributes()) {
+      changedNames.addAll(Collections.list(changes.getAttributeNames()));
+    }
+
+    if (bag.hasAttributes()) {
+      Enumeration<String> names = bag.getAttributeNames();
+      while (names.hasMoreElements()) {
+        String name = names.nextElement();
+        if (!changedNames.contains(name)) {
+          changed.addAttribute(name, bag.getAttributeValue(name));
+        }
+      }
+    }
+    for (String name : changedNames) {
+      String value = changes.getAttributeValue(name);
+      if ((value != null) && (value.length() > 0)) {
+        changed.addAttribute(name, value);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Makes a private copy of a Pod which can be modified before it's published.
+   *
+   * @param pod the Pod to copy
+   * @return a new Pod with the same state
+   */
+  protected Pod copy(Pod pod) {
+    Pod copy = new Pod();
+    copy.setContext(pod.getContext());
+    copy.setSessionID(pod.getSessionID());
+    copy.setRequestScheme(pod.getRequestScheme());
+    copy.setHostName(pod.getHostName());
+    copy.setRequestURL(pod.getRequestURL());
+    copy.setRequestParameters(pod.getRequestParameters());
+    copy.setBag(pod.getBag());
+    return copy;
+  }
+
+  /**
+   * A snapshot being considered for eviction, with its access generation at the time it was considered
+   */
+  private static class EvictionCandidate {
+    final PodSnapshot snapshot;
+    final int accessGeneration;
+
+    EvictionCandidate(PodSnapshot snapshot) {
+      this.snapshot = snapshot;
+      accessGeneration = snapshot.getAccessGeneration();
+    }
+  }
+}
@@ -0,0 +1,34 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import org.guanxi.common.Pod;
+
+/**
+ * A change to the state of a published Pod. The PodStore applies the change to a private
+ * copy of the current Pod and then atomically replaces the published version with it.
+ * If another thread changes the Pod in the meantime the update is applied again to a copy
+ * of the newer version, so implementations must not have side effects.
+ */
+public interface PodUpdate {
+  /**
+   * Applies the change.
+   *
+   * @param pod a private copy of the current Pod which may be freely modified
+   */
+  public void apply(Pod pod);
+}
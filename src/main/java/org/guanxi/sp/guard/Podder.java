@@ -19,14 +19,13 @@ package org.guanxi.sp.guard;
 import java.io.IOException;
 
 import javax.servlet.ServletException;
-import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
-import org.guanxi.common.Pod;
 import org.guanxi.common.filters.FileName;
+import org.guanxi.sp.guard.core.GuardCore;
 
 /**
  * Adds a Pod full of attributes to the system
@@ -40,8 +39,8 @@ public class Podder extends HttpServlet {
 
   /** The config object placed in the servlet context by the Guard filter */
   private GuardConfig config = null;
-  /** The age of the cookie to set */
-  private int cookieAge;
+  /** Makes the Guard's decisions. Shared with the Guard filter */
+  private GuardCore core = null;
 
   public void init() throws ServletException {
 
@@ -51,25 +50,9 @@ public class Podder extends HttpServlet {
     if (config == null)
       throw new ServletException("Podder can't get config");
 
-    // Sort out the cookie's age
-    String cookieMaxAge = config.get("cookie.age");
-    String cookieAgeUnits = config.get("cookie.age.units");
-    if (cookieAgeUnits.equals("seconds"))
-      cookieAge = Integer.parseInt(cookieMaxAge);
-    else if (cookieAgeUnits.equals("minutes"))
-      cookieAge = Integer.parseInt(cookieMaxAge) * 60;
-    else if (cookieAgeUnits.equals("hours"))
-      cookieAge = Integer.parseInt(cookieMaxAge) * 3600;
-    else if (cookieAgeUnits.equals("days"))
-      cookieAge = Integer.parseInt(cookieMaxAge) * 86400;
-    else if (cookieAgeUnits.equals("weeks"))
-      cookieAge = Integer.parseInt(cookieMaxAge) * 604800;
-    else if (cookieAgeUnits.equals("months"))
-      cookieAge = Integer.parseInt(cookieMaxAge) * 2419200;
-    else if (cookieAgeUnits.equals("years"))
-      cookieAge = Integer.parseInt(cookieMaxAge) * 29030400;
-    else if (cookieAgeUnits.equals("transient"))
-      cookieAge = -1;
+    core = (GuardCore)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CORE);
+    if (core == null)
+      throw new ServletException("Podder can't get Guard core");
   }
 
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -104,26 +87,15 @@ public class Podder extends HttpServlet {
     String cookieName = config.get("cookie.prefix") + FileName.encode(postProcessGetGuardId(config.get("entityid"), request));
 
     // "id" is the sessionID set by the Guard filter
-    Pod pod = (Pod)getServletContext().getAttribute(request.getParameter("id"));
-
-    // Create a new Guard cookie
-    logger.debug("Creating a new Guard cookie : name: " + cookieName + " domain: " + cookieDomain);
-    Cookie cookie = new Cookie(cookieName,
-                               pod.getSessionID());
-    cookie.setSecure(true);
-    cookie.setDomain(cookieDomain);
-    cookie.setPath(config.get("cookie.path"));
-
-    // If cookieAge is -1, don't set the MaxAge so we get a transient, in-memory cookie
-    if (cookieAge != -1)
-      cookie.setMaxAge(cookieAge);
-
-    // Add a cookie that points to the pod for this request
-    response.addCookie(cookie);
-    
-    String redirectURL = pod.getRequestScheme() + "://" + pod.getHostName() + pod.getRequestURL();
-
-    logger.debug("Sending redirect:" + redirectURL);
+    String redirectURL = core.completeLogin(new ServletGuardExchange(request, response), request.getParameter("id"),
+                                            cookieName, cookieDomain);
+    if (redirectURL == null) {
+      GuardLog.error(logger, "No pod for session: {}", request.getParameter("id"));
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    GuardLog.debug(logger, "Sending redirect:{}", redirectURL);
     
     // Redirect to the requested resource. The filter will handle access and attributes
     response.sendRedirect(redirectURL);
@@ -0,0 +1,129 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.security.SecureRandom;
+
+/**
+ * The default session ID generator. IDs look like:
+ *
+ * GUARD_node1.q4xn0bK3TfWc1nJ-8a_RZw
+ *
+ * The part before the '.' is the node.id from the Guard config, so a load balancer or a
+ * shared Pod store can tell which node owns a session without asking them all. It's left
+ * out if node.id isn't set. The rest is 128 random bits from a SecureRandom, base64url
+ * encoded.
+ *
+ * Each thread has its own SecureRandom and draws random bytes from it in bulk, so threads
+ * never contend for the generator and most IDs don't touch the SecureRandom at all.
+ */
+public class SecureSessionIDGenerator implements SessionIDGenerator {
+  /** Prefix of all session IDs */
+  public static final String PREFIX = "GUARD_";
+  /** Separates the node from the random part of a session ID */
+  public static final char NODE_SEPARATOR = '.';
+
+  /** Number of random bytes in a session ID */
+  private static final int ID_BYTES = 16;
+  /** Number of session IDs worth of random bytes each thread draws at a time */
+  private static final int IDS_PER_BUFFER = 64;
+  /** The base64url alphabet */
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  /** Each thread's random bytes */
+  private static final ThreadLocal<RandomBuffer> buffers = new ThreadLocal<RandomBuffer>() {
+    protected RandomBuffer initialValue() {
+      return new RandomBuffer();
+    }
+  };
+
+  /** What every session ID from this node starts with */
+  private String prefix = PREFIX;
+
+  public void init(GuardConfig config) {
+    String node = config.get("node.id");
+    if ((node != null) && (node.length() > 0)) {
+      if (!node.matches("[A-Za-z0-9]+")) {
+        throw new IllegalArgumentException("node.id must be letters and digits only: " + node);
+      }
+      prefix = PREFIX + node + NODE_SEPARATOR;
+    }
+  }
+
+  public String generate() {
+    char[] id = new char[prefix.length() + 22];
+    prefix.getChars(0, prefix.length(), id, 0);
+    buffers.get().encodeNext(id, prefix.length());
+    return new String(id);
+  }
+
+  /**
+   * Extracts the node from a session ID
+   *
+   * @param sessionID the session ID
+   * @return the node that generated the ID or null if the ID doesn't include one
+   */
+  public static String getNode(String sessionID) {
+    if ((sessionID == null) || (!sessionID.startsWith(PREFIX))) return null;
+    int separator = sessionID.indexOf(NODE_SEPARATOR, PREFIX.length());
+    return (separator == -1) ? null : sessionID.substring(PREFIX.length(), separator);
+  }
+
+  /**
+   * A thread's supply of random bytes
+   */
+  private static class RandomBuffer {
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] bytes = new byte[ID_BYTES * IDS_PER_BUFFER];
+    private int position = bytes.length;
+
+    /**
+     * Takes the next ID_BYTES random bytes and writes them as 22 characters of unpadded base64url
+     *
+     * @param id where to write the characters
+     * @param offset where to start writing
+     */
+    void encodeNext(char[] id, int offset) {
+      if (position == bytes.length) {
+        random.nextBytes(bytes);
+        position = 0;
+      }
+
+      int end = position + ID_BYTES;
+      int out = offset;
+      // 15 bytes make 20 characters, three bytes at a time
+      while (end - position >= 3) {
+        int bits = ((bytes[position] & 0xFF) << 16) | ((bytes[position + 1] & 0xFF) << 8) | (bytes[position + 2] & 0xFF);
+        id[out++] = ALPHABET[(bits >>> 18) & 0x3F];
+        id[out++] = ALPHABET[(bits >>> 12) & 0x3F];
+        id[out++] = ALPHABET[(bits >>> 6) & 0x3F];
+        id[out++] = ALPHABET[bits & 0x3F];
+        position += 3;
+      }
+      // The last byte makes 2 characters
+      int bits = bytes[position] & 0xFF;
+      id[out++] = ALPHABET[bits >>> 2];
+      id[out] = ALPHABET[(bits & 0x03) << 4];
+      position++;
+
+      // Don't leave used random bytes lying around
+      for (int i = end - ID_BYTES; i < end; i++) {
+        bytes[i] = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.guanxi.sp.guard.core.GuardExchange;
+import org.guanxi.sp.guard.core.RequestPath;
+
+/**
+ * Presents a servlet request and its response to the GuardCore
+ */
+public class ServletGuardExchange implements GuardExchange {
+  private final HttpServletRequest request;
+  private final HttpServletResponse response;
+
+  public ServletGuardExchange(HttpServletRequest request, HttpServletResponse response) {
+    this.request = request;
+    this.response = response;
+  }
+
+  public HttpServletRequest getRequest() {
+    return request;
+  }
+
+  public HttpServletResponse getResponse() {
+    return response;
+  }
+
+  public String getRequestPath() {
+    // The servlet path and path info are decoded and have had path parameters taken out
+    String path = request.getServletPath() + ((request.getPathInfo() != null) ? request.getPathInfo() : "");
+    return RequestPath.normalise(path);
+  }
+
+  public String getRequestURI() {
+    return request.getRequestURI();
+  }
+
+  public String getQueryString() {
+    return request.getQueryString();
+  }
+
+  public String getScheme() {
+    return request.getScheme();
+  }
+
+  public String getHeader(String name) {
+    return request.getHeader(name);
+  }
+
+  public String getRemoteAddr() {
+    return request.getRemoteAddr();
+  }
+
+  public String getCookie(String name) {
+    Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (int i = 0; i < cookies.length; i++) {
+        if (cookies[i].getName().equals(name)) {
+          return cookies[i].getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  public String getParameter(String name) {
+    return request.getParameter(name);
+  }
+
+  public Map<?, ?> getParameterMap() {
+    return request.getParameterMap();
+  }
+
+  public int getContentLength() {
+    return request.getContentLength();
+  }
+
+  public void addCookie(String name, String value, String domain, String path, int maxAge, boolean secure) {
+    Cookie cookie = new Cookie(name, value);
+    cookie.setSecure(secure);
+    if (domain != null) cookie.setDomain(domain);
+    if (path != null) cookie.setPath(path);
+
+    // If maxAge is -1, don't set it so we get a transient, in-memory cookie
+    if (maxAge != -1)
+      cookie.setMaxAge(maxAge);
+
+    response.addCookie(cookie);
+  }
+
+  public void setHeader(String name, String value) {
+    response.setHeader(name, value);
+  }
+
+  public void sendStatus(int status) throws IOException {
+    response.setStatus(status);
+  }
+
+  public void sendError(int status) throws IOException {
+    response.sendError(status);
+  }
+
+  public void sendRedirect(String location) throws IOException {
+    response.sendRedirect(location);
+  }
+}
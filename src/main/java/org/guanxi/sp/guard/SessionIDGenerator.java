@@ -0,0 +1,40 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+/**
+ * Generates the session IDs that identify Pods. The session ID is the value of the Guard's
+ * cookie, so it must be unguessable. It's also passed to the Engine in URLs.
+ *
+ * The Guard uses SecureSessionIDGenerator unless the session.id.generator config option
+ * names another implementation, which must have a public no argument constructor.
+ */
+public interface SessionIDGenerator {
+  /**
+   * Sets up the generator. Called once before any IDs are generated.
+   *
+   * @param config the Guard's config
+   */
+  public void init(GuardConfig config);
+
+  /**
+   * Generates a new session ID. Called concurrently from many threads.
+   *
+   * @return a session ID that's safe to use in cookies and URLs
+   */
+  public String generate();
+}
@@ -23,6 +23,8 @@ import javax.servlet.ServletException;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import org.guanxi.sp.guard.core.GuardCore;
+
 /**
  * REST service for verifying a previously sent session id. An Engine should send it's information as:
  *
@@ -33,7 +35,17 @@ import java.io.PrintWriter;
  */
 @SuppressWarnings("serial")
 public class SessionVerifier extends HttpServlet {
+  /** The store holding the Pods for this webapp */
+  protected PodStore podStore = null;
+  /** Makes the Guard's decisions. Shared with the Guard filter */
+  protected GuardCore core = null;
+
   public void init() throws ServletException {
+    podStore = PodStore.getInstance(getServletContext());
+
+    core = (GuardCore)getServletContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CORE);
+    if (core == null)
+      throw new ServletException("SessionVerifier can't get Guard core");
   }
 
   public void destroy() {
@@ -67,7 +79,7 @@ public class SessionVerifier extends HttpServlet {
     if(processExtendedVerificationAttributes(request,out)) {
     	//output must be written within processExtendedVerificationAttributes
     }
-    else if (getServletContext().getAttribute(sessionID) != null) {
+    else if (core.verifySession(sessionID)) {
       out.write(Definitions.SESSION_VERIFIER_RETURN_VERIFIED);
     }
     else {
@@ -0,0 +1,146 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Request parameters preserved in a Pod that were too big to keep in the heap, so have
+ * been written to a temporary file instead. The file is read back when the parameters are
+ * replayed after the login, then deleted. The Pod only holds on to the file's name, so a
+ * user who abandons a large form submission doesn't pin it in memory.
+ *
+ * Form submissions can hold anything the user typed, so the file is only readable by the
+ * Guard's own user. It's read with an ordinary stream rather than mapped, as a mapping
+ * can't be released on demand and some platforms won't delete a file that's mapped.
+ *
+ * To anything that doesn't know about spilling, such as the size estimates, this looks
+ * like an empty set of parameters.
+ */
+public class SpilledParameters extends AbstractMap<Object, Object> {
+  private static final Logger logger = Logger.getLogger(SpilledParameters.class.getName());
+
+  /** The file holding the parameters */
+  private final File file;
+  /** Whether the parameters have been replayed */
+  private final AtomicBoolean consumed = new AtomicBoolean(false);
+
+  /**
+   * Writes parameters to a new temporary file
+   *
+   * @param parameters the parameters, as name to String[] of values
+   * @param directory where to create the file, or null for the default temporary directory
+   * @return the spilled parameters
+   * @throws IOException if the parameters can't be written
+   */
+  public static SpilledParameters spill(Map<?, ?> parameters, File directory) throws IOException {
+    File file = OwnerOnlyFiles.createTempFile(directory, "guard-params-", ".bin");
+    boolean written = false;
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+        PodCodec.writeParameters(parameters, out);
+      }
+      finally {
+        out.close();
+      }
+      written = true;
+    }
+    finally {
+      if (!written) {
+        file.delete();
+      }
+    }
+    return new SpilledParameters(file);
+  }
+
+  private SpilledParameters(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Reads the parameters back for replaying, then deletes the file. Only the first caller
+   * gets the parameters, so they're replayed once however many requests arrive together.
+   *
+   * @return the parameters or null if they've already been replayed
+   * @throws IOException if the parameters can't be read
+   */
+  public Map<Object, Object> consume() throws IOException {
+    if (!consumed.compareAndSet(false, true)) {
+      return null;
+    }
+
+    try {
+      return load();
+    }
+    finally {
+      discard();
+    }
+  }
+
+  /**
+   * Reads the parameters without deleting the file
+   *
+   * @return the parameters
+   * @throws IOException if the parameters can't be read
+   */
+  public Map<Object, Object> load() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      return PodCodec.readParameters(in);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Deletes the file. Called when the parameters have been replayed or the Pod has gone.
+   */
+  public void discard() {
+    if ((file.exists()) && (!file.delete())) {
+      // Some platforms won't delete a file another thread still has open
+      logger.warn("Can't delete spilled parameters " + file.getPath());
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * @return the file holding the parameters
+   */
+  public File getFile() {
+    return file;
+  }
+
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    return Collections.emptySet();
+  }
+}
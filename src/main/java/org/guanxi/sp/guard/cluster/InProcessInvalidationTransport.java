@@ -0,0 +1,85 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An InvalidationTransport between Guards in the same JVM, e.g. several webapps in one
+ * container, or simulated nodes in a test. Transports on the same channel see each other's
+ * batches.
+ */
+public class InProcessInvalidationTransport implements InvalidationTransport {
+  /** The transports on each channel */
+  private static final Map<String, List<InProcessInvalidationTransport>> channels = new ConcurrentHashMap<String, List<InProcessInvalidationTransport>>();
+
+  /** The channel this transport is on */
+  private final String channel;
+  /** Where to deliver batches from other transports */
+  private volatile InvalidationListener listener = null;
+
+  /**
+   * Creates a transport
+   *
+   * @param channel the name of the channel to join
+   */
+  public InProcessInvalidationTransport(String channel) {
+    this.channel = channel;
+  }
+
+  public void start(InvalidationListener listener) {
+    this.listener = listener;
+    synchronized (channels) {
+      List<InProcessInvalidationTransport> members = channels.get(channel);
+      if (members == null) {
+        members = new CopyOnWriteArrayList<InProcessInvalidationTransport>();
+        channels.put(channel, members);
+      }
+      members.add(this);
+    }
+  }
+
+  public void send(Collection<String> sessionIDs) {
+    List<InProcessInvalidationTransport> members = channels.get(channel);
+    if (members == null) return;
+
+    // Each member gets its own copy so the sender can reuse its collection
+    Collection<String> batch = Collections.unmodifiableList(new ArrayList<String>(sessionIDs));
+    for (InProcessInvalidationTransport member : members) {
+      if ((member != this) && (member.listener != null)) {
+        member.listener.invalidated(batch);
+      }
+    }
+  }
+
+  public void close() {
+    synchronized (channels) {
+      List<InProcessInvalidationTransport> members = channels.get(channel);
+      if (members != null) {
+        members.remove(this);
+        if (members.isEmpty()) channels.remove(channel);
+      }
+    }
+    listener = null;
+  }
+}
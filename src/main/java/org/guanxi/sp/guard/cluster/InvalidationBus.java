@@ -0,0 +1,166 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tells the other Guard nodes when a Pod is deactivated, e.g. by a logout, so they can drop
+ * any copy of it they hold, and does the same for deactivations on other nodes.
+ *
+ * Deactivations are queued by publish(), which never blocks, and sent by a background thread.
+ * The thread waits up to linger milliseconds after the first deactivation for more to arrive
+ * and sends them together, up to batchSize at a time, with duplicates removed. A burst of
+ * logouts therefore becomes a handful of batches rather than a message per logout.
+ */
+public class InvalidationBus {
+  private static final Logger logger = Logger.getLogger(InvalidationBus.class.getName());
+
+  /** Carries the batches between nodes */
+  private final InvalidationTransport transport;
+  /** Deactivations waiting to be sent */
+  private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+  /** How long to wait for more deactivations before sending a batch, in milliseconds */
+  private final long linger;
+  /** The most deactivations in a batch */
+  private final int batchSize;
+  /** Number of deactivations sent */
+  private final AtomicLong sent = new AtomicLong();
+  /** Number of deactivations received */
+  private final AtomicLong received = new AtomicLong();
+  /** Sends the batches */
+  private Thread sender = null;
+  /** Whether the bus is running */
+  private volatile boolean running = false;
+
+  /**
+   * Sets up a bus
+   *
+   * @param transport carries the batches between nodes
+   * @param linger how long to wait for more deactivations before sending a batch, in milliseconds
+   * @param batchSize the most deactivations in a batch
+   */
+  public InvalidationBus(InvalidationTransport transport, long linger, int batchSize) {
+    this.transport = transport;
+    this.linger = linger;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Starts sending and receiving deactivations
+   *
+   * @param listener where to deliver deactivations from other nodes
+   * @throws IOException if the transport can't be started
+   */
+  public synchronized void start(final InvalidationListener listener) throws IOException {
+    transport.start(new InvalidationListener() {
+      public void invalidated(Collection<String> sessionIDs) {
+        received.addAndGet(sessionIDs.size());
+        listener.invalidated(sessionIDs);
+      }
+    });
+
+    running = true;
+    sender = new Thread("Guard invalidation bus") {
+      public void run() {
+        send();
+      }
+    };
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  /**
+   * Stops the bus. Deactivations that haven't been sent yet are dropped.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (sender != null) {
+      sender.interrupt();
+      sender = null;
+    }
+    transport.close();
+  }
+
+  /**
+   * Queues a deactivation to be sent to the other nodes
+   *
+   * @param sessionID the session ID of the deactivated Pod
+   */
+  public void publish(String sessionID) {
+    if (running) {
+      queue.offer(sessionID);
+    }
+  }
+
+  /**
+   * @return the number of deactivations sent to other nodes
+   */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * @return the number of deactivations received from other nodes
+   */
+  public long getReceivedCount() {
+    return received.get();
+  }
+
+  /**
+   * Gathers deactivations into batches and sends them, until the bus is stopped
+   */
+  private void send() {
+    List<String> drained = new ArrayList<String>();
+    while (running) {
+      try {
+        String first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) continue;
+
+        // Give a burst a chance to arrive so it goes as one batch
+        if (linger > 0) {
+          Thread.sleep(linger);
+        }
+
+        Set<String> batch = new LinkedHashSet<String>();
+        batch.add(first);
+        drained.clear();
+        queue.drainTo(drained, batchSize - 1);
+        batch.addAll(drained);
+
+        transport.send(batch);
+        sent.addAndGet(batch.size());
+      }
+      catch (InterruptedException ie) {
+        return;
+      }
+      catch (IOException ioe) {
+        logger.error("Can't send deactivations to other nodes", ioe);
+      }
+    }
+  }
+}
@@ -0,0 +1,31 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.util.Collection;
+
+/**
+ * Receives the session IDs that other Guard nodes have deactivated
+ */
+public interface InvalidationListener {
+  /**
+   * Called when a batch of deactivations arrives from another node
+   *
+   * @param sessionIDs the session IDs of the deactivated Pods
+   */
+  public void invalidated(Collection<String> sessionIDs);
+}
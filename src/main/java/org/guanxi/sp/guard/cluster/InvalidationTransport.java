@@ -0,0 +1,47 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Carries batches of deactivated session IDs between Guard nodes for an InvalidationBus.
+ * A transport must not deliver a node's own batches back to it.
+ */
+public interface InvalidationTransport {
+  /**
+   * Starts receiving batches from other nodes
+   *
+   * @param listener where to deliver the batches
+   * @throws IOException if the transport can't be started
+   */
+  public void start(InvalidationListener listener) throws IOException;
+
+  /**
+   * Sends a batch to all the other nodes
+   *
+   * @param sessionIDs the session IDs of the deactivated Pods
+   * @throws IOException if the batch can't be sent
+   */
+  public void send(Collection<String> sessionIDs) throws IOException;
+
+  /**
+   * Stops the transport
+   */
+  public void close();
+}
@@ -0,0 +1,198 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.PodSnapshot;
+import org.guanxi.sp.guard.PodStore;
+
+/**
+ * Streams the Pods in a PodStore to another node's PodImport service, so the node can be
+ * taken down for maintenance without logging its users out. The Pods are written straight
+ * from the store to the connection in chunks, so a drain never needs more memory than a
+ * chunk however many Pods there are, and a slow receiver slows the drain down rather than
+ * the Pods piling up here.
+ *
+ * Once the receiver has accepted the stream, the Pods that were sent are removed from the
+ * store, without telling the other nodes, so the sessions only live on at the receiver.
+ * Pods created during the export stay, so users still arriving at this node carry on as
+ * before until the load balancer stops sending them here. So do Pods that changed after
+ * they were sent, e.g. because their login completed, as the receiver only has the old
+ * version. Those sessions carry on here rather than being lost.
+ */
+public class PodExporter {
+  private static final Logger logger = Logger.getLogger(PodExporter.class.getName());
+
+  /** The largest response read back from the receiver */
+  private static final int MAX_RESPONSE = 4096;
+
+  /** The store whose Pods are exported */
+  private final PodStore podStore;
+  /** The secret shared with the receiver */
+  private final String secret;
+  /** The number of bytes of Pods in each chunk */
+  private final int chunkSize;
+  /** Connect and read timeout in milliseconds */
+  private final int timeout;
+
+  /**
+   * Sets up an exporter
+   *
+   * @param podStore the store whose Pods are exported
+   * @param secret the secret shared with the receiver
+   * @param chunkSize the number of bytes of Pods in each chunk
+   * @param timeout connect and read timeout in milliseconds
+   */
+  public PodExporter(PodStore podStore, String secret, int chunkSize, int timeout) {
+    this.podStore = podStore;
+    this.secret = secret;
+    this.chunkSize = chunkSize;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Sends all the Pods in the store to another node
+   *
+   * @param target the URL of the other node's PodImport service
+   * @return the Result of the export
+   * @throws GuanxiException if the Pods couldn't all be sent or the receiver refused them
+   */
+  public Result export(String target) throws GuanxiException {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection)new URL(target).openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setChunkedStreamingMode(chunkSize);
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setRequestProperty("Content-Type", PodStream.CONTENT_TYPE);
+
+      OutputStream out = connection.getOutputStream();
+      PodStreamWriter writer = new PodStreamWriter(out, secret, chunkSize);
+      List<PodSnapshot> exported = new ArrayList<PodSnapshot>();
+      for (PodSnapshot snapshot : podStore.getSnapshots()) {
+        writer.write(snapshot.getPod());
+        exported.add(snapshot);
+      }
+      List<String> exportedOffHeap = new ArrayList<String>();
+      if (podStore.getOffHeap() != null) {
+        for (Pod pod : podStore.getOffHeap()) {
+          writer.write(pod);
+          exportedOffHeap.add(pod.getSessionID());
+        }
+      }
+      writer.finish();
+      out.close();
+
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new GuanxiException("Pod import at " + target + " failed with status " + status);
+      }
+      String response = readResponse(connection.getInputStream());
+
+      // The sessions live on at the receiver now, so they mustn't be usable here as well,
+      // unless they've changed since they were sent
+      int removed = 0;
+      for (PodSnapshot snapshot : exported) {
+        if (podStore.remove(snapshot)) {
+          removed++;
+        }
+      }
+      for (String sessionID : exportedOffHeap) {
+        if (podStore.removeOffHeap(sessionID)) {
+          removed++;
+        }
+      }
+
+      logger.info("Exported " + writer.getCount() + " Pods to " + target + ", removed " + removed);
+      return new Result(writer.getCount(), removed, response);
+    }
+    catch (IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+    finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  private String readResponse(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while (((read = in.read(buffer)) != -1) && (response.size() < MAX_RESPONSE)) {
+        response.write(buffer, 0, read);
+      }
+      return response.toString("UTF-8");
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * What happened to an export
+   */
+  public static class Result {
+    private final int exported;
+    private final int removed;
+    private final String response;
+
+    Result(int exported, int removed, String response) {
+      this.exported = exported;
+      this.removed = removed;
+      this.response = response;
+    }
+
+    /**
+     * @return the number of Pods sent
+     */
+    public int getExportedCount() {
+      return exported;
+    }
+
+    /**
+     * @return the number of sent Pods removed from the store afterwards. Pods that had
+     * already gone, e.g. logged out during the export, or that changed after they were
+     * sent and so were kept, aren't counted
+     */
+    public int getRemovedCount() {
+      return removed;
+    }
+
+    /**
+     * @return the receiver's report on the import
+     */
+    public String getResponse() {
+      return response;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.PodStore;
+
+/**
+ * Publishes the Pods streamed from a node being drained. The request thread reads and
+ * authenticates the chunks while a small pool decodes and publishes them, so reading the
+ * network and rebuilding Pods overlap. The pool's queue is bounded and a full queue makes
+ * the request thread decode the chunk itself, which stops it reading, which in turn slows
+ * the sender down. Pods whose session IDs are already in use here are left alone.
+ *
+ * Each stream's nonce is remembered until the stream would be too old anyway, so a stream
+ * that has been captured can't be replayed while it's still fresh either.
+ */
+public class PodImporter {
+  private static final Logger logger = Logger.getLogger(PodImporter.class.getName());
+
+  /** Chunks that can wait for a thread before the request thread decodes them itself */
+  private static final int QUEUE_SIZE = 4;
+
+  /** The store the Pods are published in */
+  private final PodStore podStore;
+  /** The servlet context the Pods belong to */
+  private final ServletContext context;
+  /** The secret shared with the sender */
+  private final String secret;
+  /** How old a stream can be, in milliseconds */
+  private final long maxAge;
+  /** Decodes and publishes chunks */
+  private final ThreadPoolExecutor executor;
+  /** The nonces of the streams that are still fresh, with when they stop being fresh */
+  private final Map<ByteBuffer, Long> nonces = new ConcurrentHashMap<ByteBuffer, Long>();
+
+  /**
+   * Sets up an importer
+   *
+   * @param podStore the store the Pods are published in
+   * @param context the servlet context the Pods belong to
+   * @param secret the secret shared with the sender
+   * @param maxAge how old a stream can be, in milliseconds
+   * @param threads the number of threads decoding chunks
+   */
+  public PodImporter(PodStore podStore, ServletContext context, String secret, long maxAge, int threads) {
+    this.podStore = podStore;
+    this.context = context;
+    this.secret = secret;
+    this.maxAge = maxAge;
+
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                      new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                      new ThreadFactory() {
+                                        private final AtomicInteger count = new AtomicInteger();
+                                        public Thread newThread(Runnable runnable) {
+                                          Thread thread = new Thread(runnable, "guanxi-pod-import-" + count.incrementAndGet());
+                                          thread.setDaemon(true);
+                                          return thread;
+                                        }
+                                      },
+                                      new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Reads a stream and publishes its Pods
+   *
+   * @param in the stream
+   * @return the Result of the import
+   * @throws GuanxiException if the stream isn't from a node that knows the secret or can't be decoded.
+   * Pods in chunks before the bad one will already have been published
+   */
+  public Result importPods(InputStream in) throws GuanxiException {
+    final AtomicInteger imported = new AtomicInteger();
+    final AtomicInteger duplicates = new AtomicInteger();
+    List<Future<?>> tasks = new ArrayList<Future<?>>();
+
+    GuanxiException failure = null;
+    try {
+      PodStreamReader reader = new PodStreamReader(in, secret, maxAge);
+      checkNonce(reader);
+      byte[] chunk;
+      while ((chunk = reader.readChunk()) != null) {
+        final byte[] pods = chunk;
+        tasks.add(executor.submit(new Runnable() {
+          public void run() {
+            try {
+              for (Pod pod : PodStreamReader.decode(pods, context)) {
+                if (podStore.restore(pod)) {
+                  imported.incrementAndGet();
+                }
+                else {
+                  duplicates.incrementAndGet();
+                }
+              }
+            }
+            catch (GuanxiException ge) {
+              throw new IllegalStateException(ge);
+            }
+          }
+        }));
+      }
+    }
+    catch (GuanxiException ge) {
+      failure = ge;
+    }
+
+    // Don't leave chunks being published after the caller thinks the import is over
+    GuanxiException publishFailure = waitFor(tasks);
+    logger.info("Imported " + imported.get() + " Pods, " + duplicates.get() + " already here");
+    if (failure != null) {
+      throw failure;
+    }
+    if (publishFailure != null) {
+      throw publishFailure;
+    }
+
+    return new Result(imported.get(), duplicates.get());
+  }
+
+  /**
+   * Makes sure a stream hasn't been seen before, and forgets the streams that are too old
+   * to be accepted anyway
+   *
+   * @param reader the reader of the stream, which has checked its header
+   * @throws GuanxiException if the stream has been seen before
+   */
+  private void checkNonce(PodStreamReader reader) throws GuanxiException {
+    long now = System.currentTimeMillis();
+    for (Iterator<Long> expiries = nonces.values().iterator(); expiries.hasNext();) {
+      if (expiries.next().longValue() < now) {
+        expiries.remove();
+      }
+    }
+
+    // The reader accepts clocks up to maxAge apart either way
+    Long expiry = Long.valueOf(Math.max(reader.getTimestamp(), now) + maxAge);
+    if (nonces.putIfAbsent(ByteBuffer.wrap(reader.getNonce()), expiry) != null) {
+      throw new GuanxiException("Pod stream replayed");
+    }
+  }
+
+  /**
+   * Stops the threads
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  private GuanxiException waitFor(List<Future<?>> tasks) {
+    GuanxiException failure = null;
+    for (Future<?> task : tasks) {
+      try {
+        task.get();
+      }
+      catch (ExecutionException ee) {
+        Throwable cause = (ee.getCause().getCause() != null) ? ee.getCause().getCause() : ee.getCause();
+        failure = new GuanxiException(cause.getMessage());
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        failure = new GuanxiException("Interrupted waiting for Pods to be published");
+      }
+    }
+    return failure;
+  }
+
+  /**
+   * What happened to an import
+   */
+  public static class Result {
+    private final int imported;
+    private final int duplicates;
+
+    Result(int imported, int duplicates) {
+      this.imported = imported;
+      this.duplicates = duplicates;
+    }
+
+    /**
+     * @return the number of Pods published
+     */
+    public int getImportedCount() {
+      return imported;
+    }
+
+    /**
+     * @return the number of Pods whose session IDs were already in use
+     */
+    public int getDuplicateCount() {
+      return duplicates;
+    }
+  }
+}
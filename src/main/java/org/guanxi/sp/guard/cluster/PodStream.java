@@ -0,0 +1,104 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The stream of Pods sent from a node being drained to the node taking over its sessions.
+ * Pods are written with PodCodec and grouped into chunks, each of which is authenticated
+ * on its own so the receiver can publish a chunk's Pods as soon as it arrives without
+ * trusting anything it hasn't checked. Anyone who could send the receiver Pods could log
+ * in as anyone, so both nodes must share a secret.
+ *
+ * <pre>
+ * magic      'G' 'X' 'M'
+ * version    1 byte
+ * timestamp  8 bytes, when the stream started, in milliseconds
+ * nonce      NONCE_LENGTH random bytes
+ * mac        HMAC-SHA256 of all the above
+ * chunks     int length, that many bytes of Pods, HMAC-SHA256 of nonce, chunk number, length and bytes
+ * end        int 0, HMAC-SHA256 of nonce, chunk number and 0
+ * </pre>
+ *
+ * The nonce and chunk numbers stop chunks being moved between or within streams, and the
+ * authenticated end tells the receiver the stream wasn't cut short.
+ */
+final class PodStream {
+  /** The version of the layout */
+  static final int VERSION = 1;
+  /** Marks the start of a stream */
+  static final byte[] MAGIC = {'G', 'X', 'M'};
+  /** Length of the nonce */
+  static final int NONCE_LENGTH = 16;
+  /** Length of a MAC */
+  static final int MAC_LENGTH = 32;
+  /** The largest chunk a receiver will accept */
+  static final int MAX_CHUNK = 16 * 1024 * 1024;
+  /** The content type of a stream */
+  static final String CONTENT_TYPE = "application/vnd.guanxi.pods";
+
+  private PodStream() {
+  }
+
+  /**
+   * Creates a MAC keyed with the shared secret
+   *
+   * @param secret the secret the nodes share
+   * @return the MAC, ready for use
+   */
+  static Mac createMac(String secret) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"));
+      return mac;
+    }
+    catch (GeneralSecurityException gse) {
+      // HmacSHA256 is always available
+      throw new IllegalStateException(gse);
+    }
+    catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * Works out the MAC of a chunk
+   *
+   * @param mac the keyed MAC
+   * @param nonce the stream's nonce
+   * @param number the number of the chunk in the stream
+   * @param chunk the chunk's bytes
+   * @param length the length of the chunk
+   * @return the MAC
+   */
+  static byte[] chunkMac(Mac mac, byte[] nonce, int number, byte[] chunk, int length) {
+    mac.update(nonce);
+    mac.update(toBytes(number));
+    mac.update(toBytes(length));
+    mac.update(chunk, 0, length);
+    return mac.doFinal();
+  }
+
+  private static byte[] toBytes(int value) {
+    return new byte[] {(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value};
+  }
+}
@@ -0,0 +1,161 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.servlet.ServletContext;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.PodCodec;
+
+/**
+ * Reads a stream of Pods, as described by PodStream, checking each chunk before it's
+ * handed out.
+ */
+public class PodStreamReader {
+  private final DataInputStream in;
+  private final Mac mac;
+  private final byte[] nonce = new byte[PodStream.NONCE_LENGTH];
+  /** When the stream started, by the sender's clock, in milliseconds */
+  private final long timestamp;
+  /** The number of the next chunk */
+  private int chunkNumber = 0;
+  /** Set once the end of the stream has been read */
+  private boolean ended = false;
+
+  /**
+   * Reads and checks the start of a stream
+   *
+   * @param in the stream. It isn't closed
+   * @param secret the secret shared with the sender
+   * @param maxAge how old the stream can be, in milliseconds, to limit replays
+   * @throws GuanxiException if the stream isn't from a node that knows the secret, or is too old
+   */
+  public PodStreamReader(InputStream in, String secret, long maxAge) throws GuanxiException {
+    this.in = new DataInputStream(in);
+    this.mac = PodStream.createMac(secret);
+
+    try {
+      byte[] header = new byte[PodStream.MAGIC.length + 1 + 8 + PodStream.NONCE_LENGTH];
+      this.in.readFully(header);
+      byte[] headerMac = new byte[PodStream.MAC_LENGTH];
+      this.in.readFully(headerMac);
+
+      if (!MessageDigest.isEqual(headerMac, mac.doFinal(header))) {
+        throw new GuanxiException("Pod stream not authenticated");
+      }
+      if (!Arrays.equals(Arrays.copyOf(header, PodStream.MAGIC.length), PodStream.MAGIC)) {
+        throw new GuanxiException("Not a Pod stream");
+      }
+      DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header, PodStream.MAGIC.length,
+                                                                               header.length - PodStream.MAGIC.length));
+      int version = headerIn.readByte();
+      if (version != PodStream.VERSION) {
+        throw new GuanxiException("Unsupported Pod stream version: " + version);
+      }
+      timestamp = headerIn.readLong();
+      long age = System.currentTimeMillis() - timestamp;
+      if (Math.abs(age) > maxAge) {
+        throw new GuanxiException("Pod stream too old: " + age + "ms");
+      }
+      headerIn.readFully(nonce);
+    }
+    catch (IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * @return the stream's nonce, which is unique to the stream
+   */
+  public byte[] getNonce() {
+    return nonce.clone();
+  }
+
+  /**
+   * @return when the stream started, by the sender's clock, in milliseconds
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Reads the next chunk of Pods
+   *
+   * @return the chunk or null at the end of the stream
+   * @throws GuanxiException if the chunk can't be read or wasn't sent by the other node
+   */
+  public byte[] readChunk() throws GuanxiException {
+    if (ended) return null;
+
+    try {
+      int length = in.readInt();
+      if ((length < 0) || (length > PodStream.MAX_CHUNK)) {
+        throw new GuanxiException("Bad Pod stream chunk length: " + length);
+      }
+      byte[] chunk = new byte[length];
+      in.readFully(chunk);
+      byte[] chunkMac = new byte[PodStream.MAC_LENGTH];
+      in.readFully(chunkMac);
+
+      if (!MessageDigest.isEqual(chunkMac, PodStream.chunkMac(mac, nonce, chunkNumber++, chunk, length))) {
+        throw new GuanxiException("Pod stream chunk not authenticated");
+      }
+      if (length == 0) {
+        ended = true;
+        return null;
+      }
+      return chunk;
+    }
+    catch (IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Decodes the Pods in a chunk
+   *
+   * @param chunk the chunk
+   * @param context the servlet context of the webapp the Pods belong to
+   * @return the Pods
+   * @throws GuanxiException if the Pods can't be decoded
+   */
+  public static List<Pod> decode(byte[] chunk, ServletContext context) throws GuanxiException {
+    List<Pod> pods = new ArrayList<Pod>();
+    try {
+      ByteArrayInputStream bytes = new ByteArrayInputStream(chunk);
+      DataInputStream chunkIn = new DataInputStream(bytes);
+      while (bytes.available() > 0) {
+        pods.add(PodCodec.read(chunkIn, context));
+      }
+      return pods;
+    }
+    catch (IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.PodCodec;
+
+/**
+ * Writes a stream of Pods, as described by PodStream. Pods are buffered until there's a
+ * chunk's worth and then written in one go, so a slow receiver holds the writer up a
+ * chunk at a time rather than the writer buffering the whole store.
+ */
+public class PodStreamWriter {
+  private static final SecureRandom random = new SecureRandom();
+
+  private final DataOutputStream out;
+  private final Mac mac;
+  private final byte[] nonce = new byte[PodStream.NONCE_LENGTH];
+  /** The size at which a chunk is written */
+  private final int chunkSize;
+  /** The Pods waiting to be written */
+  private final ByteArrayOutputStream chunk;
+  private final DataOutputStream chunkOut;
+  /** The number of the next chunk */
+  private int chunkNumber = 0;
+  /** The number of Pods written */
+  private int count = 0;
+
+  /**
+   * Starts a stream
+   *
+   * @param out where to write the stream. It isn't closed
+   * @param secret the secret shared with the receiver
+   * @param chunkSize the number of bytes of Pods in each chunk
+   * @throws IOException if the stream can't be written
+   */
+  public PodStreamWriter(OutputStream out, String secret, int chunkSize) throws IOException {
+    this.out = new DataOutputStream(out);
+    this.mac = PodStream.createMac(secret);
+    this.chunkSize = Math.min(chunkSize, PodStream.MAX_CHUNK / 2);
+    chunk = new ByteArrayOutputStream(this.chunkSize + (this.chunkSize / 4));
+    chunkOut = new DataOutputStream(chunk);
+
+    random.nextBytes(nonce);
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream headerOut = new DataOutputStream(header);
+    headerOut.write(PodStream.MAGIC);
+    headerOut.writeByte(PodStream.VERSION);
+    headerOut.writeLong(System.currentTimeMillis());
+    headerOut.write(nonce);
+    byte[] headerBytes = header.toByteArray();
+    this.out.write(headerBytes);
+    this.out.write(mac.doFinal(headerBytes));
+  }
+
+  /**
+   * Adds a Pod to the stream
+   *
+   * @param pod the Pod
+   * @throws IOException if the stream can't be written
+   */
+  public void write(Pod pod) throws IOException {
+    PodCodec.write(pod, chunkOut);
+    count++;
+    if (chunk.size() >= chunkSize) {
+      flushChunk();
+    }
+  }
+
+  /**
+   * Writes any Pods still buffered and ends the stream
+   *
+   * @throws IOException if the stream can't be written
+   */
+  public void finish() throws IOException {
+    flushChunk();
+    out.writeInt(0);
+    out.write(PodStream.chunkMac(mac, nonce, chunkNumber, new byte[0], 0));
+    out.flush();
+  }
+
+  /**
+   * @return the number of Pods written so far
+   */
+  public int getCount() {
+    return count;
+  }
+
+  private void flushChunk() throws IOException {
+    if (chunk.size() == 0) return;
+
+    byte[] bytes = chunk.toByteArray();
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    out.write(PodStream.chunkMac(mac, nonce, chunkNumber++, bytes, bytes.length));
+    out.flush();
+    chunk.reset();
+  }
+}
@@ -0,0 +1,290 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An InvalidationTransport using UDP datagrams, either to a multicast group that all the nodes
+ * have joined or to a list of peer nodes. Batches are split across datagrams small enough to
+ * avoid IP fragmentation.
+ *
+ * Datagram layout:
+ *
+ * <pre>
+ * magic        'G' 'X' 'I'
+ * version      1 byte
+ * sender       8 bytes, random per transport so a node ignores its own multicasts
+ * count        2 bytes
+ * session IDs  modified UTF-8 as written by DataOutputStream.writeUTF, count times
+ * mac          HMAC-SHA256 of all the above, if the nodes share a secret
+ * </pre>
+ *
+ * Anyone who can reach the port could otherwise log users out, so a secret should be set
+ * unless the network is trusted.
+ */
+public class UdpInvalidationTransport implements InvalidationTransport {
+  private static final Logger logger = Logger.getLogger(UdpInvalidationTransport.class.getName());
+
+  /** The version of the datagram layout */
+  private static final int VERSION = 1;
+  /** The largest datagram sent */
+  private static final int MAX_DATAGRAM = 1400;
+  /** Length of the MAC */
+  private static final int MAC_LENGTH = 32;
+  /** Length of everything before the session IDs */
+  private static final int HEADER_LENGTH = 14;
+
+  /** Where to send datagrams */
+  private final List<SocketAddress> destinations = new ArrayList<SocketAddress>();
+  /** The multicast group, or null to send to peers */
+  private final InetAddress group;
+  /** The port to listen on */
+  private final int port;
+  /** The key for the MAC, or null if datagrams aren't authenticated */
+  private final SecretKeySpec key;
+  /** Identifies this transport's datagrams */
+  private final long sender = new SecureRandom().nextLong();
+  /** The socket datagrams are sent and received on */
+  private DatagramSocket socket = null;
+  /** Receives datagrams */
+  private Thread receiver = null;
+
+  /**
+   * Creates a transport that multicasts to a group
+   *
+   * @param group the multicast group all the nodes join
+   * @param port the port all the nodes listen on
+   * @param secret the secret all the nodes share, or null
+   */
+  public UdpInvalidationTransport(InetAddress group, int port, String secret) {
+    this.group = group;
+    this.port = port;
+    this.key = createKey(secret);
+    destinations.add(new InetSocketAddress(group, port));
+  }
+
+  /**
+   * Creates a transport that sends to each of a list of peers
+   *
+   * @param peers the other nodes
+   * @param port the port to listen on
+   * @param secret the secret all the nodes share, or null
+   */
+  public UdpInvalidationTransport(List<InetSocketAddress> peers, int port, String secret) {
+    this.group = null;
+    this.port = port;
+    this.key = createKey(secret);
+    destinations.addAll(peers);
+  }
+
+  public synchronized void start(final InvalidationListener listener) throws IOException {
+    if (group != null) {
+      MulticastSocket multicastSocket = new MulticastSocket(port);
+      multicastSocket.joinGroup(group);
+      socket = multicastSocket;
+    }
+    else {
+      socket = new DatagramSocket(port);
+    }
+
+    final DatagramSocket receiveSocket = socket;
+    receiver = new Thread("Guard invalidation receiver") {
+      public void run() {
+        receive(receiveSocket, listener);
+      }
+    };
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  public synchronized void send(Collection<String> sessionIDs) throws IOException {
+    if (socket == null) return;
+
+    Iterator<String> ids = sessionIDs.iterator();
+    while (ids.hasNext()) {
+      // Fill a datagram with as many session IDs as will fit
+      ByteArrayOutputStream body = new ByteArrayOutputStream(MAX_DATAGRAM);
+      DataOutputStream out = new DataOutputStream(body);
+      int count = 0;
+      int room = MAX_DATAGRAM - HEADER_LENGTH - ((key != null) ? MAC_LENGTH : 0);
+      while ((ids.hasNext()) && (count < 0xFFFF)) {
+        String id = ids.next();
+        out.writeUTF(id);
+        count++;
+        if (body.size() >= room - 256) break;
+      }
+
+      byte[] datagram = seal(count, body.toByteArray());
+      for (SocketAddress destination : destinations) {
+        socket.send(new DatagramPacket(datagram, datagram.length, destination));
+      }
+    }
+  }
+
+  public synchronized void close() {
+    if (receiver != null) {
+      receiver.interrupt();
+      receiver = null;
+    }
+    if (socket != null) {
+      socket.close();
+      socket = null;
+    }
+  }
+
+  /**
+   * Adds the header and MAC to the session IDs for a datagram
+   *
+   * @param count the number of session IDs
+   * @param body the session IDs
+   * @return the datagram
+   * @throws IOException if the MAC can't be worked out
+   */
+  private byte[] seal(int count, byte[] body) throws IOException {
+    ByteArrayOutputStream datagram = new ByteArrayOutputStream(MAX_DATAGRAM);
+    DataOutputStream out = new DataOutputStream(datagram);
+    out.writeByte('G');
+    out.writeByte('X');
+    out.writeByte('I');
+    out.writeByte(VERSION);
+    out.writeLong(sender);
+    out.writeShort(count);
+    out.write(body);
+
+    if (key != null) {
+      out.write(mac(datagram.toByteArray(), datagram.size()));
+    }
+    return datagram.toByteArray();
+  }
+
+  /**
+   * Receives datagrams until the socket is closed
+   *
+   * @param socket the socket to receive on
+   * @param listener where to deliver the session IDs
+   */
+  private void receive(DatagramSocket socket, InvalidationListener listener) {
+    byte[] buffer = new byte[65535];
+    while (!socket.isClosed()) {
+      try {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+
+        List<String> sessionIDs = open(packet.getData(), packet.getLength());
+        if ((sessionIDs != null) && (!sessionIDs.isEmpty())) {
+          listener.invalidated(sessionIDs);
+        }
+      }
+      catch (IOException ioe) {
+        if (!socket.isClosed()) {
+          logger.error("Error receiving deactivations", ioe);
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks and unpacks a datagram
+   *
+   * @param datagram the datagram
+   * @param length the length of the datagram
+   * @return the session IDs or null if the datagram isn't from another node
+   * @throws IOException if the datagram can't be read
+   */
+  private List<String> open(byte[] datagram, int length) throws IOException {
+    int bodyLength = length - ((key != null) ? MAC_LENGTH : 0);
+    if (bodyLength < HEADER_LENGTH) return null;
+
+    if (key != null) {
+      byte[] expected = mac(datagram, bodyLength);
+      byte[] actual = new byte[MAC_LENGTH];
+      System.arraycopy(datagram, bodyLength, actual, 0, MAC_LENGTH);
+      if (!MessageDigest.isEqual(expected, actual)) {
+        logger.warn("Ignoring unauthenticated deactivation datagram");
+        return null;
+      }
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(datagram, 0, bodyLength));
+    if ((in.readByte() != 'G') || (in.readByte() != 'X') || (in.readByte() != 'I') || (in.readByte() != VERSION)) {
+      return null;
+    }
+    if (in.readLong() == sender) {
+      return null;
+    }
+
+    int count = in.readUnsignedShort();
+    List<String> sessionIDs = new ArrayList<String>(Math.min(count, 256));
+    for (int i = 0; i < count; i++) {
+      sessionIDs.add(in.readUTF());
+    }
+    return sessionIDs;
+  }
+
+  /**
+   * Works out the MAC of the start of a datagram
+   *
+   * @param datagram the datagram
+   * @param length how much of it the MAC covers
+   * @return the MAC
+   * @throws IOException if the MAC can't be worked out
+   */
+  private byte[] mac(byte[] datagram, int length) throws IOException {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(key);
+      mac.update(datagram, 0, length);
+      return mac.doFinal();
+    }
+    catch (GeneralSecurityException gse) {
+      throw new IOException(gse.getMessage());
+    }
+  }
+
+  private static SecretKeySpec createKey(String secret) {
+    if ((secret == null) || (secret.length() == 0)) return null;
+    try {
+      return new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256");
+    }
+    catch (IOException ioe) {
+      throw new IllegalStateException(ioe);
+    }
+  }
+}
@@ -0,0 +1,901 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.AccessPolicy;
+import org.guanxi.sp.guard.AdmissionControl;
+import org.guanxi.sp.guard.AttributeLayout;
+import org.guanxi.sp.guard.BagStore;
+import org.guanxi.sp.guard.Definitions;
+import org.guanxi.sp.guard.EngineSelector;
+import org.guanxi.sp.guard.GuardConfig;
+import org.guanxi.sp.guard.GuardEvents;
+import org.guanxi.sp.guard.GuardLog;
+import org.guanxi.sp.guard.HeaderProjection;
+import org.guanxi.sp.guard.IdPCookie;
+import org.guanxi.sp.guard.LoginTrace;
+import org.guanxi.sp.guard.PodSizeEstimator;
+import org.guanxi.sp.guard.PodSnapshot;
+import org.guanxi.sp.guard.PodStore;
+import org.guanxi.sp.guard.PodUpdate;
+import org.guanxi.sp.guard.SessionIDGenerator;
+import org.guanxi.sp.guard.SpilledParameters;
+
+/**
+ * The Guard's decisions, independent of the server it runs in. Given a request as a
+ * GuardExchange the core works out whether it has a Pod, whether the Pod allows access and
+ * which attributes go with it, or else starts a new login. It also does the work of the
+ * Guard's services: verifying sessions for the Engine, adding attributes to Pods and
+ * issuing the Guard cookie once a login completes.
+ *
+ * The Guard filter and servlets are adapters from the servlet API to the core, as is
+ * HttpServerGuard for the JDK's built in HTTP server. Adapters can change how Pods are
+ * found, created and how users are sent to the Engine by overriding the protected methods.
+ */
+public class GuardCore {
+  private static final Logger logger = Logger.getLogger(GuardCore.class.getName());
+  /** Logged on every login so it can be sampled */
+  private static final GuardLog.Sample POD_CREATED = new GuardLog.Sample("pod.created");
+
+  /** The request has a Pod that allows access to the resource */
+  public static final int ALLOWED = 0;
+  /** The request has a Pod but it doesn't allow access to the resource */
+  public static final int DENIED = 1;
+  /** The request doesn't have a Pod and a new login couldn't be started */
+  public static final int REFUSED = 2;
+  /** The request doesn't have a Pod so a new login has been started */
+  public static final int LOGIN = 3;
+
+  /** HTTP status for requests whose parameters are too big to preserve */
+  private static final int SC_REQUEST_ENTITY_TOO_LARGE = 413;
+  /** HTTP status for requests that can't be served right now */
+  private static final int SC_SERVICE_UNAVAILABLE = 503;
+  /** HTTP status for requests that aren't allowed */
+  private static final int SC_FORBIDDEN = 403;
+  /** HTTP status for requests for paths that can't be normalised */
+  private static final int SC_BAD_REQUEST = 400;
+
+  /** The Guard's config */
+  protected final GuardConfig config;
+  /** The store holding the Guard's Pods */
+  protected final PodStore podStore;
+  /** Generates the session IDs for new Pods */
+  protected final SessionIDGenerator sessionIDGenerator;
+  /** The attribute based access rules. null if there aren't any */
+  protected final AccessPolicy accessPolicy;
+  /** Which attributes are passed as headers for which paths. null if they're all passed */
+  protected final HeaderProjection headerProjection;
+  /** Limits the rate at which clients can create new Pods. null if there's no limit */
+  protected AdmissionControl admissionControl = null;
+  /** Remembers which IdP each user last logged in at. null if IdPs aren't remembered */
+  protected final IdPCookie idpCookie;
+  /** How long, in seconds, to tell clients to wait when a new Pod can't be created */
+  protected String retryAfter = "5";
+  /** Preserved parameters bigger than this many bytes are spilled to disk. 0 to keep them all in memory */
+  protected long parameterSpillThreshold = 0;
+  /** Where spilled parameters go, or null for the default temporary directory */
+  protected File parameterSpillDirectory = null;
+  /** Requests with parameters bigger than this many bytes can't start a login. 0 for no limit */
+  protected long maxParameterSize = 0;
+  /** The Engine GPS redirect up to the session ID, for each Engine GPS endpoint */
+  protected final String[] engineGPSPrefixes;
+  /** The entityID parameter for the default IdP, or null if there isn't a default */
+  protected String defaultEntityIDParameter = null;
+  /** The age of the Guard cookie in seconds, or -1 for a transient cookie */
+  protected final int cookieAge;
+  /** Receives events for profiling, or null if they're off */
+  protected GuardEvents events = null;
+
+  /**
+   * Sets up the core from the Guard's config, including the limits on its PodStore
+   *
+   * @param config the Guard's config
+   * @param podStore the store for the Guard's Pods
+   * @param sessionIDGenerator generates the session IDs for new Pods
+   */
+  public GuardCore(GuardConfig config, PodStore podStore, SessionIDGenerator sessionIDGenerator) {
+    this.config = config;
+    this.podStore = podStore;
+    this.sessionIDGenerator = sessionIDGenerator;
+
+    GuardLog.configure(config);
+
+    accessPolicy = AccessPolicy.compile(config);
+    headerProjection = HeaderProjection.compile(config);
+
+    // Expire Pods that haven't been used for a while
+    if (config.get("pod.idle.timeout.minutes") != null) {
+      podStore.setIdleTimeout(Long.parseLong(config.get("pod.idle.timeout.minutes")) * 60000);
+      logger.info("Pod idle timeout: " + config.get("pod.idle.timeout.minutes") + " minutes");
+    }
+
+    // Hold the attributes of users who log in more than once only once
+    if ("true".equals(config.get("pod.bag.dedup"))) {
+      podStore.setBagStore(new BagStore());
+      logger.info("Pod Bags shared by content");
+    }
+
+    // Limit the memory the Pods can use
+    if (config.get("pod.memory.budget.mb") != null) {
+      podStore.setMemoryBudget(Long.parseLong(config.get("pod.memory.budget.mb")) * 1024 * 1024);
+      logger.info("Pod memory budget: " + config.get("pod.memory.budget.mb") + "MB");
+    }
+
+    // Keep the Pods that would be evicted out of the heap instead
+    if (config.get("pod.offheap.mb") != null) {
+      try {
+        podStore.setOffHeap(Long.parseLong(config.get("pod.offheap.mb")) * 1024 * 1024,
+                            (config.get("pod.offheap.file") != null) ? new File(config.get("pod.offheap.file")) : null);
+        logger.info("Pods out of the heap: " + config.get("pod.offheap.mb") + "MB");
+      }
+      catch (IOException ioe) {
+        logger.error("Can't map " + config.get("pod.offheap.file") + ", Pods will be evicted instead", ioe);
+      }
+    }
+    if (config.get("pod.pending.budget.percent") != null) {
+      podStore.setPendingShare(Integer.parseInt(config.get("pod.pending.budget.percent")));
+    }
+
+    // Don't let logins that are never finished hold on to their Pods
+    if (config.get("pod.pending.timeout.minutes") != null) {
+      podStore.setPendingTimeout(Long.parseLong(config.get("pod.pending.timeout.minutes")) * 60000);
+    }
+    if (config.get("pod.retry.after") != null) {
+      retryAfter = String.valueOf(Integer.parseInt(config.get("pod.retry.after")));
+    }
+
+    // Keep large preserved form submissions out of the heap while the user logs in
+    if (config.get("pod.parameters.spill.kb") != null) {
+      parameterSpillThreshold = Long.parseLong(config.get("pod.parameters.spill.kb")) * 1024;
+      if (config.get("pod.parameters.spill.dir") != null) {
+        parameterSpillDirectory = new File(config.get("pod.parameters.spill.dir"));
+      }
+    }
+    if (config.get("pod.parameters.max.kb") != null) {
+      maxParameterSize = Long.parseLong(config.get("pod.parameters.max.kb")) * 1024;
+    }
+
+    // Give each tenant host its own share of the Pods
+    if ("true".equals(config.get("pod.partition.by.host"))) {
+      Map<String, Long> budgets = new HashMap<String, Long>();
+      for (String budget : getConfig("pod.partition.budgets", "").split(",")) {
+        if (budget.trim().length() == 0) continue;
+        String[] hostAndBudget = budget.trim().split("=");
+        budgets.put(hostAndBudget[0].trim(), Long.valueOf(Long.parseLong(hostAndBudget[1].trim()) * 1024 * 1024));
+      }
+      podStore.setPartitioned(Integer.parseInt(getConfig("pod.partition.max", "100")),
+                              Long.parseLong(getConfig("pod.partition.memory.budget.mb", "0")) * 1024 * 1024,
+                              budgets);
+      logger.info("Pods partitioned by host");
+    }
+
+    // Limit how fast each client can create new Pods
+    if (config.get("admission.pods.per.minute") != null) {
+      admissionControl = new AdmissionControl(Integer.parseInt(config.get("admission.pods.per.minute")),
+                                              Integer.parseInt(getConfig("admission.burst", "20")),
+                                              Integer.parseInt(getConfig("admission.ipv4.prefix", "32")),
+                                              Integer.parseInt(getConfig("admission.ipv6.prefix", "64")));
+      logger.info("Admission control: " + config.get("admission.pods.per.minute") + " pods per minute");
+    }
+
+    // The parts of the Engine GPS redirect that don't change between logins
+    String[] engineGPSURLs = config.get("engine.gps.service.url").split(",");
+    engineGPSPrefixes = new String[engineGPSURLs.length];
+    for (int i = 0; i < engineGPSURLs.length; i++) {
+      engineGPSURLs[i] = engineGPSURLs[i].trim();
+      engineGPSPrefixes[i] = engineGPSURLs[i] +
+                             "?" + Definitions.WAYF_PARAM_GUARD_ID + "=" + config.get("entityid") +
+                             "&" + Definitions.WAYF_PARAM_SESSION_ID + "=";
+    }
+
+    // Spread logins over the Engines by how quickly and reliably they've been verifying them
+    if (engineGPSURLs.length > 1) {
+      podStore.setEngineSelector(new EngineSelector(engineGPSURLs,
+                                                    Long.parseLong(getConfig("engine.gps.service.timeout", "10")) * 1000));
+      logger.info("Engine GPS endpoints: " + engineGPSURLs.length);
+    }
+    if ((config.get("default.entity.id") != null) &&
+        (!config.get("default.entity.id").equals(""))) {
+      defaultEntityIDParameter = getEntityIDParameter(config.get("default.entity.id"));
+    }
+    idpCookie = IdPCookie.create(config);
+    podStore.getLoginFunnel().setIdPAttribute(getConfig("funnel.idp.attribute", config.get("idp.remember.attribute")));
+
+    cookieAge = getCookieAge(config);
+
+    // Profiling events are off unless an implementation is named
+    if (config.get("events.class") != null) {
+      try {
+        events = (GuardEvents)Class.forName(config.get("events.class")).newInstance();
+        events.init(config);
+        podStore.setEvents(events);
+        logger.info("Guard events: " + config.get("events.class"));
+      }
+      catch (Throwable t) {
+        // Profiling isn't worth failing the Guard over, e.g. on a JVM without JFR
+        logger.error("Can't create Guard events " + config.get("events.class") + ", events are off", t);
+        events = null;
+      }
+    }
+  }
+
+  /**
+   * Decides what to do with a request for a protected resource. If the request has a Pod
+   * that allows access, the decision says which attributes and parameters to pass on and
+   * it's up to the adapter to pass the request on. Otherwise the response has already
+   * been sent, either refusing the request or sending the user to the Engine.
+   *
+   * @param exchange the request and its response
+   * @param cookieName the name of the Guard cookie
+   * @return the decision
+   * @throws IOException if the response can't be sent
+   */
+  public Decision filter(GuardExchange exchange, String cookieName) throws IOException {
+    GuardEvents events = this.events;
+    if (events == null) {
+      return decide(exchange, cookieName);
+    }
+
+    long started = System.nanoTime();
+    Decision decision = decide(exchange, cookieName);
+    long nanos = System.nanoTime() - started;
+    events.filtered((decision.getSnapshot() != null) ? decision.getSnapshot().getPod().getHostName() : getPodHostName(exchange),
+                    decision.getOutcome(), (decision.getLayout() != null) ? decision.getLayout().size() : 0, nanos);
+    return decision;
+  }
+
+  /**
+   * Decides what to do with a request for a protected resource
+   *
+   * @param exchange the request and its response
+   * @param cookieName the name of the Guard cookie
+   * @return the decision
+   * @throws IOException if the response can't be sent
+   */
+  private Decision decide(GuardExchange exchange, String cookieName) throws IOException {
+    // Rules are matched against the normalised path, so refuse paths that don't have one
+    String path = exchange.getRequestPath();
+    if (path == null) {
+      GuardLog.warn(logger, "Refused request for unsafe path : {}", exchange.getRequestURI());
+      exchange.sendError(SC_BAD_REQUEST);
+      return new Decision(REFUSED, null, null, null, null);
+    }
+
+    PodSnapshot snapshot = null;
+    try {
+      snapshot = lookupCookie(exchange, cookieName);
+    }
+    catch (GuanxiException ge) {
+      // The user may well have a Pod, so don't start a new login until the store can say
+      GuardLog.warn(logger, "Can't look up Pod, asking the client to retry : {}", ge.getMessage());
+      sendRetryLater(exchange, SC_SERVICE_UNAVAILABLE);
+      return new Decision(REFUSED, null, null, null, null);
+    }
+    if (snapshot != null) {
+      Pod pod = snapshot.getPod();
+
+      // Make sure the attributes allow access to the resource
+      if ((accessPolicy != null) && (!accessPolicy.isAllowed(snapshot, path))) {
+        GuardLog.debug(logger, "Access denied by policy : {}", exchange.getRequestURI());
+        exchange.sendError(SC_FORBIDDEN);
+        return new Decision(DENIED, snapshot, null, null, null);
+      }
+
+      // Only pass the attributes the resource needs
+      AttributeLayout layout = snapshot.getAttributeLayout(config.get("attribute.prefix"));
+      int[] projection = (headerProjection != null) ? headerProjection.project(layout, path) : null;
+
+      return new Decision(ALLOWED, snapshot, layout, projection, getRequestParameters(pod, exchange.getParameterMap()));
+    }
+
+    GuardLog.debug(logger, "No pod of attributes found - starting profile search");
+
+    // Don't let any one client create too many Pods
+    if ((admissionControl != null) && (!admissionControl.admit(exchange.getRemoteAddr()))) {
+      sendRetryLater(exchange, AdmissionControl.SC_TOO_MANY_REQUESTS);
+      return new Decision(REFUSED, null, null, null, null);
+    }
+
+    // Don't take on new sessions if the Pods have used up their memory budget
+    String host = getPodHostName(exchange);
+    if (!podStore.hasCapacity(host)) {
+      podStore.shed(host);
+      sendRetryLater(exchange, SC_SERVICE_UNAVAILABLE);
+      return new Decision(REFUSED, null, null, null, null);
+    }
+
+    // Don't preserve pathologically large form submissions
+    if (isTooLarge(exchange)) {
+      GuardLog.warn(logger, "Request parameters too large to preserve : {}", exchange.getRequestURI());
+      exchange.sendError(SC_REQUEST_ENTITY_TOO_LARGE);
+      return new Decision(REFUSED, null, null, null, null);
+    }
+
+    Pod pod = createPod(exchange);
+    gotoEngineGPS(pod.getSessionID(), exchange);
+    return new Decision(LOGIN, null, null, null, null);
+  }
+
+  /**
+   * Finds the Pod for the Guard cookie in a request. A cookie without a logged in Pod is
+   * deleted.
+   *
+   * @param exchange the request and its response
+   * @param cookieName the name of the Guard cookie
+   * @return the current snapshot of the Pod or null if the request doesn't have a logged in
+   * one, or it can't be looked up
+   */
+  public PodSnapshot findPod(GuardExchange exchange, String cookieName) {
+    try {
+      return lookupCookie(exchange, cookieName);
+    }
+    catch (GuanxiException ge) {
+      // Don't throw the cookie away just because the store is slow
+      GuardLog.warn(logger, "Can't look up Pod : {}", ge.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Finds the Pod for the Guard cookie in a request. A cookie without a logged in Pod is
+   * deleted, but one whose Pod can't be looked up is left alone.
+   *
+   * @param exchange the request and its response
+   * @param cookieName the name of the Guard cookie
+   * @return the current snapshot of the Pod or null if the request doesn't have one
+   * @throws GuanxiException if the store can't say whether there's a Pod
+   */
+  private PodSnapshot lookupCookie(GuardExchange exchange, String cookieName) throws GuanxiException {
+    String sessionID = exchange.getCookie(cookieName);
+    if (sessionID == null) {
+      return null;
+    }
+
+    // See if there's a pod for the request
+    PodSnapshot snapshot = lookupPod(sessionID);
+
+    /* A Pod without a Bag is still waiting for its login to complete. Its session ID has
+     * been in the Engine GPS redirect, so it can't be trusted as a cookie until then.
+     */
+    if ((snapshot != null) && (snapshot.getPod().getBag() == null)) {
+      GuardLog.warn(logger, "Found a Guard cookie for a Pod that hasn't logged in, from : {}", exchange.getRemoteAddr());
+      snapshot = null;
+    }
+
+    // If there isn't then we must get rid of the cookie
+    if (snapshot == null) {
+      GuardLog.debug(logger, "Found a Guard cookie but no Pod of attributes : {}", cookieName);
+      exchange.addCookie(cookieName, sessionID, null, null, 0, false);
+    }
+    else {
+      GuardLog.debug(logger, "Found a Guard cookie with a Pod of attributes : {}", cookieName);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Opportunity for adapters to change how the Pod for a Guard cookie is found, e.g. to
+   * limit how long a slow store can hold up the request.
+   *
+   * @param sessionID the session ID from the Guard cookie
+   * @return the current snapshot of the Pod or null if there isn't one for the session
+   * @throws GuanxiException if the store can't say whether there's a Pod
+   */
+  protected PodSnapshot lookupPod(String sessionID) throws GuanxiException {
+    return podStore.access(sessionID);
+  }
+
+  /**
+   * Opportunity for adapters to change how new Pods are created. By default this is
+   * publishPod().
+   *
+   * @param exchange the request that's causing the Pod to be created
+   * @return the new Pod
+   */
+  protected Pod createPod(GuardExchange exchange) {
+    return publishPod(exchange);
+  }
+
+  /**
+   * Creates a new Pod for a request and publishes it, ready for population with attributes.
+   *
+   * @param exchange the request that's causing the Pod to be created
+   * @return the new Pod
+   */
+  public Pod publishPod(GuardExchange exchange) {
+    Pod pod = newPod();
+
+    // Store the original scheme and hostname
+    pod.setRequestScheme(exchange.getScheme());
+    pod.setHostName(getPodHostName(exchange));
+
+    /* Store the parameters in the Pod as these are not guaranteed to be around in the
+     * original request after the SAML workflow has finished.
+     */
+    pod.setRequestParameters(preserveRequestParameters(exchange.getParameterMap()));
+
+    pod.setRequestURL(getPodRequestURL(exchange));
+
+    // Publish the Pod. It can't be modified from now on
+    pod.setSessionID(sessionIDGenerator.generate());
+    podStore.add(pod);
+
+    GuardLog.info(logger, POD_CREATED, "Created pod: {} hostname: {} requestURL: {}",
+                 pod.getSessionID(), pod.getHostName(), pod.getRequestURL());
+
+    return pod;
+  }
+
+  /**
+   * Creates a Pod for an unsolicited login, where the Engine names the resource the user
+   * wants in the Bag's session ID, and publishes it.
+   *
+   * @param bag the Bag from the Engine
+   * @return the new Pod, which doesn't have the Bag yet
+   * @throws Exception if the resource isn't a valid URI
+   */
+  public Pod publishUnsolicitedPod(Bag bag) throws Exception {
+    Pod pod = newPod();
+
+    // get the target resource from sessionid
+    URI uri = new URI(bag.getSessionID());
+
+    pod.setRequestScheme(uri.getScheme());
+    //append the port if set
+    pod.setHostName(uri.getHost().replaceAll("/", "") + ((uri.getPort() == -1) ? "" : ":" +  uri.getPort()));
+    pod.setRequestURL(uri.getPath() + "?" + uri.getQuery());
+
+    // Publish the Pod. The bag is added to it as a new version once it's been reset
+    pod.setSessionID(sessionIDGenerator.generate());
+    podStore.add(pod);
+
+    return pod;
+  }
+
+  /**
+   * Opportunity for adapters to set up new Pods, e.g. with the servlet context they belong to
+   *
+   * @return an empty Pod
+   */
+  protected Pod newPod() {
+    return new Pod();
+  }
+
+  /**
+   * Opportunity for adapters to control where the user is sent back to once a new Pod has
+   * been populated with attributes.
+   *
+   * @param exchange the request that caused the Pod to be created
+   * @return the URL to store in the Pod, by default including any query parameters
+   */
+  protected String getPodRequestURL(GuardExchange exchange) {
+    if (exchange.getQueryString() != null)
+      return exchange.getRequestURI() + "?" + exchange.getQueryString();
+    else
+      return exchange.getRequestURI();
+  }
+
+  /**
+   * Works out the host to store in a new Pod, which is also the tenant partition it goes in
+   *
+   * @param exchange the request
+   * @return the host from the Host header
+   */
+  public String getPodHostName(GuardExchange exchange) {
+    String host = exchange.getHeader("Host");
+    return (host != null) ? host.replaceAll("/", "") : null;
+  }
+
+  /**
+   * Opportunity for adapters to change how users are sent to the Engine to log in. By
+   * default this redirects them to getEngineGPSRedirect().
+   *
+   * @param sessionID the session ID of the new Pod
+   * @param exchange the request and its response
+   * @throws IOException if the redirect can't be sent
+   */
+  protected void gotoEngineGPS(String sessionID, GuardExchange exchange) throws IOException {
+    exchange.sendRedirect(getEngineGPSRedirect(sessionID, exchange));
+    podStore.reached(sessionID, LoginTrace.REDIRECTED);
+  }
+
+  /**
+   * Works out where to send a user to log in. If there are several Engine GPS endpoints the
+   * PodStore's EngineSelector chooses one for the Pod. The IdP is the one named in the request,
+   * otherwise the one the user last logged in at, otherwise the default one if there is one.
+   *
+   * @param sessionID the session ID of the new Pod
+   * @param exchange the request
+   * @return the Engine GPS URL
+   * @throws IOException if the URL can't be built
+   */
+  public String getEngineGPSRedirect(String sessionID, GuardExchange exchange) throws IOException {
+    String engineGPSService = engineGPSPrefixes[podStore.selectEngine(sessionID)] + sessionID;
+    if (exchange.getParameter("entityID") != null) {
+      engineGPSService += getEntityIDParameter(exchange.getParameter("entityID"));
+    }
+    else {
+      // Send returning users straight to the IdP they used last time
+      String rememberedEntityID = (idpCookie != null) ? idpCookie.getEntityID(exchange.getCookie(idpCookie.getCookieName())) : null;
+      if (rememberedEntityID != null) {
+        engineGPSService += getEntityIDParameter(rememberedEntityID);
+      }
+      // If no entityID is specified in the URL, try to use the default one
+      else if (defaultEntityIDParameter != null) {
+        engineGPSService += defaultEntityIDParameter;
+      }
+    }
+    return engineGPSService;
+  }
+
+  /**
+   * Builds the entityID parameter of the Engine GPS redirect. The entityID is URL encoded
+   * whichever source it came from, so one from a request can't add parameters of its own.
+   *
+   * @param entityID the IdP's entityID
+   * @return the parameter, including the leading '&'
+   */
+  private static String getEntityIDParameter(String entityID) {
+    try {
+      return "&" + "entityID" + "=" + URLEncoder.encode(entityID, "UTF-8");
+    }
+    catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * Works out the parameters to present to the application, which are those that were
+   * preserved in the Pod when it was created, plus any new ones in the current request.
+   * The preserved parameters are taken out of the Pod as they're replayed, so only the
+   * first request after the login gets them, however many arrive together.
+   *
+   * @param pod the Pod for the request
+   * @param requestParameters the parameters of the current request
+   * @return the parameters to present to the application
+   */
+  @SuppressWarnings("unchecked")
+  public Map<?, ?> getRequestParameters(Pod pod, Map<?, ?> requestParameters) {
+    if (pod.getRequestParameters() == null) return requestParameters;
+
+    // Whichever request replaces the Pod first gets the parameters it held
+    final Object[] preserved = new Object[1];
+    podStore.update(pod.getSessionID(), new PodUpdate() {
+      public void apply(Pod pod) {
+        preserved[0] = pod.getRequestParameters();
+        pod.setRequestParameters(null);
+      }
+    });
+    Map<Object, Object> podParameters = (Map<Object, Object>)preserved[0];
+
+    // Parameters on disk are read back and the file deleted
+    if (podParameters instanceof SpilledParameters) {
+      try {
+        podParameters = ((SpilledParameters)podParameters).consume();
+      }
+      catch (IOException ioe) {
+        GuardLog.error(logger, "Can't read spilled parameters for pod {}", pod.getSessionID(), ioe);
+        podParameters = null;
+      }
+    }
+
+    if ((podParameters == null) || (podParameters.isEmpty())) return requestParameters;
+    if (requestParameters.isEmpty()) return podParameters;
+
+    // Add any new parameters to the original request
+    Map<Object, Object> parameters = new HashMap<Object, Object>(podParameters);
+    parameters.putAll(requestParameters);
+    return parameters;
+  }
+
+  /**
+   * Copies a request's parameters for preserving in a new Pod. Parameters bigger than
+   * pod.parameters.spill.kb are written to disk rather than kept in memory.
+   *
+   * @param requestParameters the parameters of the request that's causing the Pod to be created
+   * @return the parameters to store in the Pod
+   */
+  public Map<?, ?> preserveRequestParameters(Map<?, ?> requestParameters) {
+    Map<Object, Object> parameters = new HashMap<Object, Object>(requestParameters);
+    if ((parameterSpillThreshold > 0) && (PodSizeEstimator.estimate(parameters) > parameterSpillThreshold)) {
+      try {
+        return SpilledParameters.spill(parameters, parameterSpillDirectory);
+      }
+      catch (IOException ioe) {
+        logger.error("Can't spill parameters to disk, keeping them in memory", ioe);
+      }
+    }
+    return parameters;
+  }
+
+  /**
+   * Determines whether a request's parameters are too big to preserve in a new Pod. The
+   * Content-Length is checked first so a huge body can be turned away without parsing it.
+   *
+   * @param exchange the request that would create the Pod
+   * @return true if the request can't start a login
+   */
+  public boolean isTooLarge(GuardExchange exchange) {
+    if (maxParameterSize <= 0) return false;
+    if (exchange.getContentLength() > maxParameterSize) return true;
+    return PodSizeEstimator.estimate(exchange.getParameterMap()) > maxParameterSize;
+  }
+
+  /**
+   * Tells the client a new Pod can't be created right now and when to try again
+   *
+   * @param exchange the request and its response
+   * @param status the HTTP status to send
+   * @throws IOException if the response can't be sent
+   */
+  public void sendRetryLater(GuardExchange exchange, int status) throws IOException {
+    exchange.setHeader("Retry-After", retryAfter);
+    exchange.sendStatus(status);
+  }
+
+  /**
+   * Verifies a session that the Guard previously sent to the Engine
+   *
+   * @param sessionID the session ID
+   * @return true if there's a Pod for the session
+   */
+  public boolean verifySession(String sessionID) {
+    return podStore.verify(sessionID);
+  }
+
+  /**
+   * Adds the attributes from the Engine to a new version of a session's Pod
+   *
+   * @param bag the attributes
+   * @return the new version of the Pod, or null if there isn't a Pod for the session
+   */
+  public Pod addAttributes(Bag bag) {
+    // Share the attributes with any other Pods that have the same ones
+    BagStore bagStore = podStore.getBagStore();
+    final Bag stored = (bagStore != null) ? bagStore.intern(bag) : bag;
+
+    Pod pod = podStore.update(bag.getSessionID(), new PodUpdate() {
+      public void apply(Pod pod) {
+        pod.setBag(stored);
+      }
+    });
+
+    if (pod != null) {
+      podStore.reached(pod.getSessionID(), LoginTrace.ATTRIBUTES);
+    }
+    return pod;
+  }
+
+  /**
+   * Changes some of the attributes of a logged in session, as pushed by the Engine. See
+   * PodStore.refresh for how the changes are applied.
+   *
+   * @param changes the changed attributes, with the session ID of the session to change
+   * @return the new version of the Pod, or null if there isn't a logged in Pod for the session
+   */
+  public Pod refreshAttributes(Bag changes) {
+    return podStore.refresh(changes.getSessionID(), changes);
+  }
+
+  /**
+   * Reports the Engine's attributes as received, if events are on
+   *
+   * @param bag the attributes
+   * @param bytes the size of the attribute payload, or -1 if it isn't known
+   * @param started when reading the attributes started, by System.nanoTime()
+   */
+  public void bagIngested(Bag bag, int bytes, long started) {
+    GuardEvents events = this.events;
+    if (events == null) return;
+
+    long nanos = System.nanoTime() - started;
+    int attributeCount = 0;
+    if (bag.hasAttributes()) {
+      Enumeration<String> names = bag.getAttributeNames();
+      while (names.hasMoreElements()) {
+        names.nextElement();
+        attributeCount++;
+      }
+    }
+    events.bagIngested(bytes, attributeCount, nanos);
+  }
+
+  /**
+   * Completes a login by issuing the Guard cookie for a session's Pod, and the cookie
+   * remembering the user's IdP if there is one. The Pod must have its attributes already,
+   * otherwise anyone who saw the session ID in the Engine GPS redirect could complete it.
+   *
+   * @param exchange the request and its response
+   * @param sessionID the session ID of the Pod
+   * @param cookieName the name of the Guard cookie
+   * @param cookieDomain the domain of the cookies
+   * @return the URL of the resource the user originally asked for, or null if there isn't a
+   * Pod with attributes for the session
+   */
+  public String completeLogin(GuardExchange exchange, String sessionID, String cookieName, String cookieDomain) {
+    Pod pod = podStore.get(sessionID);
+    if ((pod == null) || (pod.getBag() == null)) {
+      if (events != null) {
+        events.loginCompleted(null, false);
+      }
+      return null;
+    }
+
+    // Create a new Guard cookie
+    GuardLog.debug(logger, "Creating a new Guard cookie : name: {} domain: {}", cookieName, cookieDomain);
+    exchange.addCookie(cookieName, pod.getSessionID(), cookieDomain, config.get("cookie.path"), cookieAge, true);
+    podStore.reached(pod.getSessionID(), LoginTrace.COOKIE);
+
+    // Remember the IdP so the next login can skip discovery
+    if (idpCookie != null) {
+      String idp = idpCookie.createValue(pod);
+      if (idp != null) {
+        exchange.addCookie(idpCookie.getCookieName(), idp, cookieDomain, config.get("cookie.path"),
+                           idpCookie.getMaxAge(), true);
+      }
+    }
+
+    if (events != null) {
+      events.loginCompleted(pod.getHostName(), true);
+    }
+
+    return pod.getRequestScheme() + "://" + pod.getHostName() + pod.getRequestURL();
+  }
+
+  /**
+   * Retrieves an option from the Guard's config, falling back to a default
+   *
+   * @param option the name of the option
+   * @param defaultValue the value to use if the option isn't in the config
+   * @return the value of the option
+   */
+  public String getConfig(String option, String defaultValue) {
+    return (config.get(option) != null) ? config.get(option) : defaultValue;
+  }
+
+  public GuardConfig getGuardConfig() {
+    return config;
+  }
+
+  public PodStore getPodStore() {
+    return podStore;
+  }
+
+  public SessionIDGenerator getSessionIDGenerator() {
+    return sessionIDGenerator;
+  }
+
+  public AccessPolicy getAccessPolicy() {
+    return accessPolicy;
+  }
+
+  public HeaderProjection getHeaderProjection() {
+    return headerProjection;
+  }
+
+  public AdmissionControl getAdmissionControl() {
+    return admissionControl;
+  }
+
+  public IdPCookie getIdPCookie() {
+    return idpCookie;
+  }
+
+  /**
+   * @return what receives events for profiling, or null if they're off
+   */
+  public GuardEvents getEvents() {
+    return events;
+  }
+
+  /**
+   * Works out the age of the Guard cookie from cookie.age and cookie.age.units
+   *
+   * @param config the Guard's config
+   * @return the age in seconds, or -1 for a transient cookie
+   */
+  public static int getCookieAge(GuardConfig config) {
+    String cookieMaxAge = config.get("cookie.age");
+    String cookieAgeUnits = config.get("cookie.age.units");
+    if (cookieAgeUnits == null)
+      return -1;
+    else if (cookieAgeUnits.equals("seconds"))
+      return Integer.parseInt(cookieMaxAge);
+    else if (cookieAgeUnits.equals("minutes"))
+      return Integer.parseInt(cookieMaxAge) * 60;
+    else if (cookieAgeUnits.equals("hours"))
+      return Integer.parseInt(cookieMaxAge) * 3600;
+    else if (cookieAgeUnits.equals("days"))
+      return Integer.parseInt(cookieMaxAge) * 86400;
+    else if (cookieAgeUnits.equals("weeks"))
+      return Integer.parseInt(cookieMaxAge) * 604800;
+    else if (cookieAgeUnits.equals("months"))
+      return Integer.parseInt(cookieMaxAge) * 2419200;
+    else if (cookieAgeUnits.equals("years"))
+      return Integer.parseInt(cookieMaxAge) * 29030400;
+    else
+      return -1;
+  }
+
+  /**
+   * What the core decided to do with a request
+   */
+  public static class Decision {
+    private final int outcome;
+    private final PodSnapshot snapshot;
+    private final AttributeLayout layout;
+    private final int[] projection;
+    private final Map<?, ?> parameters;
+
+    Decision(int outcome, PodSnapshot snapshot, AttributeLayout layout, int[] projection, Map<?, ?> parameters) {
+      this.outcome = outcome;
+      this.snapshot = snapshot;
+      this.layout = layout;
+      this.projection = projection;
+      this.parameters = parameters;
+    }
+
+    /**
+     * @return one of ALLOWED, DENIED, REFUSED or LOGIN
+     */
+    public int getOutcome() {
+      return outcome;
+    }
+
+    /**
+     * @return the Pod for the request, or null if it doesn't have one
+     */
+    public PodSnapshot getSnapshot() {
+      return snapshot;
+    }
+
+    /**
+     * @return the Pod's attributes laid out as headers, if access is allowed
+     */
+    public AttributeLayout getLayout() {
+      return layout;
+    }
+
+    /**
+     * @return the indices in the layout of the attributes to pass on, or null for all of them
+     */
+    public int[] getProjection() {
+      return projection;
+    }
+
+    /**
+     * @return the parameters to present to the application, if access is allowed
+     */
+    public Map<?, ?> getParameters() {
+      return parameters;
+    }
+  }
+}
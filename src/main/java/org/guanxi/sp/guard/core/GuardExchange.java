@@ -0,0 +1,125 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.core;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The parts of an HTTP request and its response that the GuardCore works with. Each kind
+ * of server the Guard runs in provides an implementation, e.g. ServletGuardExchange for
+ * the Guard filter and its servlets.
+ */
+public interface GuardExchange {
+  /**
+   * @return the path of the request within the protected application, without any query,
+   * decoded and normalised by RequestPath, or null if it can't be normalised safely
+   */
+  String getRequestPath();
+
+  /**
+   * @return the path of the request as sent by the client, without any query
+   */
+  String getRequestURI();
+
+  /**
+   * @return the query string of the request, or null if there isn't one
+   */
+  String getQueryString();
+
+  /**
+   * @return the scheme of the request, e.g. https
+   */
+  String getScheme();
+
+  /**
+   * @param name the name of the header
+   * @return the first value of the header, or null if the request doesn't have it
+   */
+  String getHeader(String name);
+
+  /**
+   * @return the address of the client
+   */
+  String getRemoteAddr();
+
+  /**
+   * @param name the name of the cookie
+   * @return the value of the cookie, or null if the request doesn't have it
+   */
+  String getCookie(String name);
+
+  /**
+   * @param name the name of the parameter
+   * @return the first value of the parameter, or null if the request doesn't have it
+   */
+  String getParameter(String name);
+
+  /**
+   * @return the request parameters as name to String[] of values
+   */
+  Map<?, ?> getParameterMap();
+
+  /**
+   * @return the length of the request body, or -1 if it isn't known
+   */
+  int getContentLength();
+
+  /**
+   * Adds a cookie to the response
+   *
+   * @param name the name of the cookie
+   * @param value the value of the cookie
+   * @param domain the domain of the cookie, may be null
+   * @param path the path of the cookie, may be null
+   * @param maxAge the age of the cookie in seconds, 0 to delete it or -1 for a transient cookie
+   * @param secure whether the cookie should only be sent over https
+   */
+  void addCookie(String name, String value, String domain, String path, int maxAge, boolean secure);
+
+  /**
+   * Sets a header on the response
+   *
+   * @param name the name of the header
+   * @param value the value of the header
+   */
+  void setHeader(String name, String value);
+
+  /**
+   * Finishes the response with a status and no body
+   *
+   * @param status the HTTP status
+   * @throws IOException if the response can't be sent
+   */
+  void sendStatus(int status) throws IOException;
+
+  /**
+   * Finishes the response with an error
+   *
+   * @param status the HTTP status
+   * @throws IOException if the response can't be sent
+   */
+  void sendError(int status) throws IOException;
+
+  /**
+   * Finishes the response with a redirect
+   *
+   * @param location where to send the client
+   * @throws IOException if the response can't be sent
+   */
+  void sendRedirect(String location) throws IOException;
+}
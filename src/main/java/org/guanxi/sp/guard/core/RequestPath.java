@@ -0,0 +1,69 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.core;
+
+/**
+ * Puts a decoded request path into the one form that access rules and header projections
+ * are matched against, so the same resource can't be asked for in a way a rule doesn't
+ * match. Empty segments are dropped, so "//protected" is "/protected", as are "." segments
+ * and ";" path parameters, which servers ignore when finding the resource. Paths that can't
+ * be put into a single form safely are refused rather than guessed at:
+ *
+ * ..         the server may or may not have resolved it already
+ * %          still encoded after decoding, so the application could decode it again
+ * \          some servers treat it as a separator
+ * controls   including NUL, which can truncate the path further down
+ */
+public class RequestPath {
+  /**
+   * Normalises a decoded request path
+   *
+   * @param path the path within the application, already URL decoded once
+   * @return the normalised path, starting with '/', or null if the path is refused
+   */
+  public static String normalise(String path) {
+    if (path == null) return null;
+
+    StringBuilder normalised = new StringBuilder(path.length() + 1);
+    int start = 0;
+    while (start <= path.length()) {
+      int end = path.indexOf('/', start);
+      if (end == -1) end = path.length();
+
+      // Servers ignore path parameters when finding the resource, so rules must too
+      int parameters = path.indexOf(';', start);
+      String segment = path.substring(start, ((parameters != -1) && (parameters < end)) ? parameters : end);
+
+      if (segment.equals("..")) return null;
+      for (int i = 0; i < segment.length(); i++) {
+        char c = segment.charAt(i);
+        if ((c == '%') || (c == '\\') || (c < 0x20) || (c == 0x7F)) return null;
+      }
+      if ((segment.length() > 0) && (!segment.equals("."))) {
+        normalised.append('/').append(segment);
+      }
+
+      start = end + 1;
+    }
+
+    // Keep a trailing slash, as rules such as ^/protected/admin/ depend on it
+    if ((normalised.length() == 0) || (path.endsWith("/")) || (path.endsWith("/."))) {
+      normalised.append('/');
+    }
+    return normalised.toString();
+  }
+}
@@ -5,8 +5,8 @@ import java.io.PrintWriter;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
-import org.guanxi.common.Pod;
 import org.guanxi.sp.guard.Definitions;
+import org.guanxi.sp.guard.PodSnapshot;
 import org.guanxi.sp.guard.SessionVerifier;
 
 /**
@@ -37,13 +37,15 @@ public class DynamicSessionVerifier extends SessionVerifier
 			
 			String sessionID = request.getParameter(Definitions.SESSION_VERIFIER_PARAM_SESSION_ID);
 			
-			Pod pod = (Pod)getServletContext().getAttribute(sessionID);
+			PodSnapshot snapshot = podStore.getSnapshot(sessionID);
 			
-			if(pod != null)
+			if(snapshot != null)
 			{
-				logger.debug("processExtendedVerificationAttributes: returning dynamic domain: " + pod.getHostName());
+				String hostName = snapshot.getPod().getHostName();
 				
-				out.write(pod.getHostName());
+				logger.debug("processExtendedVerificationAttributes: returning dynamic domain: " + hostName);
+				
+				out.write(hostName);
 			}
 			else
 			{
@@ -0,0 +1,126 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * An exchange that got through the Guard, as the application sees it. The server's own
+ * request headers can't be changed so the application gets a copy, with the attributes
+ * added and any client headers that look like attributes removed. Everything else is the
+ * server's exchange.
+ */
+class GuardedHttpExchange extends HttpExchange {
+  private final HttpExchange exchange;
+  private final Headers requestHeaders;
+
+  /**
+   * @param exchange the server's exchange
+   * @param attributePrefix the prefix of the attribute headers. Client headers with it are dropped
+   */
+  GuardedHttpExchange(HttpExchange exchange, String attributePrefix) {
+    this.exchange = exchange;
+
+    // Don't let the client pass off its own headers as attributes
+    requestHeaders = new Headers();
+    String prefix = attributePrefix.toLowerCase();
+    for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+      if (!header.getKey().toLowerCase().startsWith(prefix)) {
+        requestHeaders.put(header.getKey(), header.getValue());
+      }
+    }
+  }
+
+  public Headers getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  public Headers getResponseHeaders() {
+    return exchange.getResponseHeaders();
+  }
+
+  public URI getRequestURI() {
+    return exchange.getRequestURI();
+  }
+
+  public String getRequestMethod() {
+    return exchange.getRequestMethod();
+  }
+
+  public HttpContext getHttpContext() {
+    return exchange.getHttpContext();
+  }
+
+  public void close() {
+    exchange.close();
+  }
+
+  public InputStream getRequestBody() {
+    return exchange.getRequestBody();
+  }
+
+  public OutputStream getResponseBody() {
+    return exchange.getResponseBody();
+  }
+
+  public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+    exchange.sendResponseHeaders(rCode, responseLength);
+  }
+
+  public InetSocketAddress getRemoteAddress() {
+    return exchange.getRemoteAddress();
+  }
+
+  public int getResponseCode() {
+    return exchange.getResponseCode();
+  }
+
+  public InetSocketAddress getLocalAddress() {
+    return exchange.getLocalAddress();
+  }
+
+  public String getProtocol() {
+    return exchange.getProtocol();
+  }
+
+  public Object getAttribute(String name) {
+    return exchange.getAttribute(name);
+  }
+
+  public void setAttribute(String name, Object value) {
+    exchange.setAttribute(name, value);
+  }
+
+  public void setStreams(InputStream i, OutputStream o) {
+    exchange.setStreams(i, o);
+  }
+
+  public HttpPrincipal getPrincipal() {
+    return exchange.getPrincipal();
+  }
+}
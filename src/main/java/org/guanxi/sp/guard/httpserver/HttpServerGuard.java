@@ -0,0 +1,340 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.guanxi.common.filters.FileName;
+import org.guanxi.sp.guard.AttributeLayout;
+import org.guanxi.sp.guard.BagCodec;
+import org.guanxi.sp.guard.Definitions;
+import org.guanxi.sp.guard.GuardConfig;
+import org.guanxi.sp.guard.GuardLog;
+import org.guanxi.sp.guard.PodStore;
+import org.guanxi.sp.guard.SecureSessionIDGenerator;
+import org.guanxi.sp.guard.SessionIDGenerator;
+import org.guanxi.sp.guard.core.GuardCore;
+import org.guanxi.sp.guard.core.GuardExchange;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the Guard in the JDK's built in HTTP server rather than a servlet container. The
+ * Guard protects an application's HttpHandler and serves the Engine's callbacks on the
+ * same paths as the servlet Guard:
+ *
+ * <pre>
+ * HttpServerGuard guard = new HttpServerGuard(new GuardConfig("/etc/guanxi/guanxi-sp-guard.properties"));
+ * guard.install(server, "/protectedapp", app);
+ * </pre>
+ *
+ * Requests that get through the Guard carry the attributes as headers, as they do with the
+ * servlet Guard, and the Pod as the POD_ATTRIBUTE attribute of the exchange. Headers
+ * from the client that use the attribute prefix are removed first. The application sees
+ * a copy of the server's exchange with its own request headers, so it isn't an HttpsExchange.
+ *
+ * The server doesn't parse request bodies, so only query parameters are preserved across a
+ * login. Logout and the Pod monitor aren't available.
+ */
+public class HttpServerGuard {
+  private static final Logger logger = Logger.getLogger(HttpServerGuard.class.getName());
+
+  /** The exchange attribute holding the Pod of a request that got through the Guard */
+  public static final String POD_ATTRIBUTE = "org.guanxi.sp.guard.Pod";
+
+  /** The Guard's config */
+  private final GuardConfig config;
+  /** The store holding the Guard's Pods */
+  private final PodStore podStore;
+  /** Makes the Guard's decisions */
+  private final GuardCore core;
+  /** The name of the Guard cookie */
+  private final String cookieName;
+  /** The domain of the Guard cookie */
+  private final String cookieDomain;
+
+  /**
+   * Sets up the Guard from its config
+   *
+   * @param config the Guard's config
+   */
+  public HttpServerGuard(GuardConfig config) {
+    this.config = config;
+    podStore = new PodStore();
+
+    SessionIDGenerator sessionIDGenerator = new SecureSessionIDGenerator();
+    sessionIDGenerator.init(config);
+
+    core = new GuardCore(config, podStore, sessionIDGenerator) {
+      /* The query is preserved in the Pod so only the path is needed to get back to the
+       * resource, as with the servlet Guard.
+       */
+      protected String getPodRequestURL(GuardExchange exchange) {
+        return exchange.getRequestURI();
+      }
+    };
+
+    cookieName = config.get("cookie.prefix") + FileName.encode(config.get("entityid"));
+    cookieDomain = (config.get("cookie.domain") == null) ? "" : config.get("cookie.domain");
+
+    logger.info("Found entityid:" + config.get("entityid"));
+  }
+
+  /**
+   * Protects an application and adds the Guard's services alongside it
+   *
+   * @param server the server to add the application to
+   * @param contextPath the path of the application, e.g. /protectedapp
+   * @param app the application
+   * @return the application's context
+   */
+  public HttpContext install(HttpServer server, String contextPath, HttpHandler app) {
+    server.createContext(contextPath + "/guard.sessionVerifier", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        verifySession(exchange);
+      }
+    });
+    server.createContext(contextPath + "/guard.guanxiGuardACS", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        consumeAttributes(exchange);
+      }
+    });
+    server.createContext(contextPath + "/guard.guanxiGuardPodder", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        completeLogin(exchange);
+      }
+    });
+
+    HttpContext context = server.createContext(contextPath, app);
+    context.getFilters().add(new Filter() {
+      public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        guard(exchange, chain);
+      }
+
+      public String description() {
+        return "Guanxi Guard";
+      }
+    });
+    return context;
+  }
+
+  /**
+   * Stops the Guard's background work
+   */
+  public void shutdown() {
+    podStore.shutdown();
+    GuardLog.shutdown();
+  }
+
+  public GuardCore getCore() {
+    return core;
+  }
+
+  /**
+   * Lets a request through to the application if its Pod allows it
+   *
+   * @param exchange the request
+   * @param chain the rest of the application's filters and the application
+   * @throws IOException if an error occurs
+   */
+  private void guard(HttpExchange exchange, Filter.Chain chain) throws IOException {
+    GuardCore.Decision decision = core.filter(new HttpServerGuardExchange(exchange), cookieName);
+    if (decision.getOutcome() != GuardCore.ALLOWED) {
+      return;
+    }
+
+    GuardedHttpExchange guarded = new GuardedHttpExchange(exchange, config.get("attribute.prefix"));
+    Headers headers = guarded.getRequestHeaders();
+
+    // Add the attributes the application needs
+    AttributeLayout layout = decision.getLayout();
+    int[] projection = decision.getProjection();
+    if (projection == null) {
+      for (int i = 0; i < layout.size(); i++) {
+        headers.set(layout.getHeaderName(i), layout.getValue(i));
+      }
+    }
+    else {
+      for (int i = 0; i < projection.length; i++) {
+        headers.set(layout.getHeaderName(projection[i]), layout.getValue(projection[i]));
+      }
+    }
+
+    guarded.setAttribute(POD_ATTRIBUTE, decision.getSnapshot().getPod());
+    chain.doFilter(guarded);
+  }
+
+  /**
+   * Verifies a session that the Guard previously sent to the Engine
+   *
+   * @param exchange the Engine's request
+   * @throws IOException if an error occurs
+   */
+  private void verifySession(HttpExchange exchange) throws IOException {
+    String sessionID = new HttpServerGuardExchange(exchange).getParameter(Definitions.SESSION_VERIFIER_PARAM_SESSION_ID);
+    send(exchange, 200, core.verifySession(sessionID) ? Definitions.SESSION_VERIFIER_RETURN_VERIFIED
+                                                       : Definitions.SESSION_VERIFIER_RETURN_NOT_VERIFIED);
+  }
+
+  /**
+   * Adds the attributes from the Engine to the Pod for their session
+   *
+   * @param exchange the Engine's request
+   * @throws IOException if an error occurs
+   */
+  private void consumeAttributes(HttpExchange exchange) throws IOException {
+    Bag bag = null;
+    try {
+      long started = (core.getEvents() != null) ? System.nanoTime() : 0;
+      bag = getBag(exchange);
+      core.bagIngested(bag, new HttpServerGuardExchange(exchange).getContentLength(), started);
+    }
+    catch (GuanxiException ge) {
+      logger.error("Error receiving attributes from Engine: " + ge.getMessage());
+      send(exchange, 400, "");
+      return;
+    }
+
+    if (bag.isUnsolicitedMode()) {
+      logger.info("Got unsolicited bag: " + bag.getSessionID());
+      try {
+        bag.setSessionID(core.publishUnsolicitedPod(bag).getSessionID());
+      }
+      catch (Exception e) {
+        logger.error("Error creating unsolicited bag: " + e.getMessage());
+      }
+    }
+
+    logger.info("Processing bag: " + bag.getSessionID());
+    Pod pod = core.addAttributes(bag);
+    if (pod == null) {
+      logger.error("No pod for bag: " + bag.getSessionID());
+      send(exchange, 404, "");
+      return;
+    }
+
+    send(exchange, 200, pod.getSessionID());
+  }
+
+  /**
+   * Issues the Guard cookie once a session's Pod has its attributes and sends the user
+   * back to the resource they asked for
+   *
+   * @param exchange the user's request
+   * @throws IOException if an error occurs
+   */
+  private void completeLogin(HttpExchange exchange) throws IOException {
+    HttpServerGuardExchange guardExchange = new HttpServerGuardExchange(exchange);
+
+    // "id" is the sessionID set by the Guard
+    String redirectURL = core.completeLogin(guardExchange, guardExchange.getParameter("id"), cookieName, cookieDomain);
+    if (redirectURL == null) {
+      logger.error("No pod for session: " + guardExchange.getParameter("id"));
+      send(exchange, 404, "");
+      return;
+    }
+
+    logger.debug("Sending redirect:" + redirectURL);
+    guardExchange.sendRedirect(redirectURL);
+  }
+
+  /**
+   * Extracts the Bag of attributes from the Engine's request, either in the binary format
+   * of BagCodec or as a JSON form parameter.
+   *
+   * @param exchange the Engine's request
+   * @return the Bag of attributes
+   * @throws GuanxiException if there are no attributes or they can't be decoded
+   */
+  private Bag getBag(HttpExchange exchange) throws GuanxiException {
+    HttpServerGuardExchange guardExchange = new HttpServerGuardExchange(exchange);
+    String contentType = guardExchange.getHeader("Content-Type");
+    if ((contentType != null) && (contentType.startsWith(Definitions.CONTENT_TYPE_BINARY_BAG))) {
+      return BagCodec.decode(exchange.getRequestBody(), guardExchange.getContentLength());
+    }
+
+    // Older Engines send JSON, as a form parameter
+    String json = guardExchange.getParameter(Definitions.REQUEST_PARAMETER_SAML_ATTRIBUTES);
+    if ((json == null) && ("POST".equals(exchange.getRequestMethod()))) {
+      Map<String, String[]> form = HttpServerGuardExchange.parseQuery(readBody(exchange.getRequestBody()));
+      String[] values = form.get(Definitions.REQUEST_PARAMETER_SAML_ATTRIBUTES);
+      json = ((values != null) && (values.length > 0)) ? values[0] : null;
+    }
+
+    if (json != null) {
+      return new Bag(json);
+    }
+    else {
+      throw new GuanxiException("No attributes");
+    }
+  }
+
+  /**
+   * Reads a form body, up to the largest attribute payload the Guard accepts
+   *
+   * @param in the body
+   * @return the body as a string
+   * @throws GuanxiException if the body can't be read or is too large
+   */
+  private String readBody(InputStream in) throws GuanxiException {
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] chunk = new byte[4096];
+      int read;
+      while ((read = in.read(chunk)) != -1) {
+        buffer.write(chunk, 0, read);
+        if (buffer.size() > BagCodec.MAX_PAYLOAD_SIZE) {
+          throw new GuanxiException("Attribute payload too large");
+        }
+      }
+      return buffer.toString("UTF-8");
+    }
+    catch (IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Finishes a response with a plain text body
+   *
+   * @param exchange the request
+   * @param status the HTTP status
+   * @param body the body
+   * @throws IOException if the response can't be sent
+   */
+  private void send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+    exchange.sendResponseHeaders(status, (bytes.length > 0) ? bytes.length : -1);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+}
@@ -0,0 +1,195 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.httpserver;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.guanxi.sp.guard.core.GuardExchange;
+import org.guanxi.sp.guard.core.RequestPath;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsExchange;
+
+/**
+ * Presents an exchange from the JDK's built in HTTP server to the GuardCore. The server
+ * doesn't parse request bodies, so the parameters are those in the query string.
+ */
+public class HttpServerGuardExchange implements GuardExchange {
+  private final HttpExchange exchange;
+  /** The query parameters as name to String[], once they've been parsed */
+  private Map<String, String[]> parameters = null;
+
+  public HttpServerGuardExchange(HttpExchange exchange) {
+    this.exchange = exchange;
+  }
+
+  public HttpExchange getExchange() {
+    return exchange;
+  }
+
+  public String getRequestPath() {
+    String path = exchange.getRequestURI().getPath();
+    String contextPath = exchange.getHttpContext().getPath();
+    if (contextPath.endsWith("/")) {
+      contextPath = contextPath.substring(0, contextPath.length() - 1);
+    }
+
+    // The server matches contexts by string prefix, so /app gets /application too
+    if (path == null) return null;
+    if (path.equals(contextPath)) return "/";
+    if (!path.startsWith(contextPath + "/")) return null;
+    return RequestPath.normalise(path.substring(contextPath.length()));
+  }
+
+  public String getRequestURI() {
+    return exchange.getRequestURI().getRawPath();
+  }
+
+  public String getQueryString() {
+    return exchange.getRequestURI().getRawQuery();
+  }
+
+  public String getScheme() {
+    return (exchange instanceof HttpsExchange) ? "https" : "http";
+  }
+
+  public String getHeader(String name) {
+    return exchange.getRequestHeaders().getFirst(name);
+  }
+
+  public String getRemoteAddr() {
+    return exchange.getRemoteAddress().getAddress().getHostAddress();
+  }
+
+  public String getCookie(String name) {
+    List<String> headers = exchange.getRequestHeaders().get("Cookie");
+    if (headers == null) return null;
+
+    for (String header : headers) {
+      for (String cookie : header.split(";")) {
+        int equals = cookie.indexOf('=');
+        if ((equals != -1) && (cookie.substring(0, equals).trim().equals(name))) {
+          String value = cookie.substring(equals + 1).trim();
+          // Values may be quoted
+          if ((value.length() > 1) && (value.startsWith("\"")) && (value.endsWith("\""))) {
+            value = value.substring(1, value.length() - 1);
+          }
+          return value;
+        }
+      }
+    }
+    return null;
+  }
+
+  public String getParameter(String name) {
+    String[] values = (String[])getParameterMap().get(name);
+    return ((values != null) && (values.length > 0)) ? values[0] : null;
+  }
+
+  public Map<?, ?> getParameterMap() {
+    if (parameters == null) {
+      parameters = parseQuery(getQueryString());
+    }
+    return parameters;
+  }
+
+  public int getContentLength() {
+    String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+    try {
+      return (contentLength != null) ? Integer.parseInt(contentLength.trim()) : -1;
+    }
+    catch (NumberFormatException nfe) {
+      return -1;
+    }
+  }
+
+  public void addCookie(String name, String value, String domain, String path, int maxAge, boolean secure) {
+    StringBuilder cookie = new StringBuilder(name).append('=').append(value);
+    if ((domain != null) && (domain.length() > 0)) cookie.append("; Domain=").append(domain);
+    if (path != null) cookie.append("; Path=").append(path);
+    // If maxAge is -1, don't set it so we get a transient, in-memory cookie
+    if (maxAge != -1) cookie.append("; Max-Age=").append(maxAge);
+    if (secure) cookie.append("; Secure");
+    exchange.getResponseHeaders().add("Set-Cookie", cookie.toString());
+  }
+
+  public void setHeader(String name, String value) {
+    exchange.getResponseHeaders().set(name, value);
+  }
+
+  public void sendStatus(int status) throws IOException {
+    exchange.sendResponseHeaders(status, -1);
+    exchange.close();
+  }
+
+  public void sendError(int status) throws IOException {
+    sendStatus(status);
+  }
+
+  public void sendRedirect(String location) throws IOException {
+    exchange.getResponseHeaders().set("Location", location);
+    sendStatus(302);
+  }
+
+  /**
+   * Parses a query string into parameters the way a servlet container would
+   *
+   * @param query the raw query string, may be null
+   * @return the parameters as name to String[] of values
+   */
+  static Map<String, String[]> parseQuery(String query) {
+    Map<String, List<String>> values = new HashMap<String, List<String>>();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        if (pair.length() == 0) continue;
+        int equals = pair.indexOf('=');
+        String name = decode((equals != -1) ? pair.substring(0, equals) : pair);
+        String value = decode((equals != -1) ? pair.substring(equals + 1) : "");
+        if (!values.containsKey(name)) {
+          values.put(name, new ArrayList<String>());
+        }
+        values.get(name).add(value);
+      }
+    }
+
+    Map<String, String[]> parameters = new HashMap<String, String[]>();
+    for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+      parameters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+    }
+    return parameters;
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, "UTF-8");
+    }
+    catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(uee);
+    }
+    catch (IllegalArgumentException iae) {
+      // Leave badly encoded values as they are
+      return value;
+    }
+  }
+}
@@ -0,0 +1,221 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import org.guanxi.sp.guard.GuardConfig;
+import org.guanxi.sp.guard.GuardEvents;
+import org.guanxi.sp.guard.core.GuardCore;
+
+/**
+ * Records the Guard's events as Java Flight Recorder events, for JDK Mission Control.
+ * Needs JDK 11 or later and is only built there. Turned on in the Guard config with:
+ *
+ * events.class=org.guanxi.sp.guard.jfr.JfrGuardEvents
+ *
+ * Even then, the events are disabled in JFR's default and profile settings so they cost
+ * next to nothing until a recording asks for them, e.g.
+ *
+ * jcmd &lt;pid&gt; JFR.start settings=guard.jfc
+ *
+ * with a settings file that enables the org.guanxi.guard events. None of the events
+ * records a stack trace.
+ */
+public class JfrGuardEvents implements GuardEvents {
+  public void init(GuardConfig config) {
+  }
+
+  public void filtered(String host, int outcome, int attributeCount, long nanos) {
+    FilterEvent event = new FilterEvent();
+    if (event.isEnabled()) {
+      event.host = host;
+      event.outcome = getOutcomeName(outcome);
+      event.attributeCount = attributeCount;
+      event.decisionTime = nanos;
+      event.commit();
+    }
+  }
+
+  public void passedThrough(String path) {
+    PassThroughEvent event = new PassThroughEvent();
+    if (event.isEnabled()) {
+      event.path = path;
+      event.commit();
+    }
+  }
+
+  public void podCreated(String host, int size) {
+    PodCreatedEvent event = new PodCreatedEvent();
+    if (event.isEnabled()) {
+      event.host = host;
+      event.size = size;
+      event.commit();
+    }
+  }
+
+  public void podEvicted(String host, int size) {
+    PodEvictedEvent event = new PodEvictedEvent();
+    if (event.isEnabled()) {
+      event.host = host;
+      event.size = size;
+      event.commit();
+    }
+  }
+
+  public void bagIngested(int bytes, int attributeCount, long nanos) {
+    BagIngestedEvent event = new BagIngestedEvent();
+    if (event.isEnabled()) {
+      event.bytes = bytes;
+      event.attributeCount = attributeCount;
+      event.parseTime = nanos;
+      event.commit();
+    }
+  }
+
+  public void loginCompleted(String host, boolean completed) {
+    LoginCompletedEvent event = new LoginCompletedEvent();
+    if (event.isEnabled()) {
+      event.host = host;
+      event.completed = completed;
+      event.commit();
+    }
+  }
+
+  public void loggedOut(String host) {
+    LogoutEvent event = new LogoutEvent();
+    if (event.isEnabled()) {
+      event.host = host;
+      event.commit();
+    }
+  }
+
+  private static String getOutcomeName(int outcome) {
+    switch (outcome) {
+      case GuardCore.ALLOWED: return "allowed";
+      case GuardCore.DENIED: return "denied";
+      case GuardCore.REFUSED: return "refused";
+      case GuardCore.LOGIN: return "login";
+      default: return String.valueOf(outcome);
+    }
+  }
+
+  @Name("org.guanxi.guard.Filter")
+  @Label("Guard Decision")
+  @Description("A request for a protected resource decided by the Guard")
+  @Category({"Guanxi", "Guard"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class FilterEvent extends Event {
+    @Label("Host")
+    String host;
+    @Label("Outcome")
+    String outcome;
+    @Label("Attributes")
+    int attributeCount;
+    @Label("Decision Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long decisionTime;
+  }
+
+  @Name("org.guanxi.guard.PassThrough")
+  @Label("Guard Pass Through")
+  @Description("A request that got past the Guard without being checked")
+  @Category({"Guanxi", "Guard"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class PassThroughEvent extends Event {
+    @Label("Path")
+    String path;
+  }
+
+  @Name("org.guanxi.guard.PodCreated")
+  @Label("Pod Created")
+  @Category({"Guanxi", "Guard"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class PodCreatedEvent extends Event {
+    @Label("Host")
+    String host;
+    @Label("Size")
+    @DataAmount
+    int size;
+  }
+
+  @Name("org.guanxi.guard.PodEvicted")
+  @Label("Pod Evicted")
+  @Description("A Pod evicted to stay within the memory budget")
+  @Category({"Guanxi", "Guard"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class PodEvictedEvent extends Event {
+    @Label("Host")
+    String host;
+    @Label("Size")
+    @DataAmount
+    int size;
+  }
+
+  @Name("org.guanxi.guard.BagIngested")
+  @Label("Attributes Received")
+  @Description("Attributes from the Engine read and parsed by the AttributeConsumer")
+  @Category({"Guanxi", "Guard"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class BagIngestedEvent extends Event {
+    @Label("Payload Size")
+    @DataAmount
+    int bytes;
+    @Label("Attributes")
+    int attributeCount;
+    @Label("Parse Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long parseTime;
+  }
+
+  @Name("org.guanxi.guard.LoginCompleted")
+  @Label("Login Completed")
+  @Description("The Podder finishing a login")
+  @Category({"Guanxi", "Guard"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class LoginCompletedEvent extends Event {
+    @Label("Host")
+    String host;
+    @Label("Cookie Issued")
+    boolean completed;
+  }
+
+  @Name("org.guanxi.guard.Logout")
+  @Label("Logout")
+  @Description("A Pod deactivated")
+  @Category({"Guanxi", "Guard"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class LogoutEvent extends Event {
+    @Label("Host")
+    String host;
+  }
+}
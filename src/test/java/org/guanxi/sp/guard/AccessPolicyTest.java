@@ -0,0 +1,115 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Properties;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.core.RequestPath;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks AccessPolicy's rules against the paths the Guard matches them with, including
+ * paths written to slip past a rule
+ */
+public class AccessPolicyTest {
+  private static AccessPolicy policy;
+
+  @BeforeClass
+  public static void compile() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("access.rule.1.path", "^/protected/admin/");
+    properties.setProperty("access.rule.1.require", "eduPersonAffiliation=staff|faculty,eduPersonEntitlement~^urn:mace:uni:admin");
+    properties.setProperty("access.rule.2.path", "^/protected/members/");
+    properties.setProperty("access.rule.2.require", "eduPersonAffiliation");
+    policy = AccessPolicy.compile(config(properties));
+  }
+
+  @Test
+  public void appliesTheFirstMatchingRule() {
+    PodSnapshot staff = snapshot("staff;member", "urn:mace:uni:admin:all");
+    PodSnapshot student = snapshot("student", null);
+
+    assertTrue(policy.isAllowed(staff, "/protected/admin/index.html"));
+    assertFalse(policy.isAllowed(student, "/protected/admin/index.html"));
+    assertTrue(policy.isAllowed(student, "/protected/members/index.html"));
+    assertFalse(policy.isAllowed(snapshot(null, null), "/protected/members/index.html"));
+    assertTrue(policy.isAllowed(student, "/public/index.html"));
+  }
+
+  @Test
+  public void cachesDecisionsPerSnapshot() {
+    PodSnapshot student = snapshot("student", null);
+    for (int i = 0; i < 3; i++) {
+      assertFalse(policy.isAllowed(student, "/protected/admin/"));
+      assertTrue(policy.isAllowed(student, "/protected/members/"));
+    }
+  }
+
+  @Test
+  public void matchesEveryWayOfWritingAProtectedPath() {
+    PodSnapshot student = snapshot("student", null);
+    String[] disguised = {"//protected/admin/", "/protected//admin/x", "/protected/admin;jsessionid=x/",
+                          "/protected/./admin/", "/./protected/admin/"};
+    for (String path : disguised) {
+      assertFalse(path, policy.isAllowed(student, RequestPath.normalise(path)));
+    }
+  }
+
+  /**
+   * Makes a snapshot of a logged in Pod
+   *
+   * @param affiliation the eduPersonAffiliation or null
+   * @param entitlement the eduPersonEntitlement or null
+   * @return the snapshot
+   */
+  private static PodSnapshot snapshot(String affiliation, String entitlement) {
+    Bag bag = new Bag();
+    if (affiliation != null) bag.addAttribute("eduPersonAffiliation", affiliation);
+    if (entitlement != null) bag.addAttribute("eduPersonEntitlement", entitlement);
+    Pod pod = new Pod();
+    pod.setSessionID("session");
+    pod.setBag(bag);
+    return new PodSnapshot(pod, System.currentTimeMillis(), 0, null, null, null);
+  }
+
+  /**
+   * Writes out config for the Guard to load
+   *
+   * @param properties the config
+   * @return the loaded config
+   */
+  static GuardConfig config(Properties properties) throws Exception {
+    File file = File.createTempFile("guard", ".properties");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      properties.store(out, null);
+    }
+    finally {
+      out.close();
+    }
+    return new GuardConfig(file.getPath());
+  }
+}
@@ -0,0 +1,66 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that AdmissionControl groups clients by network prefix whatever form their
+ * addresses are written in
+ */
+public class AdmissionControlTest {
+  private final AdmissionControl control = new AdmissionControl(60, 2, 24, 64);
+
+  @Test
+  public void groupsIPv6ByPrefixWhateverTheNotation() {
+    int hash = control.hash("2001:db8:0:1:0:0:0:1");
+    assertEquals(hash, control.hash("2001:db8::1:0:0:0:1"));
+    assertEquals(hash, control.hash("2001:0db8:0000:0001:ffff:ffff:ffff:ffff"));
+    assertEquals(hash, control.hash("2001:db8:0:1::"));
+    assertNotEquals(hash, control.hash("2001:db8:0:2::1"));
+    assertNotEquals(hash, control.hash("2001:db8::1"));
+  }
+
+  @Test
+  public void groupsIPv4ByPrefix() {
+    assertEquals(control.hash("192.0.2.1"), control.hash("192.0.2.254"));
+    assertEquals(control.hash("192.0.2.1"), control.hash("::ffff:192.0.2.7"));
+    assertNotEquals(control.hash("192.0.2.1"), control.hash("192.0.3.1"));
+  }
+
+  @Test
+  public void limitsAPrefixAsOneClient() {
+    assertTrue(control.admit("2001:db8:0:1::1"));
+    assertTrue(control.admit("2001:db8:0:1:0:0:0:2"));
+    assertFalse(control.admit("2001:db8::1:aaaa:bbbb:cccc:dddd"));
+    assertTrue(control.admit("2001:db8:0:2::1"));
+    assertEquals(1, control.getRejectedCount());
+  }
+
+  @Test
+  public void copesWithThingsThatArentAddresses() {
+    assertEquals(control.hash("unknown"), control.hash("unknown"));
+    assertEquals(0, control.hash(null));
+    control.hash("1.2.3.4.5");
+    control.hash("256.1.1.1");
+  }
+}
@@ -0,0 +1,141 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks which attribute refreshes AttributeRefresh accepts from the Engine
+ */
+public class AttributeRefreshTest {
+  private static final String SECRET = "refresh-secret";
+
+  private final AttributeRefresh refresh = new AttributeRefresh();
+
+  @Before
+  public void configure() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("refresh.secret", SECRET);
+    properties.setProperty("refresh.max.age.seconds", "60");
+    refresh.configure(AccessPolicyTest.config(properties));
+  }
+
+  @Test
+  public void acceptsARecentSignedRefresh() throws Exception {
+    byte[] payload = payload("session", "staff");
+    String timestamp = String.valueOf(System.currentTimeMillis());
+    Bag changes = refresh.accept(timestamp, sign(SECRET, timestamp, payload), payload);
+    assertEquals("session", changes.getSessionID());
+    assertEquals("staff", changes.getAttributeValue("eduPersonAffiliation"));
+  }
+
+  @Test
+  public void refusesBadSignatures() throws Exception {
+    byte[] payload = payload("session", "staff");
+    String timestamp = String.valueOf(System.currentTimeMillis());
+    String signature = sign(SECRET, timestamp, payload);
+
+    refuse(timestamp, null, payload);
+    refuse(null, signature, payload);
+    refuse(timestamp, sign("another-secret", timestamp, payload), payload);
+    refuse(String.valueOf(Long.parseLong(timestamp) + 1), signature, payload);
+    refuse(timestamp, signature, payload("session", "faculty"));
+    refuse(timestamp, signature.substring(1), payload);
+    refuse(timestamp, "zz" + signature.substring(2), payload);
+  }
+
+  @Test
+  public void refusesRefreshesOutsideTheMaximumAge() throws Exception {
+    byte[] payload = payload("session", "staff");
+    String old = String.valueOf(System.currentTimeMillis() - 61000);
+    refuse(old, sign(SECRET, old, payload), payload);
+    String future = String.valueOf(System.currentTimeMillis() + 61000);
+    refuse(future, sign(SECRET, future, payload), payload);
+    refuse("yesterday", sign(SECRET, "yesterday", payload), payload);
+  }
+
+  @Test
+  public void refusesReplaysOfAnEarlierRefresh() throws Exception {
+    long now = System.currentTimeMillis();
+    byte[] grant = payload("session", "staff");
+    String granted = String.valueOf(now - 2000);
+    String grantSignature = sign(SECRET, granted, grant);
+    refresh.accept(granted, grantSignature, grant);
+
+    byte[] revoke = payload("session", "");
+    String revoked = String.valueOf(now - 1000);
+    refresh.accept(revoked, sign(SECRET, revoked, revoke), revoke);
+
+    // The captured grant is still within the maximum age, but the revoke is newer
+    refuse(granted, grantSignature, grant);
+    refuse(revoked, sign(SECRET, revoked, revoke), revoke);
+
+    // Other sessions and later refreshes of this one carry on as normal
+    byte[] other = payload("other", "staff");
+    refresh.accept(granted, sign(SECRET, granted, other), other);
+    String regranted = String.valueOf(now);
+    refresh.accept(regranted, sign(SECRET, regranted, grant), grant);
+  }
+
+  private void refuse(String timestamp, String signature, byte[] payload) {
+    try {
+      refresh.accept(timestamp, signature, payload);
+      fail("Accepted refresh at " + timestamp + " signed " + signature);
+    }
+    catch (GuanxiException ge) {
+      // Refused, as it should be
+    }
+  }
+
+  private static byte[] payload(String sessionID, String affiliation) {
+    Bag bag = new Bag();
+    bag.setSessionID(sessionID);
+    bag.addAttribute("eduPersonAffiliation", affiliation);
+    return BagCodec.encode(bag);
+  }
+
+  /**
+   * Signs a refresh as the Engine does
+   *
+   * @param secret the refresh.secret
+   * @param timestamp the timestamp header
+   * @param payload the payload
+   * @return the signature header
+   */
+  private static String sign(String secret, String timestamp, byte[] payload) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"));
+    mac.update(timestamp.getBytes("UTF-8"));
+    mac.update((byte)'\n');
+    StringBuilder hex = new StringBuilder();
+    for (byte b : mac.doFinal(payload)) {
+      hex.append(String.format("%02x", b & 0xFF));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,81 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.guanxi.common.Bag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares getting a Bag out of the AttributeConsumer's request body as a BagCodec payload
+ * with the JSON fallback, which is URL decoded from the form parameter and then parsed by
+ * Bag(String). Run it from the test classpath after mvn test-compile:
+ *
+ * java -cp target/test-classes:target/classes:... org.guanxi.sp.guard.BagCodecBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BagCodecBenchmark {
+  /** Number of attributes in the Bag */
+  @Param({"5", "20", "60"})
+  public int attributes;
+
+  /** The Bag as a BagCodec payload */
+  private byte[] payload;
+  /** The Bag as the URL encoded value of the JSON form parameter */
+  private String form;
+
+  @Setup
+  public void setUp() throws Exception {
+    Bag bag = BagFixtures.bag(attributes);
+    payload = BagCodec.encode(bag);
+    form = URLEncoder.encode(bag.toJSON(), "UTF-8");
+  }
+
+  @Benchmark
+  public Bag binary() throws Exception {
+    return BagCodec.decode(payload);
+  }
+
+  @Benchmark
+  public Bag json() throws Exception {
+    return new Bag(URLDecoder.decode(form, "UTF-8"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().include(BagCodecBenchmark.class.getSimpleName()).build()).run();
+  }
+}
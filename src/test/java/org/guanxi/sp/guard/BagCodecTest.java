@@ -0,0 +1,158 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.junit.Test;
+
+/**
+ * Round trips Bags through BagCodec and checks that it refuses payloads it can't trust
+ */
+public class BagCodecTest {
+  @Test
+  public void roundTripsEveryField() throws Exception {
+    Bag bag = new Bag();
+    bag.setSessionID("GUARD_0123456789abcdef");
+    bag.setSamlResponse("<samlp:Response ID=\"_abc\">\u00e9</samlp:Response>");
+    bag.addAttribute("eduPersonAffiliation", "staff;member");
+    bag.addAttribute("urn:oid:1.3.6.1.4.1.5923.1.1.1.7", "urn:mace:uni:admin");
+    bag.addAttribute("localAttribute", "\u4e2d\u6587");
+    bag.addAttribute("empty", "");
+
+    Bag decoded = BagCodec.decode(BagCodec.encode(bag));
+
+    assertBagsEqual(bag, decoded);
+    assertFalse(decoded.isUnsolicitedMode());
+  }
+
+  @Test
+  public void keepsUnsolicitedMode() throws Exception {
+    Bag bag = new Bag();
+    bag.setUnsolicitedMode(true);
+    bag.setSessionID("https://sp.uni.ac.uk/protected/index.html");
+    bag.addAttribute("mail", "someone@uni.ac.uk");
+
+    Bag decoded = BagCodec.decode(BagCodec.encode(bag));
+
+    assertTrue(decoded.isUnsolicitedMode());
+    assertBagsEqual(bag, decoded);
+  }
+
+  @Test
+  public void roundTripsNullsAndNoAttributes() throws Exception {
+    Bag decoded = BagCodec.decode(BagCodec.encode(new Bag()));
+
+    assertNull(decoded.getSessionID());
+    assertNull(decoded.getSamlResponse());
+    assertFalse(decoded.hasAttributes());
+  }
+
+  @Test
+  public void writesWellKnownNamesAsOneByte() throws Exception {
+    Bag wellKnown = new Bag();
+    wellKnown.addAttribute("eduPersonPrincipalName", "someone@uni.ac.uk");
+    Bag literal = new Bag();
+    literal.addAttribute("xduPersonPrincipalName", "someone@uni.ac.uk");
+
+    assertEquals(BagCodec.encode(literal).length - "xduPersonPrincipalName".length() - 1,
+                 BagCodec.encode(wellKnown).length);
+  }
+
+  @Test
+  public void decodesVersion1() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[] {'G', 'X', 'B', 1});
+    writeString(out, "session");
+    out.write(new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, 0x7F});  // null samlResponse
+    out.write(1);
+    writeString(out, "cn");
+    out.write(1);
+    out.write(0);
+    writeString(out, "Some One");
+
+    Bag decoded = BagCodec.decode(out.toByteArray());
+
+    assertEquals("session", decoded.getSessionID());
+    assertNull(decoded.getSamlResponse());
+    assertEquals("Some One", decoded.getAttributeValue("cn"));
+  }
+
+  @Test
+  public void rejectsTruncatedPayloads() throws Exception {
+    Bag bag = new Bag();
+    bag.setSessionID("session");
+    bag.addAttribute("cn", "Some One");
+    byte[] payload = BagCodec.encode(bag);
+
+    for (int length = 0; length < payload.length; length++) {
+      try {
+        BagCodec.decode(Arrays.copyOf(payload, length));
+        fail("Decoded a payload truncated to " + length + " bytes");
+      }
+      catch (GuanxiException ge) {
+        // Expected
+      }
+    }
+  }
+
+  @Test(expected = GuanxiException.class)
+  public void rejectsUnknownVersions() throws Exception {
+    BagCodec.decode(new byte[] {'G', 'X', 'B', 99, 0});
+  }
+
+  @Test(expected = GuanxiException.class)
+  public void rejectsBadNameIndexes() throws Exception {
+    BagCodec.decode(new byte[] {'G', 'X', 'B', 2, 0, 0, 0, 1, 0x7F, 0});
+  }
+
+  /**
+   * Checks that two Bags hold the same session, SAML, mode and attributes
+   */
+  static void assertBagsEqual(Bag expected, Bag actual) {
+    assertEquals(expected.getSessionID(), actual.getSessionID());
+    assertEquals(expected.getSamlResponse(), actual.getSamlResponse());
+    assertEquals(expected.isUnsolicitedMode(), actual.isUnsolicitedMode());
+    assertEquals(expected.hasAttributes(), actual.hasAttributes());
+    if (expected.hasAttributes()) {
+      assertEquals(Collections.list(expected.getAttributeNames()),
+                   Collections.list(actual.getAttributeNames()));
+      for (String name : Collections.list(expected.getAttributeNames())) {
+        assertEquals(expected.getAttributeValue(name), actual.getAttributeValue(name));
+      }
+    }
+  }
+
+  /**
+   * Writes a short string as version 1 did
+   */
+  private static void writeString(ByteArrayOutputStream out, String value) throws Exception {
+    byte[] bytes = value.getBytes("UTF-8");
+    out.write(bytes.length);
+    out.write(bytes);
+  }
+}
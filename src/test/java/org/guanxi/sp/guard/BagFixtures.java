@@ -0,0 +1,69 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import org.guanxi.common.Bag;
+
+/**
+ * Bags shaped like the ones Engines deliver, for the codec tests and benchmarks
+ */
+public class BagFixtures {
+  /** Attribute names, well known ones first */
+  private static final String[] NAMES = {
+    "eduPersonPrincipalName", "eduPersonScopedAffiliation", "eduPersonAffiliation",
+    "eduPersonEntitlement", "eduPersonTargetedID", "displayName", "mail", "givenName", "sn", "uid"
+  };
+
+  /**
+   * Makes a Bag with a signed SAML Response of a realistic size
+   *
+   * @param attributes the number of attributes
+   * @return the Bag
+   */
+  public static Bag bag(int attributes) {
+    Bag bag = new Bag();
+    bag.setSessionID("GUARD_node1_4kq9Zr2X0vY8TnBwQe1LhA");
+    bag.setSamlResponse(samlResponse(attributes));
+    for (int i = 0; i < attributes; i++) {
+      String name = (i < NAMES.length) ? NAMES[i] : "urn:mace:uni.ac.uk:attribute:local" + i;
+      bag.addAttribute(name, "value-" + i + "@uni.ac.uk;urn:mace:dir:entitlement:common-lib-terms:" + i);
+    }
+    return bag;
+  }
+
+  /**
+   * Makes something the size and shape of a signed SAML Response carrying some attributes
+   *
+   * @param attributes the number of attributes
+   * @return the Response
+   */
+  public static String samlResponse(int attributes) {
+    StringBuilder saml = new StringBuilder();
+    saml.append("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_8e8dc5f69a98cc4c1ff3427e5ce34606fd672f91e6\"");
+    saml.append(" IssueInstant=\"2026-10-18T09:22:05Z\" Version=\"2.0\"><saml:Issuer>https://idp.uni.ac.uk/idp/shibboleth</saml:Issuer>");
+    saml.append("<ds:Signature><ds:SignatureValue>");
+    for (int i = 0; i < 8; i++) {
+      saml.append("QmFzZTY0IGVuY29kZWQgc2lnbmF0dXJlIHZhbHVlIGZvciB0aGUgYXNzZXJ0aW9uIG9mIHRoZSB1c2Vy");
+    }
+    saml.append("</ds:SignatureValue></ds:Signature><saml:AttributeStatement>");
+    for (int i = 0; i < attributes; i++) {
+      saml.append("<saml:Attribute Name=\"urn:oid:1.3.6.1.4.1.5923.1.1.1.").append(i).append("\">");
+      saml.append("<saml:AttributeValue>value-").append(i).append("@uni.ac.uk</saml:AttributeValue></saml:Attribute>");
+    }
+    return saml.append("</saml:AttributeStatement></samlp:Response>").toString();
+  }
+}
@@ -0,0 +1,82 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.guanxi.common.Bag;
+import org.junit.Test;
+
+/**
+ * Checks that the BagStore shares attributes between logins without mixing up what
+ * belongs to each login
+ */
+public class BagStoreTest {
+  private final BagStore store = new BagStore();
+
+  @Test
+  public void sharesTheSameAttributesWhateverTheLogin() {
+    Bag first = login("GUARD_first", "<Response ID=\"_1\"/>", false);
+    Bag second = login("GUARD_second", "<Response ID=\"_2\"/>", true);
+
+    Bag firstStored = store.intern(first);
+    Bag secondStored = store.intern(second);
+    assertEquals(1, store.getSize());
+    assertEquals(1, store.getMissCount());
+    assertEquals(1, store.getHitCount());
+
+    assertEquals("GUARD_first", firstStored.getSessionID());
+    assertEquals("<Response ID=\"_1\"/>", firstStored.getSamlResponse());
+    assertFalse(firstStored.isUnsolicitedMode());
+    assertEquals("GUARD_second", secondStored.getSessionID());
+    assertEquals("<Response ID=\"_2\"/>", secondStored.getSamlResponse());
+    assertTrue(secondStored.isUnsolicitedMode());
+
+    BagCodecTest.assertBagsEqual(first, firstStored);
+    BagCodecTest.assertBagsEqual(second, secondStored);
+  }
+
+  @Test
+  public void keepsDifferentAttributesApart() {
+    Bag first = login("GUARD_first", null, false);
+    Bag second = login("GUARD_second", null, false);
+    second.addAttribute("eduPersonEntitlement", "urn:mace:dir:entitlement:common-lib-terms");
+
+    store.intern(first);
+    Bag secondStored = store.intern(second);
+    assertEquals(2, store.getSize());
+    assertEquals("urn:mace:dir:entitlement:common-lib-terms", secondStored.getAttributeValue("eduPersonEntitlement"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void refusesChangesToSharedAttributes() {
+    store.intern(login("GUARD_first", null, false)).addAttribute("mail", "someone.else@uni.ac.uk");
+  }
+
+  private static Bag login(String sessionID, String samlResponse, boolean unsolicited) {
+    Bag bag = new Bag();
+    bag.setSessionID(sessionID);
+    bag.setSamlResponse(samlResponse);
+    bag.setUnsolicitedMode(unsolicited);
+    bag.addAttribute("eduPersonPrincipalName", "user@uni.ac.uk");
+    bag.addAttribute("mail", "user@uni.ac.uk");
+    return bag;
+  }
+}
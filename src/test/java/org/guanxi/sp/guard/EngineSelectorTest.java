@@ -0,0 +1,127 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks what the EngineSelector counts for and against an endpoint, and how it picks one
+ */
+public class EngineSelectorTest {
+  private final EngineSelector selector = new EngineSelector(new String[] {"https://engine1/gps", "https://engine2/gps"}, 1000);
+
+  @Test
+  public void measuresTheEngineNotTheUser() {
+    LoginTrace trace = sentTo(0, 10000);
+    selector.verified(trace, 10200);
+    assertEquals(1, selector.getCompletedCount(0));
+    assertEquals(470, selector.getLatency(0));
+
+    // The user spending minutes at the IdP afterwards makes no difference
+    trace.reach(LoginTrace.ATTRIBUTES, 300000);
+    selector.expired(trace);
+    assertEquals(1, selector.getCompletedCount(0));
+    assertEquals(0, selector.getFailedCount(0));
+  }
+
+  @Test
+  public void slowVerificationsFail() {
+    selector.verified(sentTo(0, 10000), 15000);
+    assertEquals(1, selector.getFailedCount(0));
+    assertEquals(550, selector.getLatency(0));
+  }
+
+  @Test
+  public void onlyExpiryWithoutVerificationFails() {
+    selector.removed(sentTo(0, 10000));
+    assertEquals(0, selector.getFailedCount(0));
+    assertEquals(0.0, selector.getFailureRate(0), 0.0);
+
+    selector.expired(sentTo(1, 10000));
+    assertEquals(1, selector.getFailedCount(1));
+    assertTrue(selector.getFailureRate(1) > 0);
+  }
+
+  @Test
+  public void picksEvenlyWhenEveryEngineIsFailing() {
+    EngineSelector failing = new EngineSelector(new String[] {"https://engine1/gps", "https://engine2/gps", "https://engine3/gps"}, 1000);
+    for (int engine = 0; engine < 3; engine++) {
+      for (int i = 0; i < 2000; i++) {
+        failing.failed(engine);
+      }
+      assertEquals(1.0, failing.getFailureRate(engine), 1e-9);
+    }
+
+    int[] picks = new int[3];
+    for (int i = 0; i < 3000; i++) {
+      picks[failing.select()]++;
+    }
+    for (int engine = 0; engine < 3; engine++) {
+      assertTrue("engine " + engine + " got " + picks[engine], picks[engine] > 800);
+    }
+  }
+
+  @Test
+  public void aSingleEngineIsAlwaysPicked() {
+    EngineSelector single = new EngineSelector(new String[] {"https://engine1/gps"}, 1000);
+    single.failed(0);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, single.select());
+    }
+  }
+
+  @Test
+  public void picksFasterEnginesMoreOften() {
+    for (int i = 0; i < 100; i++) {
+      selector.verified(0, 100);
+      selector.verified(1, 800);
+    }
+
+    int[] picks = new int[2];
+    for (int i = 0; i < 10000; i++) {
+      picks[selector.select()]++;
+    }
+    assertTrue("engine 1 got " + picks[1], picks[0] > picks[1] * 4);
+  }
+
+  @Test
+  public void aFailingEngineKeepsItsMinimumShare() {
+    for (int i = 0; i < 2000; i++) {
+      selector.verified(0, 200);
+      selector.failed(1);
+    }
+
+    // The failing engine's weight is MIN_SHARE of the other's, so it gets about 1 in 21
+    int[] picks = new int[2];
+    for (int i = 0; i < 10000; i++) {
+      picks[selector.select()]++;
+    }
+    assertTrue("engine 1 got " + picks[1], (picks[1] > 300) && (picks[1] < 700));
+  }
+
+  private LoginTrace sentTo(int engine, long redirected) {
+    LoginTrace trace = new LoginTrace(redirected - 5);
+    trace.reach(LoginTrace.REDIRECTED, redirected);
+    trace.setEngine(engine);
+    selector.sent(engine);
+    return trace;
+  }
+}
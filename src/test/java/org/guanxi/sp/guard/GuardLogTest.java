@@ -0,0 +1,170 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that asynchronous logging keeps the details of the thread that logged each message
+ * and never drops an error
+ */
+public class GuardLogTest {
+  private final Logger log = Logger.getLogger(GuardLogTest.class.getName());
+  /** Holds up the writer. Appenders are called holding their Logger's lock, so it's another Logger. */
+  private final Logger holdingLog = Logger.getLogger(GuardLogTest.class.getName() + ".holding");
+  private final Recorder recorder = new Recorder();
+  private final Holder holder = new Holder();
+  private File configFile;
+
+  @Before
+  public void setUp() throws IOException {
+    log.setAdditivity(false);
+    log.setLevel(Level.DEBUG);
+    log.addAppender(recorder);
+    holdingLog.setAdditivity(false);
+    holdingLog.setLevel(Level.DEBUG);
+    holdingLog.addAppender(holder);
+
+    Properties properties = new Properties();
+    properties.setProperty("logging.async", "true");
+    properties.setProperty("logging.ring.size", "2");
+    configFile = File.createTempFile("guard", ".properties");
+    OutputStream out = new FileOutputStream(configFile);
+    try {
+      properties.store(out, null);
+    }
+    finally {
+      out.close();
+    }
+    GuardLog.configure(new GuardConfig(configFile.getPath()));
+  }
+
+  @After
+  public void tearDown() {
+    holder.release.countDown();
+    GuardLog.shutdown();
+    log.removeAppender(recorder);
+    holdingLog.removeAppender(holder);
+    configFile.delete();
+  }
+
+  @Test
+  public void keepsTheLoggingThread() throws Exception {
+    Thread request = new Thread("request-1") {
+      public void run() {
+        NDC.push("login");
+        GuardLog.info(log, "Created Pod {}", "SESSION");
+        NDC.remove();
+      }
+    };
+    request.start();
+    request.join();
+
+    LoggingEvent event = recorder.events.poll(5, TimeUnit.SECONDS);
+    assertNotNull(event);
+    assertEquals("Created Pod SESSION", event.getRenderedMessage());
+    assertEquals("request-1", event.getThreadName());
+    assertEquals("login", event.getNDC());
+  }
+
+  @Test
+  public void writesErrorsWhenTheRingIsFull() throws Exception {
+    GuardLog.info(holdingLog, "Holding up the writer {}", 0);
+    assertTrue(holder.holding.await(5, TimeUnit.SECONDS));
+
+    // The writer is stuck in the appender, so these fill the ring and the last is dropped
+    GuardLog.info(log, "Queued {}", 1);
+    GuardLog.info(log, "Queued {}", 2);
+    GuardLog.info(log, "Dropped {}", 3);
+    assertEquals(1, GuardLog.getDroppedCount());
+
+    GuardLog.error(log, "Failed {}", 4);
+    LoggingEvent event = recorder.events.poll();
+    assertNotNull(event);
+    assertEquals("Failed 4", event.getRenderedMessage());
+    assertEquals(Thread.currentThread().getName(), event.getThreadName());
+
+    holder.release.countDown();
+    assertEquals("Queued 1", recorder.events.poll(5, TimeUnit.SECONDS).getRenderedMessage());
+    assertEquals("Queued 2", recorder.events.poll(5, TimeUnit.SECONDS).getRenderedMessage());
+  }
+
+  /**
+   * Keeps the events it's given
+   */
+  private static class Recorder extends AppenderSkeleton {
+    final BlockingQueue<LoggingEvent> events = new LinkedBlockingQueue<LoggingEvent>();
+
+    protected void append(LoggingEvent event) {
+      events.add(event);
+    }
+
+    public boolean requiresLayout() {
+      return false;
+    }
+
+    public void close() {
+    }
+  }
+
+  /**
+   * Holds up the thread that appends until it's released
+   */
+  private static class Holder extends AppenderSkeleton {
+    final CountDownLatch holding = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    protected void append(LoggingEvent event) {
+      holding.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public boolean requiresLayout() {
+      return false;
+    }
+
+    public void close() {
+    }
+  }
+}
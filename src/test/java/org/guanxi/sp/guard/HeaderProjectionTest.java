@@ -0,0 +1,98 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Properties;
+
+import org.guanxi.common.Bag;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks which attributes a HeaderProjection passes on for a path, and that it only works
+ * them out once per AttributeLayout
+ */
+public class HeaderProjectionTest {
+  private static HeaderProjection projection;
+
+  @BeforeClass
+  public static void compile() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("header.projection.1.path", "^/protected/mail/");
+    properties.setProperty("header.projection.1.attributes", "mail, displayName");
+    properties.setProperty("header.projection.2.path", "^/protected/library/");
+    properties.setProperty("header.projection.2.attributes", "eduPersonEntitlement,missing");
+    projection = HeaderProjection.compile(AccessPolicyTest.config(properties));
+  }
+
+  @Test
+  public void unmatchedPathsGetEveryAttribute() {
+    AttributeLayout layout = new AttributeLayout(bag("mail", "displayName"), "HTTP_");
+    assertNull(projection.project(layout, "/protected/index.html"));
+    assertNull(projection.project(layout, "/mail/"));
+  }
+
+  @Test
+  public void selectsTheProjectedAttributesThatThePodHas() {
+    AttributeLayout layout = new AttributeLayout(bag("eduPersonEntitlement", "mail", "displayName"), "HTTP_");
+    assertArrayEquals(new int[] {1, 2}, projection.project(layout, "/protected/mail/inbox"));
+    assertArrayEquals(new int[] {0}, projection.project(layout, "/protected/library/"));
+    assertEquals("HTTP_mail", layout.getHeaderName(1));
+    assertEquals("value of mail", layout.getValue(1));
+  }
+
+  @Test
+  public void cachesIndicesPerLayout() {
+    AttributeLayout first = new AttributeLayout(bag("mail", "displayName"), "HTTP_");
+    AttributeLayout second = new AttributeLayout(bag("displayName", "cn", "mail"), "HTTP_");
+
+    int[] indices = projection.project(first, "/protected/mail/");
+    assertSame(indices, projection.project(first, "/protected/mail/inbox"));
+    assertArrayEquals(new int[] {0, 1}, indices);
+    assertArrayEquals(new int[] {2, 0}, projection.project(second, "/protected/mail/"));
+
+    // A refresh that only changes values keeps the indices, one that changes names doesn't
+    assertSame(indices, projection.project(first.refresh(bag("mail", "displayName")), "/protected/mail/"));
+    assertArrayEquals(new int[] {0}, projection.project(first.refresh(bag("mail")), "/protected/mail/"));
+  }
+
+  @Test
+  public void aPodWithoutABagHasNoAttributes() {
+    AttributeLayout layout = new AttributeLayout(null, "HTTP_");
+    assertEquals(0, layout.size());
+    assertArrayEquals(new int[0], projection.project(layout, "/protected/mail/"));
+  }
+
+  /**
+   * Makes a Bag of attributes, each with a value made from its name
+   *
+   * @param names the attribute names, in order
+   * @return the Bag
+   */
+  private static Bag bag(String... names) {
+    Bag bag = new Bag();
+    for (String name : names) {
+      bag.addAttribute(name, "value of " + name);
+    }
+    return bag;
+  }
+}
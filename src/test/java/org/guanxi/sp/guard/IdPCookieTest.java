@@ -0,0 +1,128 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Base64;
+import java.util.Properties;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+import org.junit.Test;
+
+/**
+ * Checks that IdPCookie only gives back the IdPs it remembered itself
+ */
+public class IdPCookieTest {
+  private static final String IDP = "https://idp.uni.ac.uk/idp/shibboleth";
+  private static final String RESPONSE = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+                                         "<saml:Issuer Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:entity\">" +
+                                         IDP + "</saml:Issuer></samlp:Response>";
+
+  @Test
+  public void remembersTheIssuerOfTheLogin() throws Exception {
+    IdPCookie idpCookie = create("secret", null);
+    assertEquals("GUARD_IDP", idpCookie.getCookieName());
+    assertEquals(IDP, idpCookie.getEntityID(idpCookie.createValue(pod(RESPONSE, null))));
+  }
+
+  @Test
+  public void remembersTheConfiguredAttribute() throws Exception {
+    IdPCookie idpCookie = create("secret", "idpEntityID");
+    String value = idpCookie.createValue(pod(RESPONSE, "https://other.uni.ac.uk/idp"));
+    assertEquals("https://other.uni.ac.uk/idp", idpCookie.getEntityID(value));
+    assertNull(idpCookie.createValue(pod(RESPONSE, null)));
+  }
+
+  @Test
+  public void ignoresTamperedValues() throws Exception {
+    IdPCookie idpCookie = create("secret", null);
+    String value = idpCookie.createValue(pod(RESPONSE, null));
+    int dot = value.indexOf('.');
+    String entityID = value.substring(0, dot);
+    String mac = value.substring(dot + 1);
+
+    // Another IdP with the genuine MAC
+    String evil = create("secret", null).createValue(pod(RESPONSE.replace(IDP, "https://evil.example.com/idp"), null));
+    assertNull(idpCookie.getEntityID(evil.substring(0, evil.indexOf('.')) + "." + mac));
+    // The genuine IdP with a changed MAC
+    assertNull(idpCookie.getEntityID(entityID + "." + flip(mac)));
+    assertNull(idpCookie.getEntityID(flip(entityID) + "." + mac));
+    // Signed with another secret
+    assertNull(idpCookie.getEntityID(create("another-secret", null).createValue(pod(RESPONSE, null))));
+  }
+
+  @Test
+  public void ignoresMalformedValues() throws Exception {
+    IdPCookie idpCookie = create("secret", null);
+    String value = idpCookie.createValue(pod(RESPONSE, null));
+    int dot = value.indexOf('.');
+
+    assertNull(idpCookie.getEntityID((String)null));
+    assertNull(idpCookie.getEntityID(""));
+    assertNull(idpCookie.getEntityID(value.replace(".", "")));
+    assertNull(idpCookie.getEntityID(value.substring(1)));
+    assertNull(idpCookie.getEntityID(value.substring(0, value.length() - 1)));
+    assertNull(idpCookie.getEntityID("zz" + value.substring(2)));
+    assertNull(idpCookie.getEntityID(value.substring(0, dot + 1) + "g" + value.substring(dot + 2)));
+  }
+
+  @Test
+  public void findsTheIssuerInRawAndBase64Responses() throws Exception {
+    assertEquals(IDP, IdPCookie.getIssuer(RESPONSE));
+    assertEquals(IDP, IdPCookie.getIssuer(Base64.getEncoder().encodeToString(RESPONSE.getBytes("UTF-8"))));
+    assertEquals(IDP, IdPCookie.getIssuer(Base64.getMimeEncoder().encodeToString(RESPONSE.getBytes("UTF-8"))));
+    assertEquals(IDP, IdPCookie.getIssuer("<Response><Issuer>\n  " + IDP + "\n</Issuer></Response>"));
+    assertNull(IdPCookie.getIssuer(null));
+    assertNull(IdPCookie.getIssuer("<Response/>"));
+    assertNull(IdPCookie.getIssuer("not base64!"));
+  }
+
+  /**
+   * Flips the last hex digit of a value
+   *
+   * @param hex the value
+   * @return the value with its last digit changed
+   */
+  private static String flip(String hex) {
+    char last = hex.charAt(hex.length() - 1);
+    return hex.substring(0, hex.length() - 1) + ((last == '0') ? '1' : '0');
+  }
+
+  private static Pod pod(String samlResponse, String idpAttribute) {
+    Bag bag = new Bag();
+    bag.setSamlResponse(samlResponse);
+    if (idpAttribute != null) {
+      bag.addAttribute("idpEntityID", idpAttribute);
+    }
+    Pod pod = new Pod();
+    pod.setBag(bag);
+    return pod;
+  }
+
+  private static IdPCookie create(String secret, String attribute) throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("cookie.prefix", "GUARD_");
+    properties.setProperty("idp.remember.secret", secret);
+    if (attribute != null) {
+      properties.setProperty("idp.remember.attribute", attribute);
+    }
+    return IdPCookie.create(AccessPolicyTest.config(properties));
+  }
+}
@@ -0,0 +1,111 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+
+import org.guanxi.common.Pod;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks the keys the OffHeapPodIndex gives session IDs and what it reports about the Pods
+ * it removes
+ */
+public class OffHeapPodIndexTest {
+  private final OffHeapPodIndex index;
+
+  public OffHeapPodIndexTest() throws Exception {
+    index = new OffHeapPodIndex(4 * PodSlabs.SLAB_SIZE, null, null);
+  }
+
+  @After
+  public void tearDown() {
+    index.close();
+  }
+
+  @Test
+  public void keysGeneratedIDsOnAllTheirRandomBits() {
+    SecureSessionIDGenerator generator = new SecureSessionIDGenerator();
+    for (int i = 0; i < 100; i++) {
+      String sessionID = generator.generate();
+      ByteBuffer random = ByteBuffer.wrap(Base64.getUrlDecoder().decode(sessionID.substring(sessionID.length() - 22)));
+      assertArrayEquals(new long[] {random.getLong(), random.getLong()}, OffHeapPodIndex.key(sessionID));
+    }
+
+    // The top bits of each half count
+    assertFalse(OffHeapPodIndex.key("GUARD_AAAAAAAAAAAAAAAAAAAAAA")[0] == OffHeapPodIndex.key("GUARD_wAAAAAAAAAAAAAAAAAAAAA")[0]);
+    assertFalse(OffHeapPodIndex.key("GUARD_AAAAAAAAAAAAAAAAAAAAAA")[1] == OffHeapPodIndex.key("GUARD_AAAAAAAAAAwAAAAAAAAAAA")[1]);
+  }
+
+  @Test
+  public void hashesIDsThatArentGenerated() {
+    // The last character carries more than 2 bits, so this can't be 16 bytes
+    long[] key = OffHeapPodIndex.key("GUARD_AAAAAAAAAAAAAAAAAAAAAB");
+    assertFalse((key[0] == 0) && (key[1] == 1));
+    assertFalse((key[0] == 0) && (key[1] == 0));
+  }
+
+  @Test
+  public void remembersThePartitionOfEachPod() {
+    assertTrue(index.put(pod("GUARD_4kq9Zr2X0vY8TnBwQe1LhA"), 1000, 7, "app.uni.ac.uk"));
+    assertTrue(index.put(pod("GUARD_Zr2X0vY8TnBwQe1LhA4kqw"), 2000, 8, null));
+    assertFalse(index.put(pod("GUARD_4kq9Zr2X0vY8TnBwQe1LhA"), 3000, 9, "app.uni.ac.uk"));
+
+    OffHeapPodIndex.Entry entry = index.get("GUARD_4kq9Zr2X0vY8TnBwQe1LhA");
+    assertEquals("GUARD_4kq9Zr2X0vY8TnBwQe1LhA", entry.getPod().getSessionID());
+    assertEquals(1000, entry.getCreated());
+    assertEquals("app.uni.ac.uk", entry.getPartition());
+
+    OffHeapPodIndex.Entry removed = index.remove("GUARD_4kq9Zr2X0vY8TnBwQe1LhA");
+    assertNotNull(removed);
+    assertNull(removed.getPod());
+    assertEquals("app.uni.ac.uk", removed.getPartition());
+    assertNull(index.remove("GUARD_4kq9Zr2X0vY8TnBwQe1LhA"));
+    assertNull(index.remove("GUARD_Zr2X0vY8TnBwQe1LhA4kqw").getPartition());
+    assertEquals(0, index.getUsed());
+  }
+
+  @Test
+  public void reportsThePodsItExpires() {
+    index.put(pod("GUARD_4kq9Zr2X0vY8TnBwQe1LhA"), 1000, 1, "app.uni.ac.uk");
+    index.put(pod("GUARD_Zr2X0vY8TnBwQe1LhA4kqw"), 1000, 9, "app.uni.ac.uk");
+
+    List<OffHeapPodIndex.Entry> expired = index.expire(10, 3);
+    assertEquals(1, expired.size());
+    assertEquals(1, expired.get(0).getAccessGeneration());
+    assertEquals("app.uni.ac.uk", expired.get(0).getPartition());
+    assertEquals(1, index.getSize());
+    assertNotNull(index.get("GUARD_Zr2X0vY8TnBwQe1LhA4kqw"));
+  }
+
+  private static Pod pod(String sessionID) {
+    Pod pod = PodCodecTest.pod();
+    pod.setSessionID(sessionID);
+    return pod;
+  }
+}
@@ -0,0 +1,135 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares a round trip of a logged in Pod through PodCodec with one through Java
+ * serialization. A Pod can't be serialized itself, as it holds the servlet context, so the
+ * serialized side is a SerializablePod with the same fields, i.e. the best Java
+ * serialization could do. Each side also reports the size of its encoding once at setup.
+ * Run it from the test classpath after mvn test-compile:
+ *
+ * java -cp target/test-classes:target/classes:... org.guanxi.sp.guard.PodCodecBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PodCodecBenchmark {
+  /** Number of attributes in the Pod's Bag */
+  @Param({"5", "20", "60"})
+  public int attributes;
+
+  private Pod pod;
+  private SerializablePod serializablePod;
+
+  @Setup
+  public void setUp() throws Exception {
+    pod = PodCodecTest.pod();
+    pod.setBag(BagFixtures.bag(attributes));
+    serializablePod = new SerializablePod(pod);
+    System.out.println("PodCodec " + PodCodec.encode(pod).length + " bytes, serialization " +
+                       serialize(serializablePod).length + " bytes");
+  }
+
+  @Benchmark
+  public Pod podCodec() throws Exception {
+    return PodCodec.decode(PodCodec.encode(pod), null);
+  }
+
+  @Benchmark
+  public Object serialization() throws Exception {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(serializablePod)));
+    try {
+      return in.readObject();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static byte[] serialize(Object object) throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(buffer);
+    out.writeObject(object);
+    out.close();
+    return buffer.toByteArray();
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().include(PodCodecBenchmark.class.getSimpleName()).build()).run();
+  }
+
+  /**
+   * The state of a Pod and its Bag in a form Java serialization can write
+   */
+  @SuppressWarnings("serial")
+  static class SerializablePod implements Serializable {
+    final String sessionID;
+    final String requestScheme;
+    final String hostName;
+    final String requestURL;
+    final HashMap<Object, Object> requestParameters;
+    final String bagSessionID;
+    final String samlResponse;
+    final boolean unsolicitedMode;
+    final HashMap<String, String> attributes = new HashMap<String, String>();
+
+    SerializablePod(Pod pod) {
+      sessionID = pod.getSessionID();
+      requestScheme = pod.getRequestScheme();
+      hostName = pod.getHostName();
+      requestURL = pod.getRequestURL();
+      requestParameters = new HashMap<Object, Object>((Map<?, ?>)pod.getRequestParameters());
+      Bag bag = pod.getBag();
+      bagSessionID = bag.getSessionID();
+      samlResponse = bag.getSamlResponse();
+      unsolicitedMode = bag.isUnsolicitedMode();
+      for (String name : Collections.list(bag.getAttributeNames())) {
+        attributes.put(name, bag.getAttributeValue(name));
+      }
+    }
+  }
+}
@@ -0,0 +1,210 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.junit.Test;
+
+/**
+ * Round trips Pods through PodCodec and checks that it refuses bytes it can't trust
+ */
+public class PodCodecTest {
+  @Test
+  public void roundTripsEveryField() throws Exception {
+    Pod pod = pod();
+    pod.setBag(BagFixtures.bag(20));
+
+    Pod decoded = PodCodec.decode(PodCodec.encode(pod), null);
+
+    assertPodsEqual(pod, decoded);
+  }
+
+  @Test
+  public void roundTripsAnUnsolicitedBag() throws Exception {
+    Pod pod = pod();
+    Bag bag = BagFixtures.bag(3);
+    bag.setUnsolicitedMode(true);
+    pod.setBag(bag);
+
+    Pod decoded = PodCodec.decode(PodCodec.encode(pod), null);
+
+    assertTrue(decoded.getBag().isUnsolicitedMode());
+    assertPodsEqual(pod, decoded);
+  }
+
+  @Test
+  public void roundTripsAPendingPod() throws Exception {
+    Pod pod = new Pod();
+    pod.setSessionID("GUARD_pending");
+
+    Pod decoded = PodCodec.decode(PodCodec.encode(pod), null);
+
+    assertEquals("GUARD_pending", decoded.getSessionID());
+    assertNull(decoded.getRequestScheme());
+    assertNull(decoded.getHostName());
+    assertNull(decoded.getRequestURL());
+    assertNull(decoded.getRequestParameters());
+    assertNull(decoded.getBag());
+  }
+
+  @Test
+  public void roundTripsStringsBeyondWriteUTFsLimit() throws Exception {
+    Pod pod = pod();
+    Bag bag = new Bag();
+    char[] saml = new char[100000];
+    Arrays.fill(saml, '\u00e9');
+    bag.setSamlResponse(new String(saml));
+    pod.setBag(bag);
+
+    assertPodsEqual(pod, PodCodec.decode(PodCodec.encode(pod), null));
+  }
+
+  @Test
+  public void writesSpilledParametersInFull() throws Exception {
+    Pod pod = pod();
+    Map<Object, Object> parameters = parameters();
+    SpilledParameters spilled = SpilledParameters.spill(parameters, null);
+    pod.setRequestParameters(spilled);
+
+    try {
+      Pod decoded = PodCodec.decode(PodCodec.encode(pod), null);
+      assertParametersEqual(parameters, decoded.getRequestParameters());
+    }
+    finally {
+      spilled.discard();
+    }
+  }
+
+  @Test
+  public void suppliesTheContextAgain() throws Exception {
+    Object context = java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class<?>[] {javax.servlet.ServletContext.class}, new java.lang.reflect.InvocationHandler() {
+        public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) {
+          return null;
+        }
+      });
+
+    Pod decoded = PodCodec.decode(PodCodec.encode(pod()), (javax.servlet.ServletContext)context);
+
+    assertSame(context, decoded.getContext());
+  }
+
+  @Test
+  public void rejectsTruncatedPods() throws Exception {
+    Pod pod = pod();
+    pod.setBag(BagFixtures.bag(2));
+    byte[] encoded = PodCodec.encode(pod);
+
+    for (int length = 0; length < encoded.length; length++) {
+      try {
+        PodCodec.decode(Arrays.copyOf(encoded, length), null);
+        fail("Decoded a Pod truncated to " + length + " bytes");
+      }
+      catch (GuanxiException ge) {
+        // Expected
+      }
+    }
+  }
+
+  @Test(expected = GuanxiException.class)
+  public void rejectsOtherData() throws Exception {
+    PodCodec.decode(BagCodec.encode(new Bag()), null);
+  }
+
+  @Test(expected = GuanxiException.class)
+  public void rejectsHugeLengths() throws Exception {
+    byte[] encoded = PodCodec.encode(pod());
+    // The session ID's length follows the magic and version
+    encoded[4] = 0x7F;
+    PodCodec.decode(encoded, null);
+  }
+
+  /**
+   * @return a Pod waiting to replay a form submission
+   */
+  static Pod pod() {
+    Pod pod = new Pod();
+    pod.setSessionID("GUARD_node1_4kq9Zr2X0vY8TnBwQe1LhA");
+    pod.setRequestScheme("https");
+    pod.setHostName("protectedapp.uni.ac.uk");
+    pod.setRequestURL("https://protectedapp.uni.ac.uk/protected/form?step=2&q=%C3%A9");
+    pod.setRequestParameters(parameters());
+    return pod;
+  }
+
+  /**
+   * @return parameters as a servlet container provides them, plus a single String one
+   */
+  static Map<Object, Object> parameters() {
+    Map<Object, Object> parameters = new HashMap<Object, Object>();
+    parameters.put("title", new String[] {"A title \u4e2d\u6587"});
+    parameters.put("tags", new String[] {"one", "two", ""});
+    parameters.put("none", new String[0]);
+    parameters.put("single", "value");
+    return parameters;
+  }
+
+  /**
+   * Checks that two Pods hold the same state, apart from the context
+   */
+  static void assertPodsEqual(Pod expected, Pod actual) {
+    assertEquals(expected.getSessionID(), actual.getSessionID());
+    assertEquals(expected.getRequestScheme(), actual.getRequestScheme());
+    assertEquals(expected.getHostName(), actual.getHostName());
+    assertEquals(expected.getRequestURL(), actual.getRequestURL());
+    assertParametersEqual(expected.getRequestParameters(), actual.getRequestParameters());
+    if (expected.getBag() == null) {
+      assertNull(actual.getBag());
+    }
+    else {
+      BagCodecTest.assertBagsEqual(expected.getBag(), actual.getBag());
+    }
+  }
+
+  /**
+   * Checks that two sets of parameters are the same, comparing String[] values by content
+   */
+  static void assertParametersEqual(Map<?, ?> expected, Map<?, ?> actual) {
+    if (expected == null) {
+      assertNull(actual);
+      return;
+    }
+    assertEquals(expected.keySet(), actual.keySet());
+    for (Object name : expected.keySet()) {
+      if (expected.get(name) instanceof String[]) {
+        assertArrayEquals((String[])expected.get(name), (String[])actual.get(name));
+      }
+      else {
+        assertEquals(expected.get(name), actual.get(name));
+      }
+    }
+  }
+}
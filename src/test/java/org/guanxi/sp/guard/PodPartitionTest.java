@@ -0,0 +1,142 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+import org.junit.Test;
+
+/**
+ * Checks when a partitioned PodStore gives hosts partitions of their own
+ */
+public class PodPartitionTest {
+  @Test
+  public void dropsPortsFromHosts() {
+    assertEquals("app.uni.ac.uk", PodStore.getPartitionName("App.Uni.ac.uk:8443"));
+    assertEquals("app.uni.ac.uk", PodStore.getPartitionName("app.uni.ac.uk"));
+    assertEquals("[2001:db8::1]", PodStore.getPartitionName("[2001:DB8::1]:443"));
+    assertEquals("2001:db8::1", PodStore.getPartitionName("2001:db8::1"));
+    assertEquals(PodPartition.OTHER_HOSTS, PodStore.getPartitionName(null));
+  }
+
+  @Test
+  public void configuredHostsHavePartitionsFromTheStart() {
+    PodStore store = new PodStore();
+    store.setPartitioned(10, 0, Collections.singletonMap("Tenant.uni.ac.uk", Long.valueOf(1024)));
+
+    PodPartition partition = store.getPartitionForHost("tenant.uni.ac.uk:443");
+    assertEquals("tenant.uni.ac.uk", partition.getHost());
+    assertEquals(1024, partition.getMemoryBudget());
+  }
+
+  @Test
+  public void unknownHostsShareTheOverflowPartition() {
+    PodStore store = new PodStore();
+    store.setPartitioned(10, 0, Collections.<String, Long>emptyMap());
+
+    for (int host = 0; host < 100; host++) {
+      assertTrue(store.hasCapacity("host" + host + ".example.com"));
+      store.add(pod("pending" + host, "host" + host + ".example.com"));
+    }
+
+    assertEquals(1, store.getPartitions().size());
+    assertEquals(PodPartition.OTHER_HOSTS, store.getPartitions().iterator().next().getName());
+  }
+
+  @Test
+  public void aCompletedLoginMovesThePodToItsHostsPartition() {
+    PodStore store = new PodStore();
+    store.setPartitioned(10, 0, Collections.<String, Long>emptyMap());
+    store.add(pod("session", "app.uni.ac.uk:8443"));
+    PodPartition overflow = store.getPartition("session");
+
+    login(store, "session");
+
+    PodPartition partition = store.getPartition("session");
+    assertNotSame(overflow, partition);
+    assertEquals("app.uni.ac.uk", partition.getHost());
+    assertEquals(1, partition.getStatistics().getAuthenticatedCount());
+    assertEquals(0, overflow.getStatistics().getPendingCount());
+    assertSame(partition, store.getPartitionForHost("APP.uni.ac.uk"));
+  }
+
+  @Test
+  public void staysWithinTheCapUnderConcurrentLogins() throws Exception {
+    final PodStore store = new PodStore();
+    store.setPartitioned(5, 0, Collections.<String, Long>emptyMap());
+    final int hosts = 200;
+    for (int host = 0; host < hosts; host++) {
+      store.add(pod("session" + host, "host" + host + ".example.com"));
+    }
+
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int first = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            start.await();
+          }
+          catch (InterruptedException ie) {
+            return;
+          }
+          for (int host = first; host < hosts; host += 8) {
+            login(store, "session" + host);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(5, store.getPartitions().size());
+    long authenticated = 0;
+    for (PodPartition partition : store.getPartitions()) {
+      authenticated += partition.getStatistics().getAuthenticatedCount();
+    }
+    assertEquals(hosts, authenticated);
+  }
+
+  private static Pod pod(String sessionID, String host) {
+    Pod pod = new Pod();
+    pod.setSessionID(sessionID);
+    pod.setHostName(host);
+    return pod;
+  }
+
+  private static void login(PodStore store, String sessionID) {
+    final Bag bag = new Bag();
+    bag.setSessionID(sessionID);
+    store.update(sessionID, new PodUpdate() {
+      public void apply(Pod pod) {
+        pod.setBag(bag);
+      }
+    });
+  }
+}
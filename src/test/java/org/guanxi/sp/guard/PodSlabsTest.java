@@ -0,0 +1,76 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that the PodSlabs give back the memory they no longer need
+ */
+public class PodSlabsTest {
+  @Test
+  public void givesBackEmptySlabs() throws Exception {
+    PodSlabs slabs = new PodSlabs(2 * PodSlabs.SLAB_SIZE, null);
+    List<Long> small = new ArrayList<Long>();
+    for (int i = 0; i < PodSlabs.SLAB_SIZE / 1024; i++) {
+      small.add(Long.valueOf(slabs.allocate(1000)));
+    }
+    assertEquals(1, slabs.getSlabCount());
+    long other = slabs.allocate(1000);
+    assertEquals(2, slabs.getSlabCount());
+
+    // Both slabs are taken, so a bigger size class has to wait for one to be given back
+    assertEquals(-1, slabs.allocate(4000));
+    for (Long address : small) {
+      slabs.free(address.longValue(), 1000);
+    }
+    assertEquals(1, slabs.getSlabCount());
+    assertTrue(slabs.allocate(4000) != -1);
+    assertEquals(2, slabs.getSlabCount());
+
+    slabs.free(other, 1000);
+    assertEquals(2, slabs.getSlabCount());
+    slabs.close();
+  }
+
+  @Test
+  public void onlyTheOwnerCanReadTheMappedFile() throws Exception {
+    assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    File file = File.createTempFile("guard-pods", ".bin");
+    Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+
+    PodSlabs slabs = new PodSlabs(PodSlabs.SLAB_SIZE, file);
+    assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+    assertTrue(slabs.allocate(1000) != -1);
+
+    slabs.close();
+    assertFalse(file.exists());
+  }
+}
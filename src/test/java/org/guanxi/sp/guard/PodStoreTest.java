@@ -0,0 +1,221 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+import org.junit.Test;
+
+/**
+ * Checks how a PodStore changes the Pods it holds
+ */
+public class PodStoreTest {
+  private final PodStore store = new PodStore();
+
+  @Test
+  public void refreshReplacesAndRemovesAttributes() {
+    login("session");
+    Bag changes = new Bag();
+    changes.setSessionID("session");
+    changes.addAttribute("eduPersonEntitlement", "urn:mace:dir:entitlement:common-lib-terms");
+    changes.addAttribute("mail", "");
+    changes.addAttribute("displayName", null);
+
+    Bag bag = store.refresh("session", changes).getBag();
+    assertEquals(Arrays.asList("eduPersonPrincipalName", "eduPersonEntitlement"),
+                 Collections.list(bag.getAttributeNames()));
+    assertEquals("urn:mace:dir:entitlement:common-lib-terms", bag.getAttributeValue("eduPersonEntitlement"));
+    assertEquals("session", bag.getSessionID());
+    assertTrue(bag.isUnsolicitedMode());
+  }
+
+  @Test
+  public void refreshDropsTheStaleSAMLResponse() {
+    login("session");
+    Bag changes = new Bag();
+    changes.addAttribute("mail", "");
+    assertNull(store.refresh("session", changes).getBag().getSamlResponse());
+
+    changes.setSamlResponse("<Response ID=\"_2\"/>");
+    assertEquals("<Response ID=\"_2\"/>", store.refresh("session", changes).getBag().getSamlResponse());
+  }
+
+  @Test
+  public void refreshIgnoresPodsThatHaventLoggedIn() {
+    Pod pod = new Pod();
+    pod.setSessionID("pending");
+    store.add(pod);
+    assertNull(store.refresh("pending", new Bag()));
+    assertNull(store.refresh("missing", new Bag()));
+  }
+
+  @Test
+  public void podsOutOfTheHeapAreStillCounted() throws Exception {
+    store.setPartitioned(10, 0, Collections.<String, Long>emptyMap());
+    store.setOffHeap(4 * PodSlabs.SLAB_SIZE, null);
+    for (int i = 0; i < 10; i++) {
+      login("session" + i);
+    }
+    PodPartition partition = store.getPartition("session0");
+
+    // Nothing fits in the heap now, so the evictor moves every Pod out of it
+    store.setMemoryBudget(1);
+    PodStatistics statistics = store.getStatistics();
+    for (int wait = 0; (wait < 500) && (statistics.getOffHeapCount() < 10); wait++) {
+      Thread.sleep(10);
+    }
+    assertEquals(10, statistics.getOffHeapCount());
+    assertEquals(10, statistics.getAuthenticatedCount());
+    assertEquals(0, statistics.getAuthenticatedSize());
+    assertEquals(10, partition.getStatistics().getOffHeapCount());
+    assertEquals(10, partition.getStatistics().getAuthenticatedCount());
+
+    store.remove("session0");
+    assertEquals(9, statistics.getAuthenticatedCount());
+    assertEquals(9, partition.getStatistics().getAuthenticatedCount());
+
+    store.setMemoryBudget(0);
+    assertEquals("session1", store.getSnapshot("session1").getPod().getSessionID());
+    assertEquals(8, statistics.getOffHeapCount());
+    assertEquals(9, statistics.getAuthenticatedCount());
+    assertEquals(9, partition.getStatistics().getAuthenticatedCount());
+    store.shutdown();
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedPodsOverBudget() throws Exception {
+    store.setPendingShare(50);
+    for (int i = 0; i < 5; i++) {
+      login("old" + i);
+    }
+    int generation = store.getAccessGeneration();
+    while (store.getAccessGeneration() == generation) {
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 5; i++) {
+      login("new" + i);
+    }
+    store.access("old0");
+    Pod pending = new Pod();
+    pending.setSessionID("pending");
+    store.add(pending);
+
+    // Half the budget is 70% of the Pods, so getting down to 90% of that takes four of them
+    PodStatistics statistics = store.getStatistics();
+    store.setMemoryBudget(statistics.getAuthenticatedSize() * 7 / 5);
+    for (int wait = 0; (wait < 500) && (statistics.getEvictedCount() < 4); wait++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(50);
+
+    assertEquals(4, statistics.getEvictedCount());
+    assertEquals(6, statistics.getAuthenticatedCount());
+    for (int i = 1; i < 5; i++) {
+      assertNull(store.getSnapshot("old" + i));
+      assertNotNull(store.getSnapshot("new" + i));
+    }
+    assertNotNull(store.getSnapshot("old0"));
+    assertNotNull(store.getSnapshot("pending"));
+    store.shutdown();
+  }
+
+  @Test
+  public void stopsNewLoginsWhenThePendingShareIsUsedUp() {
+    Pod first = new Pod();
+    first.setSessionID("pending0");
+    store.add(first);
+    int size = store.getSnapshot("pending0").getSize();
+
+    store.setPendingShare(50);
+    store.setMemoryBudget(size * 4);
+    assertTrue(store.hasCapacity());
+    Pod second = new Pod();
+    second.setSessionID("pending1");
+    store.add(second);
+    assertFalse(store.hasCapacity());
+    assertFalse(store.hasCapacity("app.uni.ac.uk"));
+
+    store.shed("app.uni.ac.uk");
+    assertEquals(1, store.getStatistics().getShedCount());
+    assertEquals(0, store.getStatistics().getEvictedCount());
+    assertEquals(2, store.getStatistics().getPendingCount());
+    store.shutdown();
+  }
+
+  @Test
+  public void evictsOnlyFromThePartitionOverItsBudget() throws Exception {
+    PodStore probe = new PodStore();
+    login(probe, "tenant0", "tenant.uni.ac.uk");
+    long size = probe.getStatistics().getAuthenticatedSize();
+    probe.shutdown();
+
+    // Half the budget holds 2.8 Pods and getting down to 90% of that leaves two
+    store.setPendingShare(50);
+    store.setPartitioned(10, 0, Collections.singletonMap("tenant.uni.ac.uk", Long.valueOf(size * 28 / 5)));
+    for (int i = 0; i < 4; i++) {
+      login(store, "tenant" + i, "tenant.uni.ac.uk");
+      login(store, "others" + i, "app.uni.ac.uk");
+    }
+    PodPartition tenant = store.getPartitionForHost("tenant.uni.ac.uk");
+    for (int wait = 0; (wait < 500) && (tenant.getStatistics().getEvictedCount() < 2); wait++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(50);
+
+    assertEquals(2, tenant.getStatistics().getEvictedCount());
+    assertEquals(2, tenant.getStatistics().getAuthenticatedCount());
+    assertEquals(2, store.getStatistics().getEvictedCount());
+    for (int i = 0; i < 4; i++) {
+      assertNotNull(store.getSnapshot("others" + i));
+    }
+    store.shutdown();
+  }
+
+  private void login(String sessionID) {
+    login(store, sessionID, "app.uni.ac.uk");
+  }
+
+  private static void login(PodStore store, String sessionID, String host) {
+    Pod pod = new Pod();
+    pod.setSessionID(sessionID);
+    pod.setHostName(host);
+    store.add(pod);
+
+    final Bag bag = new Bag();
+    bag.setSessionID(sessionID);
+    bag.setSamlResponse("<Response ID=\"_1\"/>");
+    bag.setUnsolicitedMode(true);
+    bag.addAttribute("eduPersonPrincipalName", "user@uni.ac.uk");
+    bag.addAttribute("mail", "user@uni.ac.uk");
+    bag.addAttribute("displayName", "A User");
+    store.update(sessionID, new PodUpdate() {
+      public void apply(Pod pod) {
+        pod.setBag(bag);
+      }
+    });
+  }
+}
@@ -0,0 +1,111 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Checks the format of the session IDs SecureSessionIDGenerator makes, which OffHeapPodIndex
+ * relies on for its keys, and that they don't repeat
+ */
+public class SecureSessionIDGeneratorTest {
+  @Test
+  public void tagsIDsWithTheNode() throws Exception {
+    SecureSessionIDGenerator generator = generator("node7");
+    for (int i = 0; i < 1000; i++) {
+      String id = generator.generate();
+      assertTrue(id, id.matches("GUARD_node7\\.[A-Za-z0-9_-]{22}"));
+      assertEquals("node7", SecureSessionIDGenerator.getNode(id));
+      // 22 characters of unpadded base64url are exactly 16 random bytes
+      assertEquals(16, Base64.getUrlDecoder().decode(id.substring("GUARD_node7.".length())).length);
+    }
+  }
+
+  @Test
+  public void leavesTheNodeOutIfItIsntSet() throws Exception {
+    String id = generator(null).generate();
+    assertTrue(id, id.matches("GUARD_[A-Za-z0-9_-]{22}"));
+    assertNull(SecureSessionIDGenerator.getNode(id));
+    assertNull(SecureSessionIDGenerator.getNode(null));
+    assertNull(SecureSessionIDGenerator.getNode("GUARD-node7.x"));
+  }
+
+  @Test
+  public void refusesNodesThatWouldBreakTheFormat() throws Exception {
+    for (String node : new String[] {"node.7", "node_7", "node 7", "n\u00f6de"}) {
+      try {
+        generator(node);
+        fail("Accepted node.id " + node);
+      }
+      catch (IllegalArgumentException iae) {
+        // Refused, as it should be
+      }
+    }
+  }
+
+  @Test
+  public void neverRepeatsAcrossThreads() throws Exception {
+    final SecureSessionIDGenerator generator = generator("node1");
+    final Set<String> ids = ConcurrentHashMap.newKeySet();
+    final CountDownLatch start = new CountDownLatch(1);
+    final int perThread = 20000;
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            start.await();
+          }
+          catch (InterruptedException ie) {
+            return;
+          }
+          for (int i = 0; i < perThread; i++) {
+            ids.add(generator.generate());
+          }
+        }
+      };
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(threads.length * perThread, ids.size());
+  }
+
+  private static SecureSessionIDGenerator generator(String node) throws Exception {
+    Properties properties = new Properties();
+    if (node != null) {
+      properties.setProperty("node.id", node);
+    }
+    SecureSessionIDGenerator generator = new SecureSessionIDGenerator();
+    generator.init(AccessPolicyTest.config(properties));
+    return generator;
+  }
+}
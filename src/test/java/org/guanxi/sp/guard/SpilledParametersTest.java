@@ -0,0 +1,68 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks that spilled parameters are kept private, replayed once and cleaned up
+ */
+public class SpilledParametersTest {
+  @Test
+  public void onlyTheOwnerCanReadTheFile() throws Exception {
+    SpilledParameters spilled = SpilledParameters.spill(PodCodecTest.parameters(), null);
+    try {
+      if (Files.getFileStore(spilled.getFile().toPath()).supportsFileAttributeView("posix")) {
+        assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+                     Files.getPosixFilePermissions(spilled.getFile().toPath()));
+      }
+    }
+    finally {
+      spilled.discard();
+    }
+  }
+
+  @Test
+  public void replaysOnceAndDeletesTheFile() throws Exception {
+    Map<Object, Object> parameters = PodCodecTest.parameters();
+    SpilledParameters spilled = SpilledParameters.spill(parameters, null);
+
+    PodCodecTest.assertParametersEqual(parameters, spilled.consume());
+    assertFalse(spilled.getFile().exists());
+    assertNull(spilled.consume());
+  }
+
+  @Test
+  public void looksEmptyToEverythingElse() throws Exception {
+    SpilledParameters spilled = SpilledParameters.spill(PodCodecTest.parameters(), null);
+    try {
+      assertEquals(0, spilled.size());
+    }
+    finally {
+      spilled.discard();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.PodStore;
+import org.junit.Test;
+
+/**
+ * Checks how an InvalidationBus batches deactivations and what the other nodes do with them,
+ * over an InProcessInvalidationTransport
+ */
+public class InvalidationBusTest {
+  @Test
+  public void sendsABurstAsOneBatchWithoutDuplicates() throws Exception {
+    InvalidationBus sender = new InvalidationBus(new InProcessInvalidationTransport("burst"), 200, 100);
+    InvalidationBus receiver = new InvalidationBus(new InProcessInvalidationTransport("burst"), 0, 100);
+    LinkedBlockingQueue<Collection<String>> batches = start(receiver);
+    sender.start(new Recorder());
+    try {
+      for (String sessionID : new String[] {"session1", "session2", "session1", "session3", "session2"}) {
+        sender.publish(sessionID);
+      }
+
+      assertEquals(Arrays.asList("session1", "session2", "session3"), new ArrayList<String>(batches.poll(5, TimeUnit.SECONDS)));
+      assertNull(batches.poll(300, TimeUnit.MILLISECONDS));
+      assertEquals(3, sender.getSentCount());
+      assertEquals(3, receiver.getReceivedCount());
+    }
+    finally {
+      sender.stop();
+      receiver.stop();
+    }
+  }
+
+  @Test
+  public void splitsBatchesAtTheBatchSize() throws Exception {
+    InvalidationBus sender = new InvalidationBus(new InProcessInvalidationTransport("split"), 200, 2);
+    InvalidationBus receiver = new InvalidationBus(new InProcessInvalidationTransport("split"), 0, 100);
+    LinkedBlockingQueue<Collection<String>> batches = start(receiver);
+    sender.start(new Recorder());
+    try {
+      for (int i = 0; i < 5; i++) {
+        sender.publish("session" + i);
+      }
+
+      List<String> received = new ArrayList<String>();
+      while (received.size() < 5) {
+        Collection<String> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertTrue(batch.size() <= 2);
+        received.addAll(batch);
+      }
+      assertEquals(Arrays.asList("session0", "session1", "session2", "session3", "session4"), received);
+    }
+    finally {
+      sender.stop();
+      receiver.stop();
+    }
+  }
+
+  @Test
+  public void aLogoutRemovesThePodFromTheOtherNodes() throws Exception {
+    PodStore node1 = node("nodes");
+    PodStore node2 = node("nodes");
+    try {
+      node1.add(pod("session"));
+      node2.add(pod("session"));
+      node2.add(pod("other"));
+
+      node1.deactivate("session");
+      assertNull(node1.getSnapshot("session"));
+      for (int wait = 0; (wait < 500) && (node2.getSnapshot("session") != null); wait++) {
+        Thread.sleep(10);
+      }
+      assertNull(node2.getSnapshot("session"));
+      assertNotNull(node2.getSnapshot("other"));
+      assertEquals(1, node1.getInvalidationBus().getSentCount());
+      assertEquals(0, node1.getInvalidationBus().getReceivedCount());
+      assertEquals(1, node2.getInvalidationBus().getReceivedCount());
+    }
+    finally {
+      node1.shutdown();
+      node2.shutdown();
+    }
+  }
+
+  /**
+   * Starts a bus that records the batches it receives
+   *
+   * @param bus the bus
+   * @return where the batches go
+   */
+  private static LinkedBlockingQueue<Collection<String>> start(InvalidationBus bus) throws Exception {
+    Recorder recorder = new Recorder();
+    bus.start(recorder);
+    return recorder.batches;
+  }
+
+  /**
+   * Sets up a node whose bus removes the Pods other nodes deactivate, as the Guard does
+   *
+   * @param channel the channel the nodes share
+   * @return the node's store
+   */
+  private static PodStore node(String channel) throws Exception {
+    final PodStore store = new PodStore();
+    InvalidationBus bus = new InvalidationBus(new InProcessInvalidationTransport(channel), 5, 100);
+    bus.start(new InvalidationListener() {
+      public void invalidated(Collection<String> sessionIDs) {
+        for (String sessionID : sessionIDs) {
+          store.remove(sessionID);
+        }
+      }
+    });
+    store.setInvalidationBus(bus);
+    return store;
+  }
+
+  private static Pod pod(String sessionID) {
+    Pod pod = new Pod();
+    pod.setSessionID(sessionID);
+    return pod;
+  }
+
+  /**
+   * Records the batches delivered to a node
+   */
+  static class Recorder implements InvalidationListener {
+    final LinkedBlockingQueue<Collection<String>> batches = new LinkedBlockingQueue<Collection<String>>();
+
+    public void invalidated(Collection<String> sessionIDs) {
+      batches.offer(sessionIDs);
+    }
+  }
+}
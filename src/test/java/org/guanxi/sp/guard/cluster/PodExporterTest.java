@@ -0,0 +1,121 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.PodStore;
+import org.guanxi.sp.guard.PodUpdate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Drains Pods from one store to another over HTTP and checks which are left behind
+ */
+public class PodExporterTest {
+  private static final String SECRET = "migration-secret";
+
+  private final PodStore source = new PodStore();
+  private final PodStore target = new PodStore();
+  private final PodImporter importer = new PodImporter(target, null, SECRET, 60000, 2);
+  private HttpServer server;
+
+  @Before
+  public void startReceiver() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/import", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        try {
+          importer.importPods(exchange.getRequestBody());
+          // A login completes here while the sender waits for the answer
+          login(source, "pending");
+        }
+        catch (GuanxiException ge) {
+          status = 403;
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    importer.shutdown();
+    source.shutdown();
+    target.shutdown();
+  }
+
+  @Test
+  public void keepsPodsThatChangedAfterTheyWereSent() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      add(source, "session" + i);
+      login(source, "session" + i);
+    }
+    add(source, "pending");
+
+    PodExporter.Result result = new PodExporter(source, SECRET, 1024, 5000)
+                                .export("http://127.0.0.1:" + server.getAddress().getPort() + "/import");
+
+    assertEquals(4, result.getExportedCount());
+    assertEquals(3, result.getRemovedCount());
+    for (int i = 0; i < 3; i++) {
+      assertNull(source.getSnapshot("session" + i));
+      assertNotNull(target.get("session" + i).getBag());
+    }
+
+    // The receiver only has the login as it was before it completed, so it stays here
+    assertNotNull(source.get("pending").getBag());
+    assertNull(target.get("pending").getBag());
+  }
+
+  private static void add(PodStore store, String sessionID) {
+    Pod pod = new Pod();
+    pod.setSessionID(sessionID);
+    pod.setHostName("app.uni.ac.uk");
+    store.add(pod);
+  }
+
+  private static void login(PodStore store, String sessionID) {
+    final Bag bag = new Bag();
+    bag.setSessionID(sessionID);
+    bag.addAttribute("uid", sessionID);
+    store.update(sessionID, new PodUpdate() {
+      public void apply(Pod pod) {
+        pod.setBag(bag);
+      }
+    });
+  }
+}
@@ -0,0 +1,109 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.PodStore;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that PodImporter publishes authentic streams once and reports why it refused others
+ */
+public class PodImporterTest {
+  private static final String SECRET = "migration-secret";
+
+  private final PodStore podStore = new PodStore();
+  private final PodImporter importer = new PodImporter(podStore, null, SECRET, 60000, 2);
+
+  @After
+  public void tearDown() {
+    importer.shutdown();
+    podStore.shutdown();
+  }
+
+  @Test
+  public void publishesThePods() throws Exception {
+    PodImporter.Result result = importer.importPods(new ByteArrayInputStream(stream(SECRET, 50)));
+
+    assertEquals(50, result.getImportedCount());
+    assertEquals(0, result.getDuplicateCount());
+    assertNotNull(podStore.get("session17").getBag());
+  }
+
+  @Test
+  public void refusesAReplayedStream() throws Exception {
+    byte[] stream = stream(SECRET, 3);
+    importer.importPods(new ByteArrayInputStream(stream));
+    // The Pods are gone here, as if the sessions had been logged out since
+    for (int i = 0; i < 3; i++) {
+      podStore.remove("session" + i);
+    }
+
+    assertRefused(stream, "Pod stream replayed");
+    assertEquals(null, podStore.get("session0"));
+  }
+
+  @Test
+  public void refusesAStreamWithoutTheSecret() throws Exception {
+    assertRefused(stream("another-secret", 3), "Pod stream not authenticated");
+  }
+
+  @Test
+  public void reportsABadChunkRatherThanHidingIt() throws Exception {
+    byte[] stream = stream(SECRET, 3);
+    stream[stream.length - 40] ^= 1;
+
+    assertRefused(stream, "Pod stream chunk not authenticated");
+  }
+
+  private void assertRefused(byte[] stream, String reason) throws Exception {
+    try {
+      importer.importPods(new ByteArrayInputStream(stream));
+      fail("Imported a stream that should have been refused");
+    }
+    catch (GuanxiException ge) {
+      assertEquals(reason, ge.getMessage());
+    }
+  }
+
+  private static byte[] stream(String secret, int pods) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PodStreamWriter writer = new PodStreamWriter(out, secret, 1024);
+    for (int i = 0; i < pods; i++) {
+      Pod pod = new Pod();
+      pod.setSessionID("session" + i);
+      pod.setHostName("app.uni.ac.uk");
+      Bag bag = new Bag();
+      bag.setSessionID(pod.getSessionID());
+      bag.addAttribute("uid", "user" + i);
+      pod.setBag(bag);
+      writer.write(pod);
+    }
+    writer.finish();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,131 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Sends deactivations between UdpInvalidationTransports on the loopback interface
+ */
+public class UdpInvalidationTransportTest {
+  private final List<UdpInvalidationTransport> transports = new ArrayList<UdpInvalidationTransport>();
+
+  @After
+  public void close() {
+    for (UdpInvalidationTransport transport : transports) {
+      transport.close();
+    }
+  }
+
+  @Test
+  public void deliversBatchesToPeers() throws Exception {
+    int port1 = freePort();
+    int port2 = freePort();
+    UdpInvalidationTransport node1 = start(port1, "secret", new InvalidationBusTest.Recorder(), port2);
+    InvalidationBusTest.Recorder received = new InvalidationBusTest.Recorder();
+    start(port2, "secret", received, port1);
+
+    List<String> sessionIDs = new ArrayList<String>();
+    for (int i = 0; i < 200; i++) {
+      sessionIDs.add("GUARD_node1.session" + i);
+    }
+    node1.send(sessionIDs);
+
+    // A big batch is split across datagrams
+    List<String> delivered = new ArrayList<String>();
+    while (delivered.size() < sessionIDs.size()) {
+      Collection<String> batch = received.batches.poll(5, TimeUnit.SECONDS);
+      assertNotNull(batch);
+      delivered.addAll(batch);
+    }
+    assertEquals(sessionIDs, delivered);
+  }
+
+  @Test
+  public void dropsDatagramsWithoutTheRightMAC() throws Exception {
+    int port = freePort();
+    InvalidationBusTest.Recorder received = new InvalidationBusTest.Recorder();
+    start(port, "secret", received);
+
+    start(freePort(), "another-secret", new InvalidationBusTest.Recorder(), port).send(Collections.singleton("forged"));
+    start(freePort(), null, new InvalidationBusTest.Recorder(), port).send(Collections.singleton("unsigned"));
+    start(freePort(), "secret", new InvalidationBusTest.Recorder(), port).send(Collections.singleton("genuine"));
+
+    assertEquals(Arrays.asList("genuine"), received.batches.poll(5, TimeUnit.SECONDS));
+    assertNull(received.batches.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void ignoresItsOwnDatagrams() throws Exception {
+    // A node sending to itself gets its datagrams back just as it would its own multicasts
+    int port1 = freePort();
+    int port2 = freePort();
+    InvalidationBusTest.Recorder own = new InvalidationBusTest.Recorder();
+    UdpInvalidationTransport node1 = start(port1, "secret", own, port1, port2);
+    InvalidationBusTest.Recorder received = new InvalidationBusTest.Recorder();
+    start(port2, "secret", received);
+
+    node1.send(Collections.singleton("session"));
+    assertEquals(Arrays.asList("session"), received.batches.poll(5, TimeUnit.SECONDS));
+    assertNull(own.batches.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Starts a transport on the loopback interface
+   *
+   * @param port the port to listen on
+   * @param secret the shared secret or null
+   * @param listener where to deliver batches
+   * @param peers the ports of the peers
+   * @return the transport
+   */
+  private UdpInvalidationTransport start(int port, String secret, InvalidationListener listener, int... peers) throws Exception {
+    List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+    for (int peer : peers) {
+      addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), peer));
+    }
+    UdpInvalidationTransport transport = new UdpInvalidationTransport(addresses, port, secret);
+    transports.add(transport);
+    transport.start(listener);
+    return transport;
+  }
+
+  private static int freePort() throws Exception {
+    DatagramSocket socket = new DatagramSocket(0);
+    try {
+      return socket.getLocalPort();
+    }
+    finally {
+      socket.close();
+    }
+  }
+}
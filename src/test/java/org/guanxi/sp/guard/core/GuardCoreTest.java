@@ -0,0 +1,156 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Properties;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.Pod;
+import org.guanxi.sp.guard.GuardConfig;
+import org.guanxi.sp.guard.PodStore;
+import org.guanxi.sp.guard.SecureSessionIDGenerator;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks the GuardCore's decisions on requests for protected resources
+ */
+public class GuardCoreTest {
+  private static final String COOKIE = "GUARD_test";
+
+  private final PodStore podStore = new PodStore();
+
+  @After
+  public void shutdown() {
+    podStore.shutdown();
+  }
+
+  @Test
+  public void aPendingSessionIDIsNotAGuardCookie() throws Exception {
+    GuardCore core = core(new Properties());
+    MemoryGuardExchange first = new MemoryGuardExchange("/protected/index.html");
+    assertEquals(GuardCore.LOGIN, core.filter(first, COOKIE).getOutcome());
+    String sessionID = podStore.getSnapshots().iterator().next().getPod().getSessionID();
+    assertNotNull(first.getLocation());
+
+    // The session ID is in the Engine GPS redirect, so anyone who sees that can replay it
+    MemoryGuardExchange replay = new MemoryGuardExchange("/protected/index.html").cookie(COOKIE, sessionID);
+    assertEquals(GuardCore.LOGIN, core.filter(replay, COOKIE).getOutcome());
+    assertEquals(Integer.valueOf(0), replay.getCookieAge(COOKIE));
+    assertNull(core.completeLogin(new MemoryGuardExchange("/guard.guanxiGuardPodder"), sessionID, COOKIE, null));
+
+    // The original login carries on and completes once the attributes arrive
+    Bag bag = new Bag();
+    bag.setSessionID(sessionID);
+    bag.addAttribute("eduPersonAffiliation", "staff");
+    core.addAttributes(bag);
+    MemoryGuardExchange podder = new MemoryGuardExchange("/guard.guanxiGuardPodder");
+    assertEquals("https://" + MemoryGuardExchange.HOST + "/protected/index.html",
+                 core.completeLogin(podder, sessionID, COOKIE, null));
+    assertEquals(sessionID, podder.getSetCookie(COOKIE));
+
+    GuardCore.Decision decision = core.filter(new MemoryGuardExchange("/protected/index.html").cookie(COOKIE, sessionID), COOKIE);
+    assertEquals(GuardCore.ALLOWED, decision.getOutcome());
+    assertEquals(sessionID, decision.getSnapshot().getPod().getSessionID());
+  }
+
+  @Test
+  public void aPodWithoutABagIsNeverAllowed() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("access.rule.1.path", "^/protected/admin/");
+    properties.setProperty("access.rule.1.require", "eduPersonAffiliation=staff");
+    properties.setProperty("header.projection.1.path", "^/protected/mail/");
+    properties.setProperty("header.projection.1.attributes", "mail");
+    GuardCore core = core(properties);
+    Pod pod = new Pod();
+    pod.setSessionID("pending");
+    pod.setHostName(MemoryGuardExchange.HOST);
+    podStore.add(pod);
+
+    for (String path : new String[] {"/protected/index.html", "/protected/mail/", "/protected/admin/"}) {
+      GuardCore.Decision decision = core.filter(new MemoryGuardExchange(path).cookie(COOKIE, "pending"), COOKIE);
+      assertEquals(path, GuardCore.LOGIN, decision.getOutcome());
+      assertNull(path, decision.getLayout());
+    }
+  }
+
+  @Test
+  public void sendsReturningUsersToTheIdPTheyUsedLastTime() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("idp.remember.secret", "secret");
+    properties.setProperty("idp.remember.attribute", "idpEntityID");
+    properties.setProperty("default.entity.id", "https://default.uni.ac.uk/idp");
+    GuardCore core = core(properties);
+    Bag bag = new Bag();
+    bag.addAttribute("idpEntityID", "https://idp.uni.ac.uk/idp?x=1&y=2");
+    Pod pod = new Pod();
+    pod.setBag(bag);
+    String remembered = core.getIdPCookie().createValue(pod);
+    String prefix = "https://engine.uni.ac.uk/samlengine/s2/gps?guardid=test-guard&sessionid=session&entityID=";
+
+    // The request's own IdP comes first
+    MemoryGuardExchange named = new MemoryGuardExchange("/protected/").parameter("entityID", "https://named.uni.ac.uk/idp")
+                                                                      .cookie("GUARD_IDP", remembered);
+    assertEquals(prefix + "https%3A%2F%2Fnamed.uni.ac.uk%2Fidp", core.getEngineGPSRedirect("session", named));
+
+    MemoryGuardExchange returning = new MemoryGuardExchange("/protected/").cookie("GUARD_IDP", remembered);
+    assertEquals(prefix + "https%3A%2F%2Fidp.uni.ac.uk%2Fidp%3Fx%3D1%26y%3D2", core.getEngineGPSRedirect("session", returning));
+
+    MemoryGuardExchange tampered = new MemoryGuardExchange("/protected/").cookie("GUARD_IDP", "00" + remembered.substring(2));
+    assertEquals(prefix + "https%3A%2F%2Fdefault.uni.ac.uk%2Fidp", core.getEngineGPSRedirect("session", tampered));
+    assertEquals(prefix + "https%3A%2F%2Fdefault.uni.ac.uk%2Fidp",
+                 core.getEngineGPSRedirect("session", new MemoryGuardExchange("/protected/")));
+  }
+
+  /**
+   * Creates a core for a config, with the settings every Guard must have
+   *
+   * @param properties the config
+   * @return the core
+   */
+  private GuardCore core(Properties properties) throws Exception {
+    properties.setProperty("entityid", "test-guard");
+    properties.setProperty("engine.gps.service.url", "https://engine.uni.ac.uk/samlengine/s2/gps");
+    properties.setProperty("cookie.prefix", "GUARD_");
+    return new GuardCore(config(properties), podStore, new SecureSessionIDGenerator());
+  }
+
+  /**
+   * Writes out config for the Guard to load
+   *
+   * @param properties the config
+   * @return the loaded config
+   */
+  private static GuardConfig config(Properties properties) throws Exception {
+    File file = File.createTempFile("guard", ".properties");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      properties.store(out, null);
+    }
+    finally {
+      out.close();
+    }
+    return new GuardConfig(file.getPath());
+  }
+}
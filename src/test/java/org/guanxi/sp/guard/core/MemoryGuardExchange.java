@@ -0,0 +1,137 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-memory request and response for driving the GuardCore without a server. The
+ * response records what the core did with it.
+ */
+class MemoryGuardExchange implements GuardExchange {
+  /** The Host header of every request */
+  static final String HOST = "app.uni.ac.uk";
+
+  private final String path;
+  private final Map<String, String> cookies = new HashMap<String, String>();
+  private final Map<String, String[]> parameters = new HashMap<String, String[]>();
+
+  private final Map<String, String> setCookies = new HashMap<String, String>();
+  private final Map<String, Integer> cookieAges = new HashMap<String, Integer>();
+  private int status = 200;
+  private String location = null;
+
+  MemoryGuardExchange(String path) {
+    this.path = path;
+  }
+
+  MemoryGuardExchange cookie(String name, String value) {
+    cookies.put(name, value);
+    return this;
+  }
+
+  MemoryGuardExchange parameter(String name, String value) {
+    parameters.put(name, new String[] {value});
+    return this;
+  }
+
+  int getStatus() {
+    return status;
+  }
+
+  String getLocation() {
+    return location;
+  }
+
+  /**
+   * @param name the name of a cookie
+   * @return the value the response set the cookie to, or null if it didn't set it
+   */
+  String getSetCookie(String name) {
+    return setCookies.get(name);
+  }
+
+  /**
+   * @param name the name of a cookie
+   * @return the age the response gave the cookie, or null if it didn't set it
+   */
+  Integer getCookieAge(String name) {
+    return cookieAges.get(name);
+  }
+
+  public String getRequestPath() {
+    return RequestPath.normalise(path);
+  }
+
+  public String getRequestURI() {
+    return path;
+  }
+
+  public String getQueryString() {
+    return null;
+  }
+
+  public String getScheme() {
+    return "https";
+  }
+
+  public String getHeader(String name) {
+    return name.equals("Host") ? HOST : null;
+  }
+
+  public String getRemoteAddr() {
+    return "192.0.2.1";
+  }
+
+  public String getCookie(String name) {
+    return cookies.get(name);
+  }
+
+  public String getParameter(String name) {
+    return parameters.containsKey(name) ? parameters.get(name)[0] : null;
+  }
+
+  public Map<?, ?> getParameterMap() {
+    return parameters;
+  }
+
+  public int getContentLength() {
+    return -1;
+  }
+
+  public void addCookie(String name, String value, String domain, String path, int maxAge, boolean secure) {
+    setCookies.put(name, value);
+    cookieAges.put(name, Integer.valueOf(maxAge));
+  }
+
+  public void setHeader(String name, String value) {
+  }
+
+  public void sendStatus(int status) {
+    this.status = status;
+  }
+
+  public void sendError(int status) {
+    this.status = status;
+  }
+
+  public void sendRedirect(String location) {
+    status = 302;
+    this.location = location;
+  }
+}
@@ -0,0 +1,62 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Checks that every way of writing a path comes out of RequestPath the same, or not at all
+ */
+public class RequestPathTest {
+  @Test
+  public void leavesNormalPathsAlone() {
+    assertEquals("/", RequestPath.normalise("/"));
+    assertEquals("/", RequestPath.normalise(""));
+    assertEquals("/protected/index.html", RequestPath.normalise("/protected/index.html"));
+    assertEquals("/protected/admin/", RequestPath.normalise("/protected/admin/"));
+  }
+
+  @Test
+  public void collapsesEmptyAndDotSegments() {
+    assertEquals("/protected/admin/", RequestPath.normalise("//protected/admin/"));
+    assertEquals("/protected/admin/", RequestPath.normalise("/protected//admin//"));
+    assertEquals("/protected/admin/", RequestPath.normalise("/protected/./admin/."));
+    assertEquals("/protected/admin/x", RequestPath.normalise("protected/admin/x"));
+  }
+
+  @Test
+  public void dropsPathParameters() {
+    assertEquals("/protected/admin/", RequestPath.normalise("/protected/admin;jsessionid=x/"));
+    assertEquals("/protected/admin/page", RequestPath.normalise("/protected;a=b/admin/page;c"));
+  }
+
+  @Test
+  public void refusesPathsItCantNormaliseSafely() {
+    assertNull(RequestPath.normalise(null));
+    assertNull(RequestPath.normalise("/public/../protected/admin/"));
+    assertNull(RequestPath.normalise("/protected/%61dmin/"));
+    assertNull(RequestPath.normalise("/protected%2Fadmin/"));
+    assertNull(RequestPath.normalise("/%2f/protected/admin/"));
+    assertNull(RequestPath.normalise("/public/%2e%2e/protected/admin/"));
+    assertNull(RequestPath.normalise("/public/..%2Fprotected/admin/"));
+    assertNull(RequestPath.normalise("/protected\\admin/"));
+    assertNull(RequestPath.normalise("/protected/admin\u0000.jpg"));
+  }
+}
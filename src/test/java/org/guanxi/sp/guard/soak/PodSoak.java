@@ -0,0 +1,505 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.soak;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.guanxi.common.Bag;
+import org.guanxi.common.filters.FileName;
+import org.guanxi.sp.guard.AttributeConsumer;
+import org.guanxi.sp.guard.BagCodec;
+import org.guanxi.sp.guard.Definitions;
+import org.guanxi.sp.guard.Guard;
+import org.guanxi.sp.guard.GuardConfig;
+import org.guanxi.sp.guard.GuardRequest;
+import org.guanxi.sp.guard.PodStatistics;
+import org.guanxi.sp.guard.PodStore;
+import org.guanxi.sp.guard.Podder;
+import org.guanxi.sp.guard.core.GuardCore;
+
+/**
+ * Stress and soak harness for the Pod lifecycle. Many threads log users in, use their
+ * sessions, verify them and log them out against one Guard, in random order and sharing
+ * sessions between threads so the paths race on the same Pods. Requests go through the
+ * Guard filter, the AttributeConsumer and the Podder as they would in a container, using
+ * the in-memory servlet objects of SoakContext and SoakExchange, and what the application
+ * would see is read from the GuardRequest the filter passes on. Run it from the test
+ * classpath:
+ *
+ * <pre>
+ * java org.guanxi.sp.guard.soak.PodSoak guanxi-sp-guard.properties [threads] [seconds] [report.seconds]
+ * </pre>
+ *
+ * The Guard config is used as it is, so the harness can soak a real memory budget, idle
+ * timeout or partitioning. Requests for sessions that have been logged out or evicted
+ * start new logins that are never completed, as they would with real browsers, so a long
+ * soak needs pod.idle.timeout.minutes to clear them out. Each user's login preserves a parameter and gets an attribute
+ * naming the user, and every request that gets through is checked:
+ *
+ * lost.bags       a completed login whose Pod doesn't have its Bag
+ * cross.user      a Pod or parameters belonging to another user
+ * resurrected     a request let through after its session was logged out
+ *
+ * A line of figures is logged every report interval: throughput and mean latency of each
+ * operation, Pod counts, time worker threads spent blocked and the heap left after the last
+ * GC. The run ends with the heap trend over the run. main() fails if any of the checks did.
+ */
+public class PodSoak {
+  private static final Logger logger = Logger.getLogger(PodSoak.class.getName());
+
+  /** The operations workers perform */
+  private static final String[] OPERATIONS = {"login", "access", "verify", "logout"};
+  private static final int LOGIN = 0;
+  private static final int ACCESS = 1;
+  private static final int VERIFY = 2;
+  private static final int LOGOUT = 3;
+  /** Percentage of operations that are each operation */
+  private static final int[] MIX = {25, 55, 10, 10};
+
+  /** The checks */
+  private static final String[] CHECKS = {"lost.bags", "cross.user", "resurrected"};
+  private static final int LOST_BAG = 0;
+  private static final int CROSS_USER = 1;
+  private static final int RESURRECTED = 2;
+
+  /** Number of recent sessions shared between the workers */
+  private static final int SHARED_SESSIONS = 4096;
+  /** The parameter and attribute that name the user */
+  private static final String USER = "soakUser";
+
+  private final Guard guard;
+  private final AttributeConsumer attributeConsumer;
+  private final Podder podder;
+  private final GuardCore core;
+  private final PodStore podStore;
+  private final String cookieName;
+  /** The prefix of the headers the application gets the attributes in */
+  private final String attributePrefix;
+
+  /** Recently logged in sessions, for workers to pick at random */
+  private final AtomicReferenceArray<Session> sessions = new AtomicReferenceArray<Session>(SHARED_SESSIONS);
+  private final AtomicLong sessionCount = new AtomicLong();
+  /** Number and total nanoseconds of each operation */
+  private final AtomicLongArray operations = new AtomicLongArray(OPERATIONS.length);
+  private final AtomicLongArray operationNanos = new AtomicLongArray(OPERATIONS.length);
+  /** Number of failures of each check */
+  private final AtomicLongArray failures = new AtomicLongArray(CHECKS.length);
+  /** Logins whose Pod went before the login completed, e.g. evicted */
+  private final AtomicLong abandoned = new AtomicLong();
+  /** Logins the Guard turned away, e.g. because the memory budget was used up */
+  private final AtomicLong refused = new AtomicLong();
+  /** Requests for sessions that had gone, which start new logins that are never completed */
+  private final AtomicLong relogins = new AtomicLong();
+  /** Set when the workers should stop */
+  private volatile boolean stopping = false;
+
+  public static void main(String[] args) throws Exception {
+    if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+      BasicConfigurator.configure();
+    }
+    if (args.length < 1) {
+      throw new IllegalArgumentException("Usage: PodSoak <guard config> [threads] [seconds] [report seconds]");
+    }
+
+    int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 4;
+    int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 60;
+    int reportSeconds = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+
+    PodSoak soak = new PodSoak(args[0]);
+    if (!soak.run(threads, seconds, reportSeconds)) {
+      throw new IllegalStateException("The soak failed its checks");
+    }
+  }
+
+  /**
+   * Starts a Guard and its servlets in an in-memory servlet context
+   *
+   * @param configFile the path of the Guard config
+   * @throws ServletException if the Guard or a servlet can't start
+   */
+  public PodSoak(String configFile) throws ServletException {
+    SoakContext context = new SoakContext();
+    guard = new Guard();
+    guard.init(context.getFilterConfig(configFile));
+    attributeConsumer = new AttributeConsumer();
+    attributeConsumer.init(context.getServletConfig("AttributeConsumer"));
+    podder = new Podder();
+    podder.init(context.getServletConfig("Podder"));
+
+    GuardConfig config = (GuardConfig)context.getContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CONFIG);
+    core = (GuardCore)context.getContext().getAttribute(Definitions.CONTEXT_ATTR_GUARD_CORE);
+    podStore = PodStore.getInstance(context.getContext());
+    cookieName = config.get("cookie.prefix") + FileName.encode(config.get("entityid"));
+    attributePrefix = config.get("attribute.prefix");
+  }
+
+  /**
+   * Runs the workers and reports on them
+   *
+   * @param threads the number of workers
+   * @param seconds how long to run for
+   * @param reportSeconds how often to report
+   * @return true if none of the checks failed
+   * @throws InterruptedException if the run is interrupted
+   */
+  public boolean run(int threads, int seconds, int reportSeconds) throws InterruptedException {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean.isThreadContentionMonitoringSupported()) {
+      threadBean.setThreadContentionMonitoringEnabled(true);
+    }
+
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      final int worker = i;
+      Thread thread = new Thread("PodSoak-" + i) {
+        public void run() {
+          work(worker);
+        }
+      };
+      workers.add(thread);
+      thread.start();
+    }
+
+    long start = System.currentTimeMillis();
+    long[] lastOperations = new long[OPERATIONS.length];
+    long[] lastNanos = new long[OPERATIONS.length];
+    List<long[]> heap = new ArrayList<long[]>();
+    while (System.currentTimeMillis() - start < seconds * 1000L) {
+      Thread.sleep(reportSeconds * 1000L);
+
+      StringBuilder line = new StringBuilder("t=").append((System.currentTimeMillis() - start) / 1000).append('s');
+      for (int i = 0; i < OPERATIONS.length; i++) {
+        long count = operations.get(i) - lastOperations[i];
+        long nanos = operationNanos.get(i) - lastNanos[i];
+        lastOperations[i] += count;
+        lastNanos[i] += nanos;
+        line.append(' ').append(OPERATIONS[i]).append(".per.sec=").append(count / reportSeconds);
+        line.append(' ').append(OPERATIONS[i]).append(".mean.us=").append((count > 0) ? nanos / count / 1000 : 0);
+      }
+
+      PodStatistics statistics = podStore.getStatistics();
+      line.append(" pods.pending=").append(statistics.getPendingCount());
+      line.append(" pods.authenticated=").append(statistics.getAuthenticatedCount());
+      line.append(" pods.evicted=").append(statistics.getEvictedCount());
+      line.append(" logins.abandoned=").append(abandoned.get());
+      line.append(" logins.refused=").append(refused.get());
+      line.append(" access.relogins=").append(relogins.get());
+      line.append(" blocked.ms=").append(getBlockedTime(threadBean, workers));
+
+      long heapAfterGC = getHeapAfterGC();
+      heap.add(new long[] {System.currentTimeMillis() - start, heapAfterGC});
+      line.append(" heap.after.gc.kb=").append(heapAfterGC / 1024);
+
+      for (int i = 0; i < CHECKS.length; i++) {
+        line.append(' ').append(CHECKS[i]).append('=').append(failures.get(i));
+      }
+      logger.info(line);
+    }
+
+    stopping = true;
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    attributeConsumer.destroy();
+    podder.destroy();
+    guard.destroy();
+
+    logger.info("heap.trend.kb.per.min=" + getTrend(heap) * 60000 / 1024);
+    boolean passed = true;
+    for (int i = 0; i < CHECKS.length; i++) {
+      if (failures.get(i) == 0) {
+        logger.info(CHECKS[i] + "=0");
+      }
+      else {
+        logger.error(CHECKS[i] + "=" + failures.get(i));
+        passed = false;
+      }
+    }
+    return passed;
+  }
+
+  /**
+   * Performs random operations until the run ends
+   *
+   * @param worker the number of the worker
+   */
+  private void work(int worker) {
+    Random random = new Random();
+    String remoteAddr = "10." + ((worker >> 8) & 255) + "." + (worker & 255) + ".1";
+    long users = 0;
+
+    while (!stopping) {
+      int pick = random.nextInt(100);
+      int operation = 0;
+      while (pick >= MIX[operation]) {
+        pick -= MIX[operation++];
+      }
+
+      Session session = (operation == LOGIN) ? null : pickSession(random);
+      if ((operation != LOGIN) && (session == null)) {
+        operation = LOGIN;
+      }
+
+      long started = System.nanoTime();
+      switch (operation) {
+        case LOGIN:
+          login(worker + "-" + (users++), remoteAddr, random);
+          break;
+        case ACCESS:
+          access(session, remoteAddr);
+          break;
+        case VERIFY:
+          core.verifySession(session.sessionID);
+          break;
+        case LOGOUT:
+          logout(session);
+          break;
+      }
+      operations.incrementAndGet(operation);
+      operationNanos.addAndGet(operation, System.nanoTime() - started);
+    }
+  }
+
+  /**
+   * Logs a new user in, with the Engine's calls in a random order and sometimes a logout
+   * before the login completes
+   *
+   * @param user the name of the user
+   * @param remoteAddr the user's address
+   * @param random the worker's random numbers
+   */
+  private void login(String user, String remoteAddr, Random random) {
+    try {
+      SoakExchange request = new SoakExchange("/resource", remoteAddr).parameter(USER, user);
+      if ((filter(request) != null) || (request.getLocation() == null)) {
+        refused.incrementAndGet();
+        return;
+      }
+      String location = request.getLocation();
+      int start = location.indexOf(Definitions.WAYF_PARAM_SESSION_ID + "=") + Definitions.WAYF_PARAM_SESSION_ID.length() + 1;
+      int end = location.indexOf('&', start);
+      Session session = new Session(location.substring(start, (end == -1) ? location.length() : end), user);
+
+      // The Engine posts the attributes to the AttributeConsumer
+      Bag bag = new Bag();
+      bag.setSessionID(session.sessionID);
+      bag.addAttribute(USER, user);
+      SoakExchange attributes = new SoakExchange("/guard.guanxiGuardACS", remoteAddr)
+        .body(Definitions.CONTENT_TYPE_BINARY_BAG, BagCodec.encode(bag));
+      if (random.nextBoolean()) {
+        core.verifySession(session.sessionID);
+        Thread.yield();
+        attributeConsumer.doPost(attributes.getRequest(), attributes.getResponse());
+      }
+      else {
+        attributeConsumer.doPost(attributes.getRequest(), attributes.getResponse());
+        Thread.yield();
+        core.verifySession(session.sessionID);
+      }
+
+      if (random.nextInt(20) == 0) {
+        logout(session);
+      }
+
+      // The Engine sends the browser to the Podder for its cookie
+      long completing = System.nanoTime();
+      SoakExchange podding = new SoakExchange("/guard.guanxiGuardPodder", remoteAddr).parameter("id", session.sessionID);
+      podder.doGet(podding.getRequest(), podding.getResponse());
+      if (podding.getStatus() == 404) {
+        abandoned.incrementAndGet();
+        return;
+      }
+      if ((session.loggedOutAt != 0) && (session.loggedOutAt - completing < 0)) {
+        failures.incrementAndGet(RESURRECTED);
+        return;
+      }
+      if (!session.sessionID.equals(podding.getSetCookie(cookieName))) {
+        failures.incrementAndGet(CROSS_USER);
+      }
+
+      sessions.set((int)(sessionCount.getAndIncrement() % SHARED_SESSIONS), session);
+      access(session, remoteAddr);
+    }
+    catch (Exception e) {
+      logger.error("Login failed for " + user, e);
+    }
+  }
+
+  /**
+   * Uses a session and checks what the Guard let through to the application
+   *
+   * @param session the session
+   * @param remoteAddr the user's address
+   */
+  private void access(Session session, String remoteAddr) {
+    try {
+      long started = System.nanoTime();
+      SoakExchange request = new SoakExchange("/resource", remoteAddr).cookie(cookieName, session.sessionID);
+      GuardRequest guardRequest = filter(request);
+      if (guardRequest == null) {
+        if (request.getLocation() != null) {
+          relogins.incrementAndGet();
+        }
+        return;
+      }
+
+      long loggedOutAt = session.loggedOutAt;
+      if ((loggedOutAt != 0) && (loggedOutAt - started < 0)) {
+        failures.incrementAndGet(RESURRECTED);
+      }
+
+      String attribute = guardRequest.getHeader(attributePrefix + USER);
+      if (attribute == null) {
+        failures.incrementAndGet(LOST_BAG);
+      }
+      else if (!session.user.equals(attribute)) {
+        failures.incrementAndGet(CROSS_USER);
+      }
+
+      // Only the first request after the login gets the preserved parameters
+      String user = guardRequest.getParameter(USER);
+      if ((user != null) && (!session.user.equals(user))) {
+        failures.incrementAndGet(CROSS_USER);
+      }
+    }
+    catch (Exception e) {
+      logger.error("Access failed for " + session.sessionID, e);
+    }
+  }
+
+  /**
+   * Passes a request through the Guard filter
+   *
+   * @param exchange the request
+   * @return the request the application would get, or null if the Guard didn't let it through
+   * @throws Exception if the filter fails
+   */
+  private GuardRequest filter(SoakExchange exchange) throws Exception {
+    final GuardRequest[] passed = new GuardRequest[1];
+    guard.doFilter(exchange.getRequest(), exchange.getResponse(), new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response) {
+        passed[0] = (GuardRequest)request;
+      }
+    });
+    return passed[0];
+  }
+
+  /**
+   * Logs a session out and notes when, so later requests can be checked against it
+   *
+   * @param session the session
+   */
+  private void logout(Session session) {
+    podStore.deactivate(session.sessionID);
+    if (session.loggedOutAt == 0) {
+      session.loggedOutAt = System.nanoTime();
+    }
+  }
+
+  private Session pickSession(Random random) {
+    long count = sessionCount.get();
+    if (count == 0) return null;
+    return sessions.get(random.nextInt((int)Math.min(count, SHARED_SESSIONS)));
+  }
+
+  /**
+   * @return the bytes of heap in use after the last GC, or the current use if that isn't known
+   */
+  private long getHeapAfterGC() {
+    long used = 0;
+    boolean known = false;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if ((pool.getType() == MemoryType.HEAP) && (pool.isCollectionUsageThresholdSupported()) &&
+          (pool.getCollectionUsage() != null)) {
+        used += pool.getCollectionUsage().getUsed();
+        known = true;
+      }
+    }
+    return known ? used : ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * @return the total milliseconds the workers have spent blocked on monitors, or -1 if it isn't known
+   */
+  private long getBlockedTime(ThreadMXBean threadBean, List<Thread> workers) {
+    if (!threadBean.isThreadContentionMonitoringEnabled()) return -1;
+    long blocked = 0;
+    for (Thread worker : workers) {
+      ThreadInfo info = threadBean.getThreadInfo(worker.getId());
+      if ((info != null) && (info.getBlockedTime() > 0)) {
+        blocked += info.getBlockedTime();
+      }
+    }
+    return blocked;
+  }
+
+  /**
+   * Fits a line to the heap samples by least squares
+   *
+   * @param samples each sample as milliseconds since the start and bytes
+   * @return the slope in bytes per millisecond
+   */
+  private double getTrend(List<long[]> samples) {
+    if (samples.size() < 2) return 0;
+    double meanTime = 0, meanHeap = 0;
+    for (long[] sample : samples) {
+      meanTime += sample[0];
+      meanHeap += sample[1];
+    }
+    meanTime /= samples.size();
+    meanHeap /= samples.size();
+
+    double covariance = 0, variance = 0;
+    for (long[] sample : samples) {
+      covariance += (sample[0] - meanTime) * (sample[1] - meanHeap);
+      variance += (sample[0] - meanTime) * (sample[0] - meanTime);
+    }
+    return (variance > 0) ? covariance / variance : 0;
+  }
+
+  /**
+   * A user's session
+   */
+  private static class Session {
+    final String sessionID;
+    final String user;
+    /** When the session was logged out, by System.nanoTime(), or 0 if it hasn't been */
+    volatile long loggedOutAt = 0;
+
+    Session(String sessionID, String user) {
+      this.sessionID = sessionID;
+      this.user = user;
+    }
+  }
+}
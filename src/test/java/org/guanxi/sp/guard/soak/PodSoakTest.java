@@ -0,0 +1,34 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.soak;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * A short soak of the Guard with the webapp's own config, to catch races between logins,
+ * requests and logouts on every build. Longer soaks are run by hand with PodSoak.main().
+ */
+public class PodSoakTest {
+  private static final String CONFIG = "src/main/webapp/WEB-INF/guanxi_sp_guard/config/guanxi-sp-guard.properties";
+
+  @Test
+  public void passesItsChecks() throws Exception {
+    assertTrue(new PodSoak(CONFIG).run(8, 3, 1));
+  }
+}
@@ -0,0 +1,133 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.soak;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An in-memory servlet context for the Guard filter and its servlets, with the configs
+ * they're initialised with. The context's attributes are how the filter shares its config,
+ * core and PodStore with the servlets, just as in a container.
+ */
+class SoakContext implements InvocationHandler {
+  private static final Logger logger = Logger.getLogger(SoakContext.class.getName());
+
+  private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+  private final ServletContext context;
+
+  SoakContext() {
+    context = (ServletContext)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                     new Class<?>[] {ServletContext.class}, this);
+  }
+
+  ServletContext getContext() {
+    return context;
+  }
+
+  /**
+   * @param configFile the path of the Guard config
+   * @return the config for initialising the Guard filter
+   */
+  FilterConfig getFilterConfig(String configFile) {
+    return (FilterConfig)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {FilterConfig.class},
+                                                new InitHandler("Guard", Collections.singletonMap("configFile", configFile)));
+  }
+
+  /**
+   * @param name the name of the servlet
+   * @return the config for initialising the servlet
+   */
+  ServletConfig getServletConfig(String name) {
+    return (ServletConfig)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ServletConfig.class},
+                                                 new InitHandler(name, Collections.<String, String>emptyMap()));
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    if (name.equals("getAttribute")) return attributes.get(args[0]);
+    if (name.equals("getAttributeNames")) return Collections.enumeration(attributes.keySet());
+    if (name.equals("setAttribute")) {
+      if (args[1] == null) {
+        attributes.remove(args[0]);
+      }
+      else {
+        attributes.put((String)args[0], args[1]);
+      }
+      return null;
+    }
+    if (name.equals("removeAttribute")) return attributes.remove(args[0]);
+    // Config file paths are given as they are
+    if (name.equals("getRealPath")) return args[0];
+    if (name.equals("getInitParameter")) return null;
+    if (name.equals("getServletContextName") || name.equals("getContextPath")) return "/soak";
+    if (name.equals("log")) {
+      logger.info(args[0], (args.length > 1) ? (Throwable)args[1] : null);
+      return null;
+    }
+    return objectMethod(proxy, method, args, "servlet context");
+  }
+
+  /**
+   * Answers the methods every object has, for the in-memory servlet objects
+   *
+   * @param proxy the proxy the method was called on
+   * @param method the method
+   * @param args the arguments
+   * @param what what the proxy stands in for
+   * @return the result of the method
+   * @throws UnsupportedOperationException if the method isn't one of Object's
+   */
+  static Object objectMethod(Object proxy, Method method, Object[] args, String what) {
+    if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+    if (method.getName().equals("equals")) return proxy == args[0];
+    if (method.getName().equals("toString")) return "soak " + what;
+    throw new UnsupportedOperationException("The soak " + what + " doesn't support " + method.getName());
+  }
+
+  /**
+   * Answers the methods of a FilterConfig or ServletConfig
+   */
+  private class InitHandler implements InvocationHandler {
+    private final String name;
+    private final Map<String, String> parameters;
+
+    InitHandler(String name, Map<String, String> parameters) {
+      this.name = name;
+      this.parameters = parameters;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String methodName = method.getName();
+      if (methodName.equals("getServletContext")) return context;
+      if (methodName.equals("getFilterName") || methodName.equals("getServletName")) return name;
+      if (methodName.equals("getInitParameter")) return parameters.get(args[0]);
+      if (methodName.equals("getInitParameterNames")) return Collections.enumeration(parameters.keySet());
+      return objectMethod(proxy, method, args, name + " config");
+    }
+  }
+}
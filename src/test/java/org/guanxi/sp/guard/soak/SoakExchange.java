@@ -0,0 +1,206 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.guard.soak;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An in-memory request and response for driving the Guard filter and its servlets without
+ * a server. Only the methods the Guard uses are implemented, anything else throws
+ * UnsupportedOperationException so a change in what the Guard needs shows up straight away.
+ */
+class SoakExchange {
+  /** The Host header of every request */
+  static final String HOST = "soak.example.org";
+
+  private final String path;
+  private final String remoteAddr;
+  private final Map<String, String> headers = new HashMap<String, String>();
+  private final List<Cookie> cookies = new ArrayList<Cookie>();
+  private final Map<String, String[]> parameters = new HashMap<String, String[]>();
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+  private String contentType = null;
+  private byte[] body = null;
+
+  private final Map<String, String> setCookies = new HashMap<String, String>();
+  private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private int status = 200;
+  private String location = null;
+
+  SoakExchange(String path, String remoteAddr) {
+    this.path = path;
+    this.remoteAddr = remoteAddr;
+    headers.put("Host", HOST);
+  }
+
+  SoakExchange cookie(String name, String value) {
+    cookies.add(new Cookie(name, value));
+    return this;
+  }
+
+  SoakExchange parameter(String name, String value) {
+    parameters.put(name, new String[] {value});
+    return this;
+  }
+
+  SoakExchange body(String contentType, byte[] body) {
+    this.contentType = contentType;
+    this.body = body;
+    return this;
+  }
+
+  HttpServletRequest getRequest() {
+    return (HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                      new Class<?>[] {HttpServletRequest.class},
+                                                      new RequestHandler());
+  }
+
+  HttpServletResponse getResponse() {
+    return (HttpServletResponse)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                       new Class<?>[] {HttpServletResponse.class},
+                                                       new ResponseHandler());
+  }
+
+  int getStatus() {
+    return status;
+  }
+
+  String getLocation() {
+    return location;
+  }
+
+  /**
+   * @param name the name of a cookie
+   * @return the value the response set the cookie to, or null if it didn't set it
+   */
+  String getSetCookie(String name) {
+    return setCookies.get(name);
+  }
+
+  /**
+   * @return what was written to the response's output stream
+   */
+  byte[] getOutput() {
+    return output.toByteArray();
+  }
+
+  /**
+   * Answers the methods of the request
+   */
+  private class RequestHandler implements InvocationHandler {
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getServletPath")) return path;
+      if (name.equals("getPathInfo")) return null;
+      if (name.equals("getContextPath")) return "/soak";
+      if (name.equals("getRequestURI")) return "/soak" + path;
+      if (name.equals("getQueryString")) return null;
+      if (name.equals("getScheme")) return "https";
+      if (name.equals("getMethod")) return (body != null) ? "POST" : "GET";
+      if (name.equals("getRemoteAddr")) return remoteAddr;
+      if (name.equals("getHeader")) return headers.get(args[0]);
+      if (name.equals("getHeaders")) return Collections.enumeration((headers.get(args[0]) != null) ?
+                                                                    Collections.singletonList(headers.get(args[0])) :
+                                                                    Collections.<String>emptyList());
+      if (name.equals("getHeaderNames")) return Collections.enumeration(headers.keySet());
+      if (name.equals("getCookies")) return cookies.toArray(new Cookie[cookies.size()]);
+      if (name.equals("getParameter")) return parameters.containsKey(args[0]) ? parameters.get(args[0])[0] : null;
+      if (name.equals("getParameterValues")) return parameters.get(args[0]);
+      if (name.equals("getParameterMap")) return parameters;
+      if (name.equals("getParameterNames")) return Collections.enumeration(parameters.keySet());
+      if (name.equals("getContentType")) return contentType;
+      if (name.equals("getContentLength")) return (body != null) ? body.length : -1;
+      if (name.equals("getInputStream")) return new BodyInputStream(new ByteArrayInputStream((body != null) ? body : new byte[0]));
+      if (name.equals("getAttribute")) return attributes.get(args[0]);
+      if (name.equals("getAttributeNames")) return Collections.enumeration(attributes.keySet());
+      if (name.equals("setAttribute")) return attributes.put((String)args[0], args[1]);
+      if (name.equals("removeAttribute")) return attributes.remove(args[0]);
+      return SoakContext.objectMethod(proxy, method, args, "request");
+    }
+  }
+
+  /**
+   * Records what the Guard does to the response
+   */
+  private class ResponseHandler implements InvocationHandler {
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("addCookie")) {
+        Cookie cookie = (Cookie)args[0];
+        setCookies.put(cookie.getName(), cookie.getValue());
+        return null;
+      }
+      if (name.equals("setStatus") || name.equals("sendError")) {
+        status = (Integer)args[0];
+        return null;
+      }
+      if (name.equals("sendRedirect")) {
+        status = 302;
+        location = (String)args[0];
+        return null;
+      }
+      if (name.equals("setHeader") || name.equals("addHeader") || name.equals("setContentType")) return null;
+      if (name.equals("getOutputStream")) return new BodyOutputStream();
+      if (name.equals("isCommitted")) return Boolean.FALSE;
+      return SoakContext.objectMethod(proxy, method, args, "response");
+    }
+  }
+
+  /**
+   * Reads the request body
+   */
+  private static class BodyInputStream extends ServletInputStream {
+    private final ByteArrayInputStream in;
+
+    BodyInputStream(ByteArrayInputStream in) {
+      this.in = in;
+    }
+
+    public int read() {
+      return in.read();
+    }
+
+    public int read(byte[] bytes, int offset, int length) {
+      return in.read(bytes, offset, length);
+    }
+  }
+
+  /**
+   * Collects the response body
+   */
+  private class BodyOutputStream extends ServletOutputStream {
+    public void write(int b) throws IOException {
+      output.write(b);
+    }
+  }
+}